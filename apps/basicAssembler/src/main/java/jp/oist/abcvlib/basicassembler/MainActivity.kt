@@ -16,6 +16,7 @@ import jp.oist.abcvlib.core.learning.CommActionSpace
 import jp.oist.abcvlib.core.learning.MetaParameters
 import jp.oist.abcvlib.core.learning.MotionActionSpace
 import jp.oist.abcvlib.core.learning.StateSpace
+import jp.oist.abcvlib.util.BitmapPool
 import jp.oist.abcvlib.util.SerialCommManager
 import jp.oist.abcvlib.util.SerialReadyListener
 import jp.oist.abcvlib.util.UsbSerial
@@ -57,7 +58,8 @@ class MainActivity : AbcvlibActivity(), SerialReadyListener {
 
         initUiUpdater()
 
-        timeStepDataBuffer = TimeStepDataBuffer(10)
+        // Direct columns let the flatbuffer assembler bulk copy sensor streams
+        timeStepDataBuffer = TimeStepDataBuffer(10, true)
 
         super.onCreate(savedInstanceState)
     }
@@ -125,6 +127,10 @@ class MainActivity : AbcvlibActivity(), SerialReadyListener {
             .Builder(this, publisherManager, this)
             .setPreviewView(binding.cameraXPreview).build()
         imageDataRaw.addSubscriber(timeStepDataBuffer)
+        // Recycle frame bitmaps: a few frames per timestep for each slot of the buffer
+        val bitmapPool = BitmapPool(40)
+        imageDataRaw.setBitmapPool(bitmapPool)
+        timeStepDataBuffer.setBitmapPool(bitmapPool)
 
         stateSpace = StateSpace(publisherManager)
         setSerialCommManager(SerialCommManager(usbSerial, batteryData, wheelData))
@@ -50,7 +50,8 @@ public class MainActivity extends AbcvlibActivity implements SerialReadyListener
         // Copies all files from assets/models to local storage
         FileOps.copyAssets(getApplicationContext(), "models/");
 
-        timeStepDataBuffer = new TimeStepDataBuffer(200);
+        // Direct columns let the flatbuffer assembler bulk copy sensor streams
+        timeStepDataBuffer = new TimeStepDataBuffer(200, true);
 
         // Initialize InetSocketAddress in a background thread and wait for completion
         Future<InetSocketAddress> future = executorService.submit(new Callable<InetSocketAddress>() {
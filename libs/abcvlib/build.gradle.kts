@@ -47,6 +47,10 @@ dependencies {
     api(libs.flatbuffers)
     api(libs.android.permissions)
     api(libs.abcvlib.fbclasses)
+    // Testing
+    testImplementation(libs.junit)
+    // The android.jar copy of org.json is a stub in local unit tests
+    testImplementation(libs.json)
 }
 
 android {
@@ -59,6 +63,10 @@ android {
         buildConfigField("String", "IP", "\"${networkConfig.ip}\"")
         buildConfigField("int", "PORT", "${networkConfig.port}")
     }
+    testOptions {
+        // Logger calls android.util.Log, which only has stubs in local unit tests
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 // Download default models; if you wish to use your own models then
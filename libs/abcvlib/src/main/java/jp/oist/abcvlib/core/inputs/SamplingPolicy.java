@@ -0,0 +1,57 @@
+package jp.oist.abcvlib.core.inputs;
+
+/**
+ * Decides how the samples of a sensor stream arriving within one timestep are reduced before
+ * they are stored in a {@link TimeStepDataBuffer.TimeStepData} slot. Set per stream via
+ * {@link TimeStepDataBuffer#setSamplingPolicy(TimeStepDataBuffer.SensorStream, SamplingPolicy)}.
+ */
+public final class SamplingPolicy {
+
+    public enum Mode {
+        /** Record every sample (default) */
+        KEEP_ALL,
+        /** Record only the most recent sample of the timestep */
+        KEEP_LAST,
+        /** Record the 1st, (n+1)th, (2n+1)th... sample of the timestep */
+        EVERY_NTH,
+        /**
+         * Record a single row holding the latest timestamp and the running mean of each value.
+         * count/mean/min/max/last of each value are available from the stream's getStats().
+         */
+        RUNNING_STATS
+    }
+
+    private static final SamplingPolicy KEEP_ALL = new SamplingPolicy(Mode.KEEP_ALL, 1);
+    private static final SamplingPolicy KEEP_LAST = new SamplingPolicy(Mode.KEEP_LAST, 1);
+    private static final SamplingPolicy RUNNING_STATS = new SamplingPolicy(Mode.RUNNING_STATS, 1);
+
+    private final Mode mode;
+    private final int n;
+
+    private SamplingPolicy(Mode mode, int n){
+        this.mode = mode;
+        this.n = n;
+    }
+
+    public static SamplingPolicy keepAll(){return KEEP_ALL;}
+
+    public static SamplingPolicy keepLast(){return KEEP_LAST;}
+
+    public static SamplingPolicy runningStats(){return RUNNING_STATS;}
+
+    public static SamplingPolicy everyNth(int n){
+        if (n < 1){
+            throw new IllegalArgumentException("n must be at least 1. n of " + n + " provided.");
+        }
+        return new SamplingPolicy(Mode.EVERY_NTH, n);
+    }
+
+    public Mode getMode(){return mode;}
+
+    public int getN(){return n;}
+
+    @Override
+    public String toString(){
+        return mode == Mode.EVERY_NTH ? mode + "(" + n + ")" : mode.toString();
+    }
+}
@@ -2,16 +2,21 @@ package jp.oist.abcvlib.core.inputs;
 
 import android.graphics.Bitmap;
 import android.media.AudioTimestamp;
+import android.os.SystemClock;
 import jp.oist.abcvlib.util.Logger;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jp.oist.abcvlib.core.inputs.microcontroller.BatteryDataSubscriber;
 import jp.oist.abcvlib.core.inputs.microcontroller.WheelDataSubscriber;
@@ -21,23 +26,85 @@ import jp.oist.abcvlib.core.inputs.phone.OrientationDataSubscriber;
 import jp.oist.abcvlib.core.inputs.phone.QRCodeDataSubscriber;
 import jp.oist.abcvlib.core.learning.CommAction;
 import jp.oist.abcvlib.core.learning.MotionAction;
+import jp.oist.abcvlib.util.BitmapPool;
+import jp.oist.abcvlib.util.DoubleColumn;
+import jp.oist.abcvlib.util.FloatColumn;
+import jp.oist.abcvlib.util.ImageCompressionPool;
 import jp.oist.abcvlib.util.ImageOps;
-import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
-
+import jp.oist.abcvlib.util.IntColumn;
+import jp.oist.abcvlib.util.LongColumn;
+import jp.oist.abcvlib.util.RunningStats;
+import jp.oist.abcvlib.util.TimeStepOverrunException;
+
+/**
+ * Ring of {@link TimeStepData} slots. Publisher threads write into the current write slot while
+ * a single owner thread (normally the Trial) advances the ring via {@link #nextTimeStep()}.
+ * Advancing is lock-free: every slot is stamped with the sequence number of the timestep it
+ * currently holds, so a reader that claims a slot by sequence number can detect afterwards
+ * whether the slot was recycled (overwritten) or is mid-reset (torn) instead of blocking writers.
+ * <p>
+ * Sensor samples only go into a slot while it is the write slot. {@link #nextTimeStep()} seals
+ * the slot it completes, waiting for publishers still adding to it, and a publisher that picked
+ * up the slot just before that drops its sample (see {@link #getLateWriteCount()}). Readers
+ * therefore never see a stream column grow or change under them and need no lock; the columns
+ * themselves are not thread safe.
+ * <p>
+ * Readers that hold on to a slot beyond the timestep it was completed in (e.g. the flatbuffer
+ * writer) should bracket their reads with {@link #acquire(TimeStepData, long)} and
+ * {@link #release(TimeStepData, long)}. This lets the buffer count overruns (the writer
+ * recycling a slot that is still being read), measure how many timesteps readers lag behind
+ * the writer and from that recommend a bufferLength via {@link #getRecommendedBufferLength()}.
+ */
 public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubscriber,
         ImageDataRawSubscriber, MicrophoneDataSubscriber, OrientationDataSubscriber, QRCodeDataSubscriber {
 
     private final int bufferLength;
-    private int writeIndex;
-    private int readIndex;
+    private volatile int writeIndex;
+    private volatile int readIndex;
     private final TimeStepData[] buffer;
-    private TimeStepData writeData;
-    private TimeStepData readData;
+    private volatile TimeStepData writeData;
+    private volatile TimeStepData readData;
+    // Sequence number of the timestep currently being written. Only the owner thread advances it.
+    private final AtomicLong writeSequence = new AtomicLong(1);
     public final Collection<Future<?>> imgCompFuturesTimeStep = Collections.synchronizedList(new LinkedList<Future<?>>());
     public final Collection<Collection<Future<?>>> imgCompFuturesEpisode = Collections.synchronizedList(new LinkedList<>());
-    private final ExecutorService imageCompressionExecutor = Executors.newCachedThreadPool(new ProcessPriorityThreadFactory(Thread.MAX_PRIORITY, "ImageCompression"));
+    private volatile ImageCompressionPool imageCompressionPool = new ImageCompressionPool();
+    private volatile boolean recycleTimeStepData = true;
+    private volatile int timeStepLength = 50;
+    private volatile SamplingPolicy wheelPolicy = SamplingPolicy.keepAll();
+    private volatile SamplingPolicy orientationPolicy = SamplingPolicy.keepAll();
+    private volatile SamplingPolicy batteryPolicy = SamplingPolicy.keepAll();
+    private volatile SamplingPolicy chargerPolicy = SamplingPolicy.keepAll();
+    private TimeStepResampler resampler;
+    private volatile boolean failFast = false;
+    // Slots recycled by nextTimeStep() while a reader still held them
+    private final AtomicLong overrunCount = new AtomicLong();
+    // Reads that found their slot recycled or being reset on acquire or release
+    private final AtomicLong invalidReadCount = new AtomicLong();
+    // Image compressions that finished after their slot was recycled
+    private final AtomicLong staleWriteCount = new AtomicLong();
+    // Sensor samples dropped because their slot was completed while they arrived
+    private final AtomicLong lateWriteCount = new AtomicLong();
+    // Largest number of timesteps the writer was ahead of a reader or image compression when it finished
+    private final AtomicLong maxLag = new AtomicLong();
+    private long timeStepStart;
+
+    /**
+     * Sensor streams whose samples can be reduced as they arrive via a {@link SamplingPolicy}
+     */
+    public enum SensorStream {WHEEL, ORIENTATION, BATTERY, CHARGER}
 
     public TimeStepDataBuffer(int bufferLength){
+        this(bufferLength, false);
+    }
+
+    /**
+     * @param directColumns true to record the wheel, orientation, charger and battery streams
+     *                      into off-heap little-endian columns laid out like the flatbuffer
+     *                      vector payload, so FlatbufferAssembler can append them with one bulk
+     *                      copy per column.
+     */
+    public TimeStepDataBuffer(int bufferLength, boolean directColumns){
         if (bufferLength <= 1){
             throw new RuntimeException("bufferLength must be larger than 1. " +
                     "bufferLength of " + bufferLength + " provided.");
@@ -50,49 +117,378 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
 
         // populate buffer with TimeStepData instances
         for(int i = 0 ; i < bufferLength; i++){
-            buffer[i] = new TimeStepData();
+            buffer[i] = new TimeStepData(directColumns);
         }
+        buffer[readIndex].publish(0);
+        buffer[writeIndex].publish(1);
+        buffer[writeIndex].open();
         writeData = buffer[writeIndex];
         readData = buffer[readIndex];
     }
 
-    public synchronized void nextTimeStep(){
+    /**
+     * Completes the current write slot and moves on to the next one. Must only be called from a
+     * single thread (the Trial thread); publishers and readers never block on it.
+     */
+    public void nextTimeStep(){
         // Keeps track of how many image compression threads have yet to finish per timestep
-        synchronized (this){
-            imgCompFuturesEpisode.add(imgCompFuturesTimeStep);
+        synchronized (imgCompFuturesTimeStep){
+            imgCompFuturesEpisode.add(new ArrayList<>(imgCompFuturesTimeStep));
             imgCompFuturesTimeStep.clear();
         }
 
-        // Update index for read and write pointer
-        writeIndex = ((writeIndex + 1) % bufferLength);
-        readIndex = ((readIndex + 1) % bufferLength);
+        // No sample may change the completed slot once readers can see it
+        writeData.seal();
+
+        long sequence = writeSequence.get() + 1;
+        int nextWriteIndex = indexOf(sequence);
+        TimeStepData nextWriteData = buffer[nextWriteIndex];
 
+        if (nextWriteData.readers.get() > 0){
+            overrunCount.incrementAndGet();
+            reportOverrun("Recycling slot " + nextWriteIndex + " holding timestep " +
+                    nextWriteData.getSequence() + " while it is still being read. Current lag " +
+                    getMaxLag() + ", consider a bufferLength of at least " + getRecommendedBufferLength());
+        }
+
+        // Mark the slot as being reset so readers still holding it see a torn slot
+        nextWriteData.publish(TimeStepData.RESETTING);
         // Clear the next TimeStepData object for new writing
-        buffer[writeIndex].clear();
+        if (recycleTimeStepData){
+            nextWriteData.reset();
+        } else {
+            nextWriteData.clear();
+        }
+        nextWriteData.publish(sequence);
+        nextWriteData.open();
 
         // Move pointer for reading and writing objects one index forward;
-        writeData = buffer[writeIndex];
-        readData = buffer[readIndex];
+        readIndex = writeIndex;
+        readData = writeData;
+        writeIndex = nextWriteIndex;
+        writeData = nextWriteData;
+        writeSequence.set(sequence);
+
+        // Align the completed timestep onto the resampling grid before anyone reads it
+        TimeStepResampler resampler = this.resampler;
+        if (resampler != null){
+            long timeStepEnd = System.nanoTime();
+            long elapsedRealtimeOffset = SystemClock.elapsedRealtimeNanos() - timeStepEnd;
+            resampler.resample(readData, timeStepStart, timeStepEnd, elapsedRealtimeOffset,
+                    readData.getObservation());
+            timeStepStart = timeStepEnd;
+        }
     }
 
-    public synchronized TimeStepData getWriteData(){return writeData;}
+    /**
+     * Attaches a resampler that aligns every completed timestep onto a common time grid. The
+     * result is available from {@link TimeStepData#getObservation()} of the read slot, e.g.
+     * within Trial.forward(). Must be called from the thread calling {@link #nextTimeStep()}
+     * (or before it starts). Pass null to detach.
+     */
+    public void setResampler(TimeStepResampler resampler){
+        this.resampler = resampler;
+        if (resampler != null){
+            for (TimeStepData timeStepData : buffer){
+                timeStepData.setObservationSize(resampler.getObservationSize());
+            }
+            timeStepStart = System.nanoTime();
+        }
+    }
 
-    public synchronized TimeStepData getReadData(){return readData;}
+    public TimeStepResampler getResampler(){return resampler;}
+
+    /**
+     * Starts resampling afresh, so that the next timestep spans from now rather than from the
+     * end of the last one and does not interpolate from samples recorded before, e.g. when the
+     * publishers resume after a pause or a new episode starts. Must be called from the thread
+     * calling {@link #nextTimeStep()} (or while it is not running).
+     */
+    public void restartResampling(){
+        TimeStepResampler resampler = this.resampler;
+        if (resampler != null){
+            resampler.reset();
+            timeStepStart = System.nanoTime();
+        }
+    }
 
-    public synchronized TimeStepData getTimeStepData(int timestep){
+    /**
+     * @param bitmapPool pool that frame bitmaps are returned to when their slot is reset. Use the
+     *                   same pool as the image publisher (see
+     *                   jp.oist.abcvlib.core.inputs.phone.ImageData#setBitmapPool). Bitmaps are
+     *                   only returned while {@link #isRecycleTimeStepData()} is true.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool){
+        for (TimeStepData timeStepData : buffer){
+            timeStepData.getImageData().setBitmapPool(bitmapPool);
+        }
+    }
+
+    /**
+     * @param imageCompressionPool pool compressing camera frames, e.g. with more threads or a
+     *                             different {@link ImageCompressionPool.Tier}. The previous pool
+     *                             finishes the frames it holds and is shut down.
+     */
+    public void setImageCompressionPool(ImageCompressionPool imageCompressionPool){
+        ImageCompressionPool previous = this.imageCompressionPool;
+        this.imageCompressionPool = imageCompressionPool;
+        if (previous != imageCompressionPool){
+            previous.shutdown();
+        }
+    }
+
+    public ImageCompressionPool getImageCompressionPool(){return imageCompressionPool;}
+
+    /**
+     * Waits until every frame of slot has been compressed or dropped. Frames dropped by the
+     * {@link ImageCompressionPool} have already been removed from the slot.
+     */
+    public void awaitImageCompression(TimeStepData slot) throws ExecutionException, InterruptedException {
+        Future<?>[] compressions;
+        synchronized (slot.imageCompressions){
+            compressions = slot.imageCompressions.toArray(new Future<?>[0]);
+        }
+        for (Future<?> compression : compressions){
+            try {
+                compression.get();
+            } catch (CancellationException e) {
+                // Dropped as frames arrived faster than they could be compressed
+            }
+        }
+    }
+
+    public TimeStepData getWriteData(){return writeData;}
+
+    public TimeStepData getReadData(){return readData;}
+
+    public TimeStepData getTimeStepData(int timestep){
         return buffer[timestep];
     }
 
-    public synchronized  int getReadIndex(){return readIndex;}
+    public int getReadIndex(){return readIndex;}
+
+    public int getBufferLength(){return bufferLength;}
+
+    /**
+     * @return sequence number of the timestep currently being written
+     */
+    public long getWriteSequence(){return writeSequence.get();}
+
+    /**
+     * @return sequence number of the most recently completed timestep (the read slot)
+     */
+    public long getReadSequence(){return writeSequence.get() - 1;}
+
+    public int indexOf(long sequence){
+        return (int) (sequence % bufferLength);
+    }
+
+    /**
+     * Claims the slot holding a completed timestep without locking.
+     * @param sequence sequence number of the timestep, e.g. from {@link #getReadSequence()}
+     * @return the slot, or null if it has already been recycled for a later timestep or is not
+     * yet complete. Call {@link #isValid(TimeStepData, long)} after reading to make sure the
+     * slot was not overwritten while you were reading it.
+     */
+    public TimeStepData claim(long sequence){
+        if (sequence >= writeSequence.get()){
+            return null;
+        }
+        TimeStepData slot = buffer[indexOf(sequence)];
+        return slot.getSequence() == sequence ? slot : null;
+    }
+
+    /**
+     * @return true if slot still holds the timestep with the given sequence number, false if it
+     * has been recycled or is being reset
+     */
+    public boolean isValid(TimeStepData slot, long sequence){
+        return slot.getSequence() == sequence;
+    }
+
+    /**
+     * Pins slot for reading the timestep with the given sequence number. Must be paired with
+     * {@link #release(TimeStepData, long)}.
+     * @return false if the slot no longer holds that timestep, i.e. the reader fell more than
+     * bufferLength - 1 timesteps behind
+     */
+    public boolean acquire(TimeStepData slot, long sequence){
+        slot.readers.incrementAndGet();
+        if (!isValid(slot, sequence)){
+            invalidReadCount.incrementAndGet();
+            try {
+                reportOverrun("Timestep " + sequence + " was recycled before it was read");
+            } catch (TimeStepOverrunException e){
+                slot.readers.decrementAndGet();
+                throw e;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unpins a slot pinned via {@link #acquire(TimeStepData, long)} and records how far the
+     * reader lagged behind the writer.
+     * @return false if the slot was recycled while it was being read, i.e. what was read may be
+     * a mix of two timesteps
+     */
+    public boolean release(TimeStepData slot, long sequence){
+        recordLag(sequence);
+        boolean valid = isValid(slot, sequence);
+        slot.readers.decrementAndGet();
+        if (!valid){
+            invalidReadCount.incrementAndGet();
+            reportOverrun("Timestep " + sequence + " was recycled while it was being read");
+        }
+        return valid;
+    }
+
+    private void recordLag(long sequence){
+        long lag = writeSequence.get() - sequence;
+        long max;
+        while (lag > (max = maxLag.get())){
+            if (maxLag.compareAndSet(max, lag)){
+                break;
+            }
+        }
+    }
+
+    private void reportOverrun(String message){
+        if (failFast){
+            throw new TimeStepOverrunException(message);
+        }
+        Logger.w("TimeStepDataBuffer", message);
+    }
+
+    /**
+     * @param failFast true to throw a {@link TimeStepOverrunException} on overruns and stale
+     *                 writes instead of logging and counting them. Off by default.
+     */
+    public void setFailFast(boolean failFast){
+        this.failFast = failFast;
+    }
+
+    public boolean isFailFast(){return failFast;}
+
+    /**
+     * @return number of times a slot was recycled while a reader still held it
+     */
+    public long getOverrunCount(){return overrunCount.get();}
+
+    /**
+     * @return number of reads that found their slot recycled on acquire or release
+     */
+    public long getInvalidReadCount(){return invalidReadCount.get();}
+
+    /**
+     * @return number of compressed images dropped because their slot was recycled first
+     */
+    public long getStaleWriteCount(){return staleWriteCount.get();}
+
+    /**
+     * @return number of sensor samples dropped because they arrived while nextTimeStep() was
+     * completing the slot they were meant for
+     */
+    public long getLateWriteCount(){return lateWriteCount.get();}
+
+    /**
+     * @return largest number of timesteps the writer was ahead of a reader or image compression
+     * when it finished with a slot
+     */
+    public long getMaxLag(){return maxLag.get();}
+
+    /**
+     * @return smallest bufferLength that would have kept every slot intact given the lag observed
+     * so far, plus one timestep of headroom. A slot with sequence s is recycled once the writer
+     * reaches s + bufferLength, so readers lagging by up to bufferLength - 1 are safe.
+     */
+    public int getRecommendedBufferLength(){
+        return (int) Math.max(2, getMaxLag() + 2);
+    }
+
+    /**
+     * Clears all overrun counters and the observed lag, e.g. after resizing the buffer.
+     */
+    public void resetOverrunStats(){
+        overrunCount.set(0);
+        invalidReadCount.set(0);
+        staleWriteCount.set(0);
+        lateWriteCount.set(0);
+        maxLag.set(0);
+    }
+
+    /**
+     * @param recycleTimeStepData true (default) to reset each TimeStepData slot in place, keeping
+     *                            the capacity of its streams from previous timesteps so a slot
+     *                            stops allocating after warm-up. false to replace all child objects
+     *                            with fresh instances on every {@link #nextTimeStep()}, which is
+     *                            only needed if you hold references to a slot's children beyond
+     *                            the timestep they belong to.
+     */
+    public void setRecycleTimeStepData(boolean recycleTimeStepData){
+        this.recycleTimeStepData = recycleTimeStepData;
+    }
+
+    public boolean isRecycleTimeStepData(){return recycleTimeStepData;}
+
+    /**
+     * @param timeStepLength length of a timestep in milliseconds. Used to presize the audio
+     *                       stream of each slot from the sample rate. Set by Trial.
+     */
+    public void setTimeStepLength(int timeStepLength){
+        this.timeStepLength = timeStepLength;
+    }
+
+    /**
+     * Sets how samples of a stream are reduced within each timestep, e.g. keep only the last
+     * wheel sample or the running mean of the battery voltage, so that the size of each
+     * timestep scales with the number of timesteps rather than the sensor rate.
+     * Takes effect from the next sample onwards.
+     */
+    public void setSamplingPolicy(SensorStream stream, SamplingPolicy policy){
+        switch (stream){
+            case WHEEL: wheelPolicy = policy; break;
+            case ORIENTATION: orientationPolicy = policy; break;
+            case BATTERY: batteryPolicy = policy; break;
+            case CHARGER: chargerPolicy = policy; break;
+        }
+    }
+
+    public SamplingPolicy getSamplingPolicy(SensorStream stream){
+        switch (stream){
+            case WHEEL: return wheelPolicy;
+            case ORIENTATION: return orientationPolicy;
+            case BATTERY: return batteryPolicy;
+            case CHARGER: return chargerPolicy;
+            default: throw new IllegalArgumentException("Unknown stream " + stream);
+        }
+    }
 
     @Override
     public void onBatteryVoltageUpdate(long timestamp, double voltage) {
-        getWriteData().getBatteryData().put(voltage, timestamp);
+        TimeStepData slot = beginWrite();
+        if (slot == null){
+            return;
+        }
+        try {
+            slot.getBatteryData().put(batteryPolicy, voltage, timestamp);
+        } finally {
+            slot.endWrite();
+        }
     }
 
     @Override
     public void onChargerVoltageUpdate(long timestamp, double chargerVoltage, double coilVoltage) {
-        getWriteData().getChargerData().put(timestamp, chargerVoltage, coilVoltage);
+        TimeStepData slot = beginWrite();
+        if (slot == null){
+            return;
+        }
+        try {
+            slot.getChargerData().put(chargerPolicy, timestamp, chargerVoltage, coilVoltage);
+        } finally {
+            slot.endWrite();
+        }
     }
 
     @Override
@@ -101,30 +497,99 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
                                   double wheelSpeedInstantL, double wheelSpeedInstantR,
                                   double wheelSpeedBufferedL, double wheelSpeedBufferedR,
                                   double wheelSpeedExpAvgL, double wheelSpeedExpAvgR) {
-        getWriteData().getWheelData().getLeft().put(timestamp, wheelCountL, wheelDistanceL,
-                wheelSpeedInstantL, wheelSpeedBufferedL, wheelSpeedExpAvgL);
-        getWriteData().getWheelData().getRight().put(timestamp, wheelCountR, wheelDistanceR,
-                wheelSpeedInstantR, wheelSpeedBufferedR, wheelSpeedExpAvgR);
+        TimeStepData slot = beginWrite();
+        if (slot == null){
+            return;
+        }
+        try {
+            SamplingPolicy policy = wheelPolicy;
+            TimeStepData.WheelData wheelData = slot.getWheelData();
+            wheelData.getLeft().put(policy, timestamp, wheelCountL, wheelDistanceL,
+                    wheelSpeedInstantL, wheelSpeedBufferedL, wheelSpeedExpAvgL);
+            wheelData.getRight().put(policy, timestamp, wheelCountR, wheelDistanceR,
+                    wheelSpeedInstantR, wheelSpeedBufferedR, wheelSpeedExpAvgR);
+        } finally {
+            slot.endWrite();
+        }
     }
 
     @Override
     public void onImageDataRawUpdate(long timestamp, int width, int height, Bitmap bitmap) {
-        getWriteData().getImageData().add(timestamp, width, height, bitmap, null);
+        TimeStepData slot = getWriteData();
+        // Captured now as the write slot will have moved on by the time compression finishes
+        long sequence = slot.getSequence();
+        slot.getImageData().add(timestamp, width, height, bitmap, null);
         // Handler to compress and put images into buffer
+        Future<?> compression = imageCompressionPool.submit(bitmap, new ImageCompressionPool.Listener() {
+            @Override
+            public void onCompressed(byte[] compressed) {
+                boolean written = ImageOps.addCompressedImage2Buffer(slot, sequence, timestamp, compressed);
+                recordLag(sequence);
+                if (!written){
+                    staleWriteCount.incrementAndGet();
+                    reportOverrun("Compressed image " + timestamp + " of timestep " + sequence +
+                            " dropped as its slot was recycled");
+                }
+            }
+
+            @Override
+            public void onDropped() {
+                // Leave no frame without image data behind for the flatbuffer
+                if (slot.getSequence() == sequence){
+                    slot.getImageData().remove(timestamp);
+                }
+            }
+        });
         synchronized (imgCompFuturesTimeStep){
-            imgCompFuturesTimeStep.add(imageCompressionExecutor.submit(() -> ImageOps.addCompressedImage2Buffer(writeIndex, timestamp, bitmap, buffer)));
+            imgCompFuturesTimeStep.add(compression);
         }
+        slot.imageCompressions.add(compression);
     }
 
     @Override
     public void onMicrophoneDataUpdate(float[] audioData, int numSamples, int sampleRate, AudioTimestamp startTime, AudioTimestamp endTime) {
-        getWriteData().getSoundData().setMetaData(sampleRate, startTime, endTime);
-        getWriteData().getSoundData().add(audioData, numSamples);
+        TimeStepData slot = beginWrite();
+        if (slot == null){
+            return;
+        }
+        try {
+            TimeStepData.SoundData soundData = slot.getSoundData();
+            soundData.setMetaData(sampleRate, startTime, endTime);
+            // One timestep worth of samples plus one period of headroom as periods straddle timesteps.
+            // A no-op once the slot has warmed up.
+            soundData.ensureCapacity((int) ((long) sampleRate * timeStepLength / 1000) + audioData.length);
+            soundData.add(audioData, numSamples);
+        } finally {
+            slot.endWrite();
+        }
     }
 
     @Override
     public void onOrientationUpdate(long timestamp, double thetaRad, double angularVelocityRad) {
-        getWriteData().getOrientationData().put(timestamp, thetaRad, angularVelocityRad);
+        TimeStepData slot = beginWrite();
+        if (slot == null){
+            return;
+        }
+        try {
+            slot.getOrientationData().put(orientationPolicy, timestamp, thetaRad, angularVelocityRad);
+        } finally {
+            slot.endWrite();
+        }
+    }
+
+    /**
+     * Enters the write slot for adding a sensor sample, to be paired with
+     * {@link TimeStepData#endWrite()}.
+     * @return the slot, or null if nextTimeStep() has just completed it, the sample is late and
+     * must be dropped then
+     */
+    private TimeStepData beginWrite(){
+        TimeStepData slot = writeData;
+        if (slot.beginWrite()){
+            return slot;
+        }
+        lateWriteCount.incrementAndGet();
+        return null;
     }
 
     @Override
@@ -133,53 +598,276 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
     }
 
     public static class TimeStepData{
-        private WheelData wheelData;
-        private ChargerData chargerData;
-        private BatteryData batteryData;
-        private ImageData imageData;
-        private SoundData soundData;
-        private RobotAction actions;
-        private OrientationData orientationData;
+        static final long RESETTING = -1;
+        // Initial number of samples per stream column. Columns grow as needed and keep their
+        // capacity when the slot is recycled.
+        static final int INITIAL_CAPACITY = 16;
+        // 50 ms at 8 kHz
+        static final int INITIAL_AUDIO_CAPACITY = 400;
+        private volatile WheelData wheelData;
+        private volatile ChargerData chargerData;
+        private volatile BatteryData batteryData;
+        private volatile ImageData imageData;
+        private volatile SoundData soundData;
+        private volatile RobotAction actions;
+        private volatile OrientationData orientationData;
+        private volatile long sequence = RESETTING;
+        private float[] observation;
+        private long reuseCount = 0;
+        // Number of readers currently holding this slot via acquire()
+        private final AtomicInteger readers = new AtomicInteger();
+        // Number of publishers currently adding samples, see beginWrite()
+        private final AtomicInteger writers = new AtomicInteger();
+        // Cleared while this is the write slot, samples are only added then
+        private volatile boolean sealed = true;
+        // Compressions of this timestep's camera frames, see awaitImageCompression()
+        private final List<Future<?>> imageCompressions = Collections.synchronizedList(new ArrayList<Future<?>>());
+
+        private final boolean directColumns;
 
         public TimeStepData(){
-            wheelData = new WheelData();
-            chargerData = new ChargerData();
-            batteryData = new BatteryData();
+            this(false);
+        }
+
+        public TimeStepData(boolean directColumns){
+            this.directColumns = directColumns;
+            wheelData = new WheelData(directColumns);
+            chargerData = new ChargerData(directColumns);
+            batteryData = new BatteryData(directColumns);
             imageData = new ImageData();
             soundData = new SoundData();
             actions = new RobotAction();
-            orientationData = new OrientationData();
+            orientationData = new OrientationData(directColumns);
+        }
+
+        public WheelData getWheelData(){return wheelData;}
+        public ChargerData getChargerData(){return chargerData;}
+        public BatteryData getBatteryData(){return batteryData;}
+        public ImageData getImageData(){return imageData;}
+        public SoundData getSoundData(){return soundData;}
+        public RobotAction getActions(){return actions;}
+        public OrientationData getOrientationData(){return orientationData;}
+
+        /**
+         * @return sequence number of the timestep this slot currently holds, or a negative value
+         * while the slot is being reset
+         */
+        public long getSequence(){return sequence;}
+
+        void publish(long sequence){
+            this.sequence = sequence;
         }
 
-        public synchronized WheelData getWheelData(){return wheelData;}
-        public synchronized ChargerData getChargerData(){return chargerData;}
-        public synchronized BatteryData getBatteryData(){return batteryData;}
-        public synchronized ImageData getImageData(){return imageData;}
-        public synchronized SoundData getSoundData(){return soundData;}
-        public synchronized RobotAction getActions(){return actions;}
-        public synchronized OrientationData getOrientationData(){return orientationData;}
+        /**
+         * Lets publishers add samples, once this slot has become the write slot.
+         */
+        void open(){
+            sealed = false;
+        }
+
+        /**
+         * Stops publishers from adding samples and waits for those still adding one, so the
+         * streams stay unchanged until the slot is opened again.
+         */
+        void seal(){
+            sealed = true;
+            while (writers.get() > 0){
+                Thread.yield();
+            }
+        }
+
+        /**
+         * @return false if the slot is sealed, nothing may be added then
+         */
+        boolean beginWrite(){
+            writers.incrementAndGet();
+            // Paired with seal(): either it sees this writer or this writer sees it sealed
+            if (sealed){
+                writers.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        void endWrite(){
+            writers.decrementAndGet();
+        }
+
+        /**
+         * Stores the compressed bytes of the camera frame with the given timestamp, provided this
+         * slot still holds the timestep with the given sequence number. Resetting the slot clears
+         * the frames under the same lock the check and the write are done under, so bytes
+         * compressed for a recycled timestep never end up in the frame of its successor.
+         * @return false if the slot was recycled or has no such frame, nothing is written then
+         */
+        public boolean setWebpImage(long sequence, long timestamp, byte[] webpImage){
+            ImageData frames = imageData;
+            synchronized (frames){
+                if (this.sequence != sequence){
+                    return false;
+                }
+                ImageData.SingleImage image = frames.get(timestamp);
+                return image != null && image.setWebpImageIf(timestamp, webpImage);
+            }
+        }
+
+        /**
+         * @return this timestep's streams resampled onto a fixed grid by the buffer's
+         * {@link TimeStepResampler}, or null if no resampler is attached. The array is owned by
+         * the slot and overwritten when the slot completes again.
+         */
+        public float[] getObservation(){return observation;}
+
+        void setObservationSize(int size){
+            if (observation == null || observation.length != size){
+                observation = new float[size];
+            }
+        }
+
+        /**
+         * Resets all streams in place so their backing storage is reused for the next timestep.
+         */
+        public void reset(){
+            wheelData.reset();
+            chargerData.reset();
+            batteryData.reset();
+            imageData.clear();
+            imageCompressions.clear();
+            soundData.reset();
+            actions.reset();
+            orientationData.reset();
+            reuseCount++;
+        }
+
+        /**
+         * @return how many times this slot has been reset in place via {@link #reset()}
+         */
+        public long getReuseCount(){return reuseCount;}
 
         public void clear(){
-            wheelData = new WheelData();
-            chargerData = new ChargerData();
-            batteryData = new BatteryData();
-            imageData = new ImageData();
+            wheelData = new WheelData(directColumns);
+            chargerData = new ChargerData(directColumns);
+            batteryData = new BatteryData(directColumns);
+            // Frames may still be referenced, so their bitmaps are not returned to the pool
+            imageData = new ImageData(imageData.bitmapPool);
+            imageCompressions.clear();
             soundData = new SoundData();
             actions = new RobotAction();
-            orientationData = new OrientationData();
+            orientationData = new OrientationData(directColumns);
+        }
+
+        public boolean hasDirectColumns(){return directColumns;}
+
+        /**
+         * Common sampling state of a sensor stream within one timestep. See {@link SamplingPolicy}.
+         */
+        public abstract static class SampledStream {
+            private int samplesSeen = 0;
+            private RunningStats[] stats;
+
+            /**
+             * @return true if the current sample should be recorded. Clears the recorded rows
+             * first for policies that only keep a single row per timestep.
+             */
+            boolean admit(SamplingPolicy policy){
+                int sample = samplesSeen++;
+                switch (policy.getMode()){
+                    case EVERY_NTH:
+                        return sample % policy.getN() == 0;
+                    case KEEP_LAST:
+                    case RUNNING_STATS:
+                        resetColumns();
+                        return true;
+                    default:
+                        return true;
+                }
+            }
+
+            /**
+             * @return value itself, or the running mean of the channel under RUNNING_STATS
+             */
+            double aggregate(SamplingPolicy policy, int channel, double value){
+                if (policy.getMode() != SamplingPolicy.Mode.RUNNING_STATS){
+                    return value;
+                }
+                RunningStats channelStats = getStats(channel);
+                channelStats.add(value);
+                return channelStats.getMean();
+            }
+
+            /**
+             * @param channel one of the channel constants of the stream, e.g.
+             *                {@link BatteryData#VOLTAGE}
+             * @return running stats of the channel for this timestep. Only updated under
+             * {@link SamplingPolicy.Mode#RUNNING_STATS}.
+             */
+            public RunningStats getStats(int channel){
+                if (stats == null){
+                    stats = new RunningStats[channelCount()];
+                    for (int i = 0; i < stats.length; i++){
+                        stats[i] = new RunningStats();
+                    }
+                }
+                return stats[channel];
+            }
+
+            /**
+             * @return number of samples that arrived this timestep, including dropped ones
+             */
+            public int getSamplesSeen(){return samplesSeen;}
+
+            void reset(){
+                resetColumns();
+                samplesSeen = 0;
+                if (stats != null){
+                    for (RunningStats channelStats : stats){
+                        channelStats.reset();
+                    }
+                }
+            }
+
+            abstract void resetColumns();
+
+            abstract int channelCount();
         }
 
         public static class WheelData {
-            IndividualWheelData left = new IndividualWheelData();
-            IndividualWheelData right = new IndividualWheelData();
+            final IndividualWheelData left;
+            final IndividualWheelData right;
 
-            public static class IndividualWheelData {
-                ArrayList<Long> timestamps = new ArrayList<>();
-                ArrayList<Integer> counts = new ArrayList<>();
-                ArrayList<Double> distances = new ArrayList<>();
-                ArrayList<Double> speedsInstantaneous = new ArrayList<>();
-                ArrayList<Double> speedsBuffered = new ArrayList<>();
-                ArrayList<Double> speedsExpAvg = new ArrayList<>();
+            public WheelData(){
+                this(false);
+            }
+
+            public WheelData(boolean direct){
+                left = new IndividualWheelData(direct);
+                right = new IndividualWheelData(direct);
+            }
+
+            public static class IndividualWheelData extends SampledStream {
+                public static final int DISTANCE = 0;
+                public static final int SPEED_INSTANTANEOUS = 1;
+                public static final int SPEED_BUFFERED = 2;
+                public static final int SPEED_EXP_AVG = 3;
+                final LongColumn timestamps;
+                final IntColumn counts;
+                final DoubleColumn distances;
+                final DoubleColumn speedsInstantaneous;
+                final DoubleColumn speedsBuffered;
+                final DoubleColumn speedsExpAvg;
+
+                public IndividualWheelData(){
+                    this(false);
+                }
+
+                public IndividualWheelData(boolean direct){
+                    timestamps = new LongColumn(INITIAL_CAPACITY, direct);
+                    counts = new IntColumn(INITIAL_CAPACITY, direct);
+                    distances = new DoubleColumn(INITIAL_CAPACITY, direct);
+                    speedsInstantaneous = new DoubleColumn(INITIAL_CAPACITY, direct);
+                    speedsBuffered = new DoubleColumn(INITIAL_CAPACITY, direct);
+                    speedsExpAvg = new DoubleColumn(INITIAL_CAPACITY, direct);
+                }
 
 
                 public void put(long timestamp, int count, double distance, double speedInstantaneous,
@@ -192,59 +880,60 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
                     speedsExpAvg.add(speedExpAvg);
 
                 }
-                public long[] getTimeStamps(){
-                    int size = timestamps.size();
-                    long[] timestampslong = new long[size];
-                    for (int i=0 ; i < size ; i++){
-                        timestampslong[i] = timestamps.get(i);
+
+                public void put(SamplingPolicy policy, long timestamp, int count, double distance,
+                                double speedInstantaneous, double speedBuffered, double speedExpAvg){
+                    if (admit(policy)){
+                        put(timestamp, count,
+                                aggregate(policy, DISTANCE, distance),
+                                aggregate(policy, SPEED_INSTANTANEOUS, speedInstantaneous),
+                                aggregate(policy, SPEED_BUFFERED, speedBuffered),
+                                aggregate(policy, SPEED_EXP_AVG, speedExpAvg));
                     }
-                    return timestampslong;
+                }
+                public long[] getTimeStamps(){
+                    return timestamps.toArray();
                 }
 
                 public int[] getCounts(){
-                    int size = counts.size();
-                    int[] countsArray = new int[size];
-                    for (int i=0 ; i < size ; i++){
-                        countsArray[i] = counts.get(i);
-                    }
-                    return countsArray;
+                    return counts.toArray();
                 }
 
                 public double[] getDistances(){
-                    int size = distances.size();
-                    double[] distancesArray = new double[size];
-                    for (int i=0 ; i < size ; i++){
-                        distancesArray[i] = distances.get(i);
-                    }
-                    return distancesArray;
+                    return distances.toArray();
                 }
 
                 public double[] getSpeedsInstantaneous(){
-                    int size = speedsInstantaneous.size();
-                    double[] speedsArray = new double[size];
-                    for (int i=0 ; i < size ; i++){
-                        speedsArray[i] = speedsInstantaneous.get(i);
-                    }
-                    return speedsArray;
+                    return speedsInstantaneous.toArray();
                 }
 
                 public double[] getSpeedsBuffered(){
-                    int size = speedsBuffered.size();
-                    double[] speedsArray = new double[size];
-                    for (int i=0 ; i < size ; i++){
-                        speedsArray[i] = speedsBuffered.get(i);
-                    }
-                    return speedsArray;
+                    return speedsBuffered.toArray();
                 }
 
                 public double[] getSpeedsExpAvg(){
-                    int size = speedsExpAvg.size();
-                    double[] speedsArray = new double[size];
-                    for (int i=0 ; i < size ; i++){
-                        speedsArray[i] = speedsExpAvg.get(i);
-                    }
-                    return speedsArray;
+                    return speedsExpAvg.toArray();
                 }
+
+                @Override
+                void resetColumns(){
+                    timestamps.reset();
+                    counts.reset();
+                    distances.reset();
+                    speedsInstantaneous.reset();
+                    speedsBuffered.reset();
+                    speedsExpAvg.reset();
+                }
+
+                @Override
+                int channelCount(){return 4;}
+
+                public LongColumn getTimeStampsColumn(){return timestamps;}
+                public IntColumn getCountsColumn(){return counts;}
+                public DoubleColumn getDistancesColumn(){return distances;}
+                public DoubleColumn getSpeedsInstantaneousColumn(){return speedsInstantaneous;}
+                public DoubleColumn getSpeedsBufferedColumn(){return speedsBuffered;}
+                public DoubleColumn getSpeedsExpAvgColumn(){return speedsExpAvg;}
             }
 
             public IndividualWheelData getLeft() {
@@ -254,107 +943,161 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
             public IndividualWheelData getRight() {
                 return right;
             }
+
+            void reset(){
+                left.reset();
+                right.reset();
+            }
         }
 
-        public static class ChargerData{
-            ArrayList<Long> timestamps = new ArrayList<>();
-            ArrayList<Double> chargerVoltage = new ArrayList<>();
-            ArrayList<Double> coilVoltage = new ArrayList<>();
+        public static class ChargerData extends SampledStream {
+            public static final int CHARGER_VOLTAGE = 0;
+            public static final int COIL_VOLTAGE = 1;
+            final LongColumn timestamps;
+            final DoubleColumn chargerVoltage;
+            final DoubleColumn coilVoltage;
+            public ChargerData(){
+                this(false);
+            }
+            public ChargerData(boolean direct){
+                timestamps = new LongColumn(INITIAL_CAPACITY, direct);
+                chargerVoltage = new DoubleColumn(INITIAL_CAPACITY, direct);
+                coilVoltage = new DoubleColumn(INITIAL_CAPACITY, direct);
+            }
             public void put(long _timestamp, double _chargerVoltage, double _coilVoltage){
                 timestamps.add(_timestamp);
                 chargerVoltage.add(_chargerVoltage);
                 coilVoltage.add(_coilVoltage);
             }
-            public long[] getTimeStamps(){
-                int size = timestamps.size();
-                long[] timestampslong = new long[size];
-                for (int i=0 ; i < size ; i++){
-                    timestampslong[i] = timestamps.get(i);
+            public void put(SamplingPolicy policy, long _timestamp, double _chargerVoltage, double _coilVoltage){
+                if (admit(policy)){
+                    put(_timestamp,
+                            aggregate(policy, CHARGER_VOLTAGE, _chargerVoltage),
+                            aggregate(policy, COIL_VOLTAGE, _coilVoltage));
                 }
-                return timestampslong;
+            }
+            public long[] getTimeStamps(){
+                return timestamps.toArray();
             }
             public double[] getChargerVoltage(){
-                int size = chargerVoltage.size();
-                double[] voltageLong = new double[size];
-                for (int i=0 ; i < size ; i++){
-                    voltageLong[i] = chargerVoltage.get(i);
-                }
-                return voltageLong;
+                return chargerVoltage.toArray();
             }
             public double[] getCoilVoltage(){
-                int size = coilVoltage.size();
-                double[] voltageLong = new double[size];
-                for (int i=0 ; i < size ; i++){
-                    voltageLong[i] = coilVoltage.get(i);
-                }
-                return voltageLong;
+                return coilVoltage.toArray();
+            }
+            @Override
+            void resetColumns(){
+                timestamps.reset();
+                chargerVoltage.reset();
+                coilVoltage.reset();
             }
+            @Override
+            int channelCount(){return 2;}
+            public LongColumn getTimeStampsColumn(){return timestamps;}
+            public DoubleColumn getChargerVoltageColumn(){return chargerVoltage;}
+            public DoubleColumn getCoilVoltageColumn(){return coilVoltage;}
         }
 
-        public static class BatteryData{
-            ArrayList<Long> timestamps = new ArrayList<>();
-            ArrayList<Double> voltage = new ArrayList<>();
+        public static class BatteryData extends SampledStream {
+            public static final int VOLTAGE = 0;
+            final LongColumn timestamps;
+            final DoubleColumn voltage;
+            public BatteryData(){
+                this(false);
+            }
+            public BatteryData(boolean direct){
+                timestamps = new LongColumn(INITIAL_CAPACITY, direct);
+                voltage = new DoubleColumn(INITIAL_CAPACITY, direct);
+            }
             public void put(double _voltage, long _timestamp){
                 timestamps.add(_timestamp);
                 voltage.add(_voltage);
             }
-            public long[] getTimeStamps(){
-                int size = timestamps.size();
-                long[] timestampslong = new long[size];
-                for (int i=0 ; i < size ; i++){
-                    timestampslong[i] = timestamps.get(i);
+            public void put(SamplingPolicy policy, double _voltage, long _timestamp){
+                if (admit(policy)){
+                    put(aggregate(policy, VOLTAGE, _voltage), _timestamp);
                 }
-                return timestampslong;
+            }
+            public long[] getTimeStamps(){
+                return timestamps.toArray();
             }
             public double[] getVoltage(){
-                int size = voltage.size();
-                double[] voltageLong = new double[size];
-                for (int i=0 ; i < size ; i++){
-                    voltageLong[i] = voltage.get(i);
-                }
-                return voltageLong;
+                return voltage.toArray();
+            }
+            @Override
+            void resetColumns(){
+                timestamps.reset();
+                voltage.reset();
             }
+            @Override
+            int channelCount(){return 1;}
+            public LongColumn getTimeStampsColumn(){return timestamps;}
+            public DoubleColumn getVoltageColumn(){return voltage;}
         }
 
         public static class SoundData{
-            private AudioTimestamp startTime = new AudioTimestamp();
-            private AudioTimestamp endTime = new AudioTimestamp();
+            private final AudioTimestamp startTime = new AudioTimestamp();
+            private final AudioTimestamp endTime = new AudioTimestamp();
             private double totalTime;
             private int sampleRate;
             private long totalSamples = 0;
             private long totalSamplesCalculatedViaTime;
-            private final ArrayList<Float> levels = new ArrayList<>();
+            private final FloatColumn levels = new FloatColumn(INITIAL_AUDIO_CAPACITY);
 
             public SoundData(){
             }
 
+            /**
+             * Appends the first _numSamples values of _levels with a single arraycopy. Samples past
+             * _numSamples (e.g. after a short non-blocking read) are ignored.
+             */
             public void add(float[] _levels, int _numSamples){
-                for (float _level : _levels){
-                    levels.add(_level);
-                }
-                totalSamples += _numSamples;
+                int numSamples = Math.max(0, Math.min(_numSamples, _levels.length));
+                levels.addAll(_levels, 0, numSamples);
+                totalSamples += numSamples;
+            }
+
+            /**
+             * Preallocates room for capacity samples so appending does not grow the buffer.
+             */
+            public void ensureCapacity(int capacity){
+                levels.ensureCapacity(capacity);
             }
 
             public void setMetaData(int sampleRate, AudioTimestamp startTime, AudioTimestamp endTime){
 //                Logger.i("audioFrame", (this.endTime.nanoTime - startTime.nanoTime) + " missing nanoseconds between last frames");
 
+                // Copy rather than keep references as the publisher reuses its AudioTimestamp objects
                 if (startTime.framePosition != 0){
-                    this.startTime = startTime;
+                    this.startTime.framePosition = startTime.framePosition;
+                    this.startTime.nanoTime = startTime.nanoTime;
                 }
                 //todo add logic to test if timestamps overlap or have gaps.
-                this.endTime = endTime;
+                this.endTime.framePosition = endTime.framePosition;
+                this.endTime.nanoTime = endTime.nanoTime;
                 this.totalTime = (endTime.nanoTime - startTime.nanoTime) * 10e-10;
                 this.sampleRate = sampleRate;
                 this.totalSamplesCalculatedViaTime = endTime.framePosition - startTime.framePosition;
             }
 
             public float[] getLevels(){
-                int size = levels.size();
-                float[] levelsFloat = new float[size];
-                for (int i=0 ; i < size ; i++){
-                    levelsFloat[i] = levels.get(i);
-                }
-                return levelsFloat;
+                return levels.toArray();
+            }
+
+            public FloatColumn getLevelsColumn(){
+                return levels;
+            }
+
+            void reset(){
+                startTime.framePosition = 0;
+                startTime.nanoTime = 0;
+                endTime.framePosition = 0;
+                endTime.nanoTime = 0;
+                totalTime = 0;
+                sampleRate = 0;
+                totalSamples = 0;
+                totalSamplesCalculatedViaTime = 0;
+                levels.reset();
             }
 
             public long getTotalSamples() {
@@ -382,31 +1125,159 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
             }
         }
 
-        public static class ImageData extends Hashtable<Long, ImageData.SingleImage>{
+        /**
+         * Camera frames of a timestep kept in a set of preallocated frame slots ordered by
+         * timestamp. Slots and their {@link SingleImage} objects are reused when the timestep is
+         * recycled and, if a {@link BitmapPool} is set, the frame bitmaps are returned to it.
+         * Reading frames via {@link #getImages()} or {@link #get(long)} does not allocate.
+         */
+        public static class ImageData {
+            static final int INITIAL_FRAME_CAPACITY = 4;
+            private SingleImage[] frames;
+            private int size = 0;
+            private volatile BitmapPool bitmapPool;
+            // Read-only live view handed out by getImages()
+            private final List<SingleImage> images = new AbstractList<SingleImage>() {
+                @Override
+                public SingleImage get(int index) {
+                    return ImageData.this.getImage(index);
+                }
 
-            public void add(long timestamp, int width, int height, Bitmap bitmap, byte[] webpImage){
-                SingleImage singleImage = new SingleImage(timestamp, width, height, bitmap, webpImage);
-                put(timestamp, singleImage);
+                @Override
+                public int size() {
+                    return ImageData.this.size();
+                }
+            };
+
+            public ImageData(){
+                this(null);
             }
 
-            @Override
-            public synchronized SingleImage put(Long key, SingleImage value) {
-                return super.put(key, value);
+            public ImageData(BitmapPool bitmapPool){
+                this.bitmapPool = bitmapPool;
+                frames = new SingleImage[INITIAL_FRAME_CAPACITY];
+                for (int i = 0; i < frames.length; i++){
+                    frames[i] = new SingleImage();
+                }
             }
 
-            public ArrayList<SingleImage> getImages() {
-                return new ArrayList<>(this.values());
+            /**
+             * Adds a frame, keeping frames ordered by timestamp. Frames normally arrive in order,
+             * so this is an append; late frames are moved into place.
+             */
+            public synchronized void add(long timestamp, int width, int height, Bitmap bitmap, byte[] webpImage){
+                if (size == frames.length){
+                    SingleImage[] grown = Arrays.copyOf(frames, frames.length * 2);
+                    for (int i = frames.length; i < grown.length; i++){
+                        grown[i] = new SingleImage();
+                    }
+                    frames = grown;
+                }
+                SingleImage frame = frames[size];
+                frame.set(timestamp, width, height, bitmap, webpImage);
+                int i = size++;
+                while (i > 0 && frames[i - 1].timestamp > timestamp){
+                    frames[i] = frames[i - 1];
+                    i--;
+                }
+                frames[i] = frame;
+            }
+
+            /**
+             * @return the frame with the given timestamp or null if there is none
+             */
+            public synchronized SingleImage get(long timestamp){
+                for (int i = size - 1; i >= 0; i--){
+                    if (frames[i].timestamp == timestamp){
+                        return frames[i];
+                    }
+                }
+                return null;
+            }
+
+            /**
+             * @return the index-th frame in timestamp order
+             */
+            public synchronized SingleImage getImage(int index){
+                if (index < 0 || index >= size){
+                    throw new IndexOutOfBoundsException("Image " + index + " of " + size);
+                }
+                return frames[index];
+            }
+
+            public synchronized int size(){
+                return size;
+            }
+
+            /**
+             * Removes the frame with the given timestamp, returning its bitmap to the bitmap
+             * pool if one is set.
+             * @return false if there is no such frame
+             */
+            public synchronized boolean remove(long timestamp){
+                for (int i = size - 1; i >= 0; i--){
+                    if (frames[i].timestamp == timestamp){
+                        SingleImage removed = frames[i];
+                        BitmapPool pool = bitmapPool;
+                        if (pool != null){
+                            pool.release(removed.bitmap);
+                        }
+                        removed.set(0, 0, 0, null, null);
+                        // Keep the remaining frames in order and the removed instance for reuse
+                        System.arraycopy(frames, i + 1, frames, i, size - i - 1);
+                        frames[--size] = removed;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            public synchronized boolean isEmpty(){
+                return size == 0;
+            }
+
+            /**
+             * @return read-only live view of the frames in timestamp order. The same instance is
+             * returned on every call and reflects later changes to this timestep.
+             */
+            public List<SingleImage> getImages() {
+                return images;
+            }
+
+            public void setBitmapPool(BitmapPool bitmapPool){
+                this.bitmapPool = bitmapPool;
+            }
+
+            /**
+             * Drops all frames, returning their bitmaps to the bitmap pool if one is set.
+             */
+            public synchronized void clear(){
+                BitmapPool pool = bitmapPool;
+                for (int i = 0; i < size; i++){
+                    if (pool != null){
+                        pool.release(frames[i].bitmap);
+                    }
+                    frames[i].set(0, 0, 0, null, null);
+                }
+                size = 0;
             }
 
             public static class SingleImage {
-                private final long timestamp;
-                private final int width;
-                private final int height;
-                private final Bitmap bitmap;
+                private long timestamp;
+                private int width;
+                private int height;
+                private Bitmap bitmap;
                 private byte[] webpImage;
 
+                SingleImage(){}
+
                 public SingleImage(long timestamp, int width, int height, Bitmap bitmap,
                                    byte[] webpImage){
+                    set(timestamp, width, height, bitmap, webpImage);
+                }
+
+                synchronized void set(long timestamp, int width, int height, Bitmap bitmap,
+                                      byte[] webpImage){
                     this.timestamp = timestamp;
                     this.width = width;
                     this.height = height;
@@ -414,29 +1285,41 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
                     this.webpImage = webpImage;
                 }
 
-                public Bitmap getBitmap() {
+                public synchronized Bitmap getBitmap() {
                     return bitmap;
                 }
 
-                public byte[] getWebpImage() {
+                public synchronized byte[] getWebpImage() {
                     return webpImage;
                 }
 
-                public int getHeight() {
+                public synchronized int getHeight() {
                     return height;
                 }
 
-                public int getWidth() {
+                public synchronized int getWidth() {
                     return width;
                 }
 
-                public long getTimestamp() {
+                public synchronized long getTimestamp() {
                     return timestamp;
                 }
 
                 public synchronized void setWebpImage(byte[] imageBytes){
                     this.webpImage = imageBytes;
                 }
+
+                /**
+                 * @return false without writing if this frame has been reused for another
+                 * timestamp
+                 */
+                synchronized boolean setWebpImageIf(long timestamp, byte[] imageBytes){
+                    if (this.timestamp != timestamp){
+                        return false;
+                    }
+                    this.webpImage = imageBytes;
+                    return true;
+                }
             }
         }
 
@@ -455,12 +1338,29 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
             public CommAction getCommAction() {
                 return commAction;
             }
+
+            void reset(){
+                motionAction = null;
+                commAction = null;
+            }
         }
 
-        public static class OrientationData{
-            ArrayList<Long> timestamps = new ArrayList<>();
-            ArrayList<Double> tiltAngle = new ArrayList<>();
-            ArrayList<Double> angularVelocity = new ArrayList<>();
+        public static class OrientationData extends SampledStream {
+            public static final int TILT_ANGLE = 0;
+            public static final int ANGULAR_VELOCITY = 1;
+            final LongColumn timestamps;
+            final DoubleColumn tiltAngle;
+            final DoubleColumn angularVelocity;
+
+            public OrientationData(){
+                this(false);
+            }
+
+            public OrientationData(boolean direct){
+                timestamps = new LongColumn(INITIAL_CAPACITY, direct);
+                tiltAngle = new DoubleColumn(INITIAL_CAPACITY, direct);
+                angularVelocity = new DoubleColumn(INITIAL_CAPACITY, direct);
+            }
 
             /**
              * @param timestamp long nanotime
@@ -472,30 +1372,33 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
                 tiltAngle.add(_tiltAngle);
                 angularVelocity.add(_angularVelocity);
             }
-            public long[] getTimeStamps(){
-                int size = timestamps.size();
-                long[] timestampslong = new long[size];
-                for (int i=0 ; i < size ; i++){
-                    timestampslong[i] = timestamps.get(i);
+            public void put(SamplingPolicy policy, long timestamp, double _tiltAngle, double _angularVelocity){
+                if (admit(policy)){
+                    put(timestamp,
+                            aggregate(policy, TILT_ANGLE, _tiltAngle),
+                            aggregate(policy, ANGULAR_VELOCITY, _angularVelocity));
                 }
-                return timestampslong;
+            }
+            public long[] getTimeStamps(){
+                return timestamps.toArray();
             }
             public double[] getTiltAngle(){
-                int size = tiltAngle.size();
-                double[] leftLong = new double[size];
-                for (int i=0 ; i < size ; i++){
-                    leftLong[i] = tiltAngle.get(i);
-                }
-                return leftLong;
+                return tiltAngle.toArray();
             }
             public double[] getAngularVelocity(){
-                int size = angularVelocity.size();
-                double[] rightLong = new double[size];
-                for (int i=0 ; i < size ; i++){
-                    rightLong[i] = angularVelocity.get(i);
-                }
-                return rightLong;
+                return angularVelocity.toArray();
+            }
+            @Override
+            void resetColumns(){
+                timestamps.reset();
+                tiltAngle.reset();
+                angularVelocity.reset();
             }
+            @Override
+            int channelCount(){return 2;}
+            public LongColumn getTimeStampsColumn(){return timestamps;}
+            public DoubleColumn getTiltAngleColumn(){return tiltAngle;}
+            public DoubleColumn getAngularVelocityColumn(){return angularVelocity;}
         }
     }
 }
@@ -0,0 +1,244 @@
+package jp.oist.abcvlib.core.inputs;
+
+import java.util.ArrayList;
+
+import jp.oist.abcvlib.util.DoubleColumn;
+import jp.oist.abcvlib.util.FloatColumn;
+import jp.oist.abcvlib.util.LongColumn;
+
+/**
+ * Resamples the sensor streams of each completed timestep onto a common, fixed time grid so that
+ * every controller sees the same fixed-shape, time-aligned observation regardless of the rate
+ * and jitter with which each stream arrived.
+ * <p>
+ * Each timestep is divided into pointsPerTimeStep equal intervals and every channel is sampled
+ * at the end of each interval, either by linear interpolation between the surrounding samples
+ * or by holding the most recent sample. The last sample of the previous timestep is carried
+ * over, so grid points early in a timestep interpolate across the boundary. Samples are never
+ * extrapolated past the newest one. The result is written channel-major into the float[] held
+ * by each slot (see {@link TimeStepDataBuffer.TimeStepData#getObservation()}), i.e. point k of
+ * channel c lives at index c * pointsPerTimeStep + k.
+ * <p>
+ * Attach to a buffer via {@link TimeStepDataBuffer#setResampler(TimeStepResampler)}.
+ */
+public class TimeStepResampler {
+
+    public enum Interpolation {LINEAR, HOLD}
+
+    /**
+     * Clock the timestamps of a stream are recorded in. Wheel, battery and charger data use
+     * {@link System#nanoTime()}, while sensor events are stamped with
+     * android.os.SystemClock#elapsedRealtimeNanos().
+     */
+    public enum Clock {MONOTONIC, ELAPSED_REALTIME}
+
+    public enum Channel {
+        WHEEL_DISTANCE_LEFT(Clock.MONOTONIC),
+        WHEEL_DISTANCE_RIGHT(Clock.MONOTONIC),
+        WHEEL_SPEED_LEFT(Clock.MONOTONIC),
+        WHEEL_SPEED_RIGHT(Clock.MONOTONIC),
+        TILT_ANGLE(Clock.ELAPSED_REALTIME),
+        ANGULAR_VELOCITY(Clock.ELAPSED_REALTIME),
+        BATTERY_VOLTAGE(Clock.MONOTONIC),
+        CHARGER_VOLTAGE(Clock.MONOTONIC),
+        /** Root mean square of the audio samples falling into each interval */
+        AUDIO_RMS(Clock.MONOTONIC);
+
+        private final Clock clock;
+
+        Channel(Clock clock){
+            this.clock = clock;
+        }
+
+        public Clock getClock(){return clock;}
+
+        LongColumn timestamps(TimeStepDataBuffer.TimeStepData data){
+            switch (this){
+                case WHEEL_DISTANCE_LEFT:
+                case WHEEL_SPEED_LEFT:
+                    return data.getWheelData().getLeft().getTimeStampsColumn();
+                case WHEEL_DISTANCE_RIGHT:
+                case WHEEL_SPEED_RIGHT:
+                    return data.getWheelData().getRight().getTimeStampsColumn();
+                case TILT_ANGLE:
+                case ANGULAR_VELOCITY:
+                    return data.getOrientationData().getTimeStampsColumn();
+                case BATTERY_VOLTAGE:
+                    return data.getBatteryData().getTimeStampsColumn();
+                case CHARGER_VOLTAGE:
+                    return data.getChargerData().getTimeStampsColumn();
+                default:
+                    throw new IllegalStateException(this + " has no timestamps");
+            }
+        }
+
+        DoubleColumn values(TimeStepDataBuffer.TimeStepData data){
+            switch (this){
+                case WHEEL_DISTANCE_LEFT: return data.getWheelData().getLeft().getDistancesColumn();
+                case WHEEL_DISTANCE_RIGHT: return data.getWheelData().getRight().getDistancesColumn();
+                case WHEEL_SPEED_LEFT: return data.getWheelData().getLeft().getSpeedsBufferedColumn();
+                case WHEEL_SPEED_RIGHT: return data.getWheelData().getRight().getSpeedsBufferedColumn();
+                case TILT_ANGLE: return data.getOrientationData().getTiltAngleColumn();
+                case ANGULAR_VELOCITY: return data.getOrientationData().getAngularVelocityColumn();
+                case BATTERY_VOLTAGE: return data.getBatteryData().getVoltageColumn();
+                case CHARGER_VOLTAGE: return data.getChargerData().getChargerVoltageColumn();
+                default:
+                    throw new IllegalStateException(this + " has no sampled values");
+            }
+        }
+    }
+
+    private final Channel[] channels;
+    private final int pointsPerTimeStep;
+    private final Interpolation interpolation;
+    // Newest sample of each channel seen so far, carried across timesteps
+    private final long[] lastTimes;
+    private final double[] lastValues;
+    private final boolean[] hasLast;
+
+    private TimeStepResampler(Channel[] channels, int pointsPerTimeStep, Interpolation interpolation){
+        this.channels = channels;
+        this.pointsPerTimeStep = pointsPerTimeStep;
+        this.interpolation = interpolation;
+        lastTimes = new long[channels.length];
+        lastValues = new double[channels.length];
+        hasLast = new boolean[channels.length];
+    }
+
+    public static class Builder{
+        private final ArrayList<Channel> channels = new ArrayList<>();
+        private int pointsPerTimeStep = 1;
+        private Interpolation interpolation = Interpolation.LINEAR;
+
+        public Builder(){}
+
+        public Builder addChannel(Channel channel){
+            channels.add(channel);
+            return this;
+        }
+
+        public Builder setPointsPerTimeStep(int pointsPerTimeStep){
+            this.pointsPerTimeStep = pointsPerTimeStep;
+            return this;
+        }
+
+        public Builder setInterpolation(Interpolation interpolation){
+            this.interpolation = interpolation;
+            return this;
+        }
+
+        public TimeStepResampler build(){
+            if (channels.isEmpty()){
+                throw new IllegalStateException("At least one channel must be added");
+            }
+            if (pointsPerTimeStep < 1){
+                throw new IllegalArgumentException("pointsPerTimeStep must be at least 1. " +
+                        pointsPerTimeStep + " provided.");
+            }
+            return new TimeStepResampler(channels.toArray(new Channel[0]), pointsPerTimeStep, interpolation);
+        }
+    }
+
+    public int getObservationSize(){
+        return channels.length * pointsPerTimeStep;
+    }
+
+    public int getPointsPerTimeStep(){return pointsPerTimeStep;}
+
+    public Channel[] getChannels(){return channels.clone();}
+
+    /**
+     * @return index of point 0 of channel within the observation, or -1 if not resampled
+     */
+    public int offsetOf(Channel channel){
+        for (int i = 0; i < channels.length; i++){
+            if (channels[i] == channel){
+                return i * pointsPerTimeStep;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the samples carried over from previous timesteps, e.g. between episodes.
+     */
+    public void reset(){
+        for (int i = 0; i < channels.length; i++){
+            hasLast[i] = false;
+        }
+    }
+
+    /**
+     * Resamples one completed timestep into out. Must be called once per timestep in order.
+     * @param start timestep start in {@link Clock#MONOTONIC} nanoseconds
+     * @param end timestep end in {@link Clock#MONOTONIC} nanoseconds
+     * @param elapsedRealtimeOffset {@link Clock#ELAPSED_REALTIME} minus {@link Clock#MONOTONIC}
+     */
+    void resample(TimeStepDataBuffer.TimeStepData data, long start, long end,
+                  long elapsedRealtimeOffset, float[] out){
+        for (int c = 0; c < channels.length; c++){
+            Channel channel = channels[c];
+            int offset = c * pointsPerTimeStep;
+            if (channel == Channel.AUDIO_RMS){
+                resampleRms(data.getSoundData().getLevelsColumn(), out, offset);
+            } else {
+                long shift = channel.getClock() == Clock.ELAPSED_REALTIME ? elapsedRealtimeOffset : 0;
+                resampleChannel(c, channel.timestamps(data), channel.values(data),
+                        start + shift, end + shift, out, offset);
+            }
+        }
+    }
+
+    private void resampleChannel(int c, LongColumn timestamps, DoubleColumn values,
+                                 long start, long end, float[] out, int offset){
+        // Late writers may still be appending, so only consider samples present in both columns
+        int n = Math.min(timestamps.size(), values.size());
+        long span = end - start;
+        int j = 0;
+        for (int k = 0; k < pointsPerTimeStep; k++){
+            long t = start + span * (k + 1) / pointsPerTimeStep;
+            while (j < n && timestamps.get(j) <= t){
+                j++;
+            }
+            boolean hasPrev = j > 0 || hasLast[c];
+            boolean hasNext = j < n;
+            double value;
+            if (!hasPrev && !hasNext){
+                value = 0;
+            } else if (!hasPrev){
+                value = values.get(j);
+            } else {
+                long prevTime = j > 0 ? timestamps.get(j - 1) : lastTimes[c];
+                double prevValue = j > 0 ? values.get(j - 1) : lastValues[c];
+                if (!hasNext || interpolation == Interpolation.HOLD){
+                    value = prevValue;
+                } else {
+                    long nextTime = timestamps.get(j);
+                    double nextValue = values.get(j);
+                    value = nextTime == prevTime ? nextValue :
+                            prevValue + (nextValue - prevValue) * (t - prevTime) / (nextTime - prevTime);
+                }
+            }
+            out[offset + k] = (float) value;
+        }
+        if (n > 0){
+            lastTimes[c] = timestamps.get(n - 1);
+            lastValues[c] = values.get(n - 1);
+            hasLast[c] = true;
+        }
+    }
+
+    private void resampleRms(FloatColumn levels, float[] out, int offset){
+        int n = levels.size();
+        for (int k = 0; k < pointsPerTimeStep; k++){
+            int from = (int) ((long) n * k / pointsPerTimeStep);
+            int to = (int) ((long) n * (k + 1) / pointsPerTimeStep);
+            double sumSquares = 0;
+            for (int i = from; i < to; i++){
+                float level = levels.get(i);
+                sumSquares += level * level;
+            }
+            out[offset + k] = to > from ? (float) Math.sqrt(sumSquares / (to - from)) : 0f;
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.util.concurrent.Executors;
 import jp.oist.abcvlib.core.inputs.Publisher;
 import jp.oist.abcvlib.core.inputs.PublisherManager;
 import jp.oist.abcvlib.core.inputs.Subscriber;
+import jp.oist.abcvlib.util.BitmapPool;
 import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
 import jp.oist.abcvlib.util.YuvToRgbConverter;
 
@@ -45,6 +46,7 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
     private PreviewView previewView;
     protected final LifecycleOwner lifecycleOwner;
     protected ExecutorService imageExecutor;
+    private volatile BitmapPool bitmapPool;
 
     private ListenableFuture<ProcessCameraProvider> mCameraProviderFuture;
 
@@ -125,7 +127,9 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
                 int width = image.getWidth();
                 int height = image.getHeight();
                 long timestamp = image.getTimestamp();
-                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                BitmapPool pool = bitmapPool;
+                Bitmap bitmap = pool != null ? pool.acquire(width, height, Bitmap.Config.ARGB_8888) :
+                        Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
                 yuvToRgbConverter.yuvToRgb(image, bitmap);
                 customAnalysis(imageData, rotation, format, width, height, timestamp, bitmap);
             }
@@ -133,6 +137,15 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
         imageProxy.close(); // You must call these two lines at the end of the child's analyze method
     }
 
+    /**
+     * @param bitmapPool pool to take the bitmap of each frame from instead of allocating a new
+     *                   one. Pass the same pool to the TimeStepDataBuffer subscribed to this
+     *                   publisher so frames are returned once their timestep is recycled.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool){
+        this.bitmapPool = bitmapPool;
+    }
+
     protected abstract void customAnalysis(byte[] imageData, int rotation, int format, int width, int height, long timestamp, Bitmap bitmap);
 
     protected void setDefaultImageAnalysis(){
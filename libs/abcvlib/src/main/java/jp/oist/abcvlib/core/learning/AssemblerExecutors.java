@@ -0,0 +1,80 @@
+package jp.oist.abcvlib.core.learning;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
+import jp.oist.abcvlib.util.ScheduledExecutorServiceWithException;
+
+/**
+ * Threads a FlatbufferAssembler serializes, streams and sends episodes on. The assemblers of
+ * one Trial share a single set, so more episode buffers do not mean more threads: each
+ * assembler only has tasks queued while it records or sends its episode, and the tasks of one
+ * assembler still run in the order they were submitted.
+ */
+public class AssemblerExecutors {
+    private static final int SENDER_THREADS = 5;
+
+    private final ScheduledExecutorServiceWithException sender;
+    private final ExecutorService chunkUploader;
+    private ExecutorService flatbufferWriter;
+    private int writerThreads = 1;
+
+    public AssemblerExecutors(){
+        sender = new ScheduledExecutorServiceWithException(SENDER_THREADS,
+                new ProcessPriorityThreadFactory(1, "flatbufferAssembler"));
+        chunkUploader = Executors.newSingleThreadExecutor(
+                new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, "chunkUploader"));
+        flatbufferWriter = newWriter(writerThreads);
+    }
+
+    /**
+     * Runs the SocketConnectionManagers of whole episodes.
+     */
+    ScheduledExecutorServiceWithException getSender(){
+        return sender;
+    }
+
+    /**
+     * Uploads streamed chunks, one at a time and in order.
+     */
+    ExecutorService getChunkUploader(){
+        return chunkUploader;
+    }
+
+    /**
+     * Serializes timesteps. A single thread unless more were set with setWriterThreads().
+     */
+    synchronized ExecutorService getFlatbufferWriter(){
+        return flatbufferWriter;
+    }
+
+    /**
+     * Replaces the writer pool if writerThreads differs from the current size. Tasks already
+     * submitted to the old pool still run. Must only be changed between episodes.
+     */
+    synchronized void setWriterThreads(int writerThreads){
+        if (writerThreads == this.writerThreads){
+            return;
+        }
+        flatbufferWriter.shutdown();
+        flatbufferWriter = newWriter(writerThreads);
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Lets the tasks already submitted finish and then stops all threads. Call once when no
+     * assembler using these executors records or sends anymore.
+     */
+    public synchronized void shutdown(){
+        sender.shutdown();
+        chunkUploader.shutdown();
+        flatbufferWriter.shutdown();
+    }
+
+    private static ExecutorService newWriter(int writerThreads){
+        ProcessPriorityThreadFactory threadFactory = new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, "flatbufferWriter");
+        return writerThreads == 1 ? Executors.newSingleThreadExecutor(threadFactory) :
+                Executors.newFixedThreadPool(writerThreads, threadFactory);
+    }
+}
@@ -0,0 +1,448 @@
+package jp.oist.abcvlib.core.learning;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jp.oist.abcvlib.core.learning.fbclasses.AudioTimestamp;
+import jp.oist.abcvlib.core.learning.fbclasses.BatteryData;
+import jp.oist.abcvlib.core.learning.fbclasses.ChargerData;
+import jp.oist.abcvlib.core.learning.fbclasses.Episode;
+import jp.oist.abcvlib.core.learning.fbclasses.Image;
+import jp.oist.abcvlib.core.learning.fbclasses.ImageData;
+import jp.oist.abcvlib.core.learning.fbclasses.IndividualWheelData;
+import jp.oist.abcvlib.core.learning.fbclasses.OrientationData;
+import jp.oist.abcvlib.core.learning.fbclasses.RobotAction;
+import jp.oist.abcvlib.core.learning.fbclasses.SoundData;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.core.learning.fbclasses.WheelData;
+import jp.oist.abcvlib.util.ColumnCodec;
+
+/**
+ * Converts a finished Episode flatbuffer (a whole episode or a streamed chunk) to a compact
+ * form for upload and back. Sensor columns are stored with {@link ColumnCodec}: timestamps as
+ * delta-of-delta varints continued across timesteps, wheel counts delta encoded and doubles at
+ * the configured {@link ColumnCodec.Precision}. Sound levels, images and actions are copied as is.
+ * <p>
+ * The compact form starts with {@link #VERSION} so the format can change without breaking
+ * readers of older uploads. {@link #decode(ByteBuffer)} rebuilds an Episode flatbuffer that is
+ * identical in content to the original, apart from the rounding of doubles when a lossy
+ * precision is used.
+ * <p>
+ * Instances reuse their output buffer and are not thread safe.
+ */
+public class CompactEpisodeCodec {
+    public static final int VERSION = 1;
+    /** Value of the content-encoding header field of episodes sent in compact form */
+    public static final String CONTENT_ENCODING = "compact-flatbuffer";
+
+    private static final int HAS_WHEEL_DATA = 1;
+    private static final int HAS_LEFT_WHEEL = 1 << 1;
+    private static final int HAS_RIGHT_WHEEL = 1 << 2;
+    private static final int HAS_ORIENTATION = 1 << 3;
+    private static final int HAS_CHARGER = 1 << 4;
+    private static final int HAS_BATTERY = 1 << 5;
+    private static final int HAS_SOUND = 1 << 6;
+    private static final int HAS_IMAGES = 1 << 7;
+    private static final int HAS_ACTIONS = 1 << 8;
+    private static final int HAS_MOTION_ACTION = 1 << 9;
+    private static final int HAS_COMM_ACTION = 1 << 10;
+
+    // One stream per sensor column, in the order the columns are written within a timestep
+    private static final int WHEEL_STREAMS = 6;
+    private static final int LEFT_WHEEL = 0;
+    private static final int RIGHT_WHEEL = LEFT_WHEEL + WHEEL_STREAMS;
+    private static final int ORIENTATION = RIGHT_WHEEL + WHEEL_STREAMS;
+    private static final int CHARGER = ORIENTATION + 3;
+    private static final int BATTERY = CHARGER + 2;
+    private static final int STREAM_COUNT = BATTERY + 2;
+
+    private final ColumnCodec.Precision precision;
+    private final double quantum;
+    private final ColumnCodec.Writer writer = new ColumnCodec.Writer(64 * 1024);
+    private final ColumnCodec.Stream[] streams = new ColumnCodec.Stream[STREAM_COUNT];
+
+    /**
+     * Lossless codec, doubles are stored as float64.
+     */
+    public CompactEpisodeCodec(){
+        this(ColumnCodec.Precision.FLOAT64, 0);
+    }
+
+    /**
+     * @param precision how sensor doubles (distances, speeds, angles, voltages) are stored
+     * @param quantum step doubles are rounded to with {@link ColumnCodec.Precision#QUANTIZED},
+     *                i.e. twice the maximum error. Ignored otherwise.
+     */
+    public CompactEpisodeCodec(ColumnCodec.Precision precision, double quantum){
+        if (precision == ColumnCodec.Precision.QUANTIZED && !(quantum > 0)){
+            throw new IllegalArgumentException("quantum must be positive. quantum of " +
+                    quantum + " provided.");
+        }
+        this.precision = precision;
+        this.quantum = quantum;
+        for (int i = 0; i < streams.length; i++){
+            streams[i] = new ColumnCodec.Stream();
+        }
+    }
+
+    public ColumnCodec.Precision getPrecision(){
+        return precision;
+    }
+
+    public double getQuantum(){
+        return quantum;
+    }
+
+    /**
+     * @param episode finished Episode flatbuffer positioned at its start. Its position is not changed.
+     * @return a new little-endian buffer holding the compact form of episode
+     */
+    public ByteBuffer encode(ByteBuffer episode){
+        Episode root = Episode.getRootAsEpisode(episode.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        resetStreams();
+        writer.reset();
+        writer.putByte(VERSION);
+        writer.putSignedVarLong(root.robotid());
+        int count = root.timestepsLength();
+        writer.putVarLong(count);
+        TimeStep timeStep = new TimeStep();
+        for (int i = 0; i < count; i++){
+            encodeTimeStep(root.timesteps(timeStep, i));
+        }
+        return writer.toByteBuffer();
+    }
+
+    /**
+     * @param compact output of {@link #encode(ByteBuffer)}. Its position is not changed.
+     * @return the finished Episode flatbuffer
+     */
+    public ByteBuffer decode(ByteBuffer compact){
+        return decode(compact, new FlatBufferBuilder(Math.max(1024, compact.remaining() * 2)));
+    }
+
+    /**
+     * Decodes into builder, e.g. one backed by a pooled ByteBufferFactory.
+     * @return builder.dataBuffer() of the finished Episode flatbuffer
+     */
+    public ByteBuffer decode(ByteBuffer compact, FlatBufferBuilder builder){
+        return decode(compact, builder, null);
+    }
+
+    /**
+     * Decodes into builder and adds each timestep to index as it is laid out in the decoded
+     * flatbuffer. An index sent along with the compact form describes the flatbuffer it was
+     * encoded from, whose tables are elsewhere.
+     * @param index writer to add the decoded timesteps to, or null
+     * @return builder.dataBuffer() of the finished Episode flatbuffer
+     */
+    public ByteBuffer decode(ByteBuffer compact, FlatBufferBuilder builder, EpisodeIndex.Writer index){
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(compact);
+        int version = reader.getByte();
+        if (version != VERSION){
+            throw new IllegalArgumentException("Unsupported compact episode version " + version +
+                    ", expected " + VERSION);
+        }
+        resetStreams();
+        int robotID = (int) reader.getSignedVarLong();
+        int[] timeSteps = new int[(int) reader.getVarLong()];
+        int[] ends = new int[timeSteps.length];
+        int start = builder.offset();
+        for (int i = 0; i < timeSteps.length; i++){
+            timeSteps[i] = decodeTimeStep(reader, builder);
+            ends[i] = builder.offset();
+        }
+        int ts = Episode.createTimestepsVector(builder, timeSteps);
+        Episode.startEpisode(builder);
+        Episode.addRobotid(builder, robotID);
+        Episode.addTimesteps(builder, ts);
+        builder.finish(Episode.endEpisode(builder));
+        if (index != null){
+            // Offsets count from the end of the builder, positions from the start of the flatbuffer
+            int size = builder.offset();
+            ByteBuffer view = builder.dataBuffer().slice().order(ByteOrder.LITTLE_ENDIAN);
+            TimeStep timeStep = new TimeStep();
+            for (int i = 0; i < timeSteps.length; i++){
+                int table = size - timeSteps[i];
+                index.add(timeStep.__assign(table, view), table, size - ends[i],
+                        ends[i] - (i == 0 ? start : ends[i - 1]));
+            }
+        }
+        return builder.dataBuffer();
+    }
+
+    private void resetStreams(){
+        for (ColumnCodec.Stream stream : streams){
+            stream.reset();
+        }
+    }
+
+    private void encodeTimeStep(TimeStep timeStep){
+        WheelData wheelData = timeStep.wheelData();
+        IndividualWheelData left = wheelData != null ? wheelData.left() : null;
+        IndividualWheelData right = wheelData != null ? wheelData.right() : null;
+        OrientationData orientationData = timeStep.orientationData();
+        ChargerData chargerData = timeStep.chargerData();
+        BatteryData batteryData = timeStep.batteryData();
+        SoundData soundData = timeStep.soundData();
+        ImageData imageData = timeStep.imageData();
+        RobotAction actions = timeStep.actions();
+
+        int flags = 0;
+        flags |= wheelData != null ? HAS_WHEEL_DATA : 0;
+        flags |= left != null ? HAS_LEFT_WHEEL : 0;
+        flags |= right != null ? HAS_RIGHT_WHEEL : 0;
+        flags |= orientationData != null ? HAS_ORIENTATION : 0;
+        flags |= chargerData != null ? HAS_CHARGER : 0;
+        flags |= batteryData != null ? HAS_BATTERY : 0;
+        flags |= soundData != null ? HAS_SOUND : 0;
+        flags |= imageData != null ? HAS_IMAGES : 0;
+        if (actions != null){
+            flags |= HAS_ACTIONS;
+            flags |= actions.motionAction() != null ? HAS_MOTION_ACTION : 0;
+            flags |= actions.commAction() != null ? HAS_COMM_ACTION : 0;
+        }
+        writer.putVarLong(flags);
+
+        if (left != null){
+            encodeWheel(left, LEFT_WHEEL);
+        }
+        if (right != null){
+            encodeWheel(right, RIGHT_WHEEL);
+        }
+        if (orientationData != null){
+            putLongs(orientationData.timestampsAsByteBuffer(), ORIENTATION);
+            putDoubles(orientationData.tiltangleAsByteBuffer(), ORIENTATION + 1);
+            putDoubles(orientationData.tiltvelocityAsByteBuffer(), ORIENTATION + 2);
+        }
+        if (chargerData != null){
+            putLongs(chargerData.timestampsAsByteBuffer(), CHARGER);
+            putDoubles(chargerData.voltageAsByteBuffer(), CHARGER + 1);
+        }
+        if (batteryData != null){
+            putLongs(batteryData.timestampsAsByteBuffer(), BATTERY);
+            putDoubles(batteryData.voltageAsByteBuffer(), BATTERY + 1);
+        }
+        if (soundData != null){
+            encodeSound(soundData);
+        }
+        if (imageData != null){
+            int count = imageData.imagesLength();
+            writer.putVarLong(count);
+            Image image = new Image();
+            for (int i = 0; i < count; i++){
+                imageData.images(image, i);
+                writer.putSignedVarLong(image.timestamp());
+                writer.putSignedVarLong(image.width());
+                writer.putSignedVarLong(image.height());
+                writer.putBytes(image.webpImageAsByteBuffer());
+            }
+        }
+        if (actions != null){
+            encodeActions(actions);
+        }
+    }
+
+    private void encodeWheel(IndividualWheelData wheel, int firstStream){
+        putLongs(wheel.timestampsAsByteBuffer(), firstStream);
+        ByteBuffer counts = wheel.countsAsByteBuffer();
+        writer.putInts(counts, counts == null ? 0 : counts.remaining() / 4, streams[firstStream + 1]);
+        putDoubles(wheel.distancesAsByteBuffer(), firstStream + 2);
+        putDoubles(wheel.speedsInstantaneousAsByteBuffer(), firstStream + 3);
+        putDoubles(wheel.speedsBufferedAsByteBuffer(), firstStream + 4);
+        putDoubles(wheel.speedsExpavgAsByteBuffer(), firstStream + 5);
+    }
+
+    private void encodeSound(SoundData soundData){
+        AudioTimestamp startTime = soundData.startTime();
+        AudioTimestamp endTime = soundData.endTime();
+        writer.putByte((startTime != null ? 1 : 0) | (endTime != null ? 2 : 0));
+        if (startTime != null){
+            writer.putSignedVarLong(startTime.framePosition());
+            writer.putSignedVarLong(startTime.nanoTime());
+        }
+        if (endTime != null){
+            writer.putSignedVarLong(endTime.framePosition());
+            writer.putSignedVarLong(endTime.nanoTime());
+        }
+        writer.putDouble(soundData.totalTime());
+        writer.putSignedVarLong(soundData.sampleRate());
+        writer.putSignedVarLong(soundData.totalSamples());
+        ByteBuffer levels = soundData.levelsAsByteBuffer();
+        writer.putFloats(levels, levels == null ? 0 : levels.remaining() / 4);
+    }
+
+    private void encodeActions(RobotAction actions){
+        jp.oist.abcvlib.core.learning.fbclasses.MotionAction motionAction = actions.motionAction();
+        if (motionAction != null){
+            writer.putByte(motionAction.actionByte());
+            writer.putString(motionAction.actionName());
+            writer.putFloat(motionAction.leftWheelPWM());
+            writer.putFloat(motionAction.rightWheelPWM());
+            writer.putByte((motionAction.leftWheelBrake() ? 1 : 0) | (motionAction.rightWheelBrake() ? 2 : 0));
+        }
+        jp.oist.abcvlib.core.learning.fbclasses.CommAction commAction = actions.commAction();
+        if (commAction != null){
+            writer.putByte(commAction.actionByte());
+            writer.putString(commAction.actionName());
+        }
+    }
+
+    private void putLongs(ByteBuffer values, int stream){
+        writer.putLongs(values, values == null ? 0 : values.remaining() / 8, streams[stream]);
+    }
+
+    private void putDoubles(ByteBuffer values, int stream){
+        writer.putDoubles(values, values == null ? 0 : values.remaining() / 8, precision, quantum,
+                streams[stream]);
+    }
+
+    private int decodeTimeStep(ColumnCodec.Reader reader, FlatBufferBuilder builder){
+        int flags = (int) reader.getVarLong();
+
+        // Children have to be written before the tables referencing them
+        int left = (flags & HAS_LEFT_WHEEL) != 0 ? decodeWheel(reader, builder, LEFT_WHEEL) : 0;
+        int right = (flags & HAS_RIGHT_WHEEL) != 0 ? decodeWheel(reader, builder, RIGHT_WHEEL) : 0;
+        int wheelData = (flags & HAS_WHEEL_DATA) != 0 ? WheelData.createWheelData(builder, left, right) : 0;
+        int orientationData = 0;
+        if ((flags & HAS_ORIENTATION) != 0){
+            int ts = getLongs(reader, builder, ORIENTATION);
+            int tiltAngles = getDoubles(reader, builder, ORIENTATION + 1);
+            int angularVelocities = getDoubles(reader, builder, ORIENTATION + 2);
+            orientationData = OrientationData.createOrientationData(builder, ts, tiltAngles, angularVelocities);
+        }
+        int chargerData = 0;
+        if ((flags & HAS_CHARGER) != 0){
+            int ts = getLongs(reader, builder, CHARGER);
+            int voltage = getDoubles(reader, builder, CHARGER + 1);
+            chargerData = ChargerData.createChargerData(builder, ts, voltage);
+        }
+        int batteryData = 0;
+        if ((flags & HAS_BATTERY) != 0){
+            int ts = getLongs(reader, builder, BATTERY);
+            int voltage = getDoubles(reader, builder, BATTERY + 1);
+            batteryData = BatteryData.createBatteryData(builder, ts, voltage);
+        }
+        int soundData = (flags & HAS_SOUND) != 0 ? decodeSound(reader, builder) : 0;
+        int imageData = (flags & HAS_IMAGES) != 0 ? decodeImages(reader, builder) : 0;
+        int actions = (flags & HAS_ACTIONS) != 0 ? decodeActions(reader, builder, flags) : 0;
+
+        TimeStep.startTimeStep(builder);
+        TimeStep.addWheelData(builder, wheelData);
+        TimeStep.addOrientationData(builder, orientationData);
+        TimeStep.addChargerData(builder, chargerData);
+        TimeStep.addBatteryData(builder, batteryData);
+        TimeStep.addSoundData(builder, soundData);
+        TimeStep.addImageData(builder, imageData);
+        TimeStep.addActions(builder, actions);
+        return TimeStep.endTimeStep(builder);
+    }
+
+    private int decodeWheel(ColumnCodec.Reader reader, FlatBufferBuilder builder, int firstStream){
+        int timeStamps = getLongs(reader, builder, firstStream);
+        int countsLength = reader.beginColumn();
+        ByteBuffer countsVector = builder.createUnintializedVector(4, countsLength, 4);
+        reader.getInts(countsVector, streams[firstStream + 1]);
+        int counts = builder.endVector();
+        int distances = getDoubles(reader, builder, firstStream + 2);
+        int speedsInstant = getDoubles(reader, builder, firstStream + 3);
+        int speedsBuffered = getDoubles(reader, builder, firstStream + 4);
+        int speedsExpAvg = getDoubles(reader, builder, firstStream + 5);
+        return IndividualWheelData.createIndividualWheelData(builder, timeStamps,
+                counts, distances, speedsInstant, speedsBuffered, speedsExpAvg);
+    }
+
+    private int decodeSound(ColumnCodec.Reader reader, FlatBufferBuilder builder){
+        int present = reader.getByte();
+        int startTime = 0;
+        int endTime = 0;
+        if ((present & 1) != 0){
+            startTime = AudioTimestamp.createAudioTimestamp(builder,
+                    reader.getSignedVarLong(), reader.getSignedVarLong());
+        }
+        if ((present & 2) != 0){
+            endTime = AudioTimestamp.createAudioTimestamp(builder,
+                    reader.getSignedVarLong(), reader.getSignedVarLong());
+        }
+        double totalTime = reader.getDouble();
+        int sampleRate = (int) reader.getSignedVarLong();
+        long totalSamples = reader.getSignedVarLong();
+        int levelsLength = reader.beginColumn();
+        ByteBuffer levelsVector = builder.createUnintializedVector(4, levelsLength, 4);
+        reader.getFloats(levelsVector);
+        int levels = builder.endVector();
+
+        SoundData.startSoundData(builder);
+        SoundData.addStartTime(builder, startTime);
+        SoundData.addEndTime(builder, endTime);
+        SoundData.addTotalTime(builder, totalTime);
+        SoundData.addSampleRate(builder, sampleRate);
+        SoundData.addTotalSamples(builder, totalSamples);
+        SoundData.addLevels(builder, levels);
+        return SoundData.endSoundData(builder);
+    }
+
+    private int decodeImages(ColumnCodec.Reader reader, FlatBufferBuilder builder){
+        int[] images = new int[(int) reader.getVarLong()];
+        for (int i = 0; i < images.length; i++){
+            long timestamp = reader.getSignedVarLong();
+            int width = (int) reader.getSignedVarLong();
+            int height = (int) reader.getSignedVarLong();
+            ByteBuffer webp = reader.getBytes();
+            ByteBuffer webpVector = builder.createUnintializedVector(1, webp.remaining(), 1);
+            webpVector.put(webp);
+            int webpImage = builder.endVector();
+            Image.startImage(builder);
+            Image.addWebpImage(builder, webpImage);
+            Image.addTimestamp(builder, timestamp);
+            Image.addHeight(builder, height);
+            Image.addWidth(builder, width);
+            images[i] = Image.endImage(builder);
+        }
+        int imagesVector = ImageData.createImagesVector(builder, images);
+        ImageData.startImageData(builder);
+        ImageData.addImages(builder, imagesVector);
+        return ImageData.endImageData(builder);
+    }
+
+    private int decodeActions(ColumnCodec.Reader reader, FlatBufferBuilder builder, int flags){
+        int motionAction = 0;
+        if ((flags & HAS_MOTION_ACTION) != 0){
+            byte actionByte = (byte) reader.getByte();
+            int actionName = createString(builder, reader.getString());
+            float leftWheelPWM = reader.getFloat();
+            float rightWheelPWM = reader.getFloat();
+            int brakes = reader.getByte();
+            motionAction = jp.oist.abcvlib.core.learning.fbclasses.MotionAction.createMotionAction(
+                    builder, actionByte, actionName, leftWheelPWM, rightWheelPWM,
+                    (brakes & 1) != 0, (brakes & 2) != 0);
+        }
+        int commAction = 0;
+        if ((flags & HAS_COMM_ACTION) != 0){
+            byte actionByte = (byte) reader.getByte();
+            int actionName = createString(builder, reader.getString());
+            commAction = jp.oist.abcvlib.core.learning.fbclasses.CommAction.createCommAction(
+                    builder, actionByte, actionName);
+        }
+        return RobotAction.createRobotAction(builder, motionAction, commAction);
+    }
+
+    private static int createString(FlatBufferBuilder builder, String value){
+        return value != null ? builder.createString(value) : 0;
+    }
+
+    private int getLongs(ColumnCodec.Reader reader, FlatBufferBuilder builder, int stream){
+        int length = reader.beginColumn();
+        ByteBuffer vector = builder.createUnintializedVector(8, length, 8);
+        reader.getLongs(vector, streams[stream]);
+        return builder.endVector();
+    }
+
+    private int getDoubles(ColumnCodec.Reader reader, FlatBufferBuilder builder, int stream){
+        int length = reader.beginColumn();
+        ByteBuffer vector = builder.createUnintializedVector(8, length, 8);
+        reader.getDoubles(vector, streams[stream]);
+        return builder.endVector();
+    }
+}
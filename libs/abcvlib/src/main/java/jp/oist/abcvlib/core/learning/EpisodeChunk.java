@@ -0,0 +1,66 @@
+package jp.oist.abcvlib.core.learning;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Header of one chunk of a streamed episode. Each chunk is a self-contained Episode flatbuffer
+ * holding a consecutive run of timesteps. The header is sent as part of the JSON header of the
+ * message carrying the chunk so the server can reassemble the episode by concatenating the
+ * timesteps of all chunks with the same episode id in chunk index order. The chunk with last
+ * set closes the episode and may hold no timesteps at all.
+ */
+public class EpisodeChunk {
+    public static final String CONTENT_TYPE = "episode-chunk";
+
+    private final String episodeId;
+    private final int robotID;
+    private final int chunkIndex;
+    private final int firstTimeStep;
+    private final int timeStepCount;
+    private final boolean last;
+
+    public EpisodeChunk(String episodeId, int robotID, int chunkIndex, int firstTimeStep,
+                        int timeStepCount, boolean last){
+        this.episodeId = episodeId;
+        this.robotID = robotID;
+        this.chunkIndex = chunkIndex;
+        this.firstTimeStep = firstTimeStep;
+        this.timeStepCount = timeStepCount;
+        this.last = last;
+    }
+
+    public String getEpisodeId() {return episodeId;}
+    public int getRobotID() {return robotID;}
+    public int getChunkIndex() {return chunkIndex;}
+    public int getFirstTimeStep() {return firstTimeStep;}
+    public int getTimeStepCount() {return timeStepCount;}
+    public boolean isLast() {return last;}
+
+    /**
+     * @return fields to merge into the JSON header of the message carrying this chunk
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("content-type", CONTENT_TYPE);
+        json.put("episode-id", episodeId);
+        json.put("robot-id", robotID);
+        json.put("chunk-index", chunkIndex);
+        json.put("first-timestep", firstTimeStep);
+        json.put("timestep-count", timeStepCount);
+        json.put("last-chunk", last);
+        return json;
+    }
+
+    public static EpisodeChunk fromJson(JSONObject json) throws JSONException {
+        return new EpisodeChunk(json.getString("episode-id"), json.getInt("robot-id"),
+                json.getInt("chunk-index"), json.getInt("first-timestep"),
+                json.getInt("timestep-count"), json.getBoolean("last-chunk"));
+    }
+
+    @Override
+    public String toString() {
+        return "EpisodeChunk{" + episodeId + " #" + chunkIndex + ", timesteps " + firstTimeStep +
+                "-" + (firstTimeStep + timeStepCount - 1) + (last ? ", last" : "") + "}";
+    }
+}
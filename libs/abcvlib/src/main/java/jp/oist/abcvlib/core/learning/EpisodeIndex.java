@@ -0,0 +1,306 @@
+package jp.oist.abcvlib.core.learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import jp.oist.abcvlib.core.learning.fbclasses.AudioTimestamp;
+import jp.oist.abcvlib.core.learning.fbclasses.BatteryData;
+import jp.oist.abcvlib.core.learning.fbclasses.ChargerData;
+import jp.oist.abcvlib.core.learning.fbclasses.Image;
+import jp.oist.abcvlib.core.learning.fbclasses.ImageData;
+import jp.oist.abcvlib.core.learning.fbclasses.IndividualWheelData;
+import jp.oist.abcvlib.core.learning.fbclasses.OrientationData;
+import jp.oist.abcvlib.core.learning.fbclasses.SoundData;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.core.learning.fbclasses.WheelData;
+
+/**
+ * Sidecar index of an episode: per timestep where its table and its bytes are within the
+ * flatbuffer and the span of its sensor timestamps. Written by {@link FlatbufferAssembler} for
+ * every episode (or chunk when streaming) when enabled, and read by {@link EpisodeReader} to
+ * seek to a timestep or a point in time without walking the episode.
+ * <p>
+ * Positions are relative to the start of the flatbuffer, or of the file when the chunks of an
+ * episode are concatenated, see {@link Writer#addAll(EpisodeIndex, int)}. Timesteps without any
+ * sensor data take the last timestamp of the one before, so timestamps never go backwards as
+ * long as the sensors' do not.
+ * <p>
+ * Layout, all little-endian: a 20 byte header [int magic "EIDX"][int version][int robotId]
+ * [int firstTimeStep][int count] followed by 28 bytes per timestep [long firstTimestamp]
+ * [long lastTimestamp][int tablePosition][int blockStart][int blockLength].
+ */
+public class EpisodeIndex {
+    public static final int MAGIC = 0x58444945;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int ENTRY_SIZE = 28;
+
+    private final ByteBuffer buffer;
+    private final int robotId;
+    private final int firstTimeStep;
+    private final int count;
+
+    private EpisodeIndex(ByteBuffer buffer){
+        this.buffer = buffer;
+        this.robotId = buffer.getInt(8);
+        this.firstTimeStep = buffer.getInt(12);
+        this.count = buffer.getInt(16);
+    }
+
+    /**
+     * @param index sidecar from index.position() to index.limit(), left unmodified
+     * @throws IOException if index is not a sidecar of this version or is truncated
+     */
+    public static EpisodeIndex wrap(ByteBuffer index) throws IOException {
+        ByteBuffer view = index.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (view.remaining() < HEADER_SIZE || view.getInt(0) != MAGIC){
+            throw new IOException("Not an episode index");
+        }
+        if (view.getInt(4) != VERSION){
+            throw new IOException("Unsupported episode index version " + view.getInt(4));
+        }
+        int count = view.getInt(16);
+        if (count < 0 || (long) count * ENTRY_SIZE != view.remaining() - HEADER_SIZE){
+            throw new IOException("Episode index of " + count + " timesteps does not match its " +
+                    view.remaining() + " bytes");
+        }
+        return new EpisodeIndex(view);
+    }
+
+    public static EpisodeIndex open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()){
+            if (channel.size() > Integer.MAX_VALUE){
+                throw new IOException(file + " of " + channel.size() + " bytes is too large for an episode index");
+            }
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getRobotId(){
+        return robotId;
+    }
+
+    /**
+     * @return number of the first timestep within the episode, e.g. non-zero for all but the
+     * first chunk of a streamed episode
+     */
+    public int getFirstTimeStep(){
+        return firstTimeStep;
+    }
+
+    public int getCount(){
+        return count;
+    }
+
+    /**
+     * @return position of the TimeStep table, e.g. for TimeStep.__assign()
+     */
+    public int getTablePosition(int index){
+        return buffer.getInt(entry(index) + 16);
+    }
+
+    /**
+     * @return position of the first byte written for the timestep, including its images
+     */
+    public int getBlockStart(int index){
+        return buffer.getInt(entry(index) + 20);
+    }
+
+    public int getBlockLength(int index){
+        return buffer.getInt(entry(index) + 24);
+    }
+
+    public long getFirstTimestamp(int index){
+        return buffer.getLong(entry(index));
+    }
+
+    public long getLastTimestamp(int index){
+        return buffer.getLong(entry(index) + 8);
+    }
+
+    /**
+     * @return index of the first timestep with a timestamp at or after timestamp, or getCount()
+     * if there is none. Binary search, so assumes timestamps never go backwards.
+     */
+    public int find(long timestamp){
+        int low = 0;
+        int high = count;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (getLastTimestamp(middle) < timestamp){
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return {first, end} indices of the timesteps with sensor data between from and to
+     * (both inclusive), end being exclusive. first == end if there are none.
+     */
+    public int[] findRange(long from, long to){
+        int first = find(from);
+        int end = first;
+        while (end < count && getFirstTimestamp(end) <= to){
+            end++;
+        }
+        return new int[]{first, end};
+    }
+
+    /**
+     * @return read-only view of the sidecar, e.g. to store it next to the episode
+     */
+    public ByteBuffer getBuffer(){
+        return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int entry(int index){
+        if (index < 0 || index >= count){
+            throw new IndexOutOfBoundsException("TimeStep " + index + " of " + count);
+        }
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    /**
+     * Builds a sidecar one timestep at a time.
+     */
+    public static class Writer {
+        private final int robotId;
+        private final int firstTimeStep;
+        private byte[] entries;
+        private ByteBuffer entryBuffer;
+        private int count = 0;
+        private long lastTimestamp = 0;
+        private final long[] range = new long[2];
+
+        public Writer(int robotId, int firstTimeStep, int expectedCount){
+            this.robotId = robotId;
+            this.firstTimeStep = firstTimeStep;
+            entries = new byte[Math.max(expectedCount, 1) * ENTRY_SIZE];
+            entryBuffer = ByteBuffer.wrap(entries).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public void add(int tablePosition, int blockStart, int blockLength, long firstTimestamp, long lastTimestamp){
+            if ((count + 1) * ENTRY_SIZE > entries.length){
+                entries = Arrays.copyOf(entries, entries.length * 2);
+                entryBuffer = ByteBuffer.wrap(entries).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int entry = count++ * ENTRY_SIZE;
+            entryBuffer.putLong(entry, firstTimestamp);
+            entryBuffer.putLong(entry + 8, lastTimestamp);
+            entryBuffer.putInt(entry + 16, tablePosition);
+            entryBuffer.putInt(entry + 20, blockStart);
+            entryBuffer.putInt(entry + 24, blockLength);
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        /**
+         * Adds a timestep taking its timestamps from the table itself.
+         * @param timeStep accessor pointing at the timestep at tablePosition
+         */
+        public void add(TimeStep timeStep, int tablePosition, int blockStart, int blockLength){
+            range[0] = Long.MAX_VALUE;
+            range[1] = Long.MIN_VALUE;
+            timestampRange(timeStep, range);
+            if (range[0] > range[1]){
+                range[0] = lastTimestamp;
+                range[1] = lastTimestamp;
+            }
+            add(tablePosition, blockStart, blockLength, range[0], range[1]);
+        }
+
+        /**
+         * Appends the timesteps of another index, e.g. of the next chunk of an episode appended
+         * to the same file.
+         * @param baseOffset position of that index's flatbuffer within the file
+         */
+        public void addAll(EpisodeIndex index, int baseOffset){
+            for (int i = 0; i < index.getCount(); i++){
+                add(baseOffset + index.getTablePosition(i), baseOffset + index.getBlockStart(i),
+                        index.getBlockLength(i), index.getFirstTimestamp(i), index.getLastTimestamp(i));
+            }
+        }
+
+        public int getCount(){
+            return count;
+        }
+
+        /**
+         * @return the finished sidecar, little-endian
+         */
+        public ByteBuffer toByteBuffer(){
+            ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(MAGIC).putInt(VERSION).putInt(robotId).putInt(firstTimeStep).putInt(count);
+            index.put(entries, 0, count * ENTRY_SIZE);
+            index.flip();
+            return index;
+        }
+    }
+
+    /**
+     * Widens range {min, max} by every sensor timestamp of timeStep.
+     */
+    static void timestampRange(TimeStep timeStep, long[] range){
+        WheelData wheelData = timeStep.wheelData();
+        if (wheelData != null){
+            IndividualWheelData left = wheelData.left();
+            if (left != null){
+                timestamps(left.timestampsAsByteBuffer(), range);
+            }
+            IndividualWheelData right = wheelData.right();
+            if (right != null){
+                timestamps(right.timestampsAsByteBuffer(), range);
+            }
+        }
+        OrientationData orientationData = timeStep.orientationData();
+        if (orientationData != null){
+            timestamps(orientationData.timestampsAsByteBuffer(), range);
+        }
+        ChargerData chargerData = timeStep.chargerData();
+        if (chargerData != null){
+            timestamps(chargerData.timestampsAsByteBuffer(), range);
+        }
+        BatteryData batteryData = timeStep.batteryData();
+        if (batteryData != null){
+            timestamps(batteryData.timestampsAsByteBuffer(), range);
+        }
+        SoundData soundData = timeStep.soundData();
+        if (soundData != null){
+            AudioTimestamp startTime = soundData.startTime();
+            // Left zeroed when no audio was recorded during the timestep
+            if (startTime != null && startTime.nanoTime() != 0){
+                timestamp(startTime.nanoTime(), range);
+            }
+        }
+        ImageData imageData = timeStep.imageData();
+        if (imageData != null){
+            Image image = new Image();
+            for (int i = 0; i < imageData.imagesLength(); i++){
+                timestamp(imageData.images(image, i).timestamp(), range);
+            }
+        }
+    }
+
+    private static void timestamps(ByteBuffer timestamps, long[] range){
+        if (timestamps == null){
+            return;
+        }
+        // Timestamps of a sensor are in order, but check them all rather than trust that here
+        for (int i = timestamps.position(); i + 8 <= timestamps.limit(); i += 8){
+            timestamp(timestamps.getLong(i), range);
+        }
+    }
+
+    private static void timestamp(long timestamp, long[] range){
+        range[0] = Math.min(range[0], timestamp);
+        range[1] = Math.max(range[1], timestamp);
+    }
+}
@@ -0,0 +1,294 @@
+package jp.oist.abcvlib.core.learning;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import jp.oist.abcvlib.core.learning.fbclasses.Episode;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.util.CompressionCodec;
+
+/**
+ * Read-only access to an Episode flatbuffer, e.g. a file saved by the server, the payload of an
+ * upload or an episode just finished by {@link FlatbufferAssembler}. Files are memory-mapped and
+ * timesteps are read in place as they are iterated, so even episodes far larger than the heap
+ * are never materialized. Uses no Android APIs, so it runs on any JVM.
+ * <p>
+ * The buffer passed in is never modified, not even its position or byte order. See
+ * {@link EpisodeValidator} to check an episode for consistency.
+ * <p>
+ * With an {@link EpisodeIndex} timesteps are looked up by their position in the index instead
+ * of through the root table, so a file of concatenated chunks reads as one episode, and
+ * timesteps can be found by timestamp with a binary search.
+ */
+public class EpisodeReader implements Iterable<TimeStep> {
+    private final ByteBuffer buffer;
+    private final Episode episode;
+    private final EpisodeIndex index;
+
+    private EpisodeReader(ByteBuffer buffer){
+        this(buffer, Episode.getRootAsEpisode(buffer), null);
+    }
+
+    private EpisodeReader(ByteBuffer buffer, Episode episode, EpisodeIndex index){
+        this.buffer = buffer;
+        this.episode = episode;
+        this.index = index;
+    }
+
+    /**
+     * Memory-maps an episode file. Episode flatbuffers use 32 bit offsets, so a file can be 2 GB
+     * at most; archives are expected to hold one episode (or chunk) per file. The episodes
+     * module's EpisodeArchiveValidator checks a directory of them.
+     */
+    public static EpisodeReader open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()){
+            if (channel.size() > Integer.MAX_VALUE){
+                throw new IOException(file + " of " + channel.size() + " bytes exceeds the maximum flatbuffer size");
+            }
+            // The mapping stays valid after the channel is closed
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Memory-maps an episode file and its sidecar index, e.g. the chunks of a streamed episode
+     * appended to one file with their indexes merged by {@link EpisodeIndex.Writer#addAll}.
+     */
+    public static EpisodeReader open(File file, File indexFile) throws IOException {
+        return open(file).withIndex(EpisodeIndex.open(indexFile));
+    }
+
+    /**
+     * @param episode finished Episode flatbuffer from episode.position() to episode.limit()
+     * @throws IOException if episode is too short or its root table lies outside of it
+     */
+    public static EpisodeReader wrap(ByteBuffer episode) throws IOException {
+        ByteBuffer view = episode.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (view.remaining() < 8){
+            throw new IOException("Episode of " + view.remaining() + " bytes is too short");
+        }
+        int root = view.getInt(0);
+        if (root < 4 || root > view.remaining() - 4){
+            throw new IOException("Episode root offset " + root + " outside of " +
+                    view.remaining() + " bytes");
+        }
+        try {
+            return new EpisodeReader(view);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed Episode table", e);
+        }
+    }
+
+    /**
+     * Undoes the encodings listed in the content-encoding header field of an upload, e.g.
+     * "compact-flatbuffer, lz4-block", see FlatbufferAssembler.prepareUpload().
+     * @throws IOException if an encoding is unknown or the payload is corrupt
+     */
+    public static EpisodeReader fromPayload(ByteBuffer payload, String contentEncoding) throws IOException {
+        return wrap(decodePayload(payload, contentEncoding, null));
+    }
+
+    /**
+     * @param index writer the timesteps of a compact payload are added to as they are decoded, or null
+     * @return the Episode flatbuffer
+     */
+    private static ByteBuffer decodePayload(ByteBuffer payload, String contentEncoding,
+                                            EpisodeIndex.Writer index) throws IOException {
+        String[] encodings = contentEncoding.split(",");
+        ByteBuffer decoded = payload;
+        // Compression is applied last, so undo it first
+        for (int i = encodings.length - 1; i > 0; i--){
+            String name = encodings[i].trim();
+            CompressionCodec codec = CompressionCodec.forName(name);
+            if (codec == null){
+                throw new IOException("Unknown content-encoding " + name);
+            }
+            decoded = codec.decompress(decoded);
+        }
+        String base = encodings[0].trim();
+        if (base.equals(CompactEpisodeCodec.CONTENT_ENCODING)){
+            try {
+                decoded = new CompactEpisodeCodec().decode(decoded,
+                        new FlatBufferBuilder(Math.max(1024, decoded.remaining() * 2)), index);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt compact episode", e);
+            }
+        } else if (!base.equals("flatbuffer")){
+            throw new IOException("Unknown content-encoding " + base);
+        }
+        return decoded;
+    }
+
+    private static boolean isCompact(String contentEncoding){
+        return contentEncoding.split(",")[0].trim().equals(CompactEpisodeCodec.CONTENT_ENCODING);
+    }
+
+    /**
+     * Like {@link #fromPayload(ByteBuffer, String)} for uploads followed by an index, see
+     * FlatbufferAssembler.setEmitIndex().
+     * @param indexLength the index-length header field, 0 if there is no index
+     */
+    public static EpisodeReader fromPayload(ByteBuffer payload, String contentEncoding, int indexLength) throws IOException {
+        if (indexLength < 0 || indexLength > payload.remaining()){
+            throw new IOException("Index of " + indexLength + " bytes in a payload of " + payload.remaining());
+        }
+        if (indexLength == 0){
+            return fromPayload(payload, contentEncoding);
+        }
+        int split = payload.position() + payload.remaining() - indexLength;
+        ByteBuffer episodePart = payload.duplicate();
+        episodePart.limit(split);
+        ByteBuffer indexPart = payload.duplicate();
+        indexPart.position(split);
+        EpisodeIndex index = EpisodeIndex.wrap(indexPart);
+        if (!isCompact(contentEncoding)){
+            return fromPayload(episodePart, contentEncoding).withIndex(index);
+        }
+        // The index describes the flatbuffer before compact encoding, so index the decoded one instead
+        EpisodeIndex.Writer writer = new EpisodeIndex.Writer(index.getRobotId(),
+                index.getFirstTimeStep(), index.getCount());
+        EpisodeReader reader = wrap(decodePayload(episodePart, contentEncoding, writer));
+        if (writer.getCount() != index.getCount()){
+            throw new IOException("Index of " + index.getCount() + " timesteps for an episode of " +
+                    writer.getCount());
+        }
+        return reader.withIndex(EpisodeIndex.wrap(writer.toByteBuffer()));
+    }
+
+    /**
+     * @return a reader of the same buffer looking timesteps up in index
+     * @throws IOException if index points outside of the buffer
+     */
+    public EpisodeReader withIndex(EpisodeIndex index) throws IOException {
+        for (int i = 0; i < index.getCount(); i++){
+            int table = index.getTablePosition(i);
+            if (table < 0 || table > buffer.remaining() - 4){
+                throw new IOException("Index entry " + i + " points to " + table + " outside of " +
+                        buffer.remaining() + " bytes");
+            }
+        }
+        return new EpisodeReader(buffer, episode, index);
+    }
+
+    /**
+     * @return the index in use, or null
+     */
+    public EpisodeIndex getIndex(){
+        return index;
+    }
+
+    public int getRobotId(){
+        return episode.robotid();
+    }
+
+    public int getTimeStepCount(){
+        return index != null ? index.getCount() : episode.timestepsLength();
+    }
+
+    public TimeStep getTimeStep(int index){
+        return getTimeStep(index, new TimeStep());
+    }
+
+    /**
+     * @param reuse accessor to point at the timestep instead of allocating a new one
+     */
+    public TimeStep getTimeStep(int index, TimeStep reuse){
+        if (index < 0 || index >= getTimeStepCount()){
+            throw new IndexOutOfBoundsException("TimeStep " + index + " of " + getTimeStepCount());
+        }
+        if (this.index != null){
+            return reuse.__assign(this.index.getTablePosition(index), buffer);
+        }
+        return episode.timesteps(reuse, index);
+    }
+
+    /**
+     * @return index of the first timestep with a sensor timestamp at or after timestamp, or
+     * getTimeStepCount() if there is none. A binary search with an index, a scan without.
+     */
+    public int findTimeStep(long timestamp){
+        if (index != null){
+            return index.find(timestamp);
+        }
+        long[] range = new long[2];
+        TimeStep timeStep = new TimeStep();
+        int count = getTimeStepCount();
+        for (int i = 0; i < count; i++){
+            range[0] = Long.MAX_VALUE;
+            range[1] = Long.MIN_VALUE;
+            EpisodeIndex.timestampRange(getTimeStep(i, timeStep), range);
+            if (range[1] >= timestamp){
+                return i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Iterates the timesteps with sensor data between from and to, both inclusive. Needs an
+     * index. The TimeStep returned by next() is reused as for {@link #iterator()}.
+     */
+    public Iterable<TimeStep> getTimeSteps(long from, long to){
+        if (index == null){
+            throw new IllegalStateException("Time range queries need an EpisodeIndex");
+        }
+        int[] range = index.findRange(from, to);
+        return () -> iterator(range[0], range[1]);
+    }
+
+    /**
+     * @return the root table, e.g. for fields not covered here
+     */
+    public Episode getEpisode(){
+        return episode;
+    }
+
+    /**
+     * @return read-only view of the whole flatbuffer
+     */
+    public ByteBuffer getBuffer(){
+        return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getSize(){
+        return buffer.remaining();
+    }
+
+    /**
+     * Iterates the timesteps in order without allocating. The TimeStep returned by next() is
+     * reused and only valid until the following call.
+     */
+    @Override
+    public Iterator<TimeStep> iterator() {
+        return iterator(0, getTimeStepCount());
+    }
+
+    private Iterator<TimeStep> iterator(int first, int end){
+        return new Iterator<TimeStep>() {
+            private final TimeStep timeStep = new TimeStep();
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public TimeStep next() {
+                if (next >= end){
+                    throw new NoSuchElementException();
+                }
+                return getTimeStep(next++, timeStep);
+            }
+        };
+    }
+}
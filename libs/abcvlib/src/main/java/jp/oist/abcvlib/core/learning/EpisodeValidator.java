@@ -0,0 +1,333 @@
+package jp.oist.abcvlib.core.learning;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import jp.oist.abcvlib.core.learning.fbclasses.AudioTimestamp;
+import jp.oist.abcvlib.core.learning.fbclasses.BatteryData;
+import jp.oist.abcvlib.core.learning.fbclasses.ChargerData;
+import jp.oist.abcvlib.core.learning.fbclasses.Image;
+import jp.oist.abcvlib.core.learning.fbclasses.ImageData;
+import jp.oist.abcvlib.core.learning.fbclasses.IndividualWheelData;
+import jp.oist.abcvlib.core.learning.fbclasses.OrientationData;
+import jp.oist.abcvlib.core.learning.fbclasses.SoundData;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.core.learning.fbclasses.WheelData;
+import jp.oist.abcvlib.util.RunningStats;
+
+/**
+ * Checks an episode in a single pass over an {@link EpisodeReader} and collects statistics per
+ * sensor stream along the way. Per timestep it checks that:
+ * <ul>
+ *     <li>every vector lies within the buffer</li>
+ *     <li>the columns of a sensor (e.g. counts and distances of a wheel) are as long as its timestamps</li>
+ *     <li>timestamps never go backwards, within a timestep and from one timestep to the next</li>
+ *     <li>images have a size and data</li>
+ * </ul>
+ * Statistics are kept per sensor (sample count, timestamp span, sampling intervals) and per
+ * column (min/mean/max of the values), e.g. "leftWheel" and "leftWheel.distances".
+ */
+public class EpisodeValidator {
+    private static final int MAX_PROBLEMS = 100;
+
+    /**
+     * Timestamps of one sensor across the episode.
+     */
+    public static class TimestampStats {
+        private long count = 0;
+        private long first = 0;
+        private long last = 0;
+        private long outOfOrder = 0;
+        private final RunningStats intervals = new RunningStats();
+
+        /**
+         * @return false if timestamp is before the previous one
+         */
+        private boolean add(long timestamp){
+            boolean inOrder = count == 0 || timestamp >= last;
+            if (count == 0){
+                first = timestamp;
+            } else {
+                intervals.add(timestamp - last);
+            }
+            if (!inOrder){
+                outOfOrder++;
+            }
+            last = timestamp;
+            count++;
+            return inOrder;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public long getFirst(){
+            return first;
+        }
+
+        public long getLast(){
+            return last;
+        }
+
+        /**
+         * @return number of timestamps before their predecessor
+         */
+        public long getOutOfOrderCount(){
+            return outOfOrder;
+        }
+
+        /**
+         * @return differences between consecutive timestamps, the max being the longest gap
+         */
+        public RunningStats getIntervals(){
+            return intervals;
+        }
+
+        @Override
+        public String toString() {
+            return count + " samples over " + (last - first) + ", interval " +
+                    String.format(Locale.US, "mean %.1f max %.0f", intervals.getMean(), intervals.getMax()) +
+                    (outOfOrder > 0 ? ", " + outOfOrder + " out of order" : "");
+        }
+    }
+
+    private final EpisodeReader reader;
+    private final ArrayList<String> problems = new ArrayList<>();
+    private int problemCount = 0;
+    private final LinkedHashMap<String, TimestampStats> timestampStats = new LinkedHashMap<>();
+    private final LinkedHashMap<String, RunningStats> valueStats = new LinkedHashMap<>();
+    private final Image image = new Image();
+    private int timeStep;
+
+    public EpisodeValidator(EpisodeReader reader){
+        this.reader = reader;
+    }
+
+    /**
+     * Checks the whole episode. Can be called once per instance.
+     * @return true if no problem was found
+     */
+    public boolean validate(){
+        timeStep = 0;
+        int count;
+        try {
+            count = reader.getTimeStepCount();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            problem("malformed Episode table, " + e);
+            return false;
+        }
+        // Each timestep takes at least its 4 byte offset
+        if ((long) count * 4 > reader.getSize()){
+            problem("timesteps vector of " + count + " does not fit in " + reader.getSize() + " bytes");
+            return false;
+        }
+        TimeStep step = new TimeStep();
+        for (; timeStep < count; timeStep++){
+            try {
+                validateTimeStep(reader.getTimeStep(timeStep, step));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                // Offsets or lengths pointing outside of the buffer
+                problem("malformed, " + e);
+            }
+        }
+        return isValid();
+    }
+
+    private void validateTimeStep(TimeStep step){
+        WheelData wheelData = step.wheelData();
+        if (wheelData != null){
+            validateWheel(wheelData.left(), "leftWheel");
+            validateWheel(wheelData.right(), "rightWheel");
+        }
+        OrientationData orientationData = step.orientationData();
+        if (orientationData != null){
+            int count = timestamps("orientation", orientationData.timestampsAsByteBuffer());
+            doubles("orientation.tiltAngle", orientationData.tiltangleAsByteBuffer(), count);
+            doubles("orientation.tiltVelocity", orientationData.tiltvelocityAsByteBuffer(), count);
+        }
+        ChargerData chargerData = step.chargerData();
+        if (chargerData != null){
+            int count = timestamps("charger", chargerData.timestampsAsByteBuffer());
+            doubles("charger.voltage", chargerData.voltageAsByteBuffer(), count);
+        }
+        BatteryData batteryData = step.batteryData();
+        if (batteryData != null){
+            int count = timestamps("battery", batteryData.timestampsAsByteBuffer());
+            doubles("battery.voltage", batteryData.voltageAsByteBuffer(), count);
+        }
+        SoundData soundData = step.soundData();
+        if (soundData != null){
+            validateSound(soundData);
+        }
+        ImageData imageData = step.imageData();
+        if (imageData != null){
+            validateImages(imageData);
+        }
+    }
+
+    private void validateWheel(IndividualWheelData wheel, String name){
+        if (wheel == null){
+            return;
+        }
+        int count = timestamps(name, wheel.timestampsAsByteBuffer());
+        ByteBuffer counts = wheel.countsAsByteBuffer();
+        int length = counts == null ? 0 : counts.remaining() / 4;
+        checkLength(name + ".counts", length, count);
+        RunningStats stats = values(name + ".counts");
+        for (int i = 0; i < length; i++){
+            stats.add(counts.getInt(counts.position() + i * 4));
+        }
+        doubles(name + ".distances", wheel.distancesAsByteBuffer(), count);
+        doubles(name + ".speedsInstantaneous", wheel.speedsInstantaneousAsByteBuffer(), count);
+        doubles(name + ".speedsBuffered", wheel.speedsBufferedAsByteBuffer(), count);
+        doubles(name + ".speedsExpavg", wheel.speedsExpavgAsByteBuffer(), count);
+    }
+
+    private void validateSound(SoundData soundData){
+        AudioTimestamp startTime = soundData.startTime();
+        AudioTimestamp endTime = soundData.endTime();
+        if (startTime != null){
+            timestamp("sound", startTime.nanoTime());
+        }
+        if (startTime != null && endTime != null && endTime.nanoTime() < startTime.nanoTime()){
+            problem("sound ends at " + endTime.nanoTime() + " before it starts at " + startTime.nanoTime());
+        }
+        ByteBuffer levels = soundData.levelsAsByteBuffer();
+        int length = levels == null ? 0 : levels.remaining() / 4;
+        RunningStats stats = values("sound.levels");
+        for (int i = 0; i < length; i++){
+            stats.add(levels.getFloat(levels.position() + i * 4));
+        }
+    }
+
+    private void validateImages(ImageData imageData){
+        RunningStats sizes = values("images.bytes");
+        for (int i = 0; i < imageData.imagesLength(); i++){
+            imageData.images(image, i);
+            timestamp("images", image.timestamp());
+            ByteBuffer webp = image.webpImageAsByteBuffer();
+            int size = webp == null ? 0 : webp.remaining();
+            if (size == 0 || image.width() <= 0 || image.height() <= 0){
+                problem("image " + i + " of " + image.width() + "x" + image.height() + " has " + size + " bytes");
+            }
+            sizes.add(size);
+        }
+    }
+
+    /**
+     * @return number of timestamps
+     */
+    private int timestamps(String name, ByteBuffer timestamps){
+        int length = timestamps == null ? 0 : timestamps.remaining() / 8;
+        for (int i = 0; i < length; i++){
+            timestamp(name, timestamps.getLong(timestamps.position() + i * 8));
+        }
+        return length;
+    }
+
+    private void timestamp(String name, long timestamp){
+        TimestampStats stats = timestampStats.get(name);
+        if (stats == null){
+            stats = new TimestampStats();
+            timestampStats.put(name, stats);
+        }
+        long previous = stats.getLast();
+        if (!stats.add(timestamp)){
+            problem(name + " timestamp " + timestamp + " before " + previous);
+        }
+    }
+
+    private void doubles(String name, ByteBuffer values, int expectedLength){
+        int length = values == null ? 0 : values.remaining() / 8;
+        checkLength(name, length, expectedLength);
+        RunningStats stats = values(name);
+        for (int i = 0; i < length; i++){
+            stats.add(values.getDouble(values.position() + i * 8));
+        }
+    }
+
+    private void checkLength(String name, int length, int expectedLength){
+        if (length != expectedLength){
+            problem(name + " has " + length + " values for " + expectedLength + " timestamps");
+        }
+    }
+
+    private RunningStats values(String name){
+        RunningStats stats = valueStats.get(name);
+        if (stats == null){
+            stats = new RunningStats();
+            valueStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    private void problem(String description){
+        // Keep the report readable when a whole archive is broken the same way
+        if (problemCount++ < MAX_PROBLEMS){
+            problems.add("TimeStep " + timeStep + ": " + description);
+        }
+    }
+
+    public boolean isValid(){
+        return problemCount == 0;
+    }
+
+    /**
+     * @return total number of problems found, of which the first 100 are described
+     */
+    public int getProblemCount(){
+        return problemCount;
+    }
+
+    public List<String> getProblems(){
+        return Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * @return stats per sensor in the order the sensors were first seen
+     */
+    public Map<String, TimestampStats> getTimestampStats(){
+        return Collections.unmodifiableMap(timestampStats);
+    }
+
+    /**
+     * @return stats per column in the order the columns were first seen
+     */
+    public Map<String, RunningStats> getValueStats(){
+        return Collections.unmodifiableMap(valueStats);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        try {
+            report.append("Episode of robot ").append(reader.getRobotId()).append(", ")
+                    .append(reader.getTimeStepCount()).append(" timesteps, ");
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Reported as a problem by validate()
+            report.setLength(0);
+            report.append("Malformed episode, ");
+        }
+        report.append(reader.getSize()).append(" bytes, ")
+                .append(problemCount).append(" problems\n");
+        for (Map.Entry<String, TimestampStats> entry : timestampStats.entrySet()){
+            report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, RunningStats> entry : valueStats.entrySet()){
+            RunningStats stats = entry.getValue();
+            report.append(entry.getKey()).append(": ").append(String.format(Locale.US,
+                    "%d values, min %.4g mean %.4g max %.4g", stats.getCount(), stats.getMin(),
+                    stats.getMean(), stats.getMax())).append('\n');
+        }
+        for (String problem : problems){
+            report.append(problem).append('\n');
+        }
+        return report.toString();
+    }
+}
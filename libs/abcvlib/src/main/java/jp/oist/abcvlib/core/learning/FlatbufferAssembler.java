@@ -1,21 +1,34 @@
 package jp.oist.abcvlib.core.learning;
 
+import jp.oist.abcvlib.util.CompressionStage;
+import jp.oist.abcvlib.util.EpisodeOutbox;
+import jp.oist.abcvlib.util.ErrorHandler;
 import jp.oist.abcvlib.util.Logger;
+import jp.oist.abcvlib.util.MappedSegmentStore;
 
 import com.google.flatbuffers.FlatBufferBuilder;
 
 import org.jetbrains.annotations.NotNull;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import jp.oist.abcvlib.core.inputs.TimeStepDataBuffer;
@@ -29,9 +42,10 @@ import jp.oist.abcvlib.core.learning.fbclasses.RobotAction;
 import jp.oist.abcvlib.core.learning.fbclasses.SoundData;
 import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
 import jp.oist.abcvlib.core.learning.fbclasses.WheelData;
-import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
-import jp.oist.abcvlib.util.ScheduledExecutorServiceWithException;
+import jp.oist.abcvlib.util.PooledByteBufferFactory;
+import jp.oist.abcvlib.util.PrimitiveColumn;
 import jp.oist.abcvlib.util.SocketConnectionManager;
+import jp.oist.abcvlib.util.ServerConnection;
 import jp.oist.abcvlib.util.SocketListener;
 
 /**
@@ -40,15 +54,70 @@ import jp.oist.abcvlib.util.SocketListener;
 public class FlatbufferAssembler {
 
     private FlatBufferBuilder builder;
-    private final int[] timeStepVector;
+    // Offsets of the timesteps of an episode built on the heap, in the order they were added
+    private int[] timeStepVector;
+    // Builder offsets right after each timestep was written, marking where its bytes end
+    private int[] timeStepEnds;
+    private int timeStepCount;
     private final Trial myTrial;
     private final TimeStepDataBuffer timeStepDataBuffer;
-    private final ScheduledExecutorServiceWithException executor;
+    private final AssemblerExecutors executors;
     private final InetSocketAddress inetSocketAddress;
     private final SocketListener socketListener;
     private ByteBuffer episode;
     private int robotID;
-    private ExecutorService flatbufferWriter = Executors.newSingleThreadExecutor(new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, "flatbufferWriter"));
+    // When set, timesteps are serialized individually and spilled to disk until the episode ends
+    private MappedSegmentStore episodeStore;
+    private FlatBufferBuilder timeStepBuilder;
+    // When set, episodes and chunks are sent in compact form
+    private CompactEpisodeCodec compactCodec;
+    // When set, episodes and chunks are compressed before upload
+    private CompressionStage compression;
+    // When set, episodes and chunks are stored here and uploaded by its drainer
+    private EpisodeOutbox outbox;
+    // When set, episodes and chunks are queued on this connection instead of opening one each
+    private ServerConnection connection;
+    private boolean validateEpisodes = false;
+    // When set, an EpisodeIndex is sent after each episode and chunk
+    private boolean emitIndex = false;
+    private ByteBuffer episodeIndex;
+    // When larger than 0 episodes are streamed to the server in chunks of this many timesteps
+    private int timeStepsPerChunk = 0;
+    private int[] chunkTimeSteps;
+    private int[] chunkTimeStepEnds;
+    private int chunkTimeStepCount;
+    private int chunkIndex;
+    private int chunkFirstTimeStep;
+    private int chunkCapacity = 1024;
+    private String episodeId;
+    private int streamedBytes;
+    private Future<?> lastChunkUpload;
+    // With more than one writer thread each timestep is serialized into the builder of its worker
+    // and merged into the episode in the order the timesteps were added
+    private int writerThreads = 1;
+    private final ThreadLocal<FlatBufferBuilder> workerBuilders = new ThreadLocal<FlatBufferBuilder>(){
+        @Override
+        protected FlatBufferBuilder initialValue() {
+            return new FlatBufferBuilder(1024);
+        }
+    };
+    private final Object mergeLock = new Object();
+    // Timesteps finished out of order waiting for their predecessors, by order of addition
+    private final HashMap<Integer, ByteBuffer> pendingTimeSteps = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>();
+    private int submittedTimeSteps;
+    private int nextTimeStepToMerge;
+    // First failure to serialize or merge a timestep of the episode, after which nothing more is
+    // merged as the timesteps after it could never be merged in order
+    private Exception mergeFailure;
+    // Episode (and chunk) builders take their buffers from here and return them once sent
+    private final PooledByteBufferFactory bufferFactory = new PooledByteBufferFactory(true, 2);
+    // Sizes of the most recent episodes, used to presize the builder of the next one
+    private final int[] recentEpisodeSizes = new int[8];
+    private int recordedEpisodes = 0;
+    private long bufferRequestsAtEpisodeStart;
+    private int buildersThisEpisode;
+    private int lastGrowCopies = 0;
     public final Collection<Future<?>> flatbufferWriteFutures = Collections.synchronizedList(new LinkedList<Future<?>>());
 
     public FlatbufferAssembler(Trial myTrial,
@@ -56,16 +125,30 @@ public class FlatbufferAssembler {
                                  SocketListener socketListener,
                                  TimeStepDataBuffer timeStepDataBuffer,
                                int robotID){
+        this(myTrial, inetSocketAddress, socketListener, timeStepDataBuffer, robotID,
+                new AssemblerExecutors());
+    }
+
+    /**
+     * @param executors threads to serialize, stream and send episodes on, shared with the other
+     *                  assemblers of myTrial. Shut them down once none of these assemblers is
+     *                  used anymore.
+     */
+    public FlatbufferAssembler(Trial myTrial,
+                               InetSocketAddress inetSocketAddress,
+                               SocketListener socketListener,
+                               TimeStepDataBuffer timeStepDataBuffer,
+                               int robotID,
+                               AssemblerExecutors executors){
         this.socketListener = socketListener;
         this.inetSocketAddress = inetSocketAddress;
         this.timeStepDataBuffer = timeStepDataBuffer;
         this.robotID = robotID;
-
-        int threads = 5;
-        executor = new ScheduledExecutorServiceWithException(threads, new ProcessPriorityThreadFactory(1, "flatbufferAssembler"));
+        this.executors = executors;
 
         this.myTrial = myTrial;
         this.timeStepVector = new int[myTrial.getMaxTimeStepCount() + 1];
+        this.timeStepEnds = new int[timeStepVector.length];
     }
 
     public TimeStepDataBuffer getTimeStepDataBuffer() {
@@ -73,116 +156,592 @@ public class FlatbufferAssembler {
     }
 
     public void startEpisode(){
-        builder = new FlatBufferBuilder(1024);
+        if (builder != null){
+            // startEpisode() was already called for this episode, reuse that builder's buffer
+            releaseUnusedBuilder(builder);
+        }
+        bufferRequestsAtEpisodeStart = bufferFactory.getRequestCount();
+        buildersThisEpisode = 0;
+        if (timeStepsPerChunk > 0){
+            builder = newEpisodeBuilder(chunkCapacity);
+        } else if (episodeStore != null){
+            // Unused, the spilled timesteps are sent by sendSpilledTimeSteps() in builders of their own
+            builder = newEpisodeBuilder(1024);
+        } else {
+            builder = newEpisodeBuilder(getEstimatedEpisodeSize());
+        }
+        episodeId = UUID.randomUUID().toString();
+        chunkIndex = 0;
+        chunkFirstTimeStep = 0;
+        chunkTimeStepCount = 0;
+        streamedBytes = 0;
+        // All of them were waited for in Trial.endEpisode() before the episode ended
+        flatbufferWriteFutures.clear();
+        submittedTimeSteps = 0;
+        timeStepCount = 0;
+        synchronized (mergeLock){
+            nextTimeStepToMerge = 0;
+            pendingTimeSteps.clear();
+            mergeFailure = null;
+        }
         Logger.v("flatbuff", "starting New Episode");
     }
 
     public void addTimeStep(int timestep) throws ExecutionException, InterruptedException {
+        addTimeStep(timestep, getTimeStepDataBuffer().getTimeStepData(timestep).getSequence());
+    }
+
+    /**
+     * @param sequence sequence number of the timestep held in slot timestep at the time of the
+     *                 call, used to detect the slot being recycled before it has been written
+     */
+    public void addTimeStep(int timestep, long sequence) throws ExecutionException, InterruptedException {
         // Wait for image compression to finish before trying to write to flatbuffer
-        synchronized (timeStepDataBuffer.imgCompFuturesTimeStep){
-            for (Future<?> future:timeStepDataBuffer.imgCompFuturesTimeStep){
-                future.get();
-            }
+        timeStepDataBuffer.awaitImageCompression(timeStepDataBuffer.getTimeStepData(timestep));
+        if (writerThreads > 1){
+            int order = submittedTimeSteps++;
+            flatbufferWriteFutures.add(executors.getFlatbufferWriter().submit(() -> {
+                serializeInParallel(order, timestep, sequence);
+                return null;
+            }));
+            return;
         }
-        flatbufferWriteFutures.add(flatbufferWriter.submit(() -> {
+        flatbufferWriteFutures.add(executors.getFlatbufferWriter().submit(() -> {
             TimeStepDataBuffer.TimeStepData timeStepData = getTimeStepDataBuffer().getTimeStepData(timestep);
-
-            int _wheelData = addWheelData(timeStepData);
-            int _orientationData = addOrientationData(timeStepData);
-            int _chargerData = addChargerData(timeStepData);
-            int _batteryData = addBatteryData(timeStepData);
-            int _soundData = addSoundData(timeStepData);
-            int _imageData = addImageData(timeStepData);
-            int _actionData = addActionData(timeStepData);
-
-            TimeStep.startTimeStep(builder);
-            TimeStep.addWheelData(builder, _wheelData);
-            TimeStep.addOrientationData(builder, _orientationData);
-            TimeStep.addChargerData(builder, _chargerData);
-            TimeStep.addBatteryData(builder, _batteryData);
-            TimeStep.addSoundData(builder, _soundData);
-            TimeStep.addImageData(builder, _imageData);
-            TimeStep.addActions(builder, _actionData);
-            int ts = TimeStep.endTimeStep(builder);
-            timeStepVector[timestep]  = ts;
+            getTimeStepDataBuffer().acquire(timeStepData, sequence);
+            try {
+                if (timeStepsPerChunk > 0){
+                    addToChunk(writeTimeStep(builder, timeStepData));
+                } else if (episodeStore != null){
+                    spillTimeStep(timeStepData);
+                } else {
+                    addToEpisode(writeTimeStep(builder, timeStepData));
+                }
+            } finally {
+                getTimeStepDataBuffer().release(timeStepData, sequence);
+            }
+            // Callable so that spilling errors surface from the future
+            return null;
         }));
     }
 
-    private int addWheelData(TimeStepDataBuffer.TimeStepData timeStepData){
-        TimeStepDataBuffer.TimeStepData.WheelData.IndividualWheelData leftData =
-                timeStepData.getWheelData().getLeft();
-        Logger.v("flatbuff", "STEP wheelCount TimeStamps Length: " +
-                leftData.getTimeStamps().length);
-        int timeStampsLeft = IndividualWheelData.createTimestampsVector(builder,
-                leftData.getTimeStamps());
-        int countsLeft = IndividualWheelData.createCountsVector(builder,
-                leftData.getCounts());
-        int distancesLeft = IndividualWheelData.createDistancesVector(builder,
-                leftData.getDistances());
-        int speedsLeftInstant = IndividualWheelData.createSpeedsInstantaneousVector(builder,
-                leftData.getSpeedsInstantaneous());
-        int speedsLeftBuffered = IndividualWheelData.createSpeedsBufferedVector(builder,
-                leftData.getSpeedsBuffered());
-        int speedsLeftExpAvg = IndividualWheelData.createSpeedsExpavgVector(builder,
-                leftData.getSpeedsExpAvg());
-        int leftOffset = IndividualWheelData.createIndividualWheelData(builder, timeStampsLeft,
-                countsLeft, distancesLeft, speedsLeftInstant, speedsLeftBuffered, speedsLeftExpAvg);
-
-        TimeStepDataBuffer.TimeStepData.WheelData.IndividualWheelData rightData =
-                timeStepData.getWheelData().getRight();
+    /**
+     * Serializes timesteps on several threads, each into a builder of its own. A builder can
+     * only be written by one thread, so the finished timesteps are then merged into the episode
+     * (or the current chunk or the episode store) in the order they were added, each with a
+     * single block copy. Useful when timesteps hold several images and a single writer thread
+     * cannot keep up.
+     * @param writerThreads number of threads serializing timesteps, 1 (default) to write
+     *                      directly into the episode builder on a single thread. Must only be
+     *                      changed between episodes. The writer threads are those of the
+     *                      AssemblerExecutors, so this applies to all assemblers sharing them.
+     */
+    public void setWriterThreads(int writerThreads){
+        if (writerThreads < 1){
+            throw new IllegalArgumentException("writerThreads must be at least 1. " +
+                    writerThreads + " provided.");
+        }
+        if (writerThreads == this.writerThreads){
+            return;
+        }
+        executors.setWriterThreads(writerThreads);
+        this.writerThreads = writerThreads;
+    }
+
+    public int getWriterThreads(){
+        return writerThreads;
+    }
+
+    private void serializeInParallel(int order, int timestep, long sequence) throws IOException {
+        synchronized (mergeLock){
+            if (mergeFailure != null){
+                // The episode is lost already, see endEpisode()
+                return;
+            }
+        }
+        TimeStepDataBuffer.TimeStepData timeStepData = getTimeStepDataBuffer().getTimeStepData(timestep);
+        FlatBufferBuilder workerBuilder = workerBuilders.get();
+        workerBuilder.clear();
+        ByteBuffer finished;
+        try {
+            getTimeStepDataBuffer().acquire(timeStepData, sequence);
+            try {
+                workerBuilder.finish(writeTimeStep(workerBuilder, timeStepData));
+            } finally {
+                getTimeStepDataBuffer().release(timeStepData, sequence);
+            }
+            finished = workerBuilder.dataBuffer();
+        } catch (RuntimeException e) {
+            synchronized (mergeLock){
+                failMerge(order, e);
+            }
+            throw e;
+        }
+
+        synchronized (mergeLock){
+            if (mergeFailure != null){
+                return;
+            }
+            try {
+                if (order != nextTimeStepToMerge){
+                    // A predecessor is still being serialized. Park a copy as this builder is reused.
+                    pendingTimeSteps.put(order, copyToSpare(finished));
+                    return;
+                }
+                mergeTimeStep(finished);
+                nextTimeStepToMerge++;
+                ByteBuffer next;
+                while ((next = pendingTimeSteps.remove(nextTimeStepToMerge)) != null){
+                    mergeTimeStep(next);
+                    spareBuffers.push(next);
+                    nextTimeStepToMerge++;
+                }
+            } catch (IOException | RuntimeException e) {
+                failMerge(nextTimeStepToMerge, e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Records the first failure of the episode and drops the timesteps parked behind it, which
+     * could never be merged. Callers hold mergeLock.
+     */
+    private void failMerge(int order, Exception e){
+        if (mergeFailure == null){
+            mergeFailure = new IOException("Timestep " + order + " of the episode could not be written", e);
+        }
+        pendingTimeSteps.clear();
+    }
+
+    /**
+     * Appends a finished timestep to whatever the episode is being assembled into. Callers hold
+     * mergeLock.
+     */
+    private void mergeTimeStep(ByteBuffer finished) throws IOException {
+        if (timeStepsPerChunk > 0){
+            addToChunk(copyFinishedTable(builder, finished));
+        } else if (episodeStore != null){
+            episodeStore.append(finished);
+        } else {
+            addToEpisode(copyFinishedTable(builder, finished));
+        }
+    }
+
+    private void addToEpisode(int timeStepOffset){
+        if (timeStepCount == timeStepVector.length){
+            timeStepVector = Arrays.copyOf(timeStepVector, timeStepCount * 2);
+            timeStepEnds = Arrays.copyOf(timeStepEnds, timeStepCount * 2);
+        }
+        timeStepEnds[timeStepCount] = builder.offset();
+        timeStepVector[timeStepCount++] = timeStepOffset;
+    }
+
+    private void addToChunk(int timeStepOffset){
+        chunkTimeStepEnds[chunkTimeStepCount] = builder.offset();
+        chunkTimeSteps[chunkTimeStepCount++] = timeStepOffset;
+        if (chunkTimeStepCount == timeStepsPerChunk){
+            finishChunk(false);
+            builder = newEpisodeBuilder(chunkCapacity);
+        }
+    }
+
+    private ByteBuffer copyToSpare(ByteBuffer finished){
+        ByteBuffer spare = null;
+        Iterator<ByteBuffer> iterator = spareBuffers.iterator();
+        while (iterator.hasNext()){
+            ByteBuffer candidate = iterator.next();
+            if (candidate.capacity() >= finished.remaining()){
+                iterator.remove();
+                spare = candidate;
+                break;
+            }
+        }
+        if (spare == null){
+            spare = ByteBuffer.allocate(finished.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        spare.clear();
+        spare.put(finished.duplicate());
+        spare.flip();
+        return spare;
+    }
+
+    /**
+     * Keeps episode data off the heap: spilled timesteps are held in memory-mapped segments until
+     * the episode ends and are then sent as chunks (see {@link #setStreaming(int)}), one per
+     * segment, so only a single segment's worth of the episode is ever on the heap. Segments
+     * are as large as the store's segment size.
+     * @param episodeStore store to spill to, or null to build episodes on the heap (default).
+     *                     Must only be changed between episodes.
+     */
+    public void setEpisodeStore(MappedSegmentStore episodeStore){
+        this.episodeStore = episodeStore;
+        if (episodeStore != null && timeStepBuilder == null){
+            timeStepBuilder = new FlatBufferBuilder(1024);
+        }
+    }
+
+    public MappedSegmentStore getEpisodeStore(){
+        return episodeStore;
+    }
+
+    /**
+     * Streams episodes instead of sending them as a whole once they end. Every timeStepsPerChunk
+     * timesteps the timesteps recorded so far are finished as a self-contained Episode flatbuffer
+     * and uploaded in the background while recording continues, so only one chunk is held in
+     * memory and the server can start on the first chunk while the episode is still running.
+     * Each chunk is sent with an {@link EpisodeChunk} header; the server should reply to every
+     * chunk as it would to a whole episode. Takes precedence over an episode store.
+     * @param timeStepsPerChunk timesteps per chunk, or 0 to send whole episodes (default). Must
+     *                          only be changed between episodes.
+     */
+    public void setStreaming(int timeStepsPerChunk){
+        if (timeStepsPerChunk < 0){
+            throw new IllegalArgumentException("timeStepsPerChunk must not be negative. " +
+                    timeStepsPerChunk + " provided.");
+        }
+        this.timeStepsPerChunk = timeStepsPerChunk;
+        chunkTimeSteps = timeStepsPerChunk > 0 ? new int[timeStepsPerChunk] : null;
+        chunkTimeStepEnds = timeStepsPerChunk > 0 ? new int[timeStepsPerChunk] : null;
+    }
+
+    public int getTimeStepsPerChunk(){
+        return timeStepsPerChunk;
+    }
+
+    /**
+     * Sends episodes and chunks encoded with codec instead of as plain flatbuffers, with a
+     * content-encoding of {@link CompactEpisodeCodec#CONTENT_ENCODING}. The server decodes them
+     * back into Episode flatbuffers with {@link CompactEpisodeCodec#decode(ByteBuffer)}.
+     * @param codec codec used only by this assembler, or null to send flatbuffers (default).
+     *              Must only be changed between episodes.
+     */
+    public void setCompactEncoding(CompactEpisodeCodec codec){
+        this.compactCodec = codec;
+    }
+
+    public CompactEpisodeCodec getCompactEncoding(){
+        return compactCodec;
+    }
+
+    /**
+     * Compresses episodes and chunks before upload, after the compact encoding if that is set too.
+     * The codec is appended to the content-encoding header field, e.g. "flatbuffer, deflate",
+     * and the length before compression is sent as uncompressed-length. See
+     * {@link CompressionStage} for the statistics to pick a codec by.
+     * @param compression stage used only by this assembler, or null to send uncompressed
+     *                    (default). Must only be changed between episodes.
+     */
+    public void setCompression(CompressionStage compression){
+        this.compression = compression;
+    }
+
+    public CompressionStage getCompression(){
+        return compression;
+    }
+
+    /**
+     * Stores finished episodes and chunks in outbox rather than sending them directly, so they
+     * survive the server being unreachable. The outbox uploads them once it is reachable again,
+     * see {@link EpisodeOutbox#startDraining(EpisodeOutbox.Uploader)}. The next episode no longer
+     * waits for the upload, only for the episode to be written to the outbox.
+     * @param outbox may be shared by several assemblers, or null to send directly (default)
+     */
+    public void setOutbox(EpisodeOutbox outbox){
+        this.outbox = outbox;
+    }
+
+    /**
+     * @param connection connection kept open across episodes to send them on, or null to open a
+     *                   connection per episode (default). Ignored while an outbox is set.
+     */
+    public void setConnection(ServerConnection connection){
+        this.connection = connection;
+    }
+
+    public ServerConnection getConnection(){
+        return connection;
+    }
+
+    public EpisodeOutbox getOutbox(){
+        return outbox;
+    }
+
+    /**
+     * @param validateEpisodes true to check each finished episode (or chunk when streaming) with
+     *                         {@link EpisodeValidator} and log the problems found. Reads the whole episode once more,
+     *                         so meant for debugging.
+     */
+    public void setValidateEpisodes(boolean validateEpisodes){
+        this.validateEpisodes = validateEpisodes;
+    }
+
+    public boolean getValidateEpisodes(){
+        return validateEpisodes;
+    }
+
+    /**
+     * @param emitIndex true to build an {@link EpisodeIndex} for each finished episode (or chunk
+     *                  when streaming) and send it after the episode in the same message. The
+     *                  header then holds its size as "index-length", and the index positions
+     *                  refer to the flatbuffer before any encoding or compression. Costs a copy
+     *                  of the payload per upload.
+     */
+    public void setEmitIndex(boolean emitIndex){
+        this.emitIndex = emitIndex;
+    }
+
+    public boolean getEmitIndex(){
+        return emitIndex;
+    }
+
+    /**
+     * Indexes a finished Episode flatbuffer from the builder offsets of its timesteps.
+     * @param size builder.offset() once finished, i.e. the size of the flatbuffer
+     * @param ends builder.offset() right after each timestep was written
+     */
+    private ByteBuffer buildIndex(ByteBuffer finished, int size, int[] timeSteps, int[] ends,
+                                  int count, int firstTimeStep){
+        // Offsets count from the end of the builder, positions from the start of the flatbuffer
+        ByteBuffer view = finished.slice().order(ByteOrder.LITTLE_ENDIAN);
+        EpisodeIndex.Writer writer = new EpisodeIndex.Writer(robotID, firstTimeStep, count);
+        TimeStep timeStep = new TimeStep();
+        for (int i = 0; i < count; i++){
+            int table = size - timeSteps[i];
+            int blockLength = ends[i] - (i == 0 ? 0 : ends[i - 1]);
+            writer.add(timeStep.__assign(table, view), table, size - ends[i], blockLength);
+        }
+        return writer.toByteBuffer();
+    }
+
+    private void validateEpisode(ByteBuffer episode){
+        try {
+            EpisodeValidator validator = new EpisodeValidator(EpisodeReader.wrap(episode));
+            if (validator.validate()){
+                Logger.d("flatbuff", validator.toString());
+            } else {
+                Logger.w("flatbuff", validator.toString());
+            }
+        } catch (IOException e) {
+            ErrorHandler.eLog("flatbuff", "Finished episode is not a valid flatbuffer", e, false);
+        }
+    }
+
+    private void logCompressionStats(){
+        if (compression != null){
+            Logger.i("flatbuff", "Compression so far " + compression);
+        }
+    }
+
+    /**
+     * Applies the compact encoding and compression to a finished Episode flatbuffer.
+     * @param index sidecar to send after the episode, or null
+     * @param headerFields header fields of the message, the content-encoding is added to
+     * @return payload to send
+     */
+    private ByteBuffer prepareUpload(ByteBuffer flatbuffer, ByteBuffer index, JSONObject headerFields) throws JSONException {
+        ByteBuffer payload = flatbuffer;
+        String contentEncoding = "flatbuffer";
+        if (compactCodec != null){
+            payload = compactCodec.encode(flatbuffer);
+            contentEncoding = CompactEpisodeCodec.CONTENT_ENCODING;
+            headerFields.put("encoding-version", CompactEpisodeCodec.VERSION);
+            Logger.v("flatbuff", "Compact encoding " + flatbuffer.remaining() + " -> " +
+                    payload.remaining() + " bytes");
+        }
+        if (compression != null){
+            ByteBuffer compressed = compression.compress(payload);
+            if (compressed != null){
+                headerFields.put("uncompressed-length", payload.remaining());
+                contentEncoding += ", " + compression.getCodec().getName();
+                payload = compressed;
+            }
+        }
+        headerFields.put("content-encoding", contentEncoding);
+        if (index != null){
+            ByteBuffer combined = ByteBuffer.allocate(payload.remaining() + index.remaining());
+            combined.put(payload.duplicate()).put(index.duplicate()).flip();
+            headerFields.put("index-length", index.remaining());
+            payload = combined;
+        }
+        return payload;
+    }
+
+    /**
+     * Finishes the timesteps written since the last chunk as an Episode flatbuffer and queues it
+     * for upload. Chunks are uploaded one after the other in the order they were finished.
+     */
+    private void finishChunk(boolean last){
+        int[] timeSteps = chunkTimeStepCount == chunkTimeSteps.length ? chunkTimeSteps :
+                Arrays.copyOf(chunkTimeSteps, chunkTimeStepCount);
+        int ts = Episode.createTimestepsVector(builder, timeSteps);
+        Episode.startEpisode(builder);
+        Episode.addRobotid(builder, robotID);
+        Episode.addTimesteps(builder, ts);
+        builder.finish(Episode.endEpisode(builder));
+        ByteBuffer chunk = builder.dataBuffer();
+        int chunkSize = builder.offset();
+        ByteBuffer chunkSidecar = emitIndex ? buildIndex(chunk, chunkSize, timeSteps,
+                chunkTimeStepEnds, chunkTimeStepCount, chunkFirstTimeStep) : null;
+        EpisodeChunk header = new EpisodeChunk(episodeId, robotID, chunkIndex++,
+                chunkFirstTimeStep, chunkTimeStepCount, last);
+        Logger.v("flatbuff", "Finished " + header + " of " + chunk.remaining() + " bytes");
+        if (validateEpisodes){
+            validateEpisode(chunk);
+        }
+        chunkFirstTimeStep += chunkTimeStepCount;
+        chunkTimeStepCount = 0;
+        // The finished buffer now belongs to the uploader. Size the next one after this one so
+        // that it rarely needs to grow.
+        chunkCapacity = Math.max(chunkCapacity, chunkSize + chunkSize / 4);
+        streamedBytes += chunkSize;
+        // The next chunk, if any, is started by the caller
+        builder = null;
+        if (last){
+            recordEpisode(streamedBytes);
+        }
+
+        lastChunkUpload = executors.getChunkUploader().submit(() -> {
+            if (outbox == null && connection == null && (inetSocketAddress == null || socketListener == null)){
+                bufferFactory.releaseByteBuffer(chunk);
+                return;
+            }
+            try {
+                JSONObject headerFields = header.toJson();
+                ByteBuffer payload = prepareUpload(chunk, chunkSidecar, headerFields);
+                if (outbox != null){
+                    outbox.append(payload, headerFields);
+                } else if (connection != null){
+                    if (!connection.sendAndWait(payload, headerFields)){
+                        Logger.e("flatbuff", "Unable to send " + header);
+                    }
+                } else {
+                    SocketConnectionManager.send(socketListener, inetSocketAddress, payload,
+                            headerFields, 0);
+                }
+            } catch (JSONException e) {
+                ErrorHandler.eLog("flatbuff", "Unable to create header for " + header, e, true);
+            } catch (IOException e) {
+                // e.g. the disk is full, the chunk is lost but recording goes on
+                ErrorHandler.eLog("flatbuff", "Unable to store " + header + " in the outbox", e, false);
+            } finally {
+                bufferFactory.releaseByteBuffer(chunk);
+            }
+        });
+    }
+
+    /**
+     * Serializes a timestep into a finished flatbuffer of its own and appends it to the episode
+     * store. The builder is reused, so after a few timesteps this no longer allocates.
+     */
+    private void spillTimeStep(TimeStepDataBuffer.TimeStepData timeStepData) throws IOException {
+        timeStepBuilder.clear();
+        timeStepBuilder.finish(writeTimeStep(timeStepBuilder, timeStepData));
+        episodeStore.append(timeStepBuilder.dataBuffer());
+    }
+
+    /**
+     * Copies a finished flatbuffer holding a single table into builder as one block and returns
+     * the offset of that table. All references within a flatbuffer are relative, so the block
+     * stays valid wherever it lands as long as its end keeps the same alignment, which is why it
+     * is padded to a multiple of 8 bytes. The block is written as an unreferenced byte vector
+     * whose length prefix is simply left unused.
+     */
+    private static int copyFinishedTable(FlatBufferBuilder builder, ByteBuffer finished){
+        int length = finished.remaining();
+        // Distance of the root table from the end of the finished buffer
+        int rootFromEnd = length - finished.getInt(finished.position());
+        int paddedLength = (length + 7) & -8;
+        ByteBuffer block = builder.createUnintializedVector(1, paddedLength, 8);
+        block.position(paddedLength - length);
+        block.put(finished.duplicate());
+        int blockEnd = builder.offset() - paddedLength;
+        builder.endVector();
+        return blockEnd + rootFromEnd;
+    }
+
+    private int writeTimeStep(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
+        int _wheelData = addWheelData(builder, timeStepData);
+        int _orientationData = addOrientationData(builder, timeStepData);
+        int _chargerData = addChargerData(builder, timeStepData);
+        int _batteryData = addBatteryData(builder, timeStepData);
+        int _soundData = addSoundData(builder, timeStepData);
+        int _imageData = addImageData(builder, timeStepData);
+        int _actionData = addActionData(builder, timeStepData);
+
+        TimeStep.startTimeStep(builder);
+        TimeStep.addWheelData(builder, _wheelData);
+        TimeStep.addOrientationData(builder, _orientationData);
+        TimeStep.addChargerData(builder, _chargerData);
+        TimeStep.addBatteryData(builder, _batteryData);
+        TimeStep.addSoundData(builder, _soundData);
+        TimeStep.addImageData(builder, _imageData);
+        TimeStep.addActions(builder, _actionData);
+        return TimeStep.endTimeStep(builder);
+    }
+
+    /**
+     * Appends a column as a flatbuffer vector with a single bulk copy. Direct columns are already
+     * laid out like the vector payload; heap columns are copied straight from their backing array
+     * without going through an intermediate primitive array.
+     */
+    private int addVector(FlatBufferBuilder builder, PrimitiveColumn column){
+        int elementSize = column.elementSize();
+        ByteBuffer vector = builder.createUnintializedVector(elementSize, column.size(), elementSize);
+        column.writeTo(vector);
+        return builder.endVector();
+    }
+
+    private int addIndividualWheelData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData.WheelData.IndividualWheelData wheelData){
         Logger.v("flatbuff", "STEP wheelCount TimeStamps Length: " +
-                rightData.getTimeStamps().length);
-        int timeStampsRight = IndividualWheelData.createTimestampsVector(builder,
-                rightData.getTimeStamps());
-        int countsRight = IndividualWheelData.createCountsVector(builder,
-                rightData.getCounts());
-        int distancesRight = IndividualWheelData.createDistancesVector(builder,
-                rightData.getDistances());
-        int speedsRightInstant = IndividualWheelData.createSpeedsInstantaneousVector(builder,
-                rightData.getSpeedsInstantaneous());
-        int speedsRightBuffered = IndividualWheelData.createSpeedsBufferedVector(builder,
-                rightData.getSpeedsBuffered());
-        int speedsRightExpAvg = IndividualWheelData.createSpeedsExpavgVector(builder,
-                rightData.getSpeedsExpAvg());
-        int rightOffset = IndividualWheelData.createIndividualWheelData(builder, timeStampsRight,
-                countsRight, distancesRight, speedsRightInstant, speedsRightBuffered, speedsRightExpAvg);
+                wheelData.getTimeStampsColumn().size());
+        int timeStamps = addVector(builder, wheelData.getTimeStampsColumn());
+        int counts = addVector(builder, wheelData.getCountsColumn());
+        int distances = addVector(builder, wheelData.getDistancesColumn());
+        int speedsInstant = addVector(builder, wheelData.getSpeedsInstantaneousColumn());
+        int speedsBuffered = addVector(builder, wheelData.getSpeedsBufferedColumn());
+        int speedsExpAvg = addVector(builder, wheelData.getSpeedsExpAvgColumn());
+        return IndividualWheelData.createIndividualWheelData(builder, timeStamps,
+                counts, distances, speedsInstant, speedsBuffered, speedsExpAvg);
+    }
 
+    private int addWheelData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
+        int leftOffset = addIndividualWheelData(builder, timeStepData.getWheelData().getLeft());
+        int rightOffset = addIndividualWheelData(builder, timeStepData.getWheelData().getRight());
         return WheelData.createWheelData(builder, leftOffset, rightOffset);
     }
 
-    private int addOrientationData(TimeStepDataBuffer.TimeStepData timeStepData){
+    private int addOrientationData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
+        TimeStepDataBuffer.TimeStepData.OrientationData orientationData = timeStepData.getOrientationData();
         Logger.v("flatbuff", "STEP orientationData TimeStamps Length: " +
-                timeStepData.getOrientationData().getTimeStamps().length);
-        int ts = OrientationData.createTimestampsVector(builder,
-                timeStepData.getOrientationData().getTimeStamps());
-        int tiltAngles = OrientationData.createTiltangleVector(builder,
-                timeStepData.getOrientationData().getTiltAngle());
-        int tiltVelocityAngles = OrientationData.createTiltvelocityVector(builder,
-                timeStepData.getOrientationData().getAngularVelocity());
+                orientationData.getTimeStampsColumn().size());
+        int ts = addVector(builder, orientationData.getTimeStampsColumn());
+        int tiltAngles = addVector(builder, orientationData.getTiltAngleColumn());
+        int tiltVelocityAngles = addVector(builder, orientationData.getAngularVelocityColumn());
         return OrientationData.createOrientationData(builder, ts, tiltAngles, tiltVelocityAngles);
     }
 
-    private int addChargerData(TimeStepDataBuffer.TimeStepData timeStepData){
+    private int addChargerData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
+        TimeStepDataBuffer.TimeStepData.ChargerData chargerData = timeStepData.getChargerData();
         Logger.v("flatbuff", "STEP chargerData TimeStamps Length: " +
-                timeStepData.getChargerData().getTimeStamps().length);
-        int ts = ChargerData.createTimestampsVector(builder,
-                timeStepData.getChargerData().getTimeStamps());
-        int voltage = ChargerData.createVoltageVector(builder,
-                timeStepData.getChargerData().getChargerVoltage());
+                chargerData.getTimeStampsColumn().size());
+        int ts = addVector(builder, chargerData.getTimeStampsColumn());
+        int voltage = addVector(builder, chargerData.getChargerVoltageColumn());
         return ChargerData.createChargerData(builder, ts, voltage);
     }
 
-    private int addBatteryData(TimeStepDataBuffer.TimeStepData timeStepData){
+    private int addBatteryData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
+        TimeStepDataBuffer.TimeStepData.BatteryData batteryData = timeStepData.getBatteryData();
         Logger.v("flatbuff", "STEP batteryData TimeStamps Length: " +
-                timeStepData.getBatteryData().getTimeStamps().length);
-        int ts = BatteryData.createTimestampsVector(builder,
-                timeStepData.getBatteryData().getTimeStamps());
-        int voltage = BatteryData.createVoltageVector(builder,
-                timeStepData.getBatteryData().getVoltage());
-        return ChargerData.createChargerData(builder, ts, voltage);
+                batteryData.getTimeStampsColumn().size());
+        int ts = addVector(builder, batteryData.getTimeStampsColumn());
+        int voltage = addVector(builder, batteryData.getVoltageColumn());
+        // Built with ChargerData.createChargerData() before. Both tables have the same two fields
+        // in the same slots, so the bytes sent are identical and readers need no change.
+        return BatteryData.createBatteryData(builder, ts, voltage);
     }
 
-    private int addSoundData(TimeStepDataBuffer.TimeStepData timeStepData){
+    private int addSoundData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
 
         TimeStepDataBuffer.TimeStepData.SoundData soundData = timeStepData.getSoundData();
 
@@ -197,8 +756,7 @@ public class FlatbufferAssembler {
         int _endTime = AudioTimestamp.createAudioTimestamp(builder,
                 soundData.getStartTime().framePosition,
                 soundData.getStartTime().nanoTime);
-        int _levels = SoundData.createLevelsVector(builder,
-                timeStepData.getSoundData().getLevels());
+        int _levels = addVector(builder, soundData.getLevelsColumn());
 
         SoundData.startSoundData(builder);
         SoundData.addStartTime(builder, _startTime);
@@ -211,36 +769,40 @@ public class FlatbufferAssembler {
         return SoundData.endSoundData(builder);
     }
 
-    private int addImageData(TimeStepDataBuffer.TimeStepData timeStepData){
+    private int addImageData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
         TimeStepDataBuffer.TimeStepData.ImageData imageData = timeStepData.getImageData();
 
         // Offset for all image data to be returned from this method
         int _imageData = 0;
 
-        int numOfImages = imageData.getImages().size();
+        List<TimeStepDataBuffer.TimeStepData.ImageData.SingleImage> images = imageData.getImages();
+        int numOfImages = images.size();
 
         Logger.v("flatbuff", numOfImages + " images gathered");
         Logger.v("flatbuff", "Step:" + myTrial.getTimeStep());
 
         int[] _images = new int[numOfImages];
+        int written = 0;
 
         for (int i = 0; i < numOfImages ; i++){
-            TimeStepDataBuffer.TimeStepData.ImageData.SingleImage image = imageData.getImages().get(i);
-
-            try{
-                int _webpImage = jp.oist.abcvlib.core.learning.fbclasses.Image.createWebpImageVector(builder, image.getWebpImage());
-                jp.oist.abcvlib.core.learning.fbclasses.Image.startImage(builder);
-                jp.oist.abcvlib.core.learning.fbclasses.Image.addWebpImage(builder, _webpImage);
-                jp.oist.abcvlib.core.learning.fbclasses.Image.addTimestamp(builder, image.getTimestamp());
-                jp.oist.abcvlib.core.learning.fbclasses.Image.addHeight(builder, image.getHeight());
-                jp.oist.abcvlib.core.learning.fbclasses.Image.addWidth(builder, image.getWidth());
-                int _image = jp.oist.abcvlib.core.learning.fbclasses.Image.endImage(builder);
-
-                _images[i] = _image;
-            }catch (NullPointerException e){
-                Logger.i("FlatbufferImages", "No images recorded");
-                e.printStackTrace();
+            TimeStepDataBuffer.TimeStepData.ImageData.SingleImage image = images.get(i);
+            byte[] webpImage = image.getWebpImage();
+            if (webpImage == null){
+                // Compression failed or the slot was recycled, an empty image would only confuse readers
+                Logger.i("FlatbufferImages", "Skipping image " + image.getTimestamp() + " without compressed data");
+                continue;
             }
+
+            int _webpImage = jp.oist.abcvlib.core.learning.fbclasses.Image.createWebpImageVector(builder, webpImage);
+            jp.oist.abcvlib.core.learning.fbclasses.Image.startImage(builder);
+            jp.oist.abcvlib.core.learning.fbclasses.Image.addWebpImage(builder, _webpImage);
+            jp.oist.abcvlib.core.learning.fbclasses.Image.addTimestamp(builder, image.getTimestamp());
+            jp.oist.abcvlib.core.learning.fbclasses.Image.addHeight(builder, image.getHeight());
+            jp.oist.abcvlib.core.learning.fbclasses.Image.addWidth(builder, image.getWidth());
+            _images[written++] = jp.oist.abcvlib.core.learning.fbclasses.Image.endImage(builder);
+        }
+        if (written < numOfImages){
+            _images = Arrays.copyOf(_images, written);
         }
 
         int _images_offset = jp.oist.abcvlib.core.learning.fbclasses.ImageData.createImagesVector(builder, _images);
@@ -251,7 +813,7 @@ public class FlatbufferAssembler {
         return _imageData;
     }
 
-    private int addActionData(TimeStepDataBuffer.TimeStepData timeStepData){
+    private int addActionData(FlatBufferBuilder builder, TimeStepDataBuffer.TimeStepData timeStepData){
         CommAction ca = timeStepData.getActions().getCommAction();
         MotionAction ma = timeStepData.getActions().getMotionAction();
         Logger.v("flatbuff", "CommAction : " + ca.getActionByte());
@@ -265,10 +827,32 @@ public class FlatbufferAssembler {
         return RobotAction.createRobotAction(builder, ma_offset, ca_offset);
     }
 
-    // End episode after some reward has been acheived or maxtimesteps has been reached
-    public void endEpisode() {
+    /**
+     * End episode after some reward has been acheived or maxtimesteps has been reached
+     * @throws ExecutionException if a timestep written on one of several writer threads failed,
+     * leaving the episode incomplete. See {@link #discardEpisode()}.
+     */
+    public void endEpisode() throws ExecutionException {
+        synchronized (mergeLock){
+            if (mergeFailure != null){
+                throw new ExecutionException(mergeFailure);
+            }
+        }
 
-        int ts = Episode.createTimestepsVector(builder, timeStepVector); //todo I think I need to add each timestep when it is generated rather than all at once? Is this the leak?
+        if (timeStepsPerChunk > 0){
+            // Flush the remaining timesteps, marking the end of the episode for the server
+            finishChunk(true);
+            return;
+        }
+
+        if (episodeStore != null){
+            // The spilled timesteps stay in the store until sendToServer() sends them
+            return;
+        }
+
+        int[] timeSteps = Arrays.copyOf(timeStepVector, timeStepCount);
+        int count = timeSteps.length;
+        int ts = Episode.createTimestepsVector(builder, timeSteps); //todo I think I need to add each timestep when it is generated rather than all at once? Is this the leak?
         Episode.startEpisode(builder);
         Episode.addRobotid(builder, robotID);
         Episode.addTimesteps(builder, ts);
@@ -276,28 +860,66 @@ public class FlatbufferAssembler {
         builder.finish(ep);
 
         episode = builder.dataBuffer();
+        recordEpisode(builder.offset());
+        episodeIndex = emitIndex ? buildIndex(episode, builder.offset(), timeSteps, timeStepEnds,
+                count, 0) : null;
 
-//             The following is just to check the contents of the flatbuffer prior to sending to the server.
-//             You should comment this out if not using it as it doubles the required memory.
-//            Also it seems the getRootAsEpisode modifes the episode buffer itself, thus messing up later processing.
-//            Therefore I propose only using this as an inline debugging step or if you don't want
-//            To evaluate anything past this point for a given run.
-
-//            Episode episodeTest = Episode.getRootAsEpisode(episode);
-//            Logger.d("flatbuff", "TimeSteps Length: "  + String.valueOf(episodeTest.timestepsLength()));
-//            Logger.d("flatbuff", "WheelCounts TimeStep 0 Length: "  + String.valueOf(episodeTest.timesteps(0).wheelCounts().timestampsLength()));
-//            Logger.d("flatbuff", "WheelCounts TimeStep 1 Length: "  + String.valueOf(episodeTest.timesteps(1).wheelCounts().timestampsLength()));
-//            Logger.d("flatbuff", "WheelCounts TimeStep 2 Length: "  + String.valueOf(episodeTest.timesteps(2).wheelCounts().timestampsLength()));
-//            Logger.d("flatbuff", "WheelCounts TimeStep 3 Length: "  + String.valueOf(episodeTest.timesteps(3).wheelCounts().timestampsLength()));
-//            Logger.d("flatbuff", "WheelCounts TimeStep 3 idx 0: "  + String.valueOf(episodeTest.timesteps(3).wheelCounts().timestamps(0)));
-//            Logger.d("flatbuff", "Levels Length TimeStep 100: "  + String.valueOf(episodeTest.timesteps(100).soundData().levelsLength()));
-//            Logger.d("flatbuff", "SoundData ByteBuffer Length TimeStep 100: "  + String.valueOf(episodeTest.timesteps(100).soundData().getByteBuffer().capacity()));
-//            Logger.d("flatbuff", "ImageData ByteBuffer Length TimeStep 100: "  + String.valueOf(episodeTest.timesteps(100).imageData().getByteBuffer().capacity()));
+        if (validateEpisodes){
+            validateEpisode(episode);
+        }
+    }
 
+    /**
+     * Sends the spilled timesteps as chunks, one per mapped segment of the episode store. Each
+     * chunk is copied into a builder sized to hold exactly its timesteps, and only once the
+     * previous chunk has been uploaded, so the heap never holds more than one chunk however
+     * long the episode is.
+     */
+    private void sendSpilledTimeSteps() throws InterruptedException {
+        int count = episodeStore.size();
+        // The builder created in startEpisode() was not used, hand its buffer back first
+        releaseUnusedBuilder(builder);
+        builder = null;
+        int first = 0;
+        do {
+            int segment = count > 0 ? episodeStore.getSegment(first) : 0;
+            int end = first;
+            // Spilled bytes plus per timestep padding and length prefix plus the episode table
+            long capacity = 1024;
+            while (end < count && episodeStore.getSegment(end) == segment){
+                capacity += episodeStore.getLength(end++) + 16;
+            }
+            if (capacity > Integer.MAX_VALUE - 8){
+                throw new IllegalStateException("Chunk of " + capacity + " bytes exceeds the maximum flatbuffer size");
+            }
+            if (chunkTimeSteps == null || chunkTimeSteps.length < end - first){
+                chunkTimeSteps = new int[Math.max(1, end - first)];
+                chunkTimeStepEnds = new int[chunkTimeSteps.length];
+            }
+            if (lastChunkUpload != null){
+                awaitChunkUpload();
+            }
+            builder = newEpisodeBuilder((int) capacity);
+            for (int i = first; i < end; i++){
+                int timeStepOffset = copyFinishedTable(builder, episodeStore.get(i));
+                chunkTimeStepEnds[chunkTimeStepCount] = builder.offset();
+                chunkTimeSteps[chunkTimeStepCount++] = timeStepOffset;
+            }
+            first = end;
+            finishChunk(first == count);
+        } while (first < count);
+        awaitChunkUpload();
+        Logger.v("flatbuff", "Sent " + count + " spilled timesteps in " + chunkIndex +
+                " chunks, " + episodeStore.getBytesStored() + " bytes");
+        episodeStore.clear();
+    }
 
-//            float[] soundFloats = new float[10];
-//            episodeTest.timesteps(1).soundData().levelsAsByteBuffer().asFloatBuffer().get(soundFloats);
-//            Logger.d("flatbuff", "Sound TimeStep 1 as numpy: "  + Arrays.toString(soundFloats));
+    private void awaitChunkUpload() throws InterruptedException {
+        try {
+            lastChunkUpload.get();
+        } catch (ExecutionException e) {
+            ErrorHandler.eLog("flatbuff", "Error uploading episode chunks", e, true);
+        }
     }
 
     private class CyclicBarrierHandler implements Runnable {
@@ -307,27 +929,167 @@ public class FlatbufferAssembler {
 
         @Override
         public void run() {
-            builder.clear();
+            recycleEpisode();
+        }
+    }
+
+    /**
+     * Drops whatever was recorded of the current episode and starts a new one, e.g. after
+     * endEpisode() or sendToServer() failed, so the next episode is not recorded into a builder
+     * left half finished. Waits for the timestep writes still running first.
+     */
+    public void discardEpisode() throws InterruptedException {
+        synchronized (flatbufferWriteFutures){
+            for (Future<?> future : flatbufferWriteFutures){
+                try {
+                    future.get();
+                } catch (ExecutionException | CancellationException e) {
+                    // The episode is dropped anyway
+                }
+            }
+        }
+        if (episode != null){
+            // Finished by endEpisode(), builder holds the same buffer
+            bufferFactory.releaseByteBuffer(episode);
+            episode = null;
             builder = null;
-            startEpisode();
         }
+        episodeIndex = null;
+        if (episodeStore != null){
+            episodeStore.clear();
+        }
+        Logger.w("flatbuff", "Discarded episode");
+        startEpisode();
+    }
+
+    /**
+     * Called once the episode has been sent (or stored), so its buffer can be reused for the next one.
+     */
+    private void recycleEpisode(){
+        bufferFactory.releaseByteBuffer(episode);
+        episode = null;
+        episodeIndex = null;
+        builder = null;
+        startEpisode();
+    }
+
+    private FlatBufferBuilder newEpisodeBuilder(int capacity){
+        buildersThisEpisode++;
+        return new FlatBufferBuilder(capacity, bufferFactory);
+    }
+
+    /**
+     * Returns the buffer of a builder that was never finished to the pool.
+     */
+    private void releaseUnusedBuilder(FlatBufferBuilder unused){
+        // dataBuffer() is only accessible once finished, so finish with an empty root
+        unused.finish(0);
+        bufferFactory.releaseByteBuffer(unused.dataBuffer());
+    }
+
+    /**
+     * Records the size of a finished episode to presize later ones and logs how often its
+     * builders had to grow, each time copying everything written so far.
+     */
+    private void recordEpisode(int size){
+        recentEpisodeSizes[recordedEpisodes % recentEpisodeSizes.length] = size;
+        recordedEpisodes++;
+        lastGrowCopies = (int) (bufferFactory.getRequestCount() - bufferRequestsAtEpisodeStart
+                - buildersThisEpisode);
+        Logger.i("flatbuff", "Episode of " + size + " bytes needed " + lastGrowCopies +
+                " grow copies. Presizing next episode to " + getEstimatedEpisodeSize() + " bytes");
+    }
+
+    /**
+     * @return initial capacity for the next episode builder: the largest of the recent episodes
+     * plus 1/8 headroom, so episodes of a similar size never grow
+     */
+    public int getEstimatedEpisodeSize(){
+        int count = Math.min(recordedEpisodes, recentEpisodeSizes.length);
+        long largest = 1024;
+        for (int i = 0; i < count; i++){
+            largest = Math.max(largest, recentEpisodeSizes[i]);
+        }
+        return (int) Math.min(largest + largest / 8, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @return number of times the builders of the most recent episode grew, each growth copying
+     * the whole buffer
+     */
+    public int getLastGrowCopies(){
+        return lastGrowCopies;
+    }
+
+    public PooledByteBufferFactory getBufferFactory(){
+        return bufferFactory;
     }
 
     protected void sendToServer() throws BrokenBarrierException, InterruptedException {
+        if (timeStepsPerChunk > 0){
+            // All chunks have been queued by endEpisode(), wait for them to be sent.
+            awaitChunkUpload();
+            logCompressionStats();
+            startEpisode();
+            return;
+        }
+        if (episodeStore != null){
+            sendSpilledTimeSteps();
+            logCompressionStats();
+            startEpisode();
+            return;
+        }
+        if (outbox != null){
+            try {
+                JSONObject headerFields = new JSONObject();
+                outbox.append(prepareUpload(episode, episodeIndex, headerFields), headerFields);
+            } catch (JSONException e) {
+                ErrorHandler.eLog("flatbuff", "Unable to create header for episode", e, true);
+            } catch (IOException e) {
+                // e.g. the disk is full, the episode is lost but recording goes on
+                ErrorHandler.eLog("flatbuff", "Unable to store episode in the outbox", e, false);
+            }
+            logCompressionStats();
+            recycleEpisode();
+            return;
+        }
+        if (connection != null){
+            try {
+                JSONObject headerFields = new JSONObject();
+                if (!connection.sendAndWait(prepareUpload(episode, episodeIndex, headerFields), headerFields)){
+                    Logger.e("flatbuff", "Unable to send episode, it is lost");
+                }
+            } catch (JSONException e) {
+                ErrorHandler.eLog("flatbuff", "Unable to create header for episode", e, true);
+            }
+            logCompressionStats();
+            recycleEpisode();
+            return;
+        }
         CyclicBarrier doneSignal = new CyclicBarrier(2,
                 new CyclicBarrierHandler());
         Logger.d("SocketConnection", "New executor deployed creating new SocketConnectionManager");
         if (inetSocketAddress != null && socketListener != null){
-            executor.execute(new SocketConnectionManager(socketListener, inetSocketAddress, episode, doneSignal));
+            try {
+                JSONObject headerFields = new JSONObject();
+                ByteBuffer payload = prepareUpload(episode, episodeIndex, headerFields);
+                executors.getSender().execute(new SocketConnectionManager(socketListener, inetSocketAddress,
+                        payload, doneSignal, headerFields));
+            } catch (JSONException e) {
+                ErrorHandler.eLog("flatbuff", "Unable to create header for episode", e, true);
+            }
+            logCompressionStats();
             doneSignal.await();
         }else {
-            executor.execute(() -> {
+            executors.getSender().execute(() -> {
                 try {
                     doneSignal.await();
                 } catch (BrokenBarrierException | InterruptedException e) {
                     e.printStackTrace();
                 }
             });
+            // The barrier has two parties, without this it never trips and the builder is never recycled
+            doneSignal.await();
         }
     }
 }
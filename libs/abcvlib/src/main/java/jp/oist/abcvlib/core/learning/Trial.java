@@ -3,30 +3,43 @@ package jp.oist.abcvlib.core.learning;
 import android.content.Context;
 import jp.oist.abcvlib.util.Logger;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import jp.oist.abcvlib.core.inputs.PublisherManager;
 import jp.oist.abcvlib.core.inputs.TimeStepDataBuffer;
 import jp.oist.abcvlib.core.outputs.ActionSelector;
 import jp.oist.abcvlib.core.outputs.Outputs;
+import jp.oist.abcvlib.util.ColumnCodec;
+import jp.oist.abcvlib.util.CompressionCodec;
+import jp.oist.abcvlib.util.CompressionStage;
+import jp.oist.abcvlib.util.EpisodeOutbox;
 import jp.oist.abcvlib.util.ErrorHandler;
-import jp.oist.abcvlib.util.FileOps;
+import jp.oist.abcvlib.util.MappedSegmentStore;
 import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
 import jp.oist.abcvlib.util.RecordingWithoutTimeStepBufferException;
 import jp.oist.abcvlib.util.ScheduledExecutorServiceWithException;
 import jp.oist.abcvlib.util.SerialCommManager;
+import jp.oist.abcvlib.util.SocketConnectionManager;
+import jp.oist.abcvlib.util.ServerConnection;
 import jp.oist.abcvlib.util.SocketListener;
 
 public class Trial implements Runnable, ActionSelector, SocketListener {
@@ -48,6 +61,20 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
     private final ScheduledExecutorServiceWithException executor;
     private final PublisherManager publisherManager;
     private FlatbufferAssembler flatbufferAssembler;
+    // All assemblers, the one recording and those finalizing or uploading earlier episodes
+    private final ArrayList<FlatbufferAssembler> assemblers = new ArrayList<>();
+    // Threads shared by all assemblers, however many episode buffers there are
+    private final AssemblerExecutors assemblerExecutors = new AssemblerExecutors();
+    private final LinkedBlockingQueue<FlatbufferAssembler> idleAssemblers = new LinkedBlockingQueue<>();
+    private final ArrayList<Future<?>> episodesInFlight = new ArrayList<>();
+    private ThreadPoolExecutor episodeFinalizer;
+    private boolean publishersPaused = false;
+    private Supplier<CompressionCodec> compressionCodecs;
+    private EpisodeOutbox outbox;
+    private volatile ServerConnection connection;
+    // Time without progress after which the outbox gives up an upload and retries later
+    private long uploadTimeoutMillis = 30000;
+    private final InetSocketAddress inetSocketAddress;
     protected final Outputs outputs;
     protected final int robotID;
 
@@ -58,11 +85,14 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
         this.robotID = metaParameters.robotID;
         this.timeStepDataBuffer = metaParameters.timeStepDataBuffer;
         this.timeStepLength = metaParameters.timeStepLength;
+        this.timeStepDataBuffer.setTimeStepLength(timeStepLength);
         this.maxTimeStepCount = metaParameters.maxTimeStepCount;
         this.maxReward = metaParameters.maxReward;
         this.maxEpisodeCount = metaParameters.maxEpisodeCount;
+        this.inetSocketAddress = metaParameters.inetSocketAddress;
         this.flatbufferAssembler = new FlatbufferAssembler(this,
-                metaParameters.inetSocketAddress, this, timeStepDataBuffer, robotID);
+                inetSocketAddress, this, timeStepDataBuffer, robotID, assemblerExecutors);
+        assemblers.add(flatbufferAssembler);
         this.motionActionSpace = actionSpace.motionActionSpace;
         this.commActionSpace = actionSpace.commActionSpace;
         this.publisherManager = stateSpace.publisherManager;
@@ -72,8 +102,216 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
     }
 
     public void setFlatbufferAssembler(FlatbufferAssembler flatbufferAssembler){
+        assemblers.set(assemblers.indexOf(this.flatbufferAssembler), flatbufferAssembler);
         this.flatbufferAssembler = flatbufferAssembler;
     }
+
+    /**
+     * Records each episode into one of episodeBuffers assemblers in turn. With more than one,
+     * the next episode starts recording as soon as the current one ends while the finished one
+     * waits for its remaining timestep writes, is finalized and uploaded in the background. The
+     * Trial only blocks at the end of an episode when all other assemblers are still busy, so
+     * the robot keeps running between episodes instead of pausing for the upload.
+     * @param episodeBuffers number of episodes that can be recorded or in flight at once, 1
+     *                       (default) to pause the publishers until each episode has been sent.
+     *                       Call before startTrail().
+     */
+    public void setEpisodeBuffers(int episodeBuffers){
+        if (episodeBuffers < 1){
+            throw new IllegalArgumentException("episodeBuffers must be at least 1. " +
+                    episodeBuffers + " provided.");
+        }
+        if (episodeBuffers < assemblers.size()){
+            throw new IllegalStateException("Cannot reduce episodeBuffers from " +
+                    assemblers.size() + " to " + episodeBuffers);
+        }
+        while (assemblers.size() < episodeBuffers){
+            FlatbufferAssembler assembler = new FlatbufferAssembler(this,
+                    inetSocketAddress, this, timeStepDataBuffer, robotID, assemblerExecutors);
+            assembler.setStreaming(flatbufferAssembler.getTimeStepsPerChunk());
+            assembler.setWriterThreads(flatbufferAssembler.getWriterThreads());
+            if (flatbufferAssembler.getEpisodeStore() != null){
+                assembler.setEpisodeStore(newEpisodeStore(assemblers.size()));
+            }
+            CompactEpisodeCodec codec = flatbufferAssembler.getCompactEncoding();
+            if (codec != null){
+                assembler.setCompactEncoding(new CompactEpisodeCodec(codec.getPrecision(), codec.getQuantum()));
+            }
+            if (compressionCodecs != null){
+                assembler.setCompression(new CompressionStage(compressionCodecs.get()));
+            }
+            assembler.setOutbox(outbox);
+            assembler.setConnection(connection);
+            assembler.setValidateEpisodes(flatbufferAssembler.getValidateEpisodes());
+            assembler.setEmitIndex(flatbufferAssembler.getEmitIndex());
+            assemblers.add(assembler);
+            idleAssemblers.add(assembler);
+        }
+        if (episodeBuffers > 1 && episodeFinalizer == null){
+            // Each episode in flight holds one thread while it waits for its upload, and there
+            // are never more episodes in flight than assemblers
+            episodeFinalizer = new ThreadPoolExecutor(episodeBuffers, episodeBuffers, 0,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, "episodeFinalizer"));
+        } else if (episodeFinalizer != null && episodeBuffers > episodeFinalizer.getMaximumPoolSize()){
+            episodeFinalizer.setMaximumPoolSize(episodeBuffers);
+            episodeFinalizer.setCorePoolSize(episodeBuffers);
+        }
+    }
+
+    public int getEpisodeBuffers(){
+        return assemblers.size();
+    }
+
+    /**
+     * @param timeStepsPerChunk number of timesteps per chunk to stream episodes to the server
+     *                          while recording, or 0 to send each episode once it ends. See
+     *                          {@link FlatbufferAssembler#setStreaming(int)}. Call before startTrail().
+     */
+    public void setStreaming(int timeStepsPerChunk){
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setStreaming(timeStepsPerChunk);
+        }
+    }
+
+    /**
+     * Sends episodes in the compact form of {@link CompactEpisodeCodec}, which is considerably
+     * smaller than the plain flatbuffer. Call before startTrail().
+     * @param precision how sensor doubles are stored, {@link ColumnCodec.Precision#FLOAT64} is lossless
+     * @param quantum rounding step for {@link ColumnCodec.Precision#QUANTIZED}, ignored otherwise
+     */
+    public void setCompactEncoding(ColumnCodec.Precision precision, double quantum){
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setCompactEncoding(new CompactEpisodeCodec(precision, quantum));
+        }
+    }
+
+    /**
+     * @param compact true to send episodes losslessly in compact form, false to send plain
+     *                flatbuffers (default). Call before startTrail().
+     */
+    public void setCompactEncoding(boolean compact){
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setCompactEncoding(compact ? new CompactEpisodeCodec() : null);
+        }
+    }
+
+    /**
+     * Compresses episodes before upload, see {@link FlatbufferAssembler#setCompression(CompressionStage)}.
+     * Call before startTrail().
+     * @param codecs creates a codec per episode buffer, e.g. () -> new DeflateCodec(1) or
+     *               Lz4BlockCodec::new, or null to send uncompressed (default)
+     */
+    public void setCompression(Supplier<CompressionCodec> codecs){
+        compressionCodecs = codecs;
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setCompression(codecs != null ? new CompressionStage(codecs.get()) : null);
+        }
+    }
+
+    /**
+     * Stores episodes in outbox before they are uploaded, so episodes recorded while the server
+     * is unreachable are sent once it is back, possibly after a restart of the app. Starts the
+     * outbox draining to the server of the MetaParameters unless it already is. The outbox is
+     * kept open at the end of the trial so it can keep draining; close it when the app exits.
+     * Call before startTrail().
+     * @param outbox e.g. new EpisodeOutbox(new File(context.getFilesDir(), "outbox"), maxBytes),
+     *               or null to send episodes directly (default)
+     */
+    public void setOutbox(EpisodeOutbox outbox){
+        this.outbox = outbox;
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setOutbox(outbox);
+        }
+        if (outbox != null && inetSocketAddress != null && !outbox.isDraining()){
+            outbox.startDraining((payload, headerFields) -> {
+                ServerConnection connection = this.connection;
+                if (connection != null){
+                    return connection.sendAndWait(payload, headerFields);
+                }
+                return SocketConnectionManager.send(this, inetSocketAddress, payload,
+                        headerFields, uploadTimeoutMillis);
+            });
+        }
+    }
+
+    /**
+     * Sends all episodes (and the outbox's uploads) over one connection kept open across
+     * episodes rather than connecting once per episode, which matters with short episodes.
+     * Call before startTrail(). The connection is not closed at the end of the trial.
+     * @param connection e.g. new PersistentConnectionManager(trial, inetSocketAddress) with
+     *                   setTimeout(), a MultiplexedConnection to also receive models while
+     *                   uploading, or null to connect per episode (default)
+     */
+    public void setConnection(ServerConnection connection){
+        this.connection = connection;
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setConnection(connection);
+        }
+    }
+
+    /**
+     * @param uploadTimeoutMillis time without progress after which an upload from the outbox is
+     *                            given up and retried later. 30 s by default. Call before setOutbox().
+     */
+    public void setUploadTimeout(long uploadTimeoutMillis){
+        this.uploadTimeoutMillis = uploadTimeoutMillis;
+    }
+
+    /**
+     * @param validateEpisodes true to check every finished episode, see
+     *                         {@link FlatbufferAssembler#setValidateEpisodes(boolean)}
+     */
+    public void setValidateEpisodes(boolean validateEpisodes){
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setValidateEpisodes(validateEpisodes);
+        }
+    }
+
+    /**
+     * @param emitIndex true to send an index after every episode, see
+     *                  {@link FlatbufferAssembler#setEmitIndex(boolean)}
+     */
+    public void setEmitIndex(boolean emitIndex){
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setEmitIndex(emitIndex);
+        }
+    }
+
+    /**
+     * @param writerThreads number of threads serializing timesteps. See
+     *                      {@link FlatbufferAssembler#setWriterThreads(int)}. Call before startTrail().
+     */
+    public void setWriterThreads(int writerThreads){
+        for (FlatbufferAssembler assembler : assemblers){
+            assembler.setWriterThreads(writerThreads);
+        }
+    }
+
+    /**
+     * @param spillToDisk true to keep completed timesteps in memory-mapped segment files under
+     *                    the app's files dir instead of on the heap until the episode ends, and
+     *                    send them in chunks of one segment each, so maxTimeStepCount is no
+     *                    longer bounded by the heap. Call before startTrail().
+     */
+    public void setSpillToDisk(boolean spillToDisk){
+        for (int i = 0; i < assemblers.size(); i++){
+            FlatbufferAssembler assembler = assemblers.get(i);
+            MappedSegmentStore current = assembler.getEpisodeStore();
+            if (spillToDisk && current == null){
+                assembler.setEpisodeStore(newEpisodeStore(i));
+            } else if (!spillToDisk && current != null){
+                assembler.setEpisodeStore(null);
+                current.close();
+            }
+        }
+    }
+
+    private MappedSegmentStore newEpisodeStore(int assemblerIndex){
+        // Each assembler needs segment files of its own
+        String prefix = assemblerIndex == 0 ? "timesteps" : "timesteps" + assemblerIndex;
+        return new MappedSegmentStore(new File(context.getFilesDir(), "episodes"), prefix);
+    }
     
     protected void startTrail(){
         publisherManager.initializePublishers();
@@ -90,6 +328,8 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
         if (flatbufferAssembler != null){
             flatbufferAssembler.startEpisode();
         }
+        // The first timestep must not reach back into the previous episode
+        timeStepDataBuffer.restartResampling();
     }
 
     @Override
@@ -103,7 +343,8 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
 
         // Add timestep and return int representing offset in flatbuffer
         try {
-            flatbufferAssembler.addTimeStep(timeStepDataBuffer.getReadIndex());
+            flatbufferAssembler.addTimeStep(timeStepDataBuffer.getReadIndex(),
+                    timeStepDataBuffer.getReadSequence());
         } catch (ExecutionException | InterruptedException e) {
             e.printStackTrace();
         }
@@ -116,7 +357,10 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
                     endTrial();
                 }else {
                     startEpisode();
-                    resumePublishers();
+                    // Not paused when the finished episode is being sent in the background
+                    if (publishersPaused){
+                        resumePublishers();
+                    }
                 }
             } catch (BrokenBarrierException | InterruptedException | IOException | RecordingWithoutTimeStepBufferException | ExecutionException e) {
                 ErrorHandler.eLog(TAG, "Error when trying to end episode or trail", e, true);
@@ -127,9 +371,13 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
     protected void pausePublishers() throws RecordingWithoutTimeStepBufferException, InterruptedException {
         publisherManager.pausePublishers();
         timeStepDataAssemblerFuture.cancel(false);
+        publishersPaused = true;
     }
 
     protected void resumePublishers(){
+        publishersPaused = false;
+        // Nor may the first timestep after a pause span it
+        timeStepDataBuffer.restartResampling();
         publisherManager.resumePublishers();
         timeStepDataAssemblerFuture = executor.scheduleAtFixedRate(this, getTimeStepLength(), getTimeStepLength(), TimeUnit.MILLISECONDS);
     }
@@ -143,10 +391,19 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
             for (Collection<Future<?>> timestepFutures: timeStepDataBuffer.imgCompFuturesEpisode){
                 synchronized (timestepFutures){
                     for (Future<?> future:timestepFutures){
-                        future.get();
+                        try {
+                            future.get();
+                        } catch (CancellationException e) {
+                            // Frame dropped by the image compression pool
+                        }
                     }
                 }
             }
+            timeStepDataBuffer.imgCompFuturesEpisode.clear();
+        }
+        if (episodeFinalizer != null){
+            endEpisodeInBackground();
+            return;
         }
         synchronized (flatbufferAssembler.flatbufferWriteFutures){
             // Waits for all timestep flatbuffer writes to finish prior to finishing flatbuffer
@@ -166,11 +423,86 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
         flatbufferAssembler.sendToServer();
     }
 
+    /**
+     * Hands the finished episode to the episodeFinalizer and switches to an idle assembler,
+     * waiting for one only if all of them are still busy with earlier episodes.
+     */
+    private void endEpisodeInBackground() throws InterruptedException {
+        FlatbufferAssembler finished = flatbufferAssembler;
+        setTimeStep(0);
+        setLastTimestep(false);
+        incrementEpisodeCount();
+        // Keeps data arriving from now on out of the last timestep of the finished episode
+        timeStepDataBuffer.nextTimeStep();
+
+        episodesInFlight.removeIf(Future::isDone);
+        episodesInFlight.add(episodeFinalizer.submit(() -> {
+            finalizeEpisode(finished);
+            return null;
+        }));
+        long start = System.nanoTime();
+        flatbufferAssembler = idleAssemblers.take();
+        long waited = System.nanoTime() - start;
+        if (waited > TimeUnit.MILLISECONDS.toNanos(getTimeStepLength())){
+            Logger.w(TAG, "All " + assemblers.size() + " episode buffers in flight. Waited " +
+                    TimeUnit.NANOSECONDS.toMillis(waited) + " ms for one to be sent");
+        }
+    }
+
+    private void finalizeEpisode(FlatbufferAssembler assembler) throws ExecutionException,
+            InterruptedException, BrokenBarrierException {
+        boolean finalized = false;
+        try {
+            synchronized (assembler.flatbufferWriteFutures){
+                for (Future<?> future:assembler.flatbufferWriteFutures){
+                    future.get();
+                }
+            }
+            assembler.endEpisode();
+            assembler.sendToServer();
+            finalized = true;
+        } catch (ExecutionException | BrokenBarrierException e) {
+            ErrorHandler.eLog(TAG, "Error when trying to finalize episode in background", e, true);
+            throw e;
+        } finally {
+            if (!finalized){
+                assembler.discardEpisode();
+            }
+            idleAssemblers.put(assembler);
+        }
+    }
+
     protected void endTrial() throws RecordingWithoutTimeStepBufferException, InterruptedException {
         Logger.i(TAG, "Need to handle end of trail here");
         pausePublishers();
         publisherManager.stopPublishers();
         timeStepDataAssemblerFuture.cancel(false);
+        // Let the episodes still being sent in the background finish before their stores close
+        for (Future<?> episode : episodesInFlight){
+            try {
+                episode.get();
+            } catch (ExecutionException e) {
+                // Already logged by finalizeEpisode()
+            }
+        }
+        episodesInFlight.clear();
+        if (episodeFinalizer != null){
+            episodeFinalizer.shutdown();
+        }
+        // Queued chunk uploads still run before the threads stop
+        assemblerExecutors.shutdown();
+        for (FlatbufferAssembler assembler : assemblers){
+            if (assembler.getEpisodeStore() != null){
+                assembler.getEpisodeStore().close();
+            }
+        }
+        if (outbox != null){
+            try {
+                outbox.sync();
+            } catch (IOException e) {
+                ErrorHandler.eLog(TAG, "Unable to sync the outbox", e, false);
+            }
+        }
     }
 
     /**
@@ -193,20 +525,9 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
                 Logger.d(TAG, "Server says, \"" + msg + "\"");
             }
             else if (jsonHeader.get("content-encoding").equals("binary")){
-                if (jsonHeader.get("content-type").equals("files")){
-                    Logger.d(TAG, "Writing files to disk");
-                    JSONArray fileNames = (JSONArray) jsonHeader.get("file-names");
-                    JSONArray fileLengths = (JSONArray) jsonHeader.get("file-lengths");
-
-                    msgFromServer.flip();
-
-                    for (int i = 0; i < fileNames.length(); i++){
-                        byte[] bytes = new byte[fileLengths.getInt(i)];
-                        msgFromServer.get(bytes);
-                        FileOps.savedata(context, bytes, "models", fileNames.getString(i));
-                    }
-                }
-                else if (jsonHeader.get("content-type").equals("flatbuffer")){
+                // "files" messages never get here, they are written to getFileDirectory() as
+                // they arrive and reported to onServerFilesReceived()
+                if (jsonHeader.get("content-type").equals("flatbuffer")){
                     //todo
                 }
                 else if (jsonHeader.get("content-type").equals("json")){
@@ -220,6 +541,19 @@ public class Trial implements Runnable, ActionSelector, SocketListener {
         }
     }
 
+    /**
+     * Model files are written to the models directory as they arrive rather than buffered whole.
+     */
+    @Override
+    public File getFileDirectory(JSONObject jsonHeader) {
+        return new File(context.getFilesDir(), "models");
+    }
+
+    @Override
+    public void onServerFilesReceived(JSONObject jsonHeader, List<File> files) {
+        Logger.d(TAG, "Received " + files.size() + " files from server");
+    }
+
     public int getTimeStepLength() {
         return timeStepLength;
     }
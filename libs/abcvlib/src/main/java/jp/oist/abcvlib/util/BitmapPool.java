@@ -0,0 +1,87 @@
+package jp.oist.abcvlib.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of mutable bitmaps so camera frames can be converted into recycled bitmaps instead of
+ * allocating a new ARGB_8888 bitmap (several MB of native memory) for every frame.
+ * <p>
+ * Share one pool between the image publisher (jp.oist.abcvlib.core.inputs.phone.ImageData#setBitmapPool)
+ * which acquires a bitmap per frame and the TimeStepDataBuffer
+ * (jp.oist.abcvlib.core.inputs.TimeStepDataBuffer#setBitmapPool) which releases it again once
+ * the timestep holding the frame is recycled. Subscribers must not hold on to pooled bitmaps
+ * beyond the callback they receive them in.
+ */
+public class BitmapPool {
+    private final int maxSize;
+    private final ArrayDeque<Bitmap> free;
+    private long created = 0;
+    private long reused = 0;
+
+    /**
+     * @param maxSize maximum number of idle bitmaps kept. Should be at least the number of frames
+     *                per timestep times the TimeStepDataBuffer bufferLength; bitmaps released
+     *                beyond that are left to the garbage collector.
+     */
+    public BitmapPool(int maxSize){
+        this.maxSize = maxSize;
+        this.free = new ArrayDeque<>(maxSize);
+    }
+
+    /**
+     * @return an idle bitmap of the given size and config, or a new one if there is none
+     */
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config){
+        Iterator<Bitmap> iterator = free.iterator();
+        while (iterator.hasNext()){
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config){
+                iterator.remove();
+                reused++;
+                return bitmap;
+            }
+        }
+        created++;
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns a bitmap obtained via {@link #acquire(int, int, Bitmap.Config)} to the pool.
+     */
+    public synchronized void release(Bitmap bitmap){
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()){
+            return;
+        }
+        if (free.size() < maxSize){
+            free.push(bitmap);
+        }
+    }
+
+    public synchronized int getIdleCount(){
+        return free.size();
+    }
+
+    /**
+     * @return number of bitmaps allocated because no idle one was available
+     */
+    public synchronized long getCreatedCount(){
+        return created;
+    }
+
+    /**
+     * @return number of acquires served from the pool
+     */
+    public synchronized long getReusedCount(){
+        return reused;
+    }
+
+    /**
+     * Drops all idle bitmaps, e.g. when the camera resolution changes.
+     */
+    public synchronized void clear(){
+        free.clear();
+    }
+}
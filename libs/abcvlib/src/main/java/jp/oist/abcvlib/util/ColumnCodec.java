@@ -0,0 +1,469 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact encodings for the numeric sensor columns of an episode. Each column is written as an
+ * encoding id, its length and the encoded values:
+ * <ul>
+ *     <li>{@link #DELTA_OF_DELTA} for monotonic timestamps sampled at a roughly fixed rate, where
+ *     the difference between consecutive deltas is mostly zero or a few nanoseconds.</li>
+ *     <li>{@link #DELTA} for integers such as encoder counts that change slowly or repeat.</li>
+ *     <li>{@link #FLOAT64}, {@link #FLOAT32} and {@link #QUANTIZED} for doubles, see {@link Precision}.</li>
+ * </ul>
+ * Integer residuals are written as zigzag varints, with runs of zeros collapsed into a zero byte
+ * followed by the run length. Float values are written as runs of repeated values. All
+ * multi-byte values are little-endian.
+ * <p>
+ * A {@link Stream} carries the last value (and delta) of a sensor stream from one column to the
+ * next, so a stream split into one column per timestep only pays for its first value once. The
+ * reader must be given the columns in the same order with streams in the same state.
+ */
+public final class ColumnCodec {
+    public static final byte DELTA_OF_DELTA = 1;
+    public static final byte DELTA = 2;
+    public static final byte FLOAT64 = 3;
+    public static final byte FLOAT32 = 4;
+    public static final byte QUANTIZED = 5;
+
+    /**
+     * How double columns are stored.
+     */
+    public enum Precision {
+        /** Lossless */
+        FLOAT64,
+        /** Rounded to the nearest float, about 7 significant digits */
+        FLOAT32,
+        /** Rounded to a multiple of a fixed step and delta encoded. NaN is stored as 0. */
+        QUANTIZED
+    }
+
+    private ColumnCodec(){
+    }
+
+    /**
+     * State of one sensor stream shared by its consecutive columns.
+     */
+    public static class Stream {
+        private long last = 0;
+        private long lastDelta = 0;
+
+        public void reset(){
+            last = 0;
+            lastDelta = 0;
+        }
+    }
+
+    /**
+     * Growable little-endian output. Reset and reuse it to avoid allocating per episode.
+     */
+    public static class Writer {
+        private byte[] data;
+        private int size = 0;
+
+        public Writer(int initialCapacity){
+            data = new byte[Math.max(16, initialCapacity)];
+        }
+
+        public void reset(){
+            size = 0;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        /**
+         * @return a new little-endian heap buffer holding everything written so far
+         */
+        public ByteBuffer toByteBuffer(){
+            ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(data, 0, size);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void ensureCapacity(int extra){
+            if (size + extra > data.length){
+                byte[] grown = new byte[Math.max(data.length * 2, size + extra)];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+        }
+
+        public void putByte(int value){
+            ensureCapacity(1);
+            data[size++] = (byte) value;
+        }
+
+        /**
+         * Writes value as an unsigned varint, 7 bits per byte.
+         */
+        public void putVarLong(long value){
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0){
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        /**
+         * Writes value zigzag encoded so that small negative values stay short.
+         */
+        public void putSignedVarLong(long value){
+            putVarLong((value << 1) ^ (value >> 63));
+        }
+
+        public void putInt(int value){
+            ensureCapacity(4);
+            for (int i = 0; i < 4; i++){
+                data[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        public void putLong(long value){
+            ensureCapacity(8);
+            for (int i = 0; i < 8; i++){
+                data[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        public void putFloat(float value){
+            putInt(Float.floatToRawIntBits(value));
+        }
+
+        public void putDouble(double value){
+            putLong(Double.doubleToRawLongBits(value));
+        }
+
+        /**
+         * Writes the remaining bytes of src, prefixed by their count, without changing its position.
+         */
+        public void putBytes(ByteBuffer src){
+            int length = src == null ? 0 : src.remaining();
+            putVarLong(length);
+            ensureCapacity(length);
+            if (length > 0){
+                src.duplicate().get(data, size, length);
+                size += length;
+            }
+        }
+
+        /**
+         * Writes a UTF-8 string prefixed by its length, or a length of -1 for null.
+         */
+        public void putString(String value){
+            if (value == null){
+                putSignedVarLong(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putSignedVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        /**
+         * Writes a residual of an integer column, counting zeros into the pending run.
+         */
+        private int putResidual(long residual, int zeroRun){
+            if (residual == 0){
+                return zeroRun + 1;
+            }
+            flushZeros(zeroRun);
+            putSignedVarLong(residual);
+            return 0;
+        }
+
+        private void flushZeros(int zeroRun){
+            if (zeroRun > 0){
+                putByte(0);
+                putVarLong(zeroRun - 1);
+            }
+        }
+
+        /**
+         * Writes count longs starting at values.position() using {@link #DELTA_OF_DELTA}.
+         * @param values little-endian values, e.g. a flatbuffer vector, or null if count is 0
+         */
+        public void putLongs(ByteBuffer values, int count, Stream stream){
+            putByte(DELTA_OF_DELTA);
+            putVarLong(count);
+            int base = count > 0 ? values.position() : 0;
+            int zeroRun = 0;
+            for (int i = 0; i < count; i++){
+                long value = values.getLong(base + 8 * i);
+                long delta = value - stream.last;
+                zeroRun = putResidual(delta - stream.lastDelta, zeroRun);
+                stream.last = value;
+                stream.lastDelta = delta;
+            }
+            flushZeros(zeroRun);
+        }
+
+        /**
+         * Writes count ints starting at values.position() using {@link #DELTA}.
+         */
+        public void putInts(ByteBuffer values, int count, Stream stream){
+            putByte(DELTA);
+            putVarLong(count);
+            int base = count > 0 ? values.position() : 0;
+            int zeroRun = 0;
+            for (int i = 0; i < count; i++){
+                long value = values.getInt(base + 4 * i);
+                zeroRun = putResidual(value - stream.last, zeroRun);
+                stream.last = value;
+            }
+            flushZeros(zeroRun);
+        }
+
+        /**
+         * Writes count doubles starting at values.position().
+         * @param quantum step values are rounded to with {@link Precision#QUANTIZED}
+         */
+        public void putDoubles(ByteBuffer values, int count, Precision precision, double quantum,
+                               Stream stream){
+            int base = count > 0 ? values.position() : 0;
+            switch (precision){
+                case QUANTIZED:
+                    putByte(QUANTIZED);
+                    putVarLong(count);
+                    putDouble(quantum);
+                    int zeroRun = 0;
+                    for (int i = 0; i < count; i++){
+                        long value = Math.round(values.getDouble(base + 8 * i) / quantum);
+                        zeroRun = putResidual(value - stream.last, zeroRun);
+                        stream.last = value;
+                    }
+                    flushZeros(zeroRun);
+                    break;
+                case FLOAT32:
+                    putByte(FLOAT32);
+                    putVarLong(count);
+                    for (int i = 0; i < count; ){
+                        int bits = Float.floatToRawIntBits((float) values.getDouble(base + 8 * i));
+                        int run = 1;
+                        while (i + run < count && bits ==
+                                Float.floatToRawIntBits((float) values.getDouble(base + 8 * (i + run)))){
+                            run++;
+                        }
+                        putVarLong(run);
+                        putInt(bits);
+                        i += run;
+                    }
+                    break;
+                default:
+                    putByte(FLOAT64);
+                    putVarLong(count);
+                    putRuns(values, base, count, 8);
+            }
+        }
+
+        /**
+         * Writes count floats starting at values.position() as runs of {@link #FLOAT32} values.
+         */
+        public void putFloats(ByteBuffer values, int count){
+            putByte(FLOAT32);
+            putVarLong(count);
+            putRuns(values, count > 0 ? values.position() : 0, count, 4);
+        }
+
+        private void putRuns(ByteBuffer values, int base, int count, int elementSize){
+            for (int i = 0; i < count; ){
+                long bits = elementSize == 8 ? values.getLong(base + 8 * i) : values.getInt(base + 4 * i);
+                int run = 1;
+                while (i + run < count && (elementSize == 8 ? values.getLong(base + 8 * (i + run)) :
+                        values.getInt(base + 4 * (i + run))) == bits){
+                    run++;
+                }
+                putVarLong(run);
+                if (elementSize == 8){
+                    putLong(bits);
+                } else {
+                    putInt((int) bits);
+                }
+                i += run;
+            }
+        }
+    }
+
+    /**
+     * Reads what a {@link Writer} wrote. Columns are read in two steps: {@link #beginColumn()}
+     * returns the number of values so the caller can allocate room for them, then one of the
+     * get methods decodes them into that room.
+     */
+    public static class Reader {
+        private final ByteBuffer in;
+        private byte encoding;
+        private int count;
+        private double quantum;
+        private long pendingZeros = 0;
+
+        /**
+         * Reads from in.position() to in.limit() without changing in's position.
+         */
+        public Reader(ByteBuffer in){
+            this.in = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int remaining(){
+            return in.remaining();
+        }
+
+        public int getByte(){
+            return in.get();
+        }
+
+        public long getVarLong(){
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7){
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0){
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        public long getSignedVarLong(){
+            long value = getVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public int getInt(){
+            return in.getInt();
+        }
+
+        public long getLong(){
+            return in.getLong();
+        }
+
+        public float getFloat(){
+            return in.getFloat();
+        }
+
+        public double getDouble(){
+            return in.getDouble();
+        }
+
+        /**
+         * @return a view of the next length-prefixed bytes
+         */
+        public ByteBuffer getBytes(){
+            int length = (int) getVarLong();
+            ByteBuffer bytes = in.slice();
+            bytes.limit(length);
+            in.position(in.position() + length);
+            return bytes;
+        }
+
+        public String getString(){
+            int length = (int) getSignedVarLong();
+            if (length < 0){
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads the header of the next column.
+         * @return number of values in the column
+         */
+        public int beginColumn(){
+            encoding = in.get();
+            count = (int) getVarLong();
+            if (encoding == QUANTIZED){
+                quantum = in.getDouble();
+            }
+            return count;
+        }
+
+        private void expect(byte... encodings){
+            for (byte expected : encodings){
+                if (encoding == expected){
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Unexpected column encoding " + encoding);
+        }
+
+        /**
+         * @return the next residual of an integer column, expanding zero runs
+         */
+        private long nextResidual(){
+            if (pendingZeros > 0){
+                pendingZeros--;
+                return 0;
+            }
+            long residual = getSignedVarLong();
+            if (residual == 0){
+                pendingZeros = getVarLong();
+            }
+            return residual;
+        }
+
+        /**
+         * Decodes the current column into dst starting at dst.position().
+         */
+        public void getLongs(ByteBuffer dst, Stream stream){
+            expect(DELTA_OF_DELTA);
+            int base = dst.position();
+            for (int i = 0; i < count; i++){
+                long delta = stream.lastDelta + nextResidual();
+                long value = stream.last + delta;
+                dst.putLong(base + 8 * i, value);
+                stream.last = value;
+                stream.lastDelta = delta;
+            }
+        }
+
+        public void getInts(ByteBuffer dst, Stream stream){
+            expect(DELTA);
+            int base = dst.position();
+            for (int i = 0; i < count; i++){
+                long value = stream.last + nextResidual();
+                dst.putInt(base + 4 * i, (int) value);
+                stream.last = value;
+            }
+        }
+
+        public void getDoubles(ByteBuffer dst, Stream stream){
+            expect(FLOAT64, FLOAT32, QUANTIZED);
+            int base = dst.position();
+            if (encoding == QUANTIZED){
+                for (int i = 0; i < count; i++){
+                    long value = stream.last + nextResidual();
+                    dst.putDouble(base + 8 * i, value * quantum);
+                    stream.last = value;
+                }
+                return;
+            }
+            for (int i = 0; i < count; ){
+                int run = (int) getVarLong();
+                double value = encoding == FLOAT32 ? in.getFloat() : in.getDouble();
+                for (int j = 0; j < run; j++){
+                    dst.putDouble(base + 8 * (i++), value);
+                }
+            }
+        }
+
+        public void getFloats(ByteBuffer dst){
+            expect(FLOAT32);
+            int base = dst.position();
+            for (int i = 0; i < count; ){
+                int run = (int) getVarLong();
+                float value = in.getFloat();
+                for (int j = 0; j < run; j++){
+                    dst.putFloat(base + 4 * (i++), value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package jp.oist.abcvlib.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lossless compression applied to a whole payload (an episode or a streamed chunk) before it is
+ * uploaded. The name of the codec is advertised in the content-encoding header field so the
+ * receiver can pick the matching codec via {@link #forName(String)}.
+ * <p>
+ * Implementations reuse scratch buffers and are not thread safe.
+ */
+public interface CompressionCodec {
+    /**
+     * @return name advertised in the content-encoding header field
+     */
+    String getName();
+
+    /**
+     * @param src bytes from src.position() to src.limit() are compressed. Its position is not changed.
+     * @return a new buffer holding the compressed bytes
+     */
+    ByteBuffer compress(ByteBuffer src);
+
+    /**
+     * @param src bytes from src.position() to src.limit() are decompressed. Its position is not changed.
+     * @return a new buffer holding the original bytes
+     * @throws IOException if src is not valid output of {@link #compress(ByteBuffer)}
+     */
+    ByteBuffer decompress(ByteBuffer src) throws IOException;
+
+    /**
+     * @return a new codec able to decompress payloads advertised as name, or null if unknown
+     */
+    static CompressionCodec forName(String name){
+        switch (name){
+            case DeflateCodec.NAME:
+                return new DeflateCodec();
+            case Lz4BlockCodec.NAME:
+                return new Lz4BlockCodec();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Compresses payloads before upload with a {@link CompressionCodec} and keeps track of what it
+ * costs and saves, so a codec can be picked per network: compression pays off as long as
+ * {@link #getNetTimeSavedNanos(double)} is positive for the bandwidth of the link.
+ * <p>
+ * Payloads that do not shrink by at least minSavings are passed on uncompressed, e.g. episodes
+ * that are mostly WEBP images.
+ */
+public class CompressionStage {
+    private static final String TAG = "CompressionStage";
+
+    private final CompressionCodec codec;
+    private final double minSavings;
+    private long payloads = 0;
+    private long skipped = 0;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private long compressNanos = 0;
+
+    public CompressionStage(CompressionCodec codec){
+        this(codec, 0.05);
+    }
+
+    /**
+     * @param minSavings fraction of a payload compression has to save for the compressed payload
+     *                   to be sent instead of the original, e.g. 0.05 for 5%
+     */
+    public CompressionStage(CompressionCodec codec, double minSavings){
+        this.codec = codec;
+        this.minSavings = minSavings;
+    }
+
+    public CompressionCodec getCodec(){
+        return codec;
+    }
+
+    /**
+     * @param payload bytes from payload.position() to payload.limit(). Its position is not changed.
+     * @return the compressed payload, or null if compressing did not save enough and payload
+     * should be sent as is
+     */
+    public synchronized ByteBuffer compress(ByteBuffer payload){
+        int length = payload.remaining();
+        long start = System.nanoTime();
+        ByteBuffer compressed = codec.compress(payload);
+        long elapsed = System.nanoTime() - start;
+        payloads++;
+        compressNanos += elapsed;
+        bytesIn += length;
+        if (compressed.remaining() > length * (1 - minSavings)){
+            skipped++;
+            bytesOut += length;
+            Logger.v(TAG, codec.getName() + " saved too little on " + length + " bytes, sending uncompressed");
+            return null;
+        }
+        bytesOut += compressed.remaining();
+        Logger.v(TAG, codec.getName() + " " + length + " -> " + compressed.remaining() +
+                " bytes in " + elapsed / 1000 + " us");
+        return compressed;
+    }
+
+    public synchronized long getPayloadCount(){
+        return payloads;
+    }
+
+    /**
+     * @return number of payloads sent uncompressed as compression saved less than minSavings
+     */
+    public synchronized long getSkippedCount(){
+        return skipped;
+    }
+
+    public synchronized long getBytesIn(){
+        return bytesIn;
+    }
+
+    /**
+     * @return bytes sent, counting skipped payloads at their original size
+     */
+    public synchronized long getBytesOut(){
+        return bytesOut;
+    }
+
+    public synchronized long getBytesSaved(){
+        return bytesIn - bytesOut;
+    }
+
+    /**
+     * @return bytes sent per byte recorded, e.g. 0.4 if payloads shrank to 40%
+     */
+    public synchronized double getCompressionRatio(){
+        return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+    }
+
+    public synchronized long getCompressNanos(){
+        return compressNanos;
+    }
+
+    /**
+     * @return compression speed in MB of input per second
+     */
+    public synchronized double getThroughputMBps(){
+        return compressNanos == 0 ? 0 : bytesIn * 1e3 / compressNanos;
+    }
+
+    /**
+     * @param bytesPerSecond upload bandwidth of the link
+     * @return transfer time saved by sending fewer bytes minus the time spent compressing, in
+     * total over all payloads so far. Negative if the codec is too slow for this link.
+     */
+    public synchronized long getNetTimeSavedNanos(double bytesPerSecond){
+        return (long) (getBytesSaved() / bytesPerSecond * 1e9) - compressNanos;
+    }
+
+    public synchronized void resetStats(){
+        payloads = 0;
+        skipped = 0;
+        bytesIn = 0;
+        bytesOut = 0;
+        compressNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return codec.getName() + ": " + payloads + " payloads, " + bytesIn + " -> " + bytesOut +
+                " bytes (" + Math.round(getCompressionRatio() * 100) + "%), " +
+                String.format(Locale.US, "%.1f", getThroughputMBps()) + " MB/s, " +
+                skipped + " sent uncompressed";
+    }
+}
@@ -0,0 +1,106 @@
+package jp.oist.abcvlib.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link CompressionCodec} producing zlib streams (RFC 1950) with java.util.zip, readable with
+ * e.g. Python's zlib.decompress. Level 1 is several times faster than the default level 6 at a
+ * slightly worse ratio; level 9 rarely pays off over 6.
+ */
+public class DeflateCodec implements CompressionCodec {
+    public static final String NAME = "deflate";
+
+    private final int level;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private byte[] input = new byte[0];
+
+    /**
+     * Codec with Deflater.DEFAULT_COMPRESSION, e.g. for decompressing.
+     */
+    public DeflateCodec(){
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or
+     *              Deflater.DEFAULT_COMPRESSION
+     */
+    public DeflateCodec(int level){
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)){
+            throw new IllegalArgumentException("level must be between 1 and 9. level of " +
+                    level + " provided.");
+        }
+        this.level = level;
+        this.deflater = new Deflater(level);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    public int getLevel(){
+        return level;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer src) {
+        int length = copyToInput(src);
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        byte[] output = new byte[length + length / 1000 + 64];
+        int size = 0;
+        while (!deflater.finished()){
+            if (size == output.length){
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return ByteBuffer.wrap(output, 0, size).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer src) throws IOException {
+        int length = copyToInput(src);
+        inflater.reset();
+        inflater.setInput(input, 0, length);
+        byte[] output = new byte[Math.max(64, length * 4)];
+        int size = 0;
+        try {
+            while (!inflater.finished()){
+                if (size == output.length){
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())){
+                    throw new IOException("Truncated deflate stream");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate stream", e);
+        }
+        return ByteBuffer.wrap(output, 0, size).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copies the remaining bytes of src into the reused input array. Episodes are usually in
+     * direct buffers, which the array based Deflater and Inflater methods cannot take.
+     */
+    private int copyToInput(ByteBuffer src){
+        int length = src.remaining();
+        if (input.length < length){
+            input = new byte[length];
+        }
+        src.duplicate().get(input, 0, length);
+        return length;
+    }
+}
@@ -0,0 +1,561 @@
+package jp.oist.abcvlib.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of payloads waiting for upload (e.g. finished episodes or episode chunks), so
+ * that nothing recorded is lost while the server is unreachable. Payloads are appended to a log
+ * of segment files in app storage and a background drainer uploads them oldest first, retrying
+ * with exponential backoff until the server accepts them. Each payload is uploaded at least once;
+ * it may be sent again if the app dies between the upload and its acknowledgement.
+ * <p>
+ * Each record is [int bodyLength][int crc32][int headerLength][header][payload], little-endian,
+ * where the header holds the JSON header fields of the payload and the CRC covers everything
+ * after it. Segments are only ever appended to. fsync is batched: the log is synced after
+ * syncEvery records or syncIntervalMillis, whichever comes first, so a crash loses at most that
+ * much. A record torn by a crash fails its length or checksum and is truncated on the next open.
+ * <p>
+ * Once the segments exceed maxBytes the oldest segment is evicted, uploaded or not, so a robot
+ * that never sees the server keeps its most recent data. The cap is enforced per segment, so the
+ * log may briefly exceed it by up to one segment.
+ */
+public class EpisodeOutbox implements Closeable {
+    private static final String TAG = "EpisodeOutbox";
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursor";
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    /**
+     * Sends a payload to the server.
+     */
+    public interface Uploader {
+        /**
+         * @param payload read-only view of the payload, positioned at its start
+         * @param headerFields header fields the payload was appended with
+         * @return true once the server has received the payload, false to retry later
+         */
+        boolean upload(ByteBuffer payload, JSONObject headerFields);
+    }
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        long size;
+
+        Segment(long sequence, File file, long size){
+            this.sequence = sequence;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static class Record {
+        final Segment segment;
+        final long position;
+        final long end;
+        final JSONObject headerFields;
+        final ByteBuffer payload;
+
+        Record(Segment segment, long position, long end, JSONObject headerFields, ByteBuffer payload){
+            this.segment = segment;
+            this.position = position;
+            this.end = end;
+            this.headerFields = headerFields;
+            this.payload = payload;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentSize;
+    private final int syncEvery;
+    private final long syncIntervalMillis;
+    // Oldest first, the last one is appended to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private FileChannel writeChannel;
+    private long totalBytes = 0;
+    // Start of the next record to upload, always within the oldest segment
+    private long cursorPosition = 0;
+    private int unsyncedRecords = 0;
+    private long lastSync = System.nanoTime();
+    private final CRC32 crc = new CRC32();
+    private long appendedCount = 0;
+    private long uploadedCount = 0;
+    private long evictedCount = 0;
+    private long corruptCount = 0;
+    private ExecutorService drainer;
+    private boolean closed = false;
+
+    public EpisodeOutbox(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, DEFAULT_SEGMENT_SIZE, 8, 1000);
+    }
+
+    /**
+     * Opens the log in directory, recovering the records left by a previous run.
+     * @param directory directory holding the segment files, e.g. below Context.getFilesDir()
+     * @param maxBytes disk cap, at least segmentSize
+     * @param segmentSize size at which a new segment file is started. Payloads larger than this
+     *                    get a segment of their own.
+     * @param syncEvery number of records appended between fsyncs
+     * @param syncIntervalMillis maximum time appended records stay unsynced
+     */
+    public EpisodeOutbox(File directory, long maxBytes, int segmentSize, int syncEvery,
+                         long syncIntervalMillis) throws IOException {
+        if (maxBytes < segmentSize){
+            throw new IllegalArgumentException("maxBytes must be at least the segmentSize of " +
+                    segmentSize + ". maxBytes of " + maxBytes + " provided.");
+        }
+        if (syncEvery < 1){
+            throw new IllegalArgumentException("syncEvery must be at least 1. syncEvery of " +
+                    syncEvery + " provided.");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        this.syncEvery = syncEvery;
+        this.syncIntervalMillis = syncIntervalMillis;
+        if (!directory.exists() && !directory.mkdirs()){
+            throw new IOException("Unable to create " + directory.getAbsolutePath());
+        }
+        recover();
+    }
+
+    /**
+     * Appends a payload to the log and wakes the drainer. Positions of payload are not changed.
+     * @param headerFields header fields to upload the payload with, or null
+     */
+    public synchronized void append(ByteBuffer payload, JSONObject headerFields) throws IOException {
+        if (closed){
+            throw new IOException("Outbox closed");
+        }
+        byte[] header = (headerFields != null ? headerFields.toString() : "{}").getBytes(StandardCharsets.UTF_8);
+        int bodyLength = Integer.BYTES + header.length + payload.remaining();
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_HEADER + Integer.BYTES + header.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        prefix.putInt(bodyLength);
+        prefix.putInt(0);
+        prefix.putInt(header.length);
+        prefix.put(header);
+        crc.reset();
+        crc.update(prefix.array(), RECORD_HEADER, prefix.position() - RECORD_HEADER);
+        crc.update(payload.duplicate());
+        prefix.putInt(Integer.BYTES, (int) crc.getValue());
+        prefix.flip();
+
+        Segment segment = segments.peekLast();
+        if (segment.size > 0 && segment.size + RECORD_HEADER + bodyLength > segmentSize){
+            segment = startSegment(segment.sequence + 1);
+        }
+        long start = segment.size;
+        ByteBuffer[] record = {prefix, payload.duplicate()};
+        try {
+            long remaining = RECORD_HEADER + (long) bodyLength;
+            while (remaining > 0){
+                remaining -= writeChannel.write(record);
+            }
+        } catch (IOException e) {
+            // e.g. the disk is full. Drop the partial record so the log stays readable.
+            writeChannel.truncate(start);
+            writeChannel.position(start);
+            throw e;
+        }
+        segment.size += RECORD_HEADER + bodyLength;
+        totalBytes += RECORD_HEADER + bodyLength;
+        appendedCount++;
+        unsyncedRecords++;
+        syncIfDue();
+        while (totalBytes > maxBytes && segments.size() > 1){
+            evictOldestSegment();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forces all appended records to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (writeChannel != null && unsyncedRecords > 0){
+            // fdatasync also persists the file length, which is all the metadata the log needs
+            writeChannel.force(false);
+        }
+        unsyncedRecords = 0;
+        lastSync = System.nanoTime();
+    }
+
+    private void syncIfDue() throws IOException {
+        if (unsyncedRecords >= syncEvery || (unsyncedRecords > 0 &&
+                System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis))){
+            sync();
+        }
+    }
+
+    /**
+     * Starts uploading the records in the background with uploader, oldest first. Failed uploads
+     * are retried after a backoff doubling from 1 s up to 60 s.
+     */
+    public synchronized void startDraining(Uploader uploader){
+        if (drainer != null){
+            throw new IllegalStateException("Outbox is already draining");
+        }
+        drainer = Executors.newSingleThreadExecutor(new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, "outboxDrainer"));
+        drainer.execute(() -> drain(uploader));
+    }
+
+    public synchronized boolean isDraining(){
+        return drainer != null;
+    }
+
+    private void drain(Uploader uploader){
+        long backoff = 0;
+        while (true){
+            Record record = null;
+            synchronized (this){
+                try {
+                    // Appends wake this up, also to sync records appended in a burst
+                    long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                    while (!closed && record == null){
+                        long now = System.nanoTime();
+                        syncIfDue();
+                        if (now >= retryAt){
+                            record = nextRecord();
+                        }
+                        if (record == null){
+                            wait(Math.max(1, Math.min(syncIntervalMillis,
+                                    TimeUnit.NANOSECONDS.toMillis(retryAt - now))));
+                        }
+                    }
+                    if (closed){
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    ErrorHandler.eLog(TAG, "Error reading outbox", e, false);
+                    backoff = MAX_BACKOFF_MILLIS;
+                    continue;
+                }
+            }
+            if (uploader.upload(record.payload, record.headerFields)){
+                acknowledge(record);
+                backoff = 0;
+            } else {
+                backoff = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoff * 2));
+                Logger.w(TAG, "Upload failed, " + getPendingCount() + " payloads pending. Retrying in " +
+                        backoff / 1000 + " s");
+            }
+        }
+    }
+
+    /**
+     * @return the oldest record not yet uploaded, or null if there is none. Records failing their
+     * checksum skip the rest of their segment.
+     */
+    private Record nextRecord() throws IOException {
+        while (true){
+            Segment segment = segments.peekFirst();
+            if (cursorPosition >= segment.size){
+                if (segment == segments.peekLast()){
+                    return null;
+                }
+                deleteOldestSegment();
+                continue;
+            }
+            Record record = readRecord(segment, cursorPosition);
+            if (record == null){
+                corruptCount++;
+                Logger.e(TAG, "Corrupt record at " + cursorPosition + " of " +
+                        segment.file.getName() + ", skipping the rest of the segment");
+                cursorPosition = segment.size;
+                continue;
+            }
+            return record;
+        }
+    }
+
+    /**
+     * @return the record at position, or null if its length, checksum or header is invalid
+     */
+    private Record readRecord(Segment segment, long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+             FileChannel channel = file.getChannel()){
+            ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            while (head.hasRemaining()){
+                if (channel.read(head, position + head.position()) < 0){
+                    return null;
+                }
+            }
+            int bodyLength = head.getInt(0);
+            int checksum = head.getInt(Integer.BYTES);
+            long end = position + RECORD_HEADER + bodyLength;
+            if (bodyLength < Integer.BYTES || end > segment.size){
+                return null;
+            }
+            // The mapping stays valid after the channel is closed, even if the segment is evicted
+            ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, position + RECORD_HEADER, bodyLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            crc.reset();
+            crc.update(body.duplicate());
+            int headerLength = body.getInt(0);
+            if ((int) crc.getValue() != checksum || headerLength < 0 || headerLength > bodyLength - Integer.BYTES){
+                return null;
+            }
+            byte[] header = new byte[headerLength];
+            body.position(Integer.BYTES);
+            body.get(header);
+            JSONObject headerFields;
+            try {
+                headerFields = new JSONObject(new String(header, StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                return null;
+            }
+            ByteBuffer payload = body.slice().order(ByteOrder.LITTLE_ENDIAN).asReadOnlyBuffer();
+            return new Record(segment, position, end, headerFields, payload);
+        }
+    }
+
+    private synchronized void acknowledge(Record record){
+        uploadedCount++;
+        // The segment may have been evicted while uploading, the cursor has moved on already
+        if (segments.peekFirst() != record.segment || cursorPosition != record.position){
+            return;
+        }
+        cursorPosition = record.end;
+        try {
+            if (cursorPosition >= record.segment.size && record.segment != segments.peekLast()){
+                deleteOldestSegment();
+            }
+            writeCursor();
+        } catch (IOException e) {
+            // Only means the record may be uploaded again after a restart
+            ErrorHandler.eLog(TAG, "Unable to persist outbox cursor", e, false);
+        }
+    }
+
+    private void evictOldestSegment() throws IOException {
+        Segment oldest = segments.peekFirst();
+        int dropped = countRecords(oldest, cursorPosition);
+        evictedCount += dropped;
+        Logger.w(TAG, "Outbox over " + maxBytes + " bytes, evicting " + oldest.file.getName() +
+                " with " + dropped + " payloads not yet uploaded");
+        deleteOldestSegment();
+        writeCursor();
+    }
+
+    private void deleteOldestSegment(){
+        Segment oldest = segments.removeFirst();
+        totalBytes -= oldest.size;
+        cursorPosition = 0;
+        if (!oldest.file.delete()){
+            Logger.w(TAG, "Unable to delete " + oldest.file.getAbsolutePath());
+        }
+    }
+
+    private int countRecords(Segment segment, long position) throws IOException {
+        int count = 0;
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")){
+            while (position + RECORD_HEADER <= segment.size){
+                file.seek(position);
+                int bodyLength = Integer.reverseBytes(file.readInt());
+                if (bodyLength < Integer.BYTES){
+                    break;
+                }
+                position += RECORD_HEADER + bodyLength;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Segment startSegment(long sequence) throws IOException {
+        if (writeChannel != null){
+            sync();
+            writeChannel.close();
+        }
+        File file = new File(directory, String.format("%019d", sequence) + SEGMENT_SUFFIX);
+        writeChannel = new RandomAccessFile(file, "rw").getChannel();
+        Segment segment = new Segment(sequence, file, writeChannel.size());
+        writeChannel.position(segment.size);
+        segments.addLast(segment);
+        totalBytes += segment.size;
+        return segment;
+    }
+
+    /**
+     * Loads the segments and the cursor left by a previous run and truncates a record torn by a
+     * crash at the end of the last segment.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null){
+            throw new IOException("Unable to list " + directory.getAbsolutePath());
+        }
+        // Zero padded sequence numbers sort by name
+        Arrays.sort(files);
+        for (File file : files){
+            String name = file.getName();
+            long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            segments.addLast(new Segment(sequence, file, file.length()));
+            totalBytes += file.length();
+        }
+        long cursorSequence = -1;
+        File cursorFile = new File(directory, CURSOR_FILE);
+        if (cursorFile.length() == 2 * Long.BYTES){
+            ByteBuffer cursor = ByteBuffer.wrap(Files.readAllBytes(cursorFile.toPath()));
+            cursorSequence = cursor.getLong();
+            cursorPosition = cursor.getLong();
+        }
+        // Segments before the cursor were uploaded but not yet deleted
+        while (!segments.isEmpty() && segments.peekFirst().sequence < cursorSequence){
+            deleteOldestSegment();
+        }
+        if (segments.isEmpty() || segments.peekFirst().sequence != cursorSequence){
+            cursorPosition = 0;
+        }
+
+        Segment last = segments.pollLast();
+        if (last == null){
+            // Continue after the cursor so that it does not point into the new segment
+            startSegment(cursorSequence + 1);
+            return;
+        }
+        totalBytes -= last.size;
+        long valid = lastValidPosition(last);
+        startSegment(last.sequence);
+        if (valid < last.size){
+            Logger.w(TAG, "Truncating torn record at " + valid + " of " + last.file.getName());
+            writeChannel.truncate(valid);
+            writeChannel.position(valid);
+            totalBytes -= segments.peekLast().size - valid;
+            segments.peekLast().size = valid;
+            cursorPosition = Math.min(cursorPosition, valid);
+        }
+        Logger.i(TAG, "Recovered " + segments.size() + " segments, " + getPendingCount() +
+                " payloads pending upload");
+    }
+
+    private long lastValidPosition(Segment segment) throws IOException {
+        long position = 0;
+        while (position < segment.size){
+            Record record = readRecord(segment, position);
+            if (record == null){
+                break;
+            }
+            position = record.end;
+        }
+        return position;
+    }
+
+    private void writeCursor() throws IOException {
+        ByteBuffer cursor = ByteBuffer.allocate(2 * Long.BYTES);
+        cursor.putLong(segments.peekFirst().sequence);
+        cursor.putLong(cursorPosition);
+        File tmp = new File(directory, CURSOR_FILE + ".tmp");
+        Files.write(tmp.toPath(), cursor.array());
+        Files.move(tmp.toPath(), new File(directory, CURSOR_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return number of payloads not yet uploaded. Reads the headers of all pending records.
+     */
+    public synchronized int getPendingCount(){
+        int count = 0;
+        long position = cursorPosition;
+        try {
+            for (Segment segment : new ArrayList<>(segments)){
+                count += countRecords(segment, position);
+                position = 0;
+            }
+        } catch (IOException e) {
+            ErrorHandler.eLog(TAG, "Unable to count pending payloads", e, false);
+        }
+        return count;
+    }
+
+    /**
+     * @return bytes on disk not yet uploaded, including record headers
+     */
+    public synchronized long getPendingBytes(){
+        return totalBytes - cursorPosition;
+    }
+
+    /**
+     * @return bytes of all segments on disk
+     */
+    public synchronized long getBytesStored(){
+        return totalBytes;
+    }
+
+    public synchronized long getAppendedCount(){
+        return appendedCount;
+    }
+
+    public synchronized long getUploadedCount(){
+        return uploadedCount;
+    }
+
+    /**
+     * @return number of payloads dropped without being uploaded to stay below maxBytes
+     */
+    public synchronized long getEvictedCount(){
+        return evictedCount;
+    }
+
+    /**
+     * @return number of corrupt records found while draining. The rest of their segment is skipped.
+     */
+    public synchronized long getCorruptCount(){
+        return corruptCount;
+    }
+
+    /**
+     * Stops the drainer and syncs the log. Pending payloads stay on disk for the next run.
+     */
+    @Override
+    public void close() throws IOException {
+        ExecutorService drainer;
+        synchronized (this){
+            if (closed){
+                return;
+            }
+            closed = true;
+            notifyAll();
+            drainer = this.drainer;
+        }
+        if (drainer != null){
+            // Interrupting ends an upload blocked in the selector
+            drainer.shutdownNow();
+            try {
+                drainer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this){
+            sync();
+            writeChannel.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package jp.oist.abcvlib.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes the content of a "files" message from the server (e.g. model files) to disk as it
+ * arrives, split by the file-names and file-lengths header fields, instead of collecting the
+ * whole message on the heap first. Every file is written to a temporary file in the same
+ * directory and renamed over its final name once complete, so readers of a file see either
+ * the previous version or the full new one and memory use does not depend on file sizes.
+ */
+public class FileStreamReceiver {
+    private static final String TAG = "FileStreamReceiver";
+
+    private final File directory;
+    private final String[] names;
+    private final long[] lengths;
+    private final ArrayList<File> files = new ArrayList<>();
+    private int current = 0;
+    private long currentWritten = 0;
+    private File currentTemp;
+    private RandomAccessFile currentFile;
+    private FileChannel currentChannel;
+
+    /**
+     * @param jsonHeader header of a message with content-type "files"
+     * @param directory created if missing
+     * @throws IOException if the header does not describe the content or names a file outside
+     * of directory
+     */
+    public FileStreamReceiver(JSONObject jsonHeader, File directory) throws IOException {
+        this.directory = directory;
+        try {
+            JSONArray fileNames = jsonHeader.getJSONArray("file-names");
+            JSONArray fileLengths = jsonHeader.getJSONArray("file-lengths");
+            if (fileNames.length() != fileLengths.length()){
+                throw new IOException(fileNames.length() + " file-names for " + fileLengths.length() + " file-lengths");
+            }
+            names = new String[fileNames.length()];
+            lengths = new long[fileNames.length()];
+            long total = 0;
+            for (int i = 0; i < names.length; i++){
+                names[i] = fileNames.getString(i);
+                lengths[i] = fileLengths.getLong(i);
+                // Only plain names, the server must not write elsewhere on the phone
+                if (names[i].isEmpty() || !names[i].equals(new File(names[i]).getName()) ||
+                        names[i].equals(".") || names[i].equals("..")){
+                    throw new IOException("Invalid file name " + names[i]);
+                }
+                if (lengths[i] < 0){
+                    throw new IOException("Negative length " + lengths[i] + " for " + names[i]);
+                }
+                total += lengths[i];
+            }
+            long contentLength = jsonHeader.getLong("content-length");
+            if (total != contentLength){
+                throw new IOException("file-lengths add up to " + total + " of " + contentLength + " bytes");
+            }
+        } catch (JSONException e) {
+            throw new IOException("Malformed files header", e);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Unable to create " + directory);
+        }
+        // Empty files complete right away
+        finishEmptyFiles();
+    }
+
+    /**
+     * Writes all of src that belongs to the message, advancing its position.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining() && !isComplete()){
+            if (currentChannel == null){
+                open();
+            }
+            long left = lengths[current] - currentWritten;
+            int limit = src.limit();
+            if (src.remaining() > left){
+                src.limit(src.position() + (int) left);
+            }
+            try {
+                currentWritten += currentChannel.write(src);
+            } finally {
+                src.limit(limit);
+            }
+            if (currentWritten == lengths[current]){
+                finish();
+                finishEmptyFiles();
+            }
+        }
+    }
+
+    /**
+     * @return true once every file has been written and renamed
+     */
+    public boolean isComplete(){
+        return current == names.length;
+    }
+
+    /**
+     * @return the files completed so far at their final names
+     */
+    public List<File> getFiles(){
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Deletes the file in progress, e.g. when the connection failed. Completed files are kept.
+     */
+    public void abort(){
+        closeCurrent();
+        if (currentTemp != null && currentTemp.exists() && !currentTemp.delete()){
+            Logger.w(TAG, "Unable to delete " + currentTemp);
+        }
+        currentTemp = null;
+    }
+
+    private void open() throws IOException {
+        // The prefix must be at least 3 characters, which a name of 1 or 2 would not make
+        currentTemp = File.createTempFile(".recv-" + names[current], ".part", directory);
+        currentFile = new RandomAccessFile(currentTemp, "rw");
+        currentChannel = currentFile.getChannel();
+        currentWritten = 0;
+    }
+
+    private void finish() throws IOException {
+        if (currentChannel == null){
+            open();
+        }
+        // On disk before the rename, so a crash never leaves a truncated file under the real name
+        currentChannel.force(false);
+        closeCurrent();
+        File target = new File(directory, names[current]);
+        Files.move(currentTemp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        Logger.v(TAG, "Received " + target.getAbsolutePath() + " of " + lengths[current] + " bytes");
+        files.add(target);
+        currentTemp = null;
+        currentWritten = 0;
+        current++;
+    }
+
+    private void finishEmptyFiles() throws IOException {
+        while (!isComplete() && lengths[current] == 0){
+            finish();
+        }
+    }
+
+    private void closeCurrent(){
+        if (currentFile != null){
+            try {
+                currentFile.close();
+            } catch (IOException e) {
+                ErrorHandler.eLog(TAG, "Error closing " + currentTemp, e, false);
+            }
+        }
+        currentFile = null;
+        currentChannel = null;
+    }
+}
@@ -0,0 +1,717 @@
+package jp.oist.abcvlib.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One end of the framed protocol on a connected channel. Unlike the protocol of
+ * {@link SocketMessage}, which writes one message and then waits for one reply, both ends can
+ * send any number of messages at the same time, e.g. the server pushing a model while episodes
+ * are uploaded. Not thread-safe except for {@link #send}, everything else is called by the thread
+ * selecting on the channel, see {@link MultiplexedConnection} for the robot's end.
+ * <p>
+ * Each end first sends the 8 byte preface [int MAGIC][int VERSION], followed by frames of
+ * [int payloadLength][byte type][byte flags][int streamId][payload], all big-endian like the
+ * protoheaders of the legacy protocol. A legacy JSON header would never be MAGIC (1.1 GB) long,
+ * so a server can tell both protocols apart by the first 4 bytes.
+ * <p>
+ * A message is a stream: a frame flagged {@link #FLAG_HEADER} holding its JSON header, then
+ * frames of its content, the last one flagged {@link #FLAG_END}. The receiver answers with an
+ * {@link #ACK} frame holding a JSON object with "status" "ok" or "error". Streams opened by the
+ * client have odd ids, those opened by the server even ones. Content is sent in frames of at
+ * most the peer's max-frame, taking turns between streams, so no message holds up the others.
+ * <p>
+ * Flow control is credit based as in HTTP/2: the {@link #HELLO} frame sent after the preface
+ * announces how many content bytes the sender may have outstanding per stream and on the whole
+ * connection. Content frames use up credit and the receiver grants more with
+ * {@link #WINDOW_UPDATE} frames as it consumes the content, stream 0 meaning the connection.
+ */
+public class FramedSession {
+    private static final String TAG = "FramedSession";
+
+    public static final int MAGIC = 0x41424D58; // "ABMX"
+    public static final int VERSION = 1;
+    public static final int PREFACE_SIZE = 8;
+    public static final int FRAME_HEADER_SIZE = 10;
+
+    /**
+     * Stream 0, JSON object with "stream-window", "connection-window" and "max-frame".
+     */
+    public static final byte HELLO = 0;
+    /**
+     * A JSON header without content, e.g. to start or stop a trial.
+     */
+    public static final byte CONTROL = 1;
+    public static final byte EPISODE_CHUNK = 2;
+    /**
+     * JSON header with file-names and file-lengths as for "files" messages of the legacy
+     * protocol, followed by the files one after another.
+     */
+    public static final byte MODEL_FILE = 3;
+    /**
+     * JSON object with "status" "ok" or "error" and any fields of the receiver's reply.
+     */
+    public static final byte ACK = 4;
+    /**
+     * [int increment] of the credit of the stream, or of the connection for stream 0.
+     */
+    public static final byte WINDOW_UPDATE = 5;
+
+    public static final byte FLAG_HEADER = 1;
+    public static final byte FLAG_END = 2;
+
+    public static final int DEFAULT_MAX_FRAME = 64 * 1024;
+    public static final int DEFAULT_STREAM_WINDOW = 1024 * 1024;
+    public static final int DEFAULT_CONNECTION_WINDOW = 4 * 1024 * 1024;
+
+    /**
+     * Receives the messages the peer sends, on the thread selecting on the channel.
+     */
+    public interface Handler {
+        /**
+         * @param content from position 0 to its limit
+         * @return fields for the ACK, or null
+         * @throws IOException to answer with an error ACK instead
+         */
+        JSONObject onMessage(FramedSession session, byte type, JSONObject header, ByteBuffer content) throws IOException;
+
+        /**
+         * @return directory to write the files of a MODEL_FILE message to with a
+         * {@link FileStreamReceiver}, or null (default) to receive them in onMessage()
+         */
+        default File getFileDirectory(byte type, JSONObject header){
+            return null;
+        }
+
+        /**
+         * Called instead of onMessage() once all files have been written.
+         * @return fields for the ACK, or null
+         */
+        default JSONObject onFilesReceived(FramedSession session, byte type, JSONObject header, List<File> files) throws IOException {
+            return null;
+        }
+    }
+
+    private static class OutStream {
+        private final byte type;
+        private final ByteBuffer header;
+        private final ByteBuffer content;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private int id;
+        private long credit;
+        private boolean headerSent = false;
+
+        OutStream(byte type, ByteBuffer header, ByteBuffer content){
+            this.type = type;
+            this.header = header;
+            this.content = content;
+        }
+    }
+
+    private static class InStream {
+        private final byte type;
+        private final JSONObject header;
+        private final long contentLength;
+        private ByteBuffer content;
+        private FileStreamReceiver fileReceiver;
+        private long received = 0;
+        private long credit;
+        private long consumed = 0;
+        private String error;
+
+        InStream(byte type, JSONObject header, long contentLength, long credit){
+            this.type = type;
+            this.header = header;
+            this.contentLength = contentLength;
+            this.credit = credit;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final boolean client;
+    private final Handler handler;
+    private final Runnable wakeup;
+    private final int streamWindow;
+    private final int connectionWindow;
+    private final int maxFrame;
+
+    private final ConcurrentLinkedQueue<OutStream> newStreams = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<OutStream> sending = new ArrayDeque<>();
+    private final HashMap<Integer, OutStream> outStreams = new HashMap<>();
+    private final HashMap<Integer, InStream> inStreams = new HashMap<>();
+    private int nextStreamId;
+    private int lastPeerStreamId = 0;
+    private volatile boolean closed = false;
+
+    private final ByteBuffer in;
+    private ByteBuffer controlOut = ByteBuffer.allocate(1024);
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private OutStream writing;
+    private int writingLimit;
+
+    private boolean prefaceReceived = false;
+    private boolean helloReceived = false;
+    private boolean legacyPeer = false;
+    private long peerStreamWindow;
+    private long connectionCredit = 0;
+    private int peerMaxFrame;
+    private long connectionReceiveCredit;
+    private long connectionConsumed = 0;
+    private long lastProgress = System.nanoTime();
+
+    /**
+     * @param client true on the robot, whose streams get odd ids
+     * @param wakeup called after {@link #send} from another thread so that the selecting thread
+     *               calls {@link #process(SelectionKey)}, e.g. selector::wakeup
+     */
+    public FramedSession(SocketChannel channel, boolean client, Handler handler, Runnable wakeup){
+        this(channel, client, handler, wakeup, DEFAULT_STREAM_WINDOW, DEFAULT_CONNECTION_WINDOW, DEFAULT_MAX_FRAME);
+    }
+
+    /**
+     * @param streamWindow content bytes the peer may send per stream before credit is granted
+     * @param connectionWindow content bytes the peer may send across all streams
+     * @param maxFrame largest frame payload accepted, also bounding JSON headers
+     */
+    public FramedSession(SocketChannel channel, boolean client, Handler handler, Runnable wakeup,
+                         int streamWindow, int connectionWindow, int maxFrame){
+        this.channel = channel;
+        this.client = client;
+        this.handler = handler;
+        this.wakeup = wakeup;
+        this.streamWindow = streamWindow;
+        this.connectionWindow = connectionWindow;
+        this.maxFrame = maxFrame;
+        this.connectionReceiveCredit = connectionWindow;
+        this.nextStreamId = client ? 1 : 2;
+        this.in = ByteBuffer.allocate(maxFrame + FRAME_HEADER_SIZE + PREFACE_SIZE);
+        controlOut.putInt(MAGIC).putInt(VERSION);
+        try {
+            JSONObject hello = new JSONObject();
+            hello.put("stream-window", streamWindow);
+            hello.put("connection-window", connectionWindow);
+            hello.put("max-frame", maxFrame);
+            queueControl(HELLO, (byte) 0, 0, hello);
+        } catch (JSONException e) {
+            ErrorHandler.eLog(TAG, "Unable to create HELLO frame", e, true);
+        }
+    }
+
+    /**
+     * @return true if bytes start with the preface of this protocol, e.g. to tell it apart from
+     * the legacy protocol on the same port
+     */
+    public static boolean isPreface(ByteBuffer bytes){
+        return bytes.remaining() >= Integer.BYTES && bytes.getInt(bytes.position()) == MAGIC;
+    }
+
+    /**
+     * Opens a stream sending header and content. Thread-safe. Neither content nor its position
+     * may change until the future completes.
+     * @param header sent as is, with content-length added
+     * @return completes with true once the peer acknowledged the message, false if it answered
+     * with an error or the session closed first
+     */
+    public CompletableFuture<Boolean> send(byte type, JSONObject header, ByteBuffer content){
+        byte[] headerBytes;
+        try {
+            JSONObject fields = header != null ? new JSONObject(header.toString()) : new JSONObject();
+            fields.put("content-length", content.remaining());
+            headerBytes = fields.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            ErrorHandler.eLog(TAG, "Unable to create stream header", e, false);
+            return CompletableFuture.completedFuture(false);
+        }
+        OutStream stream = new OutStream(type, ByteBuffer.wrap(headerBytes), content.duplicate());
+        newStreams.add(stream);
+        if (closed){
+            failNewStreams();
+        } else {
+            wakeup.run();
+        }
+        return stream.result;
+    }
+
+    /**
+     * Starts the streams added by {@link #send} and updates the interest ops of key. Call on
+     * the selecting thread after every select().
+     */
+    public void process(SelectionKey key){
+        if (closed){
+            return;
+        }
+        if (helloReceived){
+            OutStream stream;
+            while ((stream = newStreams.poll()) != null){
+                if (stream.header.remaining() > peerMaxFrame){
+                    Logger.e(TAG, "Header of " + stream.header.remaining() + " bytes exceeds the peer's max-frame");
+                    stream.result.complete(false);
+                    continue;
+                }
+                stream.id = nextStreamId;
+                nextStreamId += 2;
+                stream.credit = peerStreamWindow;
+                outStreams.put(stream.id, stream);
+                sending.add(stream);
+            }
+        }
+        if (key.isValid() && channel.isConnected()){
+            key.interestOps(SelectionKey.OP_READ | (hasWritable() ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * @throws IOException if the connection failed or the peer broke the protocol, after which
+     * the session must be closed
+     */
+    public void handleEvent(SelectionKey key) throws IOException {
+        if (key.isValid() && key.isReadable()){
+            read();
+        }
+        if (key.isValid() && key.isWritable()){
+            write();
+        }
+        process(key);
+    }
+
+    /**
+     * @return true once the HELLO of the peer arrived and streams are being sent
+     */
+    public boolean isReady(){
+        return helloReceived;
+    }
+
+    /**
+     * @return true if the peer answered with something other than the preface, e.g. a server
+     * only speaking the legacy protocol
+     */
+    public boolean isLegacyPeer(){
+        return legacyPeer;
+    }
+
+    /**
+     * @return true if any stream sent or received is not finished
+     */
+    public boolean isBusy(){
+        return !outStreams.isEmpty() || !inStreams.isEmpty() || !newStreams.isEmpty();
+    }
+
+    /**
+     * @return true if a stream from the peer is not finished, i.e. closing now loses a message
+     */
+    public boolean isReceiving(){
+        return !inStreams.isEmpty();
+    }
+
+    /**
+     * @return System.nanoTime() of the last byte read or written
+     */
+    public long getLastProgressNanos(){
+        return lastProgress;
+    }
+
+    public boolean isClosed(){
+        return closed;
+    }
+
+    private boolean hasWritable(){
+        if (controlOut.position() > 0 || writing != null){
+            return true;
+        }
+        if (!helloReceived){
+            return false;
+        }
+        for (OutStream stream : sending){
+            if (isSendable(stream)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSendable(OutStream stream){
+        return !stream.headerSent || (stream.credit > 0 && connectionCredit > 0);
+    }
+
+    private void write() throws IOException {
+        while (true){
+            if (writing == null && controlOut.position() > 0){
+                controlOut.flip();
+                int written = channel.write(controlOut);
+                controlOut.compact();
+                if (written > 0){
+                    lastProgress = System.nanoTime();
+                }
+                if (controlOut.position() > 0){
+                    return;
+                }
+                continue;
+            }
+            if (writing == null && !startFrame()){
+                return;
+            }
+            if (channel.write(gather) > 0){
+                lastProgress = System.nanoTime();
+            }
+            if (frameHeader.hasRemaining() || gather[1].hasRemaining()){
+                return;
+            }
+            finishFrame();
+        }
+    }
+
+    /**
+     * Takes turns between the streams with something to send.
+     * @return false if no stream can send now
+     */
+    private boolean startFrame(){
+        if (!helloReceived){
+            return false;
+        }
+        for (int i = sending.size(); i > 0; i--){
+            OutStream stream = sending.poll();
+            if (!isSendable(stream)){
+                sending.add(stream);
+                continue;
+            }
+            writing = stream;
+            frameHeader.clear();
+            if (!stream.headerSent){
+                byte flags = (byte) (FLAG_HEADER | (stream.content.hasRemaining() ? 0 : FLAG_END));
+                frameHeader.putInt(stream.header.remaining()).put(stream.type).put(flags).putInt(stream.id);
+                gather[1] = stream.header;
+            } else {
+                int length = (int) Math.min(Math.min(stream.content.remaining(), peerMaxFrame),
+                        Math.min(stream.credit, connectionCredit));
+                boolean end = length == stream.content.remaining();
+                frameHeader.putInt(length).put(stream.type).put(end ? FLAG_END : 0).putInt(stream.id);
+                stream.credit -= length;
+                connectionCredit -= length;
+                writingLimit = stream.content.limit();
+                stream.content.limit(stream.content.position() + length);
+                gather[1] = stream.content;
+            }
+            frameHeader.flip();
+            gather[0] = frameHeader;
+            return true;
+        }
+        return false;
+    }
+
+    private void finishFrame(){
+        OutStream stream = writing;
+        writing = null;
+        gather[0] = null;
+        gather[1] = null;
+        boolean end;
+        if (!stream.headerSent){
+            stream.headerSent = true;
+            end = !stream.content.hasRemaining();
+        } else {
+            stream.content.limit(writingLimit);
+            end = !stream.content.hasRemaining();
+        }
+        if (!end && outStreams.containsKey(stream.id)){
+            sending.add(stream);
+        }
+    }
+
+    /**
+     * Takes bytes already read from the channel, e.g. by a server that looked at the first
+     * bytes to tell the protocols apart, as if they had been read here.
+     */
+    public void handleInitialBytes(ByteBuffer bytes) throws IOException {
+        in.put(bytes);
+        parse();
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(in);
+        if (read < 0){
+            throw new IOException("Connection closed by peer");
+        }
+        if (read > 0){
+            lastProgress = System.nanoTime();
+        }
+        parse();
+    }
+
+    private void parse() throws IOException {
+        in.flip();
+        try {
+            if (!prefaceReceived){
+                if (in.remaining() >= Integer.BYTES && !isPreface(in)){
+                    legacyPeer = true;
+                    throw new IOException("Peer does not speak the framed protocol");
+                }
+                if (in.remaining() < PREFACE_SIZE){
+                    return;
+                }
+                in.getInt();
+                int version = in.getInt();
+                if (version != VERSION){
+                    throw new IOException("Unsupported framed protocol version " + version);
+                }
+                prefaceReceived = true;
+            }
+            while (in.remaining() >= FRAME_HEADER_SIZE){
+                int start = in.position();
+                int length = in.getInt(start);
+                if (length < 0 || length > maxFrame){
+                    throw new IOException("Frame of " + length + " bytes exceeds max-frame " + maxFrame);
+                }
+                if (in.remaining() < FRAME_HEADER_SIZE + length){
+                    break;
+                }
+                byte type = in.get(start + 4);
+                byte flags = in.get(start + 5);
+                int streamId = in.getInt(start + 6);
+                in.position(start + FRAME_HEADER_SIZE);
+                ByteBuffer payload = in.slice();
+                payload.limit(length);
+                in.position(start + FRAME_HEADER_SIZE + length);
+                handleFrame(type, flags, streamId, payload);
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void handleFrame(byte type, byte flags, int streamId, ByteBuffer payload) throws IOException {
+        switch (type){
+            case HELLO:
+                JSONObject hello = json(payload);
+                peerStreamWindow = hello.optLong("stream-window", DEFAULT_STREAM_WINDOW);
+                connectionCredit += hello.optLong("connection-window", DEFAULT_CONNECTION_WINDOW);
+                peerMaxFrame = hello.optInt("max-frame", DEFAULT_MAX_FRAME);
+                if (peerStreamWindow <= 0 || peerMaxFrame <= 0){
+                    throw new IOException("Invalid HELLO " + hello);
+                }
+                helloReceived = true;
+                break;
+            case WINDOW_UPDATE:
+                if (payload.remaining() < Integer.BYTES){
+                    throw new IOException("Truncated WINDOW_UPDATE");
+                }
+                int increment = payload.getInt(payload.position());
+                if (streamId == 0){
+                    connectionCredit += increment;
+                } else {
+                    OutStream stream = outStreams.get(streamId);
+                    if (stream != null){
+                        stream.credit += increment;
+                    }
+                }
+                break;
+            case ACK:
+                OutStream acked = outStreams.remove(streamId);
+                if (acked != null){
+                    sending.remove(acked);
+                    JSONObject ack = payload.hasRemaining() ? json(payload) : new JSONObject();
+                    if ("error".equals(ack.optString("status"))){
+                        Logger.w(TAG, "Peer rejected stream " + streamId + ": " + ack.optString("reason"));
+                        acked.result.complete(false);
+                    } else {
+                        acked.result.complete(true);
+                    }
+                }
+                break;
+            case CONTROL:
+            case EPISODE_CHUNK:
+            case MODEL_FILE:
+                if ((flags & FLAG_HEADER) != 0){
+                    openInStream(type, streamId, payload);
+                } else {
+                    receiveContent(streamId, payload);
+                }
+                if ((flags & FLAG_END) != 0){
+                    finishInStream(streamId);
+                }
+                break;
+            default:
+                // Room for later versions, a frame of an unknown type is skipped
+                Logger.w(TAG, "Skipping frame of unknown type " + type);
+        }
+    }
+
+    private void openInStream(byte type, int streamId, ByteBuffer payload) throws IOException {
+        // The peer's streams have the other parity and increasing ids
+        if (streamId <= lastPeerStreamId || (streamId % 2 == 1) == client){
+            throw new IOException("Invalid stream id " + streamId);
+        }
+        lastPeerStreamId = streamId;
+        JSONObject header = json(payload);
+        long contentLength = header.optLong("content-length", 0);
+        InStream stream = new InStream(type, header, contentLength, streamWindow);
+        inStreams.put(streamId, stream);
+        try {
+            File directory = type == MODEL_FILE ? handler.getFileDirectory(type, header) : null;
+            if (directory != null){
+                stream.fileReceiver = new FileStreamReceiver(header, directory);
+            } else if (contentLength < 0 || contentLength > Integer.MAX_VALUE){
+                stream.error = "content-length " + contentLength + " out of range";
+            } else {
+                stream.content = ByteBuffer.allocate((int) contentLength);
+            }
+        } catch (IOException e) {
+            stream.error = e.getMessage();
+        }
+    }
+
+    private void receiveContent(int streamId, ByteBuffer payload) throws IOException {
+        InStream stream = inStreams.get(streamId);
+        if (stream == null){
+            throw new IOException("Content for unknown stream " + streamId);
+        }
+        int length = payload.remaining();
+        if (length > stream.credit || length > connectionReceiveCredit){
+            throw new IOException("Stream " + streamId + " exceeded its flow control window");
+        }
+        stream.credit -= length;
+        connectionReceiveCredit -= length;
+        stream.received += length;
+        if (stream.error == null){
+            try {
+                if (stream.received > stream.contentLength){
+                    stream.error = "more than content-length " + stream.contentLength + " bytes";
+                } else if (stream.fileReceiver != null){
+                    stream.fileReceiver.write(payload);
+                } else {
+                    stream.content.put(payload);
+                }
+            } catch (IOException e) {
+                // Only the files can fail, the rest of the stream is still read and dropped
+                stream.error = e.getMessage();
+                stream.fileReceiver.abort();
+            }
+        }
+        // Grant more once half of a window has been consumed, rather than per frame
+        stream.consumed += length;
+        connectionConsumed += length;
+        if (stream.consumed >= streamWindow / 2 && stream.received < stream.contentLength){
+            queueWindowUpdate(streamId, stream.consumed);
+            stream.credit += stream.consumed;
+            stream.consumed = 0;
+        }
+        if (connectionConsumed >= connectionWindow / 2){
+            queueWindowUpdate(0, connectionConsumed);
+            connectionReceiveCredit += connectionConsumed;
+            connectionConsumed = 0;
+        }
+    }
+
+    private void finishInStream(int streamId) throws IOException {
+        InStream stream = inStreams.remove(streamId);
+        if (stream == null){
+            throw new IOException("End of unknown stream " + streamId);
+        }
+        JSONObject reply = null;
+        if (stream.error == null && stream.received != stream.contentLength){
+            stream.error = stream.received + " of content-length " + stream.contentLength + " bytes";
+        }
+        if (stream.error == null){
+            try {
+                if (stream.fileReceiver != null){
+                    reply = handler.onFilesReceived(this, stream.type, stream.header, stream.fileReceiver.getFiles());
+                } else {
+                    stream.content.flip();
+                    reply = handler.onMessage(this, stream.type, stream.header, stream.content);
+                }
+            } catch (IOException e) {
+                stream.error = e.getMessage();
+            }
+        } else if (stream.fileReceiver != null){
+            stream.fileReceiver.abort();
+        }
+        try {
+            JSONObject ack = reply != null ? reply : new JSONObject();
+            if (stream.error != null){
+                Logger.w(TAG, "Stream " + streamId + " failed: " + stream.error);
+                ack.put("status", "error");
+                ack.put("reason", stream.error);
+            } else {
+                ack.put("status", "ok");
+            }
+            queueControl(ACK, (byte) 0, streamId, ack);
+        } catch (JSONException e) {
+            ErrorHandler.eLog(TAG, "Unable to create ACK", e, false);
+        }
+    }
+
+    private void queueWindowUpdate(int streamId, long increment){
+        ensureControlCapacity(FRAME_HEADER_SIZE + Integer.BYTES);
+        controlOut.putInt(Integer.BYTES).put(WINDOW_UPDATE).put((byte) 0).putInt(streamId)
+                .putInt((int) increment);
+    }
+
+    private void queueControl(byte type, byte flags, int streamId, JSONObject payload){
+        byte[] bytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+        ensureControlCapacity(FRAME_HEADER_SIZE + bytes.length);
+        controlOut.putInt(bytes.length).put(type).put(flags).putInt(streamId).put(bytes);
+    }
+
+    private void ensureControlCapacity(int bytes){
+        if (controlOut.remaining() < bytes){
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(controlOut.capacity() * 2, controlOut.position() + bytes));
+            controlOut.flip();
+            larger.put(controlOut);
+            controlOut = larger;
+        }
+    }
+
+    private static JSONObject json(ByteBuffer payload) throws IOException {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        try {
+            return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("Malformed JSON in frame", e);
+        }
+    }
+
+    private void failNewStreams(){
+        OutStream stream;
+        while ((stream = newStreams.poll()) != null){
+            stream.result.complete(false);
+        }
+    }
+
+    /**
+     * Closes the channel. Streams not yet acknowledged complete with false and files being
+     * received are deleted.
+     */
+    public void close(){
+        closed = true;
+        for (Iterator<OutStream> streams = outStreams.values().iterator(); streams.hasNext(); ){
+            streams.next().result.complete(false);
+            streams.remove();
+        }
+        sending.clear();
+        failNewStreams();
+        for (InStream stream : inStreams.values()){
+            if (stream.fileReceiver != null){
+                stream.fileReceiver.abort();
+            }
+        }
+        inStreams.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ErrorHandler.eLog(TAG, "Error closing channel", e, false);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package jp.oist.abcvlib.util;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses camera frames on a fixed number of threads with a bounded queue. When frames arrive
+ * faster than they can be compressed the oldest queued frame is dropped (its future cancelled
+ * and its listener told) rather than spawning more threads or delaying every later frame.
+ * <p>
+ * Each worker compresses into an output buffer of its own that is reused from frame to frame,
+ * so only the final copy of the compressed bytes is allocated. Times spent queued and
+ * compressing are tracked per frame to weigh the {@link Tier} against the CPU it costs.
+ */
+public class ImageCompressionPool {
+    private static final String TAG = "ImageCompression";
+
+    /**
+     * Format and quality to compress frames with, from largest and slowest to smallest.
+     */
+    public enum Tier {
+        LOSSLESS(Bitmap.CompressFormat.WEBP_LOSSLESS, 100),
+        HIGH(Bitmap.CompressFormat.WEBP_LOSSY, 90),
+        MEDIUM(Bitmap.CompressFormat.WEBP_LOSSY, 50),
+        // Smallest WEBP, what frames were always compressed with
+        LOW(Bitmap.CompressFormat.WEBP_LOSSY, 0),
+        // Usually hardware accelerated so the cheapest on CPU, but not WEBP
+        JPEG(Bitmap.CompressFormat.JPEG, 75);
+
+        private final Bitmap.CompressFormat format;
+        private final int quality;
+
+        Tier(Bitmap.CompressFormat format, int quality){
+            this.format = format;
+            this.quality = quality;
+        }
+
+        public Bitmap.CompressFormat getFormat(){
+            return format;
+        }
+
+        public int getQuality(){
+            return quality;
+        }
+    }
+
+    /**
+     * Told about every frame submitted, on the thread that compressed or dropped it.
+     */
+    public interface Listener {
+        void onCompressed(byte[] compressed);
+
+        /**
+         * Called before the frame's future is cancelled, so waiters never see a dropped frame
+         * that is not yet cleaned up.
+         */
+        void onDropped();
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadLocal<ByteArrayOutputStream> outputBuffers;
+    private volatile Tier tier = Tier.LOW;
+    private long compressed = 0;
+    private long dropped = 0;
+    private long failed = 0;
+    private long bytesOut = 0;
+    private final RunningStats queueNanos = new RunningStats();
+    private final RunningStats compressNanos = new RunningStats();
+
+    /**
+     * Two threads below the control loop's priority queueing up to 8 frames.
+     */
+    public ImageCompressionPool(){
+        this(2, 8, Thread.NORM_PRIORITY, 64 * 1024);
+    }
+
+    /**
+     * @param queueCapacity frames waiting for a thread before the oldest is dropped
+     * @param outputBufferSize initial size of each thread's output buffer, which grows to the
+     *                         largest frame it has compressed
+     */
+    public ImageCompressionPool(int threads, int queueCapacity, int threadPriority, int outputBufferSize){
+        if (threads < 1 || queueCapacity < 1){
+            throw new IllegalArgumentException("threads and queueCapacity must be at least 1. " +
+                    threads + " and " + queueCapacity + " provided.");
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ProcessPriorityThreadFactory(threadPriority, TAG), new DropOldestPolicy());
+        // Let the threads go while the camera is off
+        executor.allowCoreThreadTimeOut(true);
+        outputBuffers = new ThreadLocal<ByteArrayOutputStream>(){
+            @Override
+            protected ByteArrayOutputStream initialValue() {
+                return new ByteArrayOutputStream(outputBufferSize);
+            }
+        };
+    }
+
+    public void setTier(Tier tier){
+        this.tier = tier;
+    }
+
+    public Tier getTier(){
+        return tier;
+    }
+
+    /**
+     * @return future completing once the frame is compressed and the listener was called.
+     * Cancelled if the frame was dropped.
+     */
+    public Future<?> submit(Bitmap bitmap, Listener listener){
+        CompressionTask task = new CompressionTask(bitmap, listener, System.nanoTime());
+        executor.execute(task);
+        return task;
+    }
+
+    public void shutdown(){
+        executor.shutdown();
+    }
+
+    private void compress(Bitmap bitmap, Listener listener, long submitted){
+        long start = System.nanoTime();
+        Tier tier = this.tier;
+        ByteArrayOutputStream output = outputBuffers.get();
+        output.reset();
+        if (!bitmap.compress(tier.getFormat(), tier.getQuality(), output)){
+            synchronized (this){
+                failed++;
+            }
+            Logger.w(TAG, "Unable to compress a " + bitmap.getWidth() + "x" +
+                    bitmap.getHeight() + " frame as " + tier);
+            listener.onDropped();
+            return;
+        }
+        byte[] bytes = output.toByteArray();
+        long stop = System.nanoTime();
+        synchronized (this){
+            compressed++;
+            bytesOut += bytes.length;
+            queueNanos.add(start - submitted);
+            compressNanos.add(stop - start);
+        }
+        listener.onCompressed(bytes);
+    }
+
+    private class CompressionTask extends FutureTask<Void> {
+        private final Listener listener;
+
+        CompressionTask(Bitmap bitmap, Listener listener, long submitted){
+            super(() -> {
+                compress(bitmap, listener, submitted);
+                return null;
+            });
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Makes room for a new frame by dropping the one that has waited longest.
+     */
+    private class DropOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()){
+                drop(task);
+                return;
+            }
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null){
+                drop(oldest);
+            }
+            // Another publisher may have taken the slot just freed, then this frame goes instead
+            if (!executor.getQueue().offer(task)){
+                drop(task);
+            }
+        }
+
+        private void drop(Runnable task){
+            synchronized (ImageCompressionPool.this){
+                dropped++;
+            }
+            if (task instanceof CompressionTask){
+                ((CompressionTask) task).listener.onDropped();
+            }
+            if (task instanceof Future){
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    public synchronized long getCompressedCount(){
+        return compressed;
+    }
+
+    /**
+     * @return frames dropped because the queue was full
+     */
+    public synchronized long getDroppedCount(){
+        return dropped;
+    }
+
+    /**
+     * @return frames Bitmap.compress() failed on
+     */
+    public synchronized long getFailedCount(){
+        return failed;
+    }
+
+    public synchronized long getBytesOut(){
+        return bytesOut;
+    }
+
+    public synchronized double getMeanCompressMillis(){
+        return compressNanos.getMean() / 1e6;
+    }
+
+    public synchronized double getMaxCompressMillis(){
+        return compressNanos.getMax() / 1e6;
+    }
+
+    /**
+     * @return compression time of the most recent frame
+     */
+    public synchronized double getLastCompressMillis(){
+        return compressNanos.getLast() / 1e6;
+    }
+
+    /**
+     * @return mean time frames waited for a thread
+     */
+    public synchronized double getMeanQueueMillis(){
+        return queueNanos.getMean() / 1e6;
+    }
+
+    public synchronized double getMaxQueueMillis(){
+        return queueNanos.getMax() / 1e6;
+    }
+
+    public synchronized void resetStats(){
+        compressed = 0;
+        dropped = 0;
+        failed = 0;
+        bytesOut = 0;
+        queueNanos.reset();
+        compressNanos.reset();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return tier + ": " + compressed + " frames, " +
+                (compressed == 0 ? 0 : bytesOut / compressed) + " bytes each, " +
+                String.format(Locale.US, "compress mean %.1f max %.1f ms, queued mean %.1f max %.1f ms, ",
+                        getMeanCompressMillis(), getMaxCompressMillis(), getMeanQueueMillis(), getMaxQueueMillis()) +
+                dropped + " dropped" + (failed > 0 ? ", " + failed + " failed" : "");
+    }
+}
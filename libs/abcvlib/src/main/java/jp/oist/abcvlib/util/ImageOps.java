@@ -5,7 +5,6 @@ import android.graphics.BitmapFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.util.Objects;
 
 import jp.oist.abcvlib.core.inputs.TimeStepDataBuffer;
 
@@ -24,11 +23,26 @@ public class ImageOps {
         return BitmapFactory.decodeStream(bais, null, null);
     }
 
-    public static void addCompressedImage2Buffer(int idx, long timestamp, Bitmap bitmap, TimeStepDataBuffer.TimeStepData[] buffer){
+    /**
+     * Compresses bitmap and stores it with the image of the given timestamp in slot, provided the
+     * slot still holds the timestep with the given sequence number.
+     * @return false if the slot was recycled while compressing, in which case nothing is written
+     */
+    public static boolean addCompressedImage2Buffer(TimeStepDataBuffer.TimeStepData slot, long sequence,
+                                                    long timestamp, Bitmap bitmap){
         ByteArrayOutputStream webpByteArrayOutputStream = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.WEBP, 0, webpByteArrayOutputStream);
         byte[] webpBytes = webpByteArrayOutputStream.toByteArray();
 //        Bitmap webpBitMap = ImageOps.generateBitmap(webpBytes);
-        Objects.requireNonNull(buffer[idx].getImageData().get(timestamp)).setWebpImage(webpBytes);
+        return addCompressedImage2Buffer(slot, sequence, timestamp, webpBytes);
+    }
+
+    /**
+     * Stores an image already compressed, e.g. by {@link ImageCompressionPool}, in slot under the
+     * same conditions as above.
+     */
+    public static boolean addCompressedImage2Buffer(TimeStepDataBuffer.TimeStepData slot, long sequence,
+                                                    long timestamp, byte[] webpBytes){
+        return slot.setWebpImage(sequence, timestamp, webpBytes);
     }
 }
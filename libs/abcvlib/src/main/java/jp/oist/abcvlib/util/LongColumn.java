@@ -0,0 +1,131 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Growable column of primitive longs. See {@link PrimitiveColumn}.
+ */
+public class LongColumn extends PrimitiveColumn {
+    private long[] data;
+
+    public LongColumn(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongColumn(int initialCapacity){
+        this(initialCapacity, false);
+    }
+
+    /**
+     * @param direct true to keep the values off-heap in a little-endian direct ByteBuffer
+     */
+    public LongColumn(int initialCapacity, boolean direct){
+        super(initialCapacity, direct);
+        if (!direct){
+            data = new long[Math.max(1, initialCapacity)];
+        }
+    }
+
+    public void add(long value){
+        if (size == capacity()){
+            grow(newCapacity(size + 1));
+        }
+        if (direct != null){
+            direct.putLong(size * 8, value);
+        } else {
+            data[size] = value;
+        }
+        size++;
+    }
+
+    /**
+     * Appends length values from src starting at offset with a single bulk copy.
+     */
+    public void addAll(long[] src, int offset, int length){
+        ensureCapacity(size + length);
+        if (direct != null){
+            LongBuffer view = direct.duplicate().order(direct.order()).asLongBuffer();
+            view.position(size);
+            view.put(src, offset, length);
+        } else {
+            System.arraycopy(src, offset, data, size, length);
+        }
+        size += length;
+    }
+
+    public long get(int index){
+        checkIndex(index);
+        return direct != null ? direct.getLong(index * 8) : data[index];
+    }
+
+    /**
+     * @return the most recently added value
+     */
+    public long getLast(){
+        return get(size - 1);
+    }
+
+    /**
+     * Direct view of the backing array of a heap column. Only the first {@link #size()} values
+     * are valid and the array is replaced if the column has to grow, so do not hold onto it
+     * across adds. Use {@link #byteView()} for direct columns.
+     * @throws IllegalStateException if the column is direct
+     */
+    public long[] array(){
+        if (direct != null){
+            throw new IllegalStateException("array() is only available on heap columns");
+        }
+        return data;
+    }
+
+    /**
+     * @return a copy of the valid values made with a single bulk copy
+     */
+    public long[] toArray(){
+        int length = size;
+        long[] copy = new long[length];
+        copyTo(copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Copies the valid values into dst starting at offset.
+     * @return number of values copied
+     */
+    public int copyTo(long[] dst, int offset){
+        int length = size;
+        copyTo(dst, offset, length);
+        return length;
+    }
+
+    private void copyTo(long[] dst, int offset, int length){
+        if (direct != null){
+            direct.duplicate().order(direct.order()).asLongBuffer().get(dst, offset, length);
+        } else {
+            System.arraycopy(data, 0, dst, offset, length);
+        }
+    }
+
+    @Override
+    public int elementSize(){
+        return 8;
+    }
+
+    @Override
+    protected int heapCapacity(){
+        return data.length;
+    }
+
+    @Override
+    protected void growHeap(int newCapacity){
+        long[] grown = new long[newCapacity];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+    }
+
+    @Override
+    protected void writeHeapTo(ByteBuffer dst, int length){
+        dst.asLongBuffer().put(data, 0, length);
+    }
+}
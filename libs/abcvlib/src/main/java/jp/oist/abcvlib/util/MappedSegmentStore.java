@@ -0,0 +1,187 @@
+package jp.oist.abcvlib.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Append-only store of byte records kept in memory-mapped segment files, so large amounts of
+ * data (e.g. the serialized timesteps of a long episode) live in the page cache and on disk
+ * rather than on the Java heap. Records are addressed by the index returned from
+ * {@link #append(ByteBuffer)} and read back zero-copy as slices of the mapped segments.
+ * <p>
+ * Segments are created lazily and kept across {@link #clear()} so that consecutive episodes
+ * reuse the same files and mappings. Records start at 8 byte aligned positions within a
+ * segment. A record larger than the segment size gets a dedicated segment of its own.
+ * <p>
+ * Appending and reading are not synchronized against each other; callers append from a single
+ * thread and only read records that have been completely appended.
+ */
+public class MappedSegmentStore implements Closeable {
+    private static final String TAG = "MappedSegmentStore";
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int ALIGNMENT = 8;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    private final ArrayList<File> segmentFiles = new ArrayList<>();
+    // Location of each record
+    private final IntColumn recordSegments = new IntColumn();
+    private final IntColumn recordPositions = new IntColumn();
+    private final IntColumn recordLengths = new IntColumn();
+    private int currentSegment = 0;
+    private int currentPosition = 0;
+    private long bytesStored = 0;
+
+    public MappedSegmentStore(File directory, String prefix){
+        this(directory, prefix, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory directory segment files are created in, e.g. below Context.getFilesDir()
+     * @param prefix segment files are named prefix-N.seg
+     * @param segmentSize size in bytes of each segment file
+     */
+    public MappedSegmentStore(File directory, String prefix, int segmentSize){
+        if (segmentSize < ALIGNMENT){
+            throw new IllegalArgumentException("segmentSize must be at least " + ALIGNMENT +
+                    ". segmentSize of " + segmentSize + " provided.");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Copies the remaining bytes of record into the store without changing its position.
+     * @return index of the record
+     */
+    public int append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (currentSegment < segments.size() &&
+                currentPosition + length > segments.get(currentSegment).capacity()){
+            currentSegment++;
+            currentPosition = 0;
+        }
+        // Reuse segments from previous episodes where the record fits, otherwise map a new one
+        while (currentSegment < segments.size() && length > segments.get(currentSegment).capacity()){
+            currentSegment++;
+        }
+        if (currentSegment == segments.size()){
+            mapSegment(Math.max(segmentSize, align(length)));
+        }
+        MappedByteBuffer segment = segments.get(currentSegment);
+        ByteBuffer target = segment.duplicate();
+        target.position(currentPosition);
+        target.put(record.duplicate());
+
+        recordSegments.add(currentSegment);
+        recordPositions.add(currentPosition);
+        recordLengths.add(length);
+        currentPosition = align(currentPosition + length);
+        bytesStored += length;
+        return recordLengths.size() - 1;
+    }
+
+    /**
+     * @return read-only little-endian view of the record, positioned at its start
+     */
+    public ByteBuffer get(int index){
+        if (index < 0 || index >= size()){
+            throw new IndexOutOfBoundsException("Record " + index + " of " + size());
+        }
+        ByteBuffer view = segments.get(recordSegments.get(index)).asReadOnlyBuffer();
+        int position = recordPositions.get(index);
+        view.limit(position + recordLengths.get(index));
+        view.position(position);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getLength(int index){
+        return recordLengths.get(index);
+    }
+
+    /**
+     * @return index of the segment holding the record. The records of a segment are consecutive.
+     */
+    public int getSegment(int index){
+        return recordSegments.get(index);
+    }
+
+    /**
+     * @return number of records appended since the last {@link #clear()}
+     */
+    public int size(){
+        return recordLengths.size();
+    }
+
+    /**
+     * @return total length of all records appended since the last {@link #clear()}
+     */
+    public long getBytesStored(){
+        return bytesStored;
+    }
+
+    /**
+     * @return number of segments mapped, i.e. the disk footprint in units of the segment size
+     */
+    public int getSegmentCount(){
+        return segments.size();
+    }
+
+    /**
+     * Drops all records but keeps the segment files mapped for reuse.
+     */
+    public void clear(){
+        recordSegments.reset();
+        recordPositions.reset();
+        recordLengths.reset();
+        currentSegment = 0;
+        currentPosition = 0;
+        bytesStored = 0;
+    }
+
+    /**
+     * Drops all records and deletes the segment files. Mapped memory is released once the
+     * buffers are garbage collected.
+     */
+    @Override
+    public void close(){
+        clear();
+        segments.clear();
+        for (File file : segmentFiles){
+            if (!file.delete()){
+                Logger.w(TAG, "Unable to delete " + file.getAbsolutePath());
+            }
+        }
+        segmentFiles.clear();
+    }
+
+    private void mapSegment(int size) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()){
+            throw new IOException("Unable to create " + directory.getAbsolutePath());
+        }
+        File file = new File(directory, prefix + "-" + segments.size() + ".seg");
+        // The mapping stays valid after the file and channel are closed
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()){
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.add(segment);
+            segmentFiles.add(file);
+        }
+        Logger.v(TAG, "Mapped segment " + file.getAbsolutePath() + " of " + size + " bytes");
+    }
+
+    private static int align(int position){
+        return (position + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
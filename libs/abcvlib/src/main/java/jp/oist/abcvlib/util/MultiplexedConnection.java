@@ -0,0 +1,439 @@
+package jp.oist.abcvlib.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The robot's end of the framed protocol of {@link FramedSession}: one connection carrying
+ * episode uploads, control messages and models pushed by the server at the same time. Messages
+ * from the server go to the SocketListener as with the legacy protocol, MODEL_FILE messages
+ * straight to disk if it returns a directory from getFileDirectory().
+ * <p>
+ * A server that accepts the connection but does not answer the preface with its own within the
+ * handshake timeout, closes the connection or answers with anything else is taken to only speak
+ * the legacy protocol. Messages are then
+ * sent through a {@link PersistentConnectionManager} instead (unless the fallback is disabled),
+ * which only supports episodes and no messages initiated by the server.
+ * <p>
+ * Messages are queued until connected. When the connection fails, messages in flight complete
+ * with false and the connection is reopened for the next ones after a backoff.
+ */
+public class MultiplexedConnection implements ServerConnection {
+    private static final String TAG = "MultiplexedConnection";
+
+    private final SocketListener socketListener;
+    private final InetSocketAddress inetSocketAddress;
+    private final Selector selector;
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(
+            new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, TAG));
+    private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+    private volatile PersistentConnectionManager legacy;
+    private volatile boolean legacyFallback = true;
+    // 0 to wait for the server indefinitely
+    private volatile long timeoutMillis = 0;
+    private volatile long handshakeTimeoutMillis = 2000;
+    private volatile long minBackoffMillis = 250;
+    private volatile long maxBackoffMillis = 30000;
+    private volatile int sendBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
+    private volatile int receiveBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
+
+    // Only touched by the connection thread
+    private SocketChannel sc;
+    private SelectionKey key;
+    private FramedSession session;
+    private int failures = 0;
+    private long reconnectAt = 0;
+
+    private long connects = 0;
+    private long sent = 0;
+    private long failed = 0;
+
+    private static class Message {
+        private final byte type;
+        private final ByteBuffer payload;
+        private final JSONObject header;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Message(byte type, ByteBuffer payload, JSONObject header){
+            this.type = type;
+            this.payload = payload;
+            this.header = header;
+        }
+    }
+
+    public MultiplexedConnection(SocketListener socketListener, InetSocketAddress inetSocketAddress) throws IOException {
+        this.socketListener = socketListener;
+        this.inetSocketAddress = inetSocketAddress;
+        this.selector = Selector.open();
+        thread.execute(this::run);
+    }
+
+    /**
+     * Queues an episode (or a chunk of one) with the same JSON header as the legacy protocol.
+     * Neither payload nor its position may change until the future completes.
+     * @param headerFields additional fields for the JSON header, may be null
+     * @return completes with true once the server acknowledged the episode
+     */
+    public CompletableFuture<Boolean> send(ByteBuffer payload, JSONObject headerFields){
+        JSONObject header = new JSONObject();
+        try {
+            header.put("byteorder", ByteOrder.nativeOrder().toString());
+            header.put("content-type", "episode");
+            header.put("content-encoding", "flatbuffer");
+            if (headerFields != null){
+                Iterator<String> keys = headerFields.keys();
+                while (keys.hasNext()){
+                    String name = keys.next();
+                    header.put(name, headerFields.get(name));
+                }
+            }
+        } catch (JSONException e) {
+            ErrorHandler.eLog(TAG, "Unable to create episode header", e, false);
+            return CompletableFuture.completedFuture(false);
+        }
+        return send(FramedSession.EPISODE_CHUNK, payload, header);
+    }
+
+    /**
+     * Sends a message without content, e.g. telemetry or a request for a new model.
+     * @return completes with false right away when falling back to the legacy protocol
+     */
+    public CompletableFuture<Boolean> sendControl(JSONObject message){
+        return send(FramedSession.CONTROL, ByteBuffer.allocate(0), message);
+    }
+
+    /**
+     * @param type one of the message types of FramedSession
+     * @param header sent as is, with content-length added
+     */
+    public CompletableFuture<Boolean> send(byte type, ByteBuffer payload, JSONObject header){
+        Message message = new Message(type, payload, header);
+        PersistentConnectionManager legacy = this.legacy;
+        if (legacy != null){
+            forwardToLegacy(legacy, message);
+            return message.result;
+        }
+        queue.add(message);
+        if (closed){
+            failQueued();
+        } else if (this.legacy != null){
+            // Fell back while this was being queued
+            drainToLegacy(this.legacy);
+        } else {
+            selector.wakeup();
+        }
+        return message.result;
+    }
+
+    @Override
+    public boolean sendAndWait(ByteBuffer payload, JSONObject headerFields){
+        try {
+            return send(payload, headerFields).get();
+        } catch (ExecutionException e) {
+            ErrorHandler.eLog(TAG, "Upload failed", e, false);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param timeoutMillis time without progress while messages are in flight after which the
+     *                      connection is given up, 0 (default) to wait indefinitely
+     */
+    public void setTimeout(long timeoutMillis){
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param handshakeTimeoutMillis wait for the server's preface before falling back to the
+     *                               legacy protocol, 2 s by default
+     */
+    public void setHandshakeTimeout(long handshakeTimeoutMillis){
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    /**
+     * @param legacyFallback false to fail messages instead of sending them with the legacy
+     *                       protocol when the server does not speak the framed one
+     */
+    public void setLegacyFallback(boolean legacyFallback){
+        this.legacyFallback = legacyFallback;
+    }
+
+    /**
+     * @param minBackoffMillis wait before reconnecting after the first failure, doubled for
+     *                         every further failure in a row
+     * @param maxBackoffMillis longest wait between reconnects
+     */
+    public void setBackoff(long minBackoffMillis, long maxBackoffMillis){
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Applies from the next connection on.
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 to keep the OS default
+     * @param receiveBufferSize SO_RCVBUF in bytes, 0 to keep the OS default
+     */
+    public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize){
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @return true once messages go through the legacy protocol
+     */
+    public boolean isLegacy(){
+        return legacy != null;
+    }
+
+    public synchronized long getConnectCount(){
+        return connects;
+    }
+
+    public synchronized long getSentCount(){
+        return sent;
+    }
+
+    public synchronized long getFailedCount(){
+        return failed;
+    }
+
+    private void run(){
+        try {
+            while (!closed && legacy == null){
+                if (session == null && !queue.isEmpty() && System.nanoTime() >= reconnectAt){
+                    connect();
+                }
+                if (session != null && session.isReady()){
+                    Message message;
+                    while ((message = queue.poll()) != null){
+                        start(message);
+                    }
+                }
+                if (session != null){
+                    session.process(key);
+                }
+                selector.select(selectTimeout());
+                for (SelectionKey selectedKey : selector.selectedKeys()){
+                    if (selectedKey != key || !selectedKey.isValid()){
+                        continue;
+                    }
+                    try {
+                        if (selectedKey.isConnectable() && sc.finishConnect()){
+                            Logger.d(TAG, "Connected to " + inetSocketAddress);
+                        }
+                        session.handleEvent(selectedKey);
+                    } catch (IOException e) {
+                        connectionFailed(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+                checkTimeouts();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            ErrorHandler.eLog(TAG, "Connection thread stopped", e, false);
+        } finally {
+            disconnect();
+            if (legacy == null){
+                failQueued();
+            }
+        }
+    }
+
+    private long selectTimeout(){
+        long timeout = Long.MAX_VALUE;
+        if (session != null && !session.isReady()){
+            timeout = handshakeTimeoutMillis;
+        } else if (session != null && session.isBusy() && timeoutMillis > 0){
+            timeout = timeoutMillis;
+        } else if (session == null && !queue.isEmpty()){
+            // Waiting out the backoff before the next reconnect
+            timeout = TimeUnit.NANOSECONDS.toMillis(reconnectAt - System.nanoTime());
+        }
+        return timeout == Long.MAX_VALUE ? 0 : Math.max(1, timeout);
+    }
+
+    private void checkTimeouts(){
+        if (session == null){
+            return;
+        }
+        long idle = System.nanoTime() - session.getLastProgressNanos();
+        if (!session.isReady() && idle >= TimeUnit.MILLISECONDS.toNanos(handshakeTimeoutMillis)){
+            connectionFailed(new IOException("No preface from the server within " + handshakeTimeoutMillis + " ms"));
+        } else if (session.isReady() && session.isBusy() && timeoutMillis > 0 &&
+                idle >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)){
+            connectionFailed(new IOException("No progress for " + timeoutMillis + " ms"));
+        }
+    }
+
+    private void connect() throws IOException {
+        Logger.d(TAG, "Connecting to " + inetSocketAddress);
+        synchronized (this){
+            connects++;
+        }
+        sc = SocketChannel.open();
+        sc.configureBlocking(false);
+        SocketMessage.configureSocket(sc, sendBufferSize, receiveBufferSize);
+        session = new FramedSession(sc, true, new ListenerHandler(), selector::wakeup);
+        try {
+            sc.connect(inetSocketAddress);
+        } catch (IOException | IllegalArgumentException e) {
+            connectionFailed(e instanceof IOException ? (IOException) e : new IOException(e));
+            return;
+        }
+        key = sc.register(selector, SelectionKey.OP_CONNECT);
+    }
+
+    private void start(Message message){
+        session.send(message.type, message.header, message.payload).thenAccept(success -> {
+            synchronized (this){
+                if (success){
+                    sent++;
+                } else {
+                    failed++;
+                }
+            }
+            message.result.complete(success);
+        });
+    }
+
+    private void connectionFailed(IOException e){
+        boolean connected = session != null && session.isReady();
+        // Reached the server, which then answered with something else than the preface, closed
+        // the connection or kept waiting for the rest of what it took for a legacy header
+        boolean legacyServer = session != null && !connected && (session.isLegacyPeer() || sc.isConnected());
+        disconnect();
+        if (legacyServer && legacyFallback){
+            Logger.w(TAG, inetSocketAddress + " does not speak the framed protocol, falling back to the legacy one");
+            try {
+                PersistentConnectionManager legacy = new PersistentConnectionManager(socketListener, inetSocketAddress);
+                legacy.setTimeout(timeoutMillis);
+                legacy.setBackoff(minBackoffMillis, maxBackoffMillis);
+                legacy.setSocketBufferSizes(sendBufferSize, receiveBufferSize);
+                this.legacy = legacy;
+                drainToLegacy(legacy);
+                return;
+            } catch (IOException legacyError) {
+                ErrorHandler.eLog(TAG, "Unable to open legacy connection", legacyError, false);
+            }
+        }
+        failures = connected ? 1 : failures + 1;
+        long backoff = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(failures - 1, 20));
+        reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+        Logger.w(TAG, "Connection to " + inetSocketAddress + " failed (" + e.getMessage() +
+                "), reconnecting in " + backoff + " ms");
+        if (!connected){
+            // Nothing got through, so fail the waiting messages rather than keep them forever
+            failQueued();
+        }
+    }
+
+    private void drainToLegacy(PersistentConnectionManager legacy){
+        Message message;
+        while ((message = queue.poll()) != null){
+            forwardToLegacy(legacy, message);
+        }
+    }
+
+    private void forwardToLegacy(PersistentConnectionManager legacy, Message message){
+        if (message.type != FramedSession.EPISODE_CHUNK){
+            Logger.w(TAG, "Dropping message of type " + message.type + " unsupported by the legacy protocol");
+            message.result.complete(false);
+            return;
+        }
+        legacy.send(message.payload, message.header).thenAccept(message.result::complete);
+    }
+
+    private void disconnect(){
+        if (session != null){
+            // Fails the streams in flight
+            session.close();
+            session = null;
+        }
+        if (key != null){
+            key.cancel();
+            key = null;
+        }
+        sc = null;
+    }
+
+    private void failQueued(){
+        Message message;
+        while ((message = queue.poll()) != null){
+            synchronized (this){
+                failed++;
+            }
+            message.result.complete(false);
+        }
+    }
+
+    /**
+     * Passes messages from the server on to the SocketListener as the legacy protocol does.
+     */
+    private class ListenerHandler implements FramedSession.Handler {
+        @Override
+        public JSONObject onMessage(FramedSession session, byte type, JSONObject header, ByteBuffer content) {
+            // As SocketMessage hands it over, filled up to its limit
+            content.position(content.limit());
+            socketListener.onServerReadSuccess(header, content);
+            return null;
+        }
+
+        @Override
+        public File getFileDirectory(byte type, JSONObject header) {
+            return socketListener.getFileDirectory(header);
+        }
+
+        @Override
+        public JSONObject onFilesReceived(FramedSession session, byte type, JSONObject header, List<File> files) {
+            socketListener.onServerFilesReceived(header, files);
+            return null;
+        }
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+        selector.wakeup();
+        thread.shutdown();
+        try {
+            if (!thread.awaitTermination(1, TimeUnit.SECONDS)){
+                thread.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ErrorHandler.eLog(TAG, "Error closing selector", e, false);
+        }
+        PersistentConnectionManager legacy = this.legacy;
+        if (legacy != null){
+            legacy.close();
+        }
+        failQueued();
+    }
+}
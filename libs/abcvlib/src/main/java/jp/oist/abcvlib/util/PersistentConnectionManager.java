@@ -0,0 +1,426 @@
+package jp.oist.abcvlib.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one connection to the server open across episodes instead of opening a new channel and
+ * selector for every upload as {@link SocketConnectionManager} does. Payloads are queued and
+ * sent one at a time on a thread of its own, each followed by the server's reply as before.
+ * <p>
+ * A failed connection is reopened with exponential backoff and the message in flight is sent
+ * again, up to maxAttempts times. A server that closes the connection after every reply keeps
+ * working: the closed connection is noticed, at the latest when the next message fails before
+ * any reply, and reopened right away. Headers carry "connection": "keep-alive" so a server can
+ * tell that it may keep the connection open.
+ */
+public class PersistentConnectionManager implements ServerConnection {
+    private static final String TAG = "PersistentConnection";
+
+    private final SocketListener socketListener;
+    private final InetSocketAddress inetSocketAddress;
+    private final Selector selector;
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(
+            new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, TAG));
+    private final ArrayDeque<Upload> queue = new ArrayDeque<>();
+    private final ByteBuffer idleReadBuffer = ByteBuffer.allocate(256);
+    private volatile boolean closed = false;
+    // 0 to wait for the server indefinitely
+    private volatile long timeoutMillis = 0;
+    private volatile int maxAttempts = 3;
+    private volatile long minBackoffMillis = 250;
+    private volatile long maxBackoffMillis = 30000;
+    private volatile int sendBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
+    private volatile int receiveBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
+
+    // Only touched by the connection thread
+    private SocketChannel sc;
+    private SelectionKey key;
+    private SocketMessage socketMessage;
+    private Upload inFlight;
+    private int messagesOnConnection;
+    private int failures = 0;
+    private long reconnectAt = 0;
+    private long lastProgress;
+
+    private long connects = 0;
+    private long sent = 0;
+    private long failed = 0;
+
+    private static class Upload {
+        private final ByteBuffer payload;
+        private final JSONObject headerFields;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private int attempts = 0;
+        private boolean staleRetried = false;
+
+        Upload(ByteBuffer payload, JSONObject headerFields){
+            this.payload = payload;
+            this.headerFields = headerFields;
+        }
+    }
+
+    public PersistentConnectionManager(SocketListener socketListener, InetSocketAddress inetSocketAddress) throws IOException {
+        this.socketListener = socketListener;
+        this.inetSocketAddress = inetSocketAddress;
+        this.selector = Selector.open();
+        thread.execute(this::run);
+    }
+
+    /**
+     * Queues payload to be sent after the ones queued before it. Neither payload nor its
+     * position may change until the future completes.
+     * @param headerFields additional fields for the JSON header, may be null
+     * @return completes with true once the server replied, false once maxAttempts failed or
+     * the manager was closed
+     */
+    public CompletableFuture<Boolean> send(ByteBuffer payload, JSONObject headerFields){
+        return enqueue(payload, headerFields).result;
+    }
+
+    private Upload enqueue(ByteBuffer payload, JSONObject headerFields){
+        JSONObject fields = headerFields != null ? headerFields : new JSONObject();
+        try {
+            fields.put("connection", "keep-alive");
+        } catch (JSONException e) {
+            ErrorHandler.eLog(TAG, "Unable to add connection header field", e, false);
+        }
+        Upload upload = new Upload(payload, fields);
+        synchronized (queue){
+            if (closed){
+                upload.result.complete(false);
+                return upload;
+            }
+            queue.add(upload);
+        }
+        selector.wakeup();
+        return upload;
+    }
+
+    /**
+     * Sends payload and waits for the server's reply, e.g. as an EpisodeOutbox.Uploader.
+     * @return true if the server replied, false if sending failed or the calling thread was
+     * interrupted while waiting
+     */
+    @Override
+    public boolean sendAndWait(ByteBuffer payload, JSONObject headerFields){
+        Upload upload = enqueue(payload, headerFields);
+        try {
+            return upload.result.get();
+        } catch (ExecutionException e) {
+            ErrorHandler.eLog(TAG, "Upload failed", e, false);
+            return false;
+        } catch (InterruptedException e) {
+            // The caller may reuse payload once this returns, so it must not be sent later
+            synchronized (queue){
+                queue.remove(upload);
+            }
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param timeoutMillis time without progress on a message after which its connection is
+     *                      given up and reopened, 0 (default) to wait indefinitely
+     */
+    public void setTimeout(long timeoutMillis){
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param maxAttempts connections a message is tried on before its future completes with
+     *                    false, 3 by default
+     */
+    public void setMaxAttempts(int maxAttempts){
+        if (maxAttempts < 1){
+            throw new IllegalArgumentException("maxAttempts must be at least 1. " + maxAttempts + " provided.");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param minBackoffMillis wait before reconnecting after the first failure, doubled for
+     *                         every further failure in a row
+     * @param maxBackoffMillis longest wait between reconnects
+     */
+    public void setBackoff(long minBackoffMillis, long maxBackoffMillis){
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Applies from the next connection on.
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 to keep the OS default
+     * @param receiveBufferSize SO_RCVBUF in bytes, 0 to keep the OS default
+     */
+    public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize){
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public synchronized long getConnectCount(){
+        return connects;
+    }
+
+    public synchronized long getSentCount(){
+        return sent;
+    }
+
+    /**
+     * @return messages given up on after maxAttempts
+     */
+    public synchronized long getFailedCount(){
+        return failed;
+    }
+
+    public int getQueuedCount(){
+        synchronized (queue){
+            return queue.size();
+        }
+    }
+
+    private void run(){
+        lastProgress = System.nanoTime();
+        try {
+            while (!closed){
+                if (inFlight == null){
+                    startNext();
+                }
+                selector.select(selectTimeout());
+                if (closed){
+                    break;
+                }
+                for (SelectionKey selectedKey : selector.selectedKeys()){
+                    if (selectedKey != key || !selectedKey.isValid()){
+                        continue;
+                    }
+                    lastProgress = System.nanoTime();
+                    if (inFlight == null){
+                        readWhileIdle();
+                    } else {
+                        socketMessage.process_events(selectedKey);
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (inFlight != null && timeoutMillis > 0 &&
+                        System.nanoTime() - lastProgress >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)){
+                    connectionFailed(new IOException("No progress for " + timeoutMillis + " ms"));
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            ErrorHandler.eLog(TAG, "Connection thread stopped", e, false);
+        } finally {
+            disconnect();
+            failQueued();
+        }
+    }
+
+    private long selectTimeout(){
+        long timeout = inFlight != null ? timeoutMillis : 0;
+        if (inFlight == null && hasQueued()){
+            // Waiting out the backoff before the next reconnect
+            timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(reconnectAt - System.nanoTime()));
+        }
+        return timeout;
+    }
+
+    private boolean hasQueued(){
+        synchronized (queue){
+            return !queue.isEmpty();
+        }
+    }
+
+    private void startNext(){
+        if (System.nanoTime() < reconnectAt){
+            return;
+        }
+        Upload next;
+        synchronized (queue){
+            next = queue.poll();
+        }
+        if (next == null){
+            return;
+        }
+        inFlight = next;
+        inFlight.attempts++;
+        lastProgress = System.nanoTime();
+        if (sc == null || !sc.isOpen()){
+            connect();
+            return;
+        }
+        // Idle connections only listen for the server closing them
+        key.interestOps(0);
+        socketMessage.addEpisodeToWriteBuffer(inFlight.payload.duplicate(), null, inFlight.headerFields);
+    }
+
+    private void connect(){
+        disconnect();
+        Logger.d(TAG, "Connecting to " + inetSocketAddress);
+        messagesOnConnection = 0;
+        synchronized (this){
+            connects++;
+        }
+        // Any failure here, e.g. running out of file descriptors, is retried with backoff like
+        // a refused connection rather than stopping the connection thread
+        try {
+            sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            SocketMessage.configureSocket(sc, sendBufferSize, receiveBufferSize);
+            sc.connect(inetSocketAddress);
+            socketMessage = new SocketMessage(socketListener, sc, selector, new SocketMessage.ConnectionCallback() {
+                @Override
+                public void onMessageComplete(SocketMessage message) {
+                    messageComplete();
+                }
+
+                @Override
+                public void onConnectionFailed(SocketMessage message, IOException e) {
+                    connectionFailed(e);
+                }
+            });
+            socketMessage.addEpisodeToWriteBuffer(inFlight.payload.duplicate(), null, inFlight.headerFields);
+            key = sc.register(selector, SelectionKey.OP_CONNECT, socketMessage);
+        } catch (IOException | IllegalArgumentException e) {
+            connectionFailed(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void messageComplete(){
+        messagesOnConnection++;
+        failures = 0;
+        synchronized (this){
+            sent++;
+        }
+        Upload done = inFlight;
+        inFlight = null;
+        if (key.isValid()){
+            // Notice the server closing the connection while idle
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        done.result.complete(true);
+    }
+
+    private void connectionFailed(IOException e){
+        boolean stale = messagesOnConnection > 0 && inFlight != null && !inFlight.staleRetried;
+        disconnect();
+        if (inFlight == null){
+            return;
+        }
+        if (stale){
+            // Most likely the server closed the connection after its last reply, try a new one now
+            Logger.d(TAG, "Connection to " + inetSocketAddress + " was closed, reconnecting");
+            inFlight.staleRetried = true;
+            inFlight.attempts--;
+            requeueInFlight();
+            return;
+        }
+        failures++;
+        long backoff = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(failures - 1, 20));
+        reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+        if (inFlight.attempts >= maxAttempts){
+            Logger.e(TAG, "Giving up on a message to " + inetSocketAddress + " after " +
+                    inFlight.attempts + " attempts: " + e.getMessage());
+            synchronized (this){
+                failed++;
+            }
+            Upload done = inFlight;
+            inFlight = null;
+            done.result.complete(false);
+        } else {
+            Logger.w(TAG, "Connection to " + inetSocketAddress + " failed (" + e.getMessage() +
+                    "), retrying in " + backoff + " ms");
+            requeueInFlight();
+        }
+    }
+
+    private void requeueInFlight(){
+        synchronized (queue){
+            queue.addFirst(inFlight);
+        }
+        inFlight = null;
+    }
+
+    private void readWhileIdle(){
+        try {
+            idleReadBuffer.clear();
+            int read = sc.read(idleReadBuffer);
+            if (read < 0){
+                Logger.d(TAG, "Server closed the idle connection");
+                disconnect();
+            } else if (read > 0){
+                Logger.w(TAG, "Dropping " + read + " bytes received while no message was in flight");
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    private void disconnect(){
+        if (key != null){
+            key.cancel();
+            key = null;
+        }
+        if (sc != null){
+            try {
+                sc.close();
+            } catch (IOException e) {
+                ErrorHandler.eLog(TAG, "Error closing connection", e, false);
+            }
+            sc = null;
+        }
+        socketMessage = null;
+    }
+
+    private void failQueued(){
+        synchronized (queue){
+            closed = true;
+            if (inFlight != null){
+                inFlight.result.complete(false);
+                inFlight = null;
+            }
+            Upload upload;
+            while ((upload = queue.poll()) != null){
+                upload.result.complete(false);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection. Messages not yet sent complete with false.
+     */
+    @Override
+    public void close(){
+        synchronized (queue){
+            closed = true;
+        }
+        selector.wakeup();
+        thread.shutdown();
+        try {
+            if (!thread.awaitTermination(1, TimeUnit.SECONDS)){
+                thread.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ErrorHandler.eLog(TAG, "Error closing selector", e, false);
+        }
+    }
+}
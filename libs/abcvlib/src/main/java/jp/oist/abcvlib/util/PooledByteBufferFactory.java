@@ -0,0 +1,114 @@
+package jp.oist.abcvlib.util;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * ByteBufferFactory for FlatBufferBuilders that keeps released buffers for reuse, so that large
+ * builders (e.g. one per episode) stop allocating once the pool holds a buffer of the size they
+ * need. A request is served by the smallest pooled buffer that is large enough, which may be
+ * larger than requested; FlatBufferBuilder then simply uses the extra room rather than growing.
+ * <p>
+ * Direct buffers avoid the extra copy into a temporary direct buffer when a finished episode is
+ * written to a SocketChannel.
+ */
+public class PooledByteBufferFactory extends FlatBufferBuilder.ByteBufferFactory {
+    private final boolean direct;
+    private final int maxPooled;
+    private final ArrayList<ByteBuffer> pool;
+    private long requests = 0;
+    private long reuses = 0;
+
+    /**
+     * @param direct true to allocate direct buffers
+     * @param maxPooled maximum number of idle buffers kept. When full, releasing a buffer replaces
+     *                  the smallest idle one if it is larger.
+     */
+    public PooledByteBufferFactory(boolean direct, int maxPooled){
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+        this.pool = new ArrayList<>(maxPooled);
+    }
+
+    @Override
+    public synchronized ByteBuffer newByteBuffer(int capacity) {
+        requests++;
+        int best = -1;
+        for (int i = 0; i < pool.size(); i++){
+            int pooledCapacity = pool.get(i).capacity();
+            if (pooledCapacity >= capacity && (best == -1 || pooledCapacity < pool.get(best).capacity())){
+                best = i;
+            }
+        }
+        if (best != -1){
+            reuses++;
+            ByteBuffer buffer = pool.remove(best);
+            buffer.clear();
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Called by FlatBufferBuilder with the old buffer after growing, and by the owner of a
+     * finished buffer once it is no longer referenced.
+     */
+    @Override
+    public synchronized void releaseByteBuffer(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct){
+            return;
+        }
+        // ByteBuffer.equals compares contents, so check identity
+        for (ByteBuffer pooled : pool){
+            if (pooled == buffer){
+                return;
+            }
+        }
+        if (pool.size() < maxPooled){
+            pool.add(buffer);
+            return;
+        }
+        int smallest = 0;
+        for (int i = 1; i < pool.size(); i++){
+            if (pool.get(i).capacity() < pool.get(smallest).capacity()){
+                smallest = i;
+            }
+        }
+        if (maxPooled > 0 && pool.get(smallest).capacity() < buffer.capacity()){
+            pool.set(smallest, buffer);
+        }
+    }
+
+    /**
+     * @return number of buffers requested so far, i.e. builders created plus times they grew
+     */
+    public synchronized long getRequestCount(){
+        return requests;
+    }
+
+    /**
+     * @return number of requests served from the pool
+     */
+    public synchronized long getReuseCount(){
+        return reuses;
+    }
+
+    public synchronized int getPooledCount(){
+        return pool.size();
+    }
+
+    /**
+     * @return total capacity of the idle buffers in bytes
+     */
+    public synchronized long getPooledBytes(){
+        long bytes = 0;
+        for (ByteBuffer buffer : pool){
+            bytes += buffer.capacity();
+        }
+        return bytes;
+    }
+}
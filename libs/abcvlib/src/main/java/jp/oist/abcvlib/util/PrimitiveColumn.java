@@ -0,0 +1,141 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Base for the growable primitive columns used to record sensor streams without boxing each
+ * sample. A column grows amortized (doubling) and is reset rather than reallocated, so after a
+ * few timesteps its backing storage has reached a steady state and adding samples allocates nothing.
+ * <p>
+ * A column is either backed by a primitive array on the heap or, if created as direct, by an
+ * off-heap little-endian ByteBuffer laid out exactly like a flatbuffer vector payload so it can
+ * be appended to a FlatBufferBuilder with a single bulk put (see {@link #writeTo(ByteBuffer)}).
+ * <p>
+ * Columns are not thread safe: size and the backing storage are plain fields, so a read racing
+ * an add can see the new size with the old storage. They rely on read-after-publish instead,
+ * i.e. all adds happen before the column is handed to readers, and none after. TimeStepDataBuffer
+ * guarantees this for its slots by sealing a slot before readers get it and dropping samples
+ * that arrive later.
+ */
+public abstract class PrimitiveColumn {
+    protected static final int DEFAULT_CAPACITY = 16;
+    protected int size = 0;
+    protected ByteBuffer direct;
+
+    protected PrimitiveColumn(int initialCapacity, boolean direct){
+        if (direct){
+            this.direct = allocateDirect(Math.max(1, initialCapacity));
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public boolean isDirect(){
+        return direct != null;
+    }
+
+    /**
+     * @return size of a single value in bytes
+     */
+    public abstract int elementSize();
+
+    /**
+     * Drops all values but keeps the backing storage for reuse.
+     */
+    public void reset(){
+        size = 0;
+    }
+
+    public int capacity(){
+        return direct != null ? direct.capacity() / elementSize() : heapCapacity();
+    }
+
+    protected abstract int heapCapacity();
+
+    /**
+     * Makes sure at least minCapacity values can be stored without growing.
+     */
+    public void ensureCapacity(int minCapacity){
+        if (minCapacity > capacity()){
+            grow(newCapacity(minCapacity));
+        }
+    }
+
+    protected void grow(int newCapacity){
+        if (direct != null){
+            ByteBuffer grown = allocateDirect(newCapacity);
+            ByteBuffer src = direct.duplicate();
+            src.position(0).limit(size * elementSize());
+            grown.put(src);
+            grown.clear();
+            direct = grown;
+        } else {
+            growHeap(newCapacity);
+        }
+    }
+
+    protected abstract void growHeap(int newCapacity);
+
+    protected int newCapacity(int minCapacity){
+        int newCapacity = Math.max(capacity(), DEFAULT_CAPACITY);
+        while (newCapacity < minCapacity){
+            newCapacity = newCapacity << 1;
+            if (newCapacity <= 0){
+                return Integer.MAX_VALUE / elementSize();
+            }
+        }
+        return newCapacity;
+    }
+
+    /**
+     * Little-endian view of the valid bytes of a direct column. The view shares storage with the
+     * column, so it is only valid until the column is reset or grows.
+     * @throws IllegalStateException if the column is heap backed
+     */
+    public ByteBuffer byteView(){
+        if (direct == null){
+            throw new IllegalStateException("byteView() is only available on direct columns");
+        }
+        ByteBuffer view = direct.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(0).limit(size * elementSize());
+        return view;
+    }
+
+    /**
+     * Bulk copies the valid values into dst as little-endian values starting at dst.position(),
+     * e.g. into the buffer returned by FlatBufferBuilder.createUnintializedVector.
+     * @return number of values copied
+     */
+    public int writeTo(ByteBuffer dst){
+        int length = size;
+        if (direct != null){
+            ByteBuffer src = direct.duplicate();
+            src.position(0).limit(length * elementSize());
+            dst.put(src);
+        } else {
+            ByteBuffer target = dst.slice().order(ByteOrder.LITTLE_ENDIAN);
+            writeHeapTo(target, length);
+            dst.position(dst.position() + length * elementSize());
+        }
+        return length;
+    }
+
+    protected abstract void writeHeapTo(ByteBuffer dst, int length);
+
+    protected void checkIndex(int index){
+        if (index < 0 || index >= size){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for column of size " + size);
+        }
+    }
+
+    private ByteBuffer allocateDirect(int capacity){
+        return ByteBuffer.allocateDirect(capacity * elementSize()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
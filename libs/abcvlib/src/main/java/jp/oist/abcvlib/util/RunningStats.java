@@ -0,0 +1,57 @@
+package jp.oist.abcvlib.util;
+
+/**
+ * Running count/mean/min/max/last of a stream of doubles. Updated in O(1) per value without
+ * storing the values themselves.
+ */
+public class RunningStats {
+    private long count = 0;
+    private double mean = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double last = Double.NaN;
+
+    public void add(double value){
+        count++;
+        mean += (value - mean) / count;
+        if (count == 1){
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        last = value;
+    }
+
+    public void reset(){
+        count = 0;
+        mean = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+        last = Double.NaN;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean of all values added since the last reset, or NaN if none were added
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getLast() {
+        return last;
+    }
+}
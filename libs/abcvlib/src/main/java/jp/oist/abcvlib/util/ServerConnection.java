@@ -0,0 +1,28 @@
+package jp.oist.abcvlib.util;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A connection to the server kept open across episodes, see
+ * {@link PersistentConnectionManager} for the legacy protocol and {@link MultiplexedConnection}
+ * for the framed one.
+ */
+public interface ServerConnection extends Closeable {
+    /**
+     * Sends payload and waits until the server has received it, e.g. as an
+     * EpisodeOutbox.Uploader.
+     * @param headerFields additional fields for the JSON header, may be null
+     * @return true if the server received payload, false if sending failed or the calling
+     * thread was interrupted while waiting
+     */
+    boolean sendAndWait(ByteBuffer payload, JSONObject headerFields);
+
+    /**
+     * Closes the connection. Messages not yet sent fail.
+     */
+    @Override
+    void close();
+}
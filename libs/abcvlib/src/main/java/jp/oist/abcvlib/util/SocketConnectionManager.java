@@ -2,6 +2,8 @@ package jp.oist.abcvlib.util;
 
 import jp.oist.abcvlib.util.Logger;
 
+import org.json.JSONObject;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -12,9 +14,9 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
-
-import static java.net.StandardSocketOptions.SO_SNDBUF;
+import java.util.concurrent.TimeUnit;
 
 public class SocketConnectionManager implements Runnable{
 
@@ -26,25 +28,99 @@ public class SocketConnectionManager implements Runnable{
     private final InetSocketAddress inetSocketAddress;
     private ByteBuffer episode;
     private CyclicBarrier doneSignal;
+    private JSONObject headerFields;
+    // 0 to wait for the server indefinitely
+    private long timeoutMillis = 0;
+    private int sendBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
+    private int receiveBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
 
     public SocketConnectionManager(SocketListener socketListener,
                                    InetSocketAddress inetSocketAddress,
                                    ByteBuffer episode,
                                    CyclicBarrier doneSignal
                                    ) {
+        this(socketListener, inetSocketAddress, episode, doneSignal, null);
+    }
+
+    /**
+     * @param headerFields additional fields for the JSON header sent ahead of episode, e.g. the
+     *                     header of an episode chunk. May be null.
+     */
+    public SocketConnectionManager(SocketListener socketListener,
+                                   InetSocketAddress inetSocketAddress,
+                                   ByteBuffer episode,
+                                   CyclicBarrier doneSignal,
+                                   JSONObject headerFields
+                                   ) {
         this.socketListener = socketListener;
         this.inetSocketAddress = inetSocketAddress;
         this.episode = episode;
         this.doneSignal = doneSignal;
+        this.headerFields = headerFields;
+    }
+
+    /**
+     * Sends payload and waits for the reply of the server on the calling thread.
+     * @param timeoutMillis time without progress after which the upload is given up, 0 to wait indefinitely
+     * @return true if the server received payload and replied
+     */
+    public static boolean send(SocketListener socketListener, InetSocketAddress inetSocketAddress,
+                               ByteBuffer payload, JSONObject headerFields, long timeoutMillis){
+        // Nobody else waits on the result, so a single party barrier never blocks
+        SocketConnectionManager connection = new SocketConnectionManager(socketListener,
+                inetSocketAddress, payload, new CyclicBarrier(1), headerFields);
+        connection.setTimeout(timeoutMillis);
+        connection.run();
+        return connection.isSent();
+    }
+
+    /**
+     * @param timeoutMillis time without any socket event after which the connection is given
+     *                      up, 0 (default) to wait indefinitely
+     */
+    public void setTimeout(long timeoutMillis){
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 to keep the OS default
+     * @param receiveBufferSize SO_RCVBUF in bytes, 0 to keep the OS default
+     */
+    public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize){
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @return true once the episode has been sent and the reply of the server read
+     */
+    public boolean isSent(){
+        return socketMessage != null && socketMessage.isComplete();
     }
 
     @Override
     public void run() {
         try {
             selector = Selector.open();
-            start_connection();
-            do {
-                int eventCount = selector.select(0);
+            if (!start_connection()){
+                selector.close();
+            }
+            long lastEvent = System.nanoTime();
+            while (selector.isOpen()){
+                int eventCount = selector.select(timeoutMillis);
+                if (Thread.interrupted()){
+                    Logger.w(TAG, "Interrupted while connected to " + inetSocketAddress);
+                    selector.close();
+                    break;
+                }
+                if (eventCount == 0){
+                    if (timeoutMillis > 0 && System.nanoTime() - lastEvent >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)){
+                        Logger.w(TAG, "No progress with " + inetSocketAddress + " for " + timeoutMillis + " ms, giving up");
+                        selector.close();
+                    }
+                    continue;
+                }
+                lastEvent = System.nanoTime();
                 Set<SelectionKey> events = selector.selectedKeys(); // events is int representing how many keys have changed state
                 if (eventCount != 0){
                     Set<SelectionKey> selectedKeys = selector.selectedKeys();
@@ -58,20 +134,34 @@ public class SocketConnectionManager implements Runnable{
                         }
                     }
                 }
-            } while (selector.isOpen()); //todo remember to close the selector somewhere
+            }
 
             close();
 
         } catch (IOException e) {
-            ErrorHandler.eLog(TAG, "Error", e, true);
+            ErrorHandler.eLog(TAG, "Error", e, false);
+        }
+        if (!isSent()){
+            // On success SocketMessage trips the barrier. Do it here on failure so that whoever
+            // waits on it moves on instead of hanging, the episode is lost unless kept elsewhere.
+            Logger.e(TAG, "Unable to send episode to " + inetSocketAddress);
+            try {
+                doneSignal.await();
+            } catch (BrokenBarrierException | InterruptedException e) {
+                ErrorHandler.eLog(TAG, "Error releasing doneSignal after failed upload", e, false);
+            }
         }
     }
 
-    protected void start_connection(){
+    /**
+     * @return false if the connection could not be initiated, in which case the selector would
+     * never see any event
+     */
+    protected boolean start_connection(){
         try {
             sc = SocketChannel.open();
             sc.configureBlocking(false);
-//            sc.setOption(SO_SNDBUF, 2^27);
+            SocketMessage.configureSocket(sc, sendBufferSize, receiveBufferSize);
 
             Logger.d(TAG, "Initializing connection with " + inetSocketAddress);
             boolean connected = sc.connect(inetSocketAddress);
@@ -79,17 +169,18 @@ public class SocketConnectionManager implements Runnable{
             socketMessage = new SocketMessage(socketListener, sc, selector);
             Logger.v(TAG, "socketChannel.isConnected ? : " + sc.isConnected());
 
-            socketMessage.addEpisodeToWriteBuffer(episode, doneSignal);
+            socketMessage.addEpisodeToWriteBuffer(episode, doneSignal, headerFields);
 
             Logger.v(TAG, "registering with selector to connect");
             int ops = SelectionKey.OP_CONNECT;
             SelectionKey selectionKey = sc.register(selector, ops, socketMessage);
             Logger.v(TAG, "Registered with selector");
+            return true;
 
         } catch (IOException | ClosedSelectorException | IllegalBlockingModeException
                 | CancelledKeyException | IllegalArgumentException e) {
-            ErrorHandler.eLog(TAG, "Initial socket connect and registration:", e, true);
-
+            ErrorHandler.eLog(TAG, "Initial socket connect and registration:", e, false);
+            return false;
         }
     }
 
@@ -98,11 +189,13 @@ public class SocketConnectionManager implements Runnable{
      */
     public void close(){
         try {
-            Logger.v(TAG, "Closing connection: " + sc.getRemoteAddress());
+            Logger.v(TAG, "Closing connection to " + inetSocketAddress);
             selector.close();
-            sc.close();
+            if (sc != null){
+                sc.close();
+            }
         } catch (IOException e) {
-            ErrorHandler.eLog(TAG, "Error closing connection", e, true);
+            ErrorHandler.eLog(TAG, "Error closing connection", e, false);
         }
     }
 }
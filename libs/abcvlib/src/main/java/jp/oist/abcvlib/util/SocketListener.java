@@ -1,10 +1,10 @@
 package jp.oist.abcvlib.util;
 
-import android.content.Context;
-
 import org.json.JSONObject;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public interface SocketListener {
     /**
@@ -17,4 +17,23 @@ public interface SocketListener {
      *                      the Java end.
      */
     void onServerReadSuccess(JSONObject jsonHeader, ByteBuffer msgFromServer);
+
+    /**
+     * Lets messages with content-type "files" (e.g. models) be written to disk as they arrive,
+     * see {@link FileStreamReceiver}, rather than be collected in a ByteBuffer for
+     * onServerReadSuccess().
+     * @return directory to write the files of this message to, or null (default) to receive
+     * them in onServerReadSuccess()
+     */
+    default File getFileDirectory(JSONObject jsonHeader){
+        return null;
+    }
+
+    /**
+     * Called instead of onServerReadSuccess() once all files of a message have been written to
+     * the directory returned by getFileDirectory().
+     * @param files at their final names, in the order of the file-names header field
+     */
+    default void onServerFilesReceived(JSONObject jsonHeader, List<File> files){
+    }
 }
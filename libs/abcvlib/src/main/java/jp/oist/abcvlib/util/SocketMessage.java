@@ -5,7 +5,9 @@ import jp.oist.abcvlib.util.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedChannelException;
@@ -14,22 +16,49 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
-import java.util.Vector;
+import java.util.Iterator;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CyclicBarrier;
 
 public class SocketMessage {
-    
+
+    /**
+     * SO_SNDBUF and SO_RCVBUF asked for by default. The kernel caps them (e.g. at
+     * net.core.wmem_max), but anything above its few hundred KB default lets a write hand over
+     * more of an episode at once.
+     */
+    public static final int DEFAULT_SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Told about the outcome of every message instead of the selector being closed, so the
+     * connection can be kept open for the next one. See {@link PersistentConnectionManager}.
+     */
+    public interface ConnectionCallback {
+        /**
+         * The message was written and the full reply read and passed to the SocketListener.
+         */
+        void onMessageComplete(SocketMessage socketMessage);
+
+        /**
+         * The connection failed, its key has been cancelled.
+         */
+        void onConnectionFailed(SocketMessage socketMessage, IOException e);
+    }
+
     private final SocketChannel sc;
     private final Selector selector;
     private final ByteBuffer _recv_buffer;
-    private ByteBuffer _send_buffer;
+    private ByteBuffer _send_buffer; // protoheader and JSON header, reused for every message
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[2]; // _send_buffer and the episode for gathering writes
     private int _jsonheader_len = 0;
     private JSONObject jsonHeaderRead; // Will tell Java at which points in msgContent each model lies (e.g. model1 is from 0 to 1018, model2 is from 1019 to 2034, etc.)
     private byte[] jsonHeaderBytes;
     private ByteBuffer msgContent; // Should contain ALL model files. Parse to individual files after reading
-    private final Vector<ByteBuffer> writeBufferVector = new Vector<>(); // List of episodes
-    private final String TAG = "SocketConnectionManager";
+    private FileStreamReceiver fileReceiver; // Instead of msgContent when the listener takes files on disk
+    private long msgContentLength;
+    private final ConcurrentLinkedQueue<OutgoingMessage> writeQueue = new ConcurrentLinkedQueue<>();
+    private static final String TAG = "SocketConnectionManager";
     private JSONObject jsonHeaderWrite;
     private boolean msgReadComplete = false;
     private SocketListener socketListener;
@@ -37,17 +66,54 @@ public class SocketMessage {
     private long socketReadTimeStart;
     private int totalNumBytesToWrite;
     private CyclicBarrier doneSignal; // used to notify main thread that write/read to server has finished
+    private final ConnectionCallback connectionCallback;
 
+    private static class OutgoingMessage {
+        private final ByteBuffer episode;
+        private final JSONObject headerFields; // may be null
+
+        OutgoingMessage(ByteBuffer episode, JSONObject headerFields){
+            this.episode = episode;
+            this.headerFields = headerFields;
+        }
+    }
 
     public SocketMessage(SocketListener socketListener, SocketChannel sc, Selector selector){
+        this(socketListener, sc, selector, null);
+    }
+
+    /**
+     * @param connectionCallback when not null the selector is left open after each message and
+     *                           the callback told instead
+     */
+    public SocketMessage(SocketListener socketListener, SocketChannel sc, Selector selector,
+                         ConnectionCallback connectionCallback){
+        this.connectionCallback = connectionCallback;
         this.socketListener = socketListener;
         this.sc = sc;
         this.selector = selector;
-//        this._recv_buffer = ByteBuffer.allocate((int) Math.pow(2,24));
-        this._recv_buffer = ByteBuffer.allocate(1024);
+        // Only headers go through here, the content of a reply is read straight into msgContent
+        this._recv_buffer = ByteBuffer.allocate(64 * 1024);
         this._send_buffer = ByteBuffer.allocate(1024);
     }
 
+    /**
+     * Sets the kernel socket buffer sizes of sc, before connecting so that TCP can negotiate a
+     * matching window.
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 to keep the OS default
+     * @param receiveBufferSize SO_RCVBUF in bytes, 0 to keep the OS default
+     */
+    public static void configureSocket(SocketChannel sc, int sendBufferSize, int receiveBufferSize) throws IOException {
+        if (sendBufferSize > 0){
+            sc.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0){
+            sc.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        Logger.v(TAG, "Socket buffers " + sc.getOption(StandardSocketOptions.SO_SNDBUF) +
+                " bytes send, " + sc.getOption(StandardSocketOptions.SO_RCVBUF) + " bytes receive");
+    }
+
     public void process_events(SelectionKey selectionKey){
         SocketChannel sc = (SocketChannel) selectionKey.channel();
 //        Logger.i(TAG, "process_events");
@@ -73,18 +139,53 @@ public class SocketMessage {
 //                sc.register(selectionKey.selector(), ops, selectionKey.attachment());
             }
 
-        } catch (ClassCastException | IOException | JSONException | BrokenBarrierException | InterruptedException e){
+        } catch (IOException e){
+            // e.g. the server refused the connection or went away. Closing the selector ends
+            // SocketConnectionManager.run() instead of selecting the failed channel forever.
+            ErrorHandler.eLog(TAG, "Connection to server failed", e, false);
+            if (fileReceiver != null){
+                fileReceiver.abort();
+                fileReceiver = null;
+            }
+            selectionKey.cancel();
+            if (connectionCallback != null){
+                connectionCallback.onConnectionFailed(this, e);
+                return;
+            }
+            try {
+                selector.close();
+            } catch (IOException closeError) {
+                ErrorHandler.eLog(TAG, "Error closing selector", closeError, false);
+            }
+        } catch (ClassCastException | JSONException | BrokenBarrierException | InterruptedException e){
             ErrorHandler.eLog(TAG, "Error processing selector events", e, true);
         }
     }
 
+    /**
+     * @return true once the episode has been written and the full reply of the server read
+     */
+    public boolean isComplete(){
+        return msgReadComplete;
+    }
+
     private void read(SelectionKey selectionKey) throws IOException, JSONException, BrokenBarrierException, InterruptedException {
 
         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
         while(!msgReadComplete){
-            // At this point the _recv_buffer should have been cleared (pointer 0 limit=cap, no mark)
-            int bitsRead = socketChannel.read(_recv_buffer);
+            // At this point the _recv_buffer should have been cleared (pointer 0 limit=cap, no mark).
+            // Once the headers are parsed and the leftovers moved on, read content in place.
+            ByteBuffer target = msgContent != null && _recv_buffer.position() == 0 ? msgContent : _recv_buffer;
+            int bitsRead = socketChannel.read(target);
+            // The server may close right after replying, so only fail once the buffered bytes run out
+            if (bitsRead < 0 && !canProcessBufferedBytes()){
+                throw new IOException("Server closed the connection before replying");
+            }
+            if (bitsRead == 0 && !canProcessBufferedBytes()){
+                // Wait for the selector to report more data rather than spinning on read()
+                return;
+            }
 
             if (bitsRead > 0 || _recv_buffer.position() > 0){
                 // If you have not determined the length of the header via the 2 byte short protoheader,
@@ -108,30 +209,48 @@ public class SocketMessage {
                 }
             }
             // If msgContent is zero this handles it.
-            else if (msgContent != null && !msgReadComplete){
+            else if ((msgContent != null || fileReceiver != null) && !msgReadComplete){
                 process_msgContent(selectionKey);
             }
         }
     }
 
+    /**
+     * @return true if the bytes already in _recv_buffer are enough for the next step of read()
+     */
+    private boolean canProcessBufferedBytes(){
+        if (_jsonheader_len == 0){
+            return _recv_buffer.position() >= 2;
+        } else if (jsonHeaderRead == null){
+            return _recv_buffer.position() >= _jsonheader_len;
+        }
+        return _recv_buffer.position() > 0 || isContentComplete();
+    }
+
+    private boolean isContentComplete(){
+        if (fileReceiver != null){
+            return fileReceiver.isComplete();
+        }
+        return msgContent != null && msgContent.remaining() == 0;
+    }
+
     private void write(SelectionKey selectionKey) throws IOException, JSONException, BrokenBarrierException, InterruptedException {
 
-        if (!writeBufferVector.isEmpty()){
+        OutgoingMessage message = writeQueue.peek();
+        if (message != null){
             SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-
-//            Logger.v(TAG, "writeBufferVector contains data");
+            ByteBuffer episode = message.episode;
 
             if (jsonHeaderWrite == null){
                 // This is because the data in this ByteBuffer does NOT start at 0, but at
                 // buf.position(). Even if it were some other type of buffer here (e.g. compacted one)
                 // the position should be zero and thus this shouldn't change anything
-                int numBytesToWrite = writeBufferVector.get(0).limit() - writeBufferVector.get(0).position();
+                int numBytesToWrite = episode.remaining();
 
                 // Create JSONHeader containing length of episode in Bytes
                 Logger.v(TAG, "generating jsonheader");
-                jsonHeaderWrite = generate_jsonheader(numBytesToWrite);
+                jsonHeaderWrite = generate_jsonheader(numBytesToWrite, message.headerFields);
                 byte[] jsonBytes = jsonHeaderWrite.toString().getBytes(StandardCharsets.UTF_8);
-//                ByteBuffer jsonByteBuffer = ByteBuffer.wrap(jsonBytes); //todo optimize buffer length
 
                 // Encode length of JSONHeader to first four bytes (int) and write to socketChannel
                 int jsonLength = jsonBytes.length;
@@ -139,55 +258,38 @@ public class SocketMessage {
                 // Add up length of protoHeader, JSONheader and episode bytes
                 totalNumBytesToWrite = Integer.BYTES + jsonLength + numBytesToWrite;
 
-//                int optimalBufferSize = findOptimalBufferSize(totalNumBytesToWrite);
-
-                // Create new buffer that compiles protoHeader, JsonHeader, and Episode
-                _send_buffer = ByteBuffer.allocate(Integer.BYTES + jsonLength);
-
-                Logger.v(TAG, "Assembling _send_buffer");
-                // Assemble all bytes and flip to prepare to read
-                // todo try to write the episode directly rather than copy it.
+                // Only grows for unusually long headers, so one buffer serves every message
+                if (_send_buffer.capacity() < Integer.BYTES + jsonLength){
+                    _send_buffer = ByteBuffer.allocate(Integer.BYTES + jsonLength);
+                }
+                _send_buffer.clear();
                 _send_buffer.putInt(jsonLength);
                 _send_buffer.put(jsonBytes);
-                // Remove episode to clear memory note builder will reference the flatbuffer builder in memory
-//                ByteBuffer builder = writeBufferVector.remove(0);
-//                builder = null;
-
                 _send_buffer.flip();
 
-                int total = _send_buffer.limit();
-
-                Logger.d(TAG, "Writing JSONHeader of length " + total + " bytes to server ...");
-
-                // Write Bytes to socketChannel
-                if (_send_buffer.remaining() > 0){
-                    int numBytes = socketChannel.write(_send_buffer); // todo memory dump error here!
-                }
-
-                int msgSize = writeBufferVector.get(0).limit() / 1000000;
-                Logger.d(TAG, "Writing message of length " + msgSize + "MB to server ...");
+                // Headers and episode go out together without copying the episode
+                writeBuffers[0] = _send_buffer;
+                writeBuffers[1] = episode;
 
-            } else{
-                // Write Bytes to socketChannel
-                if (_send_buffer.remaining() > 0){
-                    socketChannel.write(_send_buffer);
-                }else if (writeBufferVector.get(0).remaining() > 0){
-                    int bytes = socketChannel.write(writeBufferVector.get(0));
-                    printTotalBytes(socketChannel, bytes);
-                }
+                Logger.d(TAG, "Writing message of length " + totalNumBytesToWrite / 1000000 + "MB to server ...");
             }
-            if (writeBufferVector.get(0).remaining() == 0){
-                int total = writeBufferVector.get(0).limit() / 1000;
+            long bytes = socketChannel.write(writeBuffers);
+            printTotalBytes(socketChannel, bytes);
+
+            if (_send_buffer.remaining() == 0 && episode.remaining() == 0){
+                int total = totalNumBytesToWrite / 1000;
                 double timeTaken = (System.nanoTime() - socketWriteTimeStart) * 10e-10;
                 DecimalFormat df = new DecimalFormat();
                 df.setMaximumFractionDigits(2);
                 Logger.i(TAG, "Sent " + total + "kb in " + df.format(timeTaken) + "s");
-                Logger.i(TAG, "Mean transfer rate of " + df.format(total/timeTaken) + " MB/s");
+                Logger.i(TAG, "Mean transfer rate of " + df.format(total / 1000.0 / timeTaken) + " MB/s");
 
                 // Clear sending buffer
                 _send_buffer.clear();
-                writeBufferVector.get(0).clear();
-                writeBufferVector.remove(0);
+                episode.clear();
+                writeQueue.poll();
+                writeBuffers[0] = null;
+                writeBuffers[1] = null;
                 // make null so as to catch the initial if statement to write a new one.
                 jsonHeaderWrite = null;
 
@@ -200,8 +302,9 @@ public class SocketMessage {
         }
     }
 
-    private void printTotalBytes(SocketChannel socketChannel, int bytesWritten) throws IOException {
-        int percentDone = (int) Math.ceil(((double) totalNumBytesToWrite - (double) writeBufferVector.get(0).remaining())
+    private void printTotalBytes(SocketChannel socketChannel, long bytesWritten) throws IOException {
+        int remaining = writeBuffers[0].remaining() + writeBuffers[1].remaining();
+        int percentDone = (int) Math.ceil(((double) totalNumBytesToWrite - (double) remaining)
                 / (double) totalNumBytesToWrite * 100);
         int total = totalNumBytesToWrite / 1000000;
         Logger.d(TAG, "Sent " + percentDone + "% of " + total + "Mb to " + socketChannel.getRemoteAddress());
@@ -217,13 +320,21 @@ public class SocketMessage {
         return optimalBufferSize;
     }
 
-    private JSONObject generate_jsonheader(int numBytesToWrite) throws JSONException {
+    private JSONObject generate_jsonheader(int numBytesToWrite, JSONObject headerFields) throws JSONException {
         JSONObject jsonHeader = new JSONObject();
 
         jsonHeader.put("byteorder", ByteOrder.nativeOrder().toString());
         jsonHeader.put("content-length", numBytesToWrite);
         jsonHeader.put("content-type", "episode");
         jsonHeader.put("content-encoding", "flatbuffer");
+        // e.g. chunk headers of streamed episodes, may override the defaults above
+        if (headerFields != null){
+            Iterator<String> keys = headerFields.keys();
+            while (keys.hasNext()){
+                String key = keys.next();
+                jsonHeader.put(key, headerFields.get(key));
+            }
+        }
         return jsonHeader;
     }
 
@@ -251,7 +362,7 @@ public class SocketMessage {
      *  As with the process_protoheader we will check if _recv_buffer contains enough bytes to
      *  generate the jsonHeader objects, and if not, leave it alone and read more from socket.
      */
-    private void process_jsonheader() throws JSONException {
+    private void process_jsonheader() throws JSONException, IOException {
 
         Logger.v(TAG, "processing jsonheader");
 
@@ -264,8 +375,15 @@ public class SocketMessage {
             Logger.d(TAG, "JSONheader from server: " + jsonHeaderRead.toString());
 
             try{
-                int msgLength = (int) jsonHeaderRead.get("content-length");
-                msgContent = ByteBuffer.allocate(msgLength);
+                msgContentLength = jsonHeaderRead.getLong("content-length");
+                File fileDirectory = jsonHeaderRead.optString("content-type").equals("files") ?
+                        socketListener.getFileDirectory(jsonHeaderRead) : null;
+                if (fileDirectory != null){
+                    // Straight to disk through _recv_buffer, however large the files are
+                    fileReceiver = new FileStreamReceiver(jsonHeaderRead, fileDirectory);
+                } else {
+                    msgContent = ByteBuffer.allocate((int) msgContentLength);
+                }
             }catch (JSONException e) {
                 ErrorHandler.eLog(TAG, "Couldn't get content-length from jsonHeader sent from server", e, true);
             }
@@ -285,24 +403,33 @@ public class SocketMessage {
      */
     private void process_msgContent(SelectionKey selectionKey) throws IOException, BrokenBarrierException, InterruptedException {
 
-        if (msgContent.remaining() > 0){
+        if (fileReceiver != null){
+            _recv_buffer.flip();
+            fileReceiver.write(_recv_buffer);
+            _recv_buffer.compact();
+        } else if (msgContent.remaining() > 0){
             _recv_buffer.flip(); //pos at 0 and limit set to bitsRead set ready to read
             msgContent.put(_recv_buffer);
             _recv_buffer.clear();
         }
 
-        if (msgContent.remaining() == 0){
-            // msgContent should now be full and ready to convert to a various model files.
-            socketListener.onServerReadSuccess(jsonHeaderRead, msgContent);
+        if (isContentComplete()){
+            if (fileReceiver != null){
+                socketListener.onServerFilesReceived(jsonHeaderRead, fileReceiver.getFiles());
+            } else {
+                // msgContent should now be full and ready to convert to a various model files.
+                socketListener.onServerReadSuccess(jsonHeaderRead, msgContent);
+                msgContent.clear();
+            }
 
             // Clear for next round of communication
             _recv_buffer.clear();
             _jsonheader_len = 0;
             jsonHeaderRead = null;
-            msgContent.clear();
 
-            int totalBytes = msgContent.capacity() / 1000000;
+            int totalBytes = (int) (msgContentLength / 1000000);
             msgContent = null;
+            fileReceiver = null;
             double timeTaken = (System.nanoTime() - socketReadTimeStart) * 10e-10;
             DecimalFormat df = new DecimalFormat();
             df.setMaximumFractionDigits(2);
@@ -310,6 +437,16 @@ public class SocketMessage {
 
             msgReadComplete = true;
 
+            if (connectionCallback != null){
+                // Nothing to do until the next message is added
+                selectionKey.interestOps(0);
+                connectionCallback.onMessageComplete(this);
+                if (doneSignal != null){
+                    doneSignal.await();
+                }
+                return;
+            }
+
 //            // Set socket to write now that reading has finished.
 //            int ops = 0;
 //            sc.register(selectionKey.selector(), ops, selectionKey.attachment());
@@ -329,10 +466,19 @@ public class SocketMessage {
 
     // todo should be able deal with ByteBuffer from FlatBuffer rather than byte[]
     public void addEpisodeToWriteBuffer(ByteBuffer episode, CyclicBarrier doneSignal){
+        addEpisodeToWriteBuffer(episode, doneSignal, null);
+    }
+
+    /**
+     * @param headerFields additional fields for the JSON header sent ahead of episode, or null
+     */
+    public void addEpisodeToWriteBuffer(ByteBuffer episode, CyclicBarrier doneSignal, JSONObject headerFields){
         boolean success = false;
         try{
-            success = writeBufferVector.add(episode); // does pos or limit change in either episode or writeBufferVector at this point?
+            success = writeQueue.add(new OutgoingMessage(episode, headerFields));
             this.doneSignal = doneSignal;
+            // The reply to the previous message on a kept open connection has been read
+            msgReadComplete = false;
             Logger.v(TAG, "Added data to writeBuffer");
             int ops = SelectionKey.OP_WRITE;
             socketWriteTimeStart = System.nanoTime();
@@ -340,7 +486,7 @@ public class SocketMessage {
 //            socketConnectionManager.start_connection();
             // I want this to trigger the selector that this channel is writeReady.
         } catch (NullPointerException | ClosedChannelException e){
-            ErrorHandler.eLog(TAG, "SocketConnectionManager.data not initialized yet", e, true);
+            ErrorHandler.eLog(TAG, "SocketConnectionManager.data not initialized yet", e, connectionCallback == null);
         }
     }
 }
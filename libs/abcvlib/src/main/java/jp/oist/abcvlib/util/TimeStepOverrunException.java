@@ -0,0 +1,11 @@
+package jp.oist.abcvlib.util;
+
+/**
+ * Thrown when fail-fast is enabled on a TimeStepDataBuffer and a slot is recycled while it is
+ * still being read, or written to after it has been recycled.
+ */
+public class TimeStepOverrunException extends RuntimeException{
+    public TimeStepOverrunException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,50 @@
+package jp.oist.abcvlib.core.inputs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimeStepDataBufferTest {
+
+    @Test
+    public void completedTimeStepsDoNotChangeWhileRead() throws InterruptedException {
+        TimeStepDataBuffer buffer = new TimeStepDataBuffer(4);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong sent = new AtomicLong();
+        Thread publisher = new Thread(() -> {
+            long timestamp = 0;
+            while (running.get()){
+                buffer.onOrientationUpdate(++timestamp, timestamp, -timestamp);
+            }
+            sent.set(timestamp);
+        });
+        publisher.start();
+
+        long recorded = 0;
+        long last = 0;
+        for (int i = 0; i < 2000; i++){
+            buffer.nextTimeStep();
+            TimeStepDataBuffer.TimeStepData.OrientationData orientation = buffer.getReadData().getOrientationData();
+            long[] timestamps = orientation.getTimeStamps();
+            double[] tiltAngles = orientation.getTiltAngle();
+            // A sample added after the slot was completed would make the columns disagree
+            assertEquals(timestamps.length, tiltAngles.length);
+            assertEquals(timestamps.length, orientation.getTimeStampsColumn().size());
+            for (int j = 0; j < timestamps.length; j++){
+                assertEquals(timestamps[j], (long) tiltAngles[j]);
+                assertTrue(timestamps[j] > last);
+                last = timestamps[j];
+            }
+            recorded += timestamps.length;
+        }
+        running.set(false);
+        publisher.join();
+
+        recorded += buffer.getWriteData().getOrientationData().getTimeStampsColumn().size();
+        assertEquals(sent.get(), recorded + buffer.getLateWriteCount());
+    }
+}
@@ -0,0 +1,287 @@
+package jp.oist.abcvlib.core.learning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import jp.oist.abcvlib.core.learning.fbclasses.AudioTimestamp;
+import jp.oist.abcvlib.core.learning.fbclasses.BatteryData;
+import jp.oist.abcvlib.core.learning.fbclasses.ChargerData;
+import jp.oist.abcvlib.core.learning.fbclasses.CommAction;
+import jp.oist.abcvlib.core.learning.fbclasses.Episode;
+import jp.oist.abcvlib.core.learning.fbclasses.Image;
+import jp.oist.abcvlib.core.learning.fbclasses.ImageData;
+import jp.oist.abcvlib.core.learning.fbclasses.IndividualWheelData;
+import jp.oist.abcvlib.core.learning.fbclasses.MotionAction;
+import jp.oist.abcvlib.core.learning.fbclasses.OrientationData;
+import jp.oist.abcvlib.core.learning.fbclasses.RobotAction;
+import jp.oist.abcvlib.core.learning.fbclasses.SoundData;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.core.learning.fbclasses.WheelData;
+import jp.oist.abcvlib.util.ColumnCodec;
+
+public class CompactEpisodeCodecTest {
+    private static final int ROBOT_ID = 7;
+    private static final int TIME_STEPS = 20;
+    private static final long STEP = 5_000_000;
+
+    @Test
+    public void losslessRoundTrip(){
+        ByteBuffer episode = buildEpisode(new Random(1));
+        int position = episode.position();
+        CompactEpisodeCodec codec = new CompactEpisodeCodec();
+        ByteBuffer compact = codec.encode(episode);
+        assertEquals(position, episode.position());
+        assertTrue(compact.remaining() < episode.remaining());
+
+        ByteBuffer decoded = codec.decode(compact);
+        assertEpisodesEqual(episode, decoded, 0, 0);
+        // Nothing was lost, so encoding the decoded episode gives the same bytes
+        assertEquals(compact, codec.encode(decoded));
+    }
+
+    @Test
+    public void float32RoundTrip(){
+        ByteBuffer episode = buildEpisode(new Random(2));
+        CompactEpisodeCodec codec = new CompactEpisodeCodec(ColumnCodec.Precision.FLOAT32, 0);
+        assertEpisodesEqual(episode, codec.decode(codec.encode(episode)), 1e-6, 0);
+    }
+
+    @Test
+    public void quantizedRoundTrip(){
+        ByteBuffer episode = buildEpisode(new Random(3));
+        double quantum = 0.001;
+        CompactEpisodeCodec codec = new CompactEpisodeCodec(ColumnCodec.Precision.QUANTIZED, quantum);
+        assertEpisodesEqual(episode, codec.decode(codec.encode(episode)), 0, quantum / 2 + 1e-12);
+    }
+
+    @Test
+    public void codecIsReusable(){
+        CompactEpisodeCodec codec = new CompactEpisodeCodec();
+        ByteBuffer first = buildEpisode(new Random(4));
+        ByteBuffer second = buildEpisode(new Random(5));
+        ByteBuffer firstCompact = codec.encode(first);
+        ByteBuffer secondCompact = codec.encode(second);
+        assertEpisodesEqual(second, codec.decode(secondCompact), 0, 0);
+        assertEpisodesEqual(first, codec.decode(firstCompact), 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRejected(){
+        CompactEpisodeCodec codec = new CompactEpisodeCodec();
+        ByteBuffer compact = codec.encode(buildEpisode(new Random(6)));
+        compact.put(0, (byte) (CompactEpisodeCodec.VERSION + 1));
+        codec.decode(compact);
+    }
+
+    /**
+     * Builds an episode with every table filled in, leaving some optional tables and fields out
+     * of a few timesteps so their absence is round tripped too.
+     */
+    private static ByteBuffer buildEpisode(Random random){
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int[] timeSteps = new int[TIME_STEPS];
+        long timestamp = 1_700_000_000_000_000_000L;
+        int count = 0;
+        for (int t = 0; t < TIME_STEPS; t++){
+            int samples = 10 + random.nextInt(5);
+            long[] timestamps = new long[samples];
+            int[] counts = new int[samples];
+            double[] distances = new double[samples];
+            double[] speeds = new double[samples];
+            for (int i = 0; i < samples; i++){
+                timestamp += STEP + random.nextInt(2000);
+                count += random.nextInt(3) == 0 ? 1 : 0;
+                timestamps[i] = timestamp;
+                counts[i] = count;
+                distances[i] = count * 0.0123;
+                speeds[i] = random.nextGaussian();
+            }
+            int left = createWheel(builder, timestamps, counts, distances, speeds);
+            int right = t == 4 ? 0 : createWheel(builder, timestamps, counts, distances, speeds);
+            int wheelData = WheelData.createWheelData(builder, left, right);
+
+            int orientationData = OrientationData.createOrientationData(builder,
+                    OrientationData.createTimestampsVector(builder, timestamps),
+                    OrientationData.createTiltangleVector(builder, speeds),
+                    OrientationData.createTiltvelocityVector(builder, distances));
+            int chargerData = t == 2 ? 0 : ChargerData.createChargerData(builder,
+                    ChargerData.createTimestampsVector(builder, new long[]{timestamp}),
+                    ChargerData.createVoltageVector(builder, new double[]{0.0}));
+            int batteryData = BatteryData.createBatteryData(builder,
+                    BatteryData.createTimestampsVector(builder, new long[]{timestamp - 1, timestamp}),
+                    BatteryData.createVoltageVector(builder, new double[]{3.7, 3.69}));
+
+            float[] levels = new float[32];
+            for (int i = 0; i < levels.length; i++){
+                levels[i] = random.nextInt(4) == 0 ? 0 : random.nextFloat();
+            }
+            int startTime = t == 0 ? 0 : AudioTimestamp.createAudioTimestamp(builder, 1600L * t, timestamp - STEP);
+            int endTime = AudioTimestamp.createAudioTimestamp(builder, 1600L * (t + 1), timestamp);
+            int soundData = SoundData.createSoundData(builder, startTime, endTime, 0.1, 16000,
+                    1600L * (t + 1), SoundData.createLevelsVector(builder, levels));
+
+            int imageData = 0;
+            if (t != 3){
+                int[] images = new int[1 + t % 3];
+                for (int i = 0; i < images.length; i++){
+                    byte[] webp = new byte[100 + random.nextInt(100)];
+                    random.nextBytes(webp);
+                    images[i] = Image.createImage(builder, timestamp - i, 320, 240,
+                            Image.createWebpImageVector(builder, webp));
+                }
+                imageData = ImageData.createImageData(builder, ImageData.createImagesVector(builder, images));
+            }
+
+            int actions = 0;
+            if (t != 6){
+                int motionAction = MotionAction.createMotionAction(builder, (byte) (t % 5),
+                        t == 8 ? 0 : builder.createString("forward " + t), 0.5f, -0.25f, t % 2 == 0, false);
+                int commAction = t == 7 ? 0 : CommAction.createCommAction(builder, (byte) 1,
+                        builder.createString("chirp"));
+                actions = RobotAction.createRobotAction(builder, motionAction, commAction);
+            }
+            timeSteps[t] = TimeStep.createTimeStep(builder, wheelData, orientationData, chargerData,
+                    batteryData, soundData, imageData, actions);
+        }
+        int episode = Episode.createEpisode(builder, ROBOT_ID, Episode.createTimestepsVector(builder, timeSteps));
+        builder.finish(episode);
+        return builder.dataBuffer();
+    }
+
+    private static int createWheel(FlatBufferBuilder builder, long[] timestamps, int[] counts,
+                                   double[] distances, double[] speeds){
+        return IndividualWheelData.createIndividualWheelData(builder,
+                IndividualWheelData.createTimestampsVector(builder, timestamps),
+                IndividualWheelData.createCountsVector(builder, counts),
+                IndividualWheelData.createDistancesVector(builder, distances),
+                IndividualWheelData.createSpeedsInstantaneousVector(builder, speeds),
+                IndividualWheelData.createSpeedsBufferedVector(builder, distances),
+                IndividualWheelData.createSpeedsExpavgVector(builder, speeds));
+    }
+
+    /**
+     * @param relativeError allowed error of doubles relative to their magnitude
+     * @param absoluteError allowed error of doubles
+     */
+    private static void assertEpisodesEqual(ByteBuffer expectedBuffer, ByteBuffer actualBuffer,
+                                            double relativeError, double absoluteError){
+        Episode expected = Episode.getRootAsEpisode(expectedBuffer.duplicate());
+        Episode actual = Episode.getRootAsEpisode(actualBuffer.duplicate());
+        assertEquals(expected.robotid(), actual.robotid());
+        assertEquals(expected.timestepsLength(), actual.timestepsLength());
+        for (int t = 0; t < expected.timestepsLength(); t++){
+            TimeStep e = expected.timesteps(t);
+            TimeStep a = actual.timesteps(t);
+            String at = "timestep " + t;
+
+            assertWheelEquals(at, e.wheelData().left(), a.wheelData().left(), relativeError, absoluteError);
+            assertWheelEquals(at, e.wheelData().right(), a.wheelData().right(), relativeError, absoluteError);
+
+            assertEquals(at, e.orientationData().timestampsAsByteBuffer(), a.orientationData().timestampsAsByteBuffer());
+            assertDoublesEqual(at, e.orientationData().tiltangleAsByteBuffer(),
+                    a.orientationData().tiltangleAsByteBuffer(), relativeError, absoluteError);
+            assertDoublesEqual(at, e.orientationData().tiltvelocityAsByteBuffer(),
+                    a.orientationData().tiltvelocityAsByteBuffer(), relativeError, absoluteError);
+
+            if (e.chargerData() == null){
+                assertNull(at, a.chargerData());
+            } else {
+                assertEquals(at, e.chargerData().timestampsAsByteBuffer(), a.chargerData().timestampsAsByteBuffer());
+                assertDoublesEqual(at, e.chargerData().voltageAsByteBuffer(),
+                        a.chargerData().voltageAsByteBuffer(), relativeError, absoluteError);
+            }
+            assertEquals(at, e.batteryData().timestampsAsByteBuffer(), a.batteryData().timestampsAsByteBuffer());
+            assertDoublesEqual(at, e.batteryData().voltageAsByteBuffer(),
+                    a.batteryData().voltageAsByteBuffer(), relativeError, absoluteError);
+
+            SoundData es = e.soundData();
+            SoundData as = a.soundData();
+            assertAudioTimestampEquals(at, es.startTime(), as.startTime());
+            assertAudioTimestampEquals(at, es.endTime(), as.endTime());
+            assertEquals(at, es.totalTime(), as.totalTime(), 0);
+            assertEquals(at, es.sampleRate(), as.sampleRate());
+            assertEquals(at, es.totalSamples(), as.totalSamples());
+            assertEquals(at, es.levelsAsByteBuffer(), as.levelsAsByteBuffer());
+
+            if (e.imageData() == null){
+                assertNull(at, a.imageData());
+            } else {
+                assertEquals(at, e.imageData().imagesLength(), a.imageData().imagesLength());
+                for (int i = 0; i < e.imageData().imagesLength(); i++){
+                    Image ei = e.imageData().images(i);
+                    Image ai = a.imageData().images(i);
+                    assertEquals(at, ei.timestamp(), ai.timestamp());
+                    assertEquals(at, ei.width(), ai.width());
+                    assertEquals(at, ei.height(), ai.height());
+                    assertEquals(at, ei.webpImageAsByteBuffer(), ai.webpImageAsByteBuffer());
+                }
+            }
+
+            if (e.actions() == null){
+                assertNull(at, a.actions());
+            } else {
+                MotionAction em = e.actions().motionAction();
+                MotionAction am = a.actions().motionAction();
+                assertEquals(at, em.actionByte(), am.actionByte());
+                assertEquals(at, em.actionName(), am.actionName());
+                assertEquals(at, em.leftWheelPWM(), am.leftWheelPWM(), 0);
+                assertEquals(at, em.rightWheelPWM(), am.rightWheelPWM(), 0);
+                assertEquals(at, em.leftWheelBrake(), am.leftWheelBrake());
+                assertEquals(at, em.rightWheelBrake(), am.rightWheelBrake());
+                CommAction ec = e.actions().commAction();
+                CommAction ac = a.actions().commAction();
+                if (ec == null){
+                    assertNull(at, ac);
+                } else {
+                    assertEquals(at, ec.actionByte(), ac.actionByte());
+                    assertEquals(at, ec.actionName(), ac.actionName());
+                }
+            }
+        }
+    }
+
+    private static void assertWheelEquals(String at, IndividualWheelData expected, IndividualWheelData actual,
+                                          double relativeError, double absoluteError){
+        if (expected == null){
+            assertNull(at, actual);
+            return;
+        }
+        assertEquals(at, expected.timestampsAsByteBuffer(), actual.timestampsAsByteBuffer());
+        assertEquals(at, expected.countsAsByteBuffer(), actual.countsAsByteBuffer());
+        assertDoublesEqual(at, expected.distancesAsByteBuffer(), actual.distancesAsByteBuffer(),
+                relativeError, absoluteError);
+        assertDoublesEqual(at, expected.speedsInstantaneousAsByteBuffer(),
+                actual.speedsInstantaneousAsByteBuffer(), relativeError, absoluteError);
+        assertDoublesEqual(at, expected.speedsBufferedAsByteBuffer(),
+                actual.speedsBufferedAsByteBuffer(), relativeError, absoluteError);
+        assertDoublesEqual(at, expected.speedsExpavgAsByteBuffer(),
+                actual.speedsExpavgAsByteBuffer(), relativeError, absoluteError);
+    }
+
+    private static void assertDoublesEqual(String at, ByteBuffer expected, ByteBuffer actual,
+                                           double relativeError, double absoluteError){
+        assertEquals(at, expected.remaining(), actual.remaining());
+        for (int i = 0; i < expected.remaining(); i += 8){
+            double e = expected.getDouble(expected.position() + i);
+            double a = actual.getDouble(actual.position() + i);
+            assertEquals(at, e, a, Math.abs(e) * relativeError + absoluteError);
+        }
+    }
+
+    private static void assertAudioTimestampEquals(String at, AudioTimestamp expected, AudioTimestamp actual){
+        if (expected == null){
+            assertNull(at, actual);
+            return;
+        }
+        assertEquals(at, expected.framePosition(), actual.framePosition());
+        assertEquals(at, expected.nanoTime(), actual.nanoTime());
+    }
+}
@@ -0,0 +1,280 @@
+package jp.oist.abcvlib.core.learning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import jp.oist.abcvlib.core.inputs.PublisherManager;
+import jp.oist.abcvlib.core.inputs.TimeStepDataBuffer;
+import jp.oist.abcvlib.core.learning.fbclasses.Episode;
+import jp.oist.abcvlib.core.learning.fbclasses.OrientationData;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.util.MappedSegmentStore;
+import jp.oist.abcvlib.util.ServerConnection;
+
+public class EpisodeValidatorTest {
+    private static final int ROBOT_ID = 7;
+    private static final int TIME_STEPS = 50;
+    private static final int SAMPLES_PER_TIME_STEP = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Keeps a copy of the payloads sent, as the assembler recycles its buffers afterwards.
+     */
+    private static class RecordingConnection implements ServerConnection {
+        private byte[] payload;
+        private JSONObject headerFields;
+        private final List<byte[]> payloads = new ArrayList<>();
+        private final List<JSONObject> headers = new ArrayList<>();
+
+        @Override
+        public boolean sendAndWait(ByteBuffer payload, JSONObject headerFields){
+            this.payload = new byte[payload.remaining()];
+            payload.duplicate().get(this.payload);
+            this.headerFields = headerFields;
+            payloads.add(this.payload);
+            headers.add(headerFields);
+            return true;
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+
+    @Test
+    public void assembledEpisodeIsValid() throws Exception {
+        RecordingConnection upload = assemble(false, false);
+        ByteBuffer payload = ByteBuffer.wrap(upload.payload);
+        EpisodeReader reader = EpisodeReader.fromPayload(payload,
+                upload.headerFields.getString("content-encoding"));
+        assertEquals(ROBOT_ID, reader.getRobotId());
+        assertEquals(TIME_STEPS, reader.getTimeStepCount());
+        assertEquals(0, payload.position());
+
+        int count = 0;
+        long last = Long.MIN_VALUE;
+        for (TimeStep timeStep : reader){
+            OrientationData orientation = timeStep.orientationData();
+            assertEquals(SAMPLES_PER_TIME_STEP, orientation.timestampsLength());
+            assertTrue(orientation.timestamps(0) > last);
+            last = orientation.timestamps(orientation.timestampsLength() - 1);
+            assertNotNull(timeStep.actions().motionAction());
+            count++;
+        }
+        assertEquals(TIME_STEPS, count);
+
+        EpisodeValidator validator = new EpisodeValidator(reader);
+        assertTrue(validator.getProblems().toString(), validator.validate());
+        assertEquals(0, validator.getProblemCount());
+        EpisodeValidator.TimestampStats orientation = validator.getTimestampStats().get("orientation");
+        assertEquals(TIME_STEPS * SAMPLES_PER_TIME_STEP, orientation.getCount());
+        assertEquals(0, orientation.getOutOfOrderCount());
+    }
+
+    @Test
+    public void indexedEpisodeIsValid() throws Exception {
+        assertIndexedEpisodeIsValid(assemble(false, true));
+    }
+
+    @Test
+    public void compactIndexedEpisodeIsValid() throws Exception {
+        // The index is written for the flatbuffer before compact encoding, not the decoded one
+        assertIndexedEpisodeIsValid(assemble(true, true));
+    }
+
+    private static void assertIndexedEpisodeIsValid(RecordingConnection upload) throws Exception {
+        EpisodeReader reader = EpisodeReader.fromPayload(ByteBuffer.wrap(upload.payload),
+                upload.headerFields.getString("content-encoding"),
+                upload.headerFields.getInt("index-length"));
+        assertNotNull(reader.getIndex());
+        assertEquals(TIME_STEPS, reader.getTimeStepCount());
+        TimeStep root = new TimeStep();
+        for (int i = 0; i < TIME_STEPS; i++){
+            TimeStep indexed = reader.getTimeStep(i);
+            reader.getEpisode().timesteps(root, i);
+            assertEquals(root.orientationData().timestampsAsByteBuffer(),
+                    indexed.orientationData().timestampsAsByteBuffer());
+        }
+        long timestamp = reader.getTimeStep(10).orientationData().timestamps(5);
+        assertEquals(10, reader.findTimeStep(timestamp));
+        assertTrue(new EpisodeValidator(reader).validate());
+    }
+
+    @Test
+    public void spilledEpisodeIsSentSegmentBySegment() throws Exception {
+        // Segments of a few timesteps each, so the episode is sent in several chunks
+        MappedSegmentStore store = new MappedSegmentStore(folder.newFolder("spill"), "episode", 16 * 1024);
+        RecordingConnection upload = assemble(false, false, store);
+        assertTrue(upload.payloads.size() > 2);
+        int timeSteps = 0;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < upload.payloads.size(); i++){
+            EpisodeChunk chunk = EpisodeChunk.fromJson(upload.headers.get(i));
+            assertEquals(i, chunk.getChunkIndex());
+            assertEquals(timeSteps, chunk.getFirstTimeStep());
+            assertEquals(i == upload.payloads.size() - 1, chunk.isLast());
+            EpisodeReader reader = EpisodeReader.wrap(ByteBuffer.wrap(upload.payloads.get(i)));
+            assertEquals(chunk.getTimeStepCount(), reader.getTimeStepCount());
+            assertTrue(new EpisodeValidator(reader).validate());
+            for (TimeStep timeStep : reader){
+                assertTrue(timeStep.orientationData().timestamps(0) > last);
+                last = timeStep.orientationData().timestamps(SAMPLES_PER_TIME_STEP - 1);
+            }
+            timeSteps += reader.getTimeStepCount();
+        }
+        assertEquals(TIME_STEPS, timeSteps);
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    public void truncatedEpisodeIsRejected() throws Exception {
+        byte[] episode = assemble(false, false).payload;
+        for (int length : new int[]{0, 7, 12, episode.length / 2, episode.length - 100, episode.length - 1}){
+            try {
+                EpisodeValidator validator = new EpisodeValidator(EpisodeReader.wrap(ByteBuffer.wrap(episode, 0, length)));
+                assertFalse("Truncated to " + length + " bytes", validator.validate());
+                assertTrue(validator.getProblemCount() > 0);
+            } catch (IOException e) {
+                // Rejected before validating, as it should be when the root table is cut off
+            }
+        }
+    }
+
+    @Test
+    public void corruptedEpisodeIsReportedWithoutThrowing() throws Exception {
+        byte[] episode = assemble(false, false).payload;
+        Random random = new Random(5);
+        int flagged = 0;
+        for (int i = 0; i < 200; i++){
+            byte[] corrupted = episode.clone();
+            for (int j = 0; j < 5; j++){
+                corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt();
+            }
+            try {
+                if (!new EpisodeValidator(EpisodeReader.wrap(ByteBuffer.wrap(corrupted))).validate()){
+                    flagged++;
+                }
+            } catch (IOException e) {
+                flagged++;
+            }
+        }
+        // Corrupted sensor values can look valid, but corrupted offsets and lengths must not
+        assertTrue("Only " + flagged + " of 200 corrupted episodes were flagged", flagged > 50);
+    }
+
+    @Test
+    public void badRootOffsetIsRejected(){
+        try {
+            EpisodeReader.wrap(ByteBuffer.wrap(new byte[]{(byte) 200, 0, 0, 0, 0, 0, 0, 0}));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void inconsistentEpisodeIsReported() throws IOException {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int first = createTimeStep(builder, new long[]{10, 20, 15}, new double[]{1, 2}, new double[]{1, 2, 3});
+        int second = createTimeStep(builder, new long[]{5}, new double[]{1}, new double[]{1});
+        int timeSteps = Episode.createTimestepsVector(builder, new int[]{first, second});
+        builder.finish(Episode.createEpisode(builder, 3, timeSteps));
+
+        EpisodeValidator validator = new EpisodeValidator(EpisodeReader.wrap(builder.dataBuffer()));
+        assertFalse(validator.validate());
+        assertEquals(validator.getProblems().toString(), 3, validator.getProblemCount());
+        assertTrue(validator.getProblems().get(0).contains("before"));
+        assertTrue(validator.getProblems().get(1).contains("tiltAngle has 2 values for 3 timestamps"));
+        assertEquals(2, validator.getTimestampStats().get("orientation").getOutOfOrderCount());
+    }
+
+    private static int createTimeStep(FlatBufferBuilder builder, long[] timestamps, double[] tiltAngles,
+                                      double[] tiltVelocities){
+        int orientation = OrientationData.createOrientationData(builder,
+                OrientationData.createTimestampsVector(builder, timestamps),
+                OrientationData.createTiltangleVector(builder, tiltAngles),
+                OrientationData.createTiltvelocityVector(builder, tiltVelocities));
+        TimeStep.startTimeStep(builder);
+        TimeStep.addOrientationData(builder, orientation);
+        return TimeStep.endTimeStep(builder);
+    }
+
+    /**
+     * Records an episode of wheel, orientation, battery and charger data and actions through
+     * a FlatbufferAssembler, the way a Trial does.
+     * @return the connection holding the uploaded episode
+     */
+    private static RecordingConnection assemble(boolean compact, boolean index) throws Exception {
+        return assemble(compact, index, null);
+    }
+
+    /**
+     * @param store episode store to spill the timesteps to, or null to build the episode on the heap
+     */
+    private static RecordingConnection assemble(boolean compact, boolean index, MappedSegmentStore store) throws Exception {
+        TimeStepDataBuffer buffer = new TimeStepDataBuffer(64, true);
+        MetaParameters metaParameters = new MetaParameters(null, 50, TIME_STEPS * 2, 100, 1,
+                null, buffer, null, ROBOT_ID);
+        Trial trial = new Trial(metaParameters, new ActionSpace(new CommActionSpace(), new MotionActionSpace()),
+                new StateSpace(new PublisherManager()));
+        FlatbufferAssembler assembler = new FlatbufferAssembler(trial, null, null, buffer, ROBOT_ID);
+        RecordingConnection connection = new RecordingConnection();
+        assembler.setConnection(connection);
+        if (compact){
+            assembler.setCompactEncoding(new CompactEpisodeCodec());
+        }
+        assembler.setEmitIndex(index);
+        assembler.setEpisodeStore(store);
+
+        Random random = new Random(1);
+        MotionAction motionAction = new MotionActionSpace().getMotionActions()[0];
+        CommAction commAction = new CommActionSpace().getCommActions()[0];
+        long timestamp = 1_700_000_000_000_000_000L;
+        int count = 0;
+        assembler.startEpisode();
+        for (int t = 0; t < TIME_STEPS; t++){
+            for (int i = 0; i < SAMPLES_PER_TIME_STEP; i++){
+                timestamp += 5_000_000 + random.nextInt(2000);
+                count += random.nextInt(3) == 0 ? 1 : 0;
+                double distance = count * 0.0123;
+                buffer.onWheelDataUpdate(timestamp, count, count + 1, distance, distance,
+                        0.1 * i, 0.1 * i, 0.2, 0.2, 0.3, 0.3);
+                buffer.onOrientationUpdate(timestamp + 17, Math.sin(i * 0.01), Math.cos(i * 0.01));
+                if (i % 10 == 0){
+                    buffer.onBatteryVoltageUpdate(timestamp, 3.7);
+                    buffer.onChargerVoltageUpdate(timestamp, 0.0, 0.0);
+                }
+            }
+            buffer.getWriteData().getActions().add(motionAction, commAction);
+            buffer.nextTimeStep();
+            assembler.addTimeStep(buffer.getReadIndex(), buffer.getReadSequence());
+        }
+        for (Future<?> future : assembler.flatbufferWriteFutures){
+            future.get();
+        }
+        assembler.endEpisode();
+        assembler.sendToServer();
+        assertNotNull(connection.payload);
+        return connection;
+    }
+}
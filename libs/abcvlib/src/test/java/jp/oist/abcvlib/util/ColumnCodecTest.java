@@ -0,0 +1,244 @@
+package jp.oist.abcvlib.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class ColumnCodecTest {
+    private static final long STEP = 5_000_000;
+    private static final double[] SPECIAL_DOUBLES = {Double.NaN, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, -0.0, Double.MIN_VALUE, Double.MAX_VALUE};
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void longsRoundTrip(){
+        long[] values = new long[200];
+        long timestamp = 1_700_000_000_000_000_000L;
+        for (int i = 0; i < values.length; i++){
+            // Mostly a fixed rate with jitter, plus repeats and a few large jumps either way
+            int kind = random.nextInt(10);
+            timestamp += kind == 0 ? 0 : kind == 1 ? -random.nextInt() : STEP + random.nextInt(3);
+            values[i] = timestamp;
+        }
+        values[50] = Long.MIN_VALUE;
+        values[51] = Long.MAX_VALUE;
+
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        ColumnCodec.Stream stream = new ColumnCodec.Stream();
+        writer.putLongs(longs(values), values.length, stream);
+
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        stream.reset();
+        assertEquals(values.length, reader.beginColumn());
+        ByteBuffer decoded = allocate(8 * values.length);
+        reader.getLongs(decoded, stream);
+        assertEquals(0, reader.remaining());
+        assertArrayEquals(values, toLongs(decoded));
+    }
+
+    @Test
+    public void intsRoundTrip(){
+        int[] values = new int[200];
+        int count = 0;
+        for (int i = 0; i < values.length; i++){
+            count += random.nextInt(3) == 0 ? 1 : 0;
+            values[i] = count;
+        }
+        values[10] = Integer.MIN_VALUE;
+        values[11] = Integer.MAX_VALUE;
+        values[12] = -1;
+
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        ColumnCodec.Stream stream = new ColumnCodec.Stream();
+        ByteBuffer encoded = allocate(4 * values.length);
+        encoded.asIntBuffer().put(values);
+        writer.putInts(encoded, values.length, stream);
+
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        stream.reset();
+        assertEquals(values.length, reader.beginColumn());
+        ByteBuffer decoded = allocate(4 * values.length);
+        reader.getInts(decoded, stream);
+        assertEquals(0, reader.remaining());
+        int[] result = new int[values.length];
+        decoded.asIntBuffer().get(result);
+        assertArrayEquals(values, result);
+    }
+
+    @Test
+    public void float64DoublesRoundTripExactly(){
+        double[] values = doubles(200);
+        double[] result = roundTripDoubles(values, ColumnCodec.Precision.FLOAT64, 0);
+        for (int i = 0; i < values.length; i++){
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(result[i]));
+        }
+    }
+
+    @Test
+    public void float32DoublesRoundTripAsFloats(){
+        double[] values = doubles(200);
+        double[] result = roundTripDoubles(values, ColumnCodec.Precision.FLOAT32, 0);
+        for (int i = 0; i < values.length; i++){
+            assertEquals(Float.floatToRawIntBits((float) values[i]), Float.floatToRawIntBits((float) result[i]));
+            assertEquals((double) (float) values[i], result[i], 0);
+        }
+    }
+
+    @Test
+    public void quantizedDoublesRoundTripWithinHalfAStep(){
+        double quantum = 0.001;
+        double[] values = new double[200];
+        double angle = 0;
+        for (int i = 0; i < values.length; i++){
+            angle += random.nextInt(4) == 0 ? 0 : random.nextGaussian() * 0.01;
+            values[i] = angle;
+        }
+        double[] result = roundTripDoubles(values, ColumnCodec.Precision.QUANTIZED, quantum);
+        for (int i = 0; i < values.length; i++){
+            assertEquals(values[i], result[i], quantum / 2 + 1e-12);
+        }
+    }
+
+    @Test
+    public void floatsRoundTrip(){
+        float[] values = new float[200];
+        for (int i = 0; i < values.length; i++){
+            values[i] = random.nextInt(3) == 0 ? 0 : random.nextFloat() * 100 - 50;
+        }
+        values[5] = Float.NaN;
+        values[6] = -0.0f;
+        values[7] = Float.NEGATIVE_INFINITY;
+
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        ByteBuffer encoded = allocate(4 * values.length);
+        encoded.asFloatBuffer().put(values);
+        writer.putFloats(encoded, values.length);
+
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        assertEquals(values.length, reader.beginColumn());
+        ByteBuffer decoded = allocate(4 * values.length);
+        reader.getFloats(decoded);
+        assertEquals(0, reader.remaining());
+        for (int i = 0; i < values.length; i++){
+            assertEquals(Float.floatToRawIntBits(values[i]), Float.floatToRawIntBits(decoded.getFloat(4 * i)));
+        }
+    }
+
+    @Test
+    public void streamsContinueAcrossColumns(){
+        long start = 1_700_000_000_000_000_000L;
+        long[] first = {start, start + STEP, start + 2 * STEP};
+        long[] second = {start + 3 * STEP, start + 4 * STEP, start + 5 * STEP + 1};
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        ColumnCodec.Stream stream = new ColumnCodec.Stream();
+        writer.putLongs(longs(first), first.length, stream);
+        int firstSize = writer.size();
+        writer.putLongs(null, 0, stream);
+        writer.putLongs(longs(second), second.length, stream);
+        // The second column continues the first one's delta so costs less than its first value did
+        assertTrue(writer.size() - firstSize < firstSize);
+
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        stream.reset();
+        ByteBuffer decoded = allocate(8 * reader.beginColumn());
+        reader.getLongs(decoded, stream);
+        assertArrayEquals(first, toLongs(decoded));
+        assertEquals(0, reader.beginColumn());
+        reader.getLongs(allocate(0), stream);
+        decoded = allocate(8 * reader.beginColumn());
+        reader.getLongs(decoded, stream);
+        assertArrayEquals(second, toLongs(decoded));
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test
+    public void scalarsRoundTrip(){
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        writer.putByte(0xAB);
+        writer.putVarLong(Long.MAX_VALUE);
+        writer.putSignedVarLong(Long.MIN_VALUE);
+        writer.putInt(-7);
+        writer.putLong(Long.MIN_VALUE + 1);
+        writer.putFloat(1.5f);
+        writer.putDouble(-2.25);
+        writer.putBytes(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        writer.putString("forward");
+        writer.putString(null);
+
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        assertEquals(0xAB, reader.getByte() & 0xFF);
+        assertEquals(Long.MAX_VALUE, reader.getVarLong());
+        assertEquals(Long.MIN_VALUE, reader.getSignedVarLong());
+        assertEquals(-7, reader.getInt());
+        assertEquals(Long.MIN_VALUE + 1, reader.getLong());
+        assertEquals(1.5f, reader.getFloat(), 0);
+        assertEquals(-2.25, reader.getDouble(), 0);
+        ByteBuffer bytes = reader.getBytes();
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), bytes);
+        assertEquals("forward", reader.getString());
+        assertNull(reader.getString());
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readingTheWrongColumnTypeFails(){
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        writer.putLongs(longs(new long[]{1, 2}), 2, new ColumnCodec.Stream());
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        reader.beginColumn();
+        reader.getInts(allocate(8), new ColumnCodec.Stream());
+    }
+
+    private double[] doubles(int count){
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++){
+            int kind = random.nextInt(6);
+            values[i] = kind == 0 ? SPECIAL_DOUBLES[random.nextInt(SPECIAL_DOUBLES.length)]
+                    : kind == 1 && i > 0 ? values[i - 1] : random.nextGaussian();
+        }
+        return values;
+    }
+
+    private static double[] roundTripDoubles(double[] values, ColumnCodec.Precision precision,
+                                             double quantum){
+        ColumnCodec.Writer writer = new ColumnCodec.Writer(1);
+        ColumnCodec.Stream stream = new ColumnCodec.Stream();
+        ByteBuffer encoded = allocate(8 * values.length);
+        encoded.asDoubleBuffer().put(values);
+        writer.putDoubles(encoded, values.length, precision, quantum, stream);
+
+        ColumnCodec.Reader reader = new ColumnCodec.Reader(writer.toByteBuffer());
+        stream.reset();
+        assertEquals(values.length, reader.beginColumn());
+        ByteBuffer decoded = allocate(8 * values.length);
+        reader.getDoubles(decoded, stream);
+        assertEquals(0, reader.remaining());
+        double[] result = new double[values.length];
+        decoded.asDoubleBuffer().get(result);
+        return result;
+    }
+
+    private static ByteBuffer longs(long[] values){
+        ByteBuffer buffer = allocate(8 * values.length);
+        buffer.asLongBuffer().put(values);
+        return buffer;
+    }
+
+    private static long[] toLongs(ByteBuffer buffer){
+        long[] values = new long[buffer.remaining() / 8];
+        buffer.asLongBuffer().get(values);
+        return values;
+    }
+
+    private static ByteBuffer allocate(int size){
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
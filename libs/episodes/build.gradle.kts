@@ -0,0 +1,52 @@
+// Offline tools for recorded episodes that run on a plain JVM, e.g. on the server holding an
+// archive: the reader, validator and index are compiled from abcvlib's sources together with
+// the codecs an upload may have been encoded with, as they use no Android APIs.
+
+plugins {
+    `java-library`
+}
+
+java {
+    val jvm = JavaVersion.toVersion(libs.versions.jvmTarget.get())
+    sourceCompatibility = jvm
+    targetCompatibility = jvm
+}
+
+val readerSources = listOf(
+    "core/learning/CompactEpisodeCodec",
+    "core/learning/EpisodeIndex",
+    "core/learning/EpisodeReader",
+    "core/learning/EpisodeValidator",
+    "util/ColumnCodec",
+    "util/CompressionCodec",
+    "util/DeflateCodec",
+    "util/Lz4BlockCodec",
+    "util/RunningStats",
+)
+
+val syncReaderSources by tasks.registering(Sync::class) {
+    from(project(":abcvlib").file("src/main/java")) {
+        readerSources.forEach { include("jp/oist/abcvlib/$it.java") }
+    }
+    into(layout.buildDirectory.dir("generated/sources/reader/java"))
+}
+
+sourceSets {
+    main {
+        java.srcDir(syncReaderSources)
+    }
+}
+
+dependencies {
+    api(libs.flatbuffers)
+    api(libs.abcvlib.fbclasses)
+    implementation(libs.json)
+    testImplementation(libs.junit)
+}
+
+tasks.register<JavaExec>("validateEpisodes") {
+    group = "verification"
+    description = "Validates every episode under the directory given with --args"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("jp.oist.abcvlib.episodes.EpisodeArchiveValidator")
+}
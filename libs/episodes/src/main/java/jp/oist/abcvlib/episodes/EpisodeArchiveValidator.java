@@ -0,0 +1,213 @@
+package jp.oist.abcvlib.episodes;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import jp.oist.abcvlib.core.learning.EpisodeIndex;
+import jp.oist.abcvlib.core.learning.EpisodeReader;
+import jp.oist.abcvlib.core.learning.EpisodeValidator;
+
+/**
+ * Checks every episode file under a directory with {@link EpisodeValidator}, e.g. an archive
+ * stored by the ingestion server, and prints the report of each followed by a summary:
+ * <pre>
+ * ./gradlew :episodes:validateEpisodes --args="directory [--problems-only]"
+ * </pre>
+ * How a file is read depends on the sidecar next to it, named like it but with another extension:
+ * <ul>
+ *     <li>{@value #HEADER_EXTENSION}: the header of the upload the file is the payload of, so
+ *     its content-encoding is undone and the index at its end (index-length) is used</li>
+ *     <li>{@value #INDEX_EXTENSION}: an {@link EpisodeIndex}, e.g. for the chunks of a streamed
+ *     episode appended to one file</li>
+ *     <li>neither: a plain Episode flatbuffer</li>
+ * </ul>
+ * Files are memory-mapped one at a time, so the archive as a whole can be far larger than the
+ * heap. A single file can be 2 GB at most as Episode flatbuffers use 32 bit offsets, larger
+ * ones are reported as unreadable; longer recordings are stored as chunks of one file each.
+ */
+public class EpisodeArchiveValidator {
+    public static final String HEADER_EXTENSION = ".json";
+    public static final String INDEX_EXTENSION = ".eidx";
+
+    /**
+     * Totals of one run.
+     */
+    public static class Summary {
+        private int files;
+        private int valid;
+        private int unreadable;
+        private long timeSteps;
+        private long bytes;
+
+        public int getFileCount(){
+            return files;
+        }
+
+        public int getValidCount(){
+            return valid;
+        }
+
+        /**
+         * @return files that could not be opened as an episode at all, e.g. truncated ones
+         */
+        public int getUnreadableCount(){
+            return unreadable;
+        }
+
+        /**
+         * @return timesteps of the valid episodes
+         */
+        public long getTimeStepCount(){
+            return timeSteps;
+        }
+
+        /**
+         * @return size of the episode flatbuffers read, after undoing any content-encoding
+         */
+        public long getBytes(){
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d files: %d valid, %d with problems, %d unreadable; " +
+                    "%d timesteps in %.1f MB", files, valid, files - valid - unreadable, unreadable,
+                    timeSteps, bytes / 1e6);
+        }
+    }
+
+    private final PrintStream out;
+    private boolean problemsOnly = false;
+
+    /**
+     * @param out where the reports go, e.g. System.out
+     */
+    public EpisodeArchiveValidator(PrintStream out){
+        this.out = out;
+    }
+
+    /**
+     * @param problemsOnly true to leave out the reports of valid episodes
+     */
+    public void setProblemsOnly(boolean problemsOnly){
+        this.problemsOnly = problemsOnly;
+    }
+
+    /**
+     * Validates fileOrDirectory, or every file below it in order of their paths, skipping sidecars.
+     * @throws IOException if there is no file to validate
+     */
+    public Summary validate(File fileOrDirectory) throws IOException {
+        List<File> files = new ArrayList<>();
+        collect(fileOrDirectory, files);
+        if (files.isEmpty()){
+            throw new IOException("No episodes in " + fileOrDirectory);
+        }
+        Summary summary = new Summary();
+        for (File file : files){
+            validateFile(file, summary);
+        }
+        out.println(summary);
+        return summary;
+    }
+
+    private void validateFile(File file, Summary summary){
+        summary.files++;
+        EpisodeReader reader;
+        try {
+            reader = open(file);
+        } catch (IOException | RuntimeException e) {
+            summary.unreadable++;
+            out.println(file + ": unreadable, " + e.getMessage());
+            return;
+        }
+        EpisodeValidator validator = new EpisodeValidator(reader);
+        summary.bytes += reader.getSize();
+        if (validator.validate()){
+            summary.valid++;
+            summary.timeSteps += reader.getTimeStepCount();
+            if (problemsOnly){
+                return;
+            }
+        }
+        out.print(file + ": " + validator);
+    }
+
+    /**
+     * Opens an episode file the way its sidecar says, see the class description.
+     * @throws IOException if the file or its sidecar is not readable as such
+     */
+    public static EpisodeReader open(File file) throws IOException {
+        File headerFile = sidecar(file, HEADER_EXTENSION);
+        if (headerFile.isFile()){
+            JSONObject header;
+            try {
+                header = new JSONObject(new String(Files.readAllBytes(headerFile.toPath()), StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                throw new IOException("Malformed header " + headerFile, e);
+            }
+            return EpisodeReader.fromPayload(map(file), header.optString("content-encoding", "flatbuffer"),
+                    header.optInt("index-length", 0));
+        }
+        File indexFile = sidecar(file, INDEX_EXTENSION);
+        return indexFile.isFile() ? EpisodeReader.open(file, indexFile) : EpisodeReader.open(file);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()){
+            if (channel.size() > Integer.MAX_VALUE){
+                throw new IOException(file + " of " + channel.size() + " bytes exceeds the maximum flatbuffer size");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static File sidecar(File file, String extension){
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + extension);
+    }
+
+    private static void collect(File file, List<File> files){
+        if (file.isDirectory()){
+            File[] children = file.listFiles();
+            if (children == null){
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children){
+                collect(child, files);
+            }
+        } else if (file.isFile() && !file.getName().startsWith(".") &&
+                !file.getName().endsWith(HEADER_EXTENSION) && !file.getName().endsWith(INDEX_EXTENSION)){
+            files.add(file);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1){
+            System.err.println("Usage: EpisodeArchiveValidator directory [--problems-only]");
+            System.exit(2);
+        }
+        EpisodeArchiveValidator validator = new EpisodeArchiveValidator(System.out);
+        validator.setProblemsOnly(Arrays.asList(args).contains("--problems-only"));
+        Summary summary = validator.validate(new File(args[0]));
+        if (summary.getValidCount() < summary.getFileCount()){
+            System.exit(1);
+        }
+    }
+}
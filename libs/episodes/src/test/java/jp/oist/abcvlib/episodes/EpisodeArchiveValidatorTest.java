@@ -0,0 +1,162 @@
+package jp.oist.abcvlib.episodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import jp.oist.abcvlib.core.learning.CompactEpisodeCodec;
+import jp.oist.abcvlib.core.learning.EpisodeIndex;
+import jp.oist.abcvlib.core.learning.EpisodeReader;
+import jp.oist.abcvlib.core.learning.fbclasses.Episode;
+import jp.oist.abcvlib.core.learning.fbclasses.OrientationData;
+import jp.oist.abcvlib.core.learning.fbclasses.TimeStep;
+import jp.oist.abcvlib.util.DeflateCodec;
+
+public class EpisodeArchiveValidatorTest {
+    private static final int ROBOT_ID = 3;
+    private static final long STEP = 5_000_000;
+    private static final long START = 1_700_000_000_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File archive;
+
+    @Before
+    public void createArchive() throws IOException {
+        archive = folder.newFolder("archive");
+        byte[] plain = episode(START, 5, null);
+        write("plain.bin", plain);
+
+        // An upload in compact form and compressed, with the header the ingestion server stores
+        ByteBuffer compact = new DeflateCodec().compress(new CompactEpisodeCodec().encode(ByteBuffer.wrap(plain)));
+        write("compact.bin", toArray(compact));
+        write("compact.json", "{\"content-encoding\":\"compact-flatbuffer, deflate\"}".getBytes(StandardCharsets.UTF_8));
+
+        // Two chunks of a streamed episode appended to one file, found through the merged index
+        EpisodeIndex.Writer firstIndex = new EpisodeIndex.Writer(ROBOT_ID, 0, 3);
+        byte[] first = episode(START, 3, firstIndex);
+        EpisodeIndex.Writer secondIndex = new EpisodeIndex.Writer(ROBOT_ID, 3, 3);
+        byte[] second = episode(START + 9 * STEP, 3, secondIndex);
+        EpisodeIndex.Writer merged = new EpisodeIndex.Writer(ROBOT_ID, 0, 6);
+        merged.addAll(EpisodeIndex.wrap(firstIndex.toByteBuffer()), 0);
+        merged.addAll(EpisodeIndex.wrap(secondIndex.toByteBuffer()), first.length);
+        byte[] streamed = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, streamed, first.length, second.length);
+        write("streamed.bin", streamed);
+        write("streamed.eidx", toArray(merged.toByteBuffer()));
+
+        write("sub/plain.bin", episode(START, 4, null));
+        // Timestamps of the second timestep go back before those of the first
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int[] timeSteps = {timeStep(builder, START + 10 * STEP), timeStep(builder, START)};
+        builder.finish(Episode.createEpisode(builder, ROBOT_ID, Episode.createTimestepsVector(builder, timeSteps)));
+        write("zbackwards.bin", builder.sizedByteArray());
+
+        write("truncated.bin", Arrays.copyOf(plain, 6));
+    }
+
+    @Test
+    public void archiveIsValidatedFileByFile() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EpisodeArchiveValidator.Summary summary = new EpisodeArchiveValidator(
+                new PrintStream(output, true, "UTF-8")).validate(archive);
+        String report = output.toString("UTF-8");
+
+        assertEquals(report, 6, summary.getFileCount());
+        assertEquals(report, 4, summary.getValidCount());
+        assertEquals(report, 1, summary.getUnreadableCount());
+        assertEquals(5 + 5 + 6 + 4, summary.getTimeStepCount());
+        assertTrue(report, report.contains("truncated.bin: unreadable"));
+        assertTrue(report, report.contains("Episode of robot " + ROBOT_ID + ", 6 timesteps"));
+        assertTrue(report, report.contains("before"));
+        assertTrue(report, report.endsWith(summary + System.lineSeparator()));
+    }
+
+    @Test
+    public void problemsOnlyLeavesOutValidEpisodes() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EpisodeArchiveValidator validator = new EpisodeArchiveValidator(new PrintStream(output, true, "UTF-8"));
+        validator.setProblemsOnly(true);
+        validator.validate(archive);
+        String report = output.toString("UTF-8");
+        assertTrue(report, report.contains("zbackwards.bin"));
+        assertTrue(report, !report.contains("plain.bin"));
+    }
+
+    @Test
+    public void sidecarsDecideHowFilesAreRead() throws IOException {
+        EpisodeReader compact = EpisodeArchiveValidator.open(new File(archive, "compact.bin"));
+        assertEquals(ROBOT_ID, compact.getRobotId());
+        assertEquals(5, compact.getTimeStepCount());
+
+        EpisodeReader streamed = EpisodeArchiveValidator.open(new File(archive, "streamed.bin"));
+        assertEquals(6, streamed.getTimeStepCount());
+        assertEquals(START + 9 * STEP, streamed.getTimeStep(3).orientationData().timestamps(0));
+        assertEquals(3, streamed.findTimeStep(START + 9 * STEP));
+    }
+
+    /**
+     * @param index writer to add the timesteps to, or null
+     * @return a finished Episode of timeSteps with 3 orientation samples each
+     */
+    private static byte[] episode(long firstTimestamp, int timeSteps, EpisodeIndex.Writer index){
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int[] offsets = new int[timeSteps];
+        for (int i = 0; i < timeSteps; i++){
+            offsets[i] = timeStep(builder, firstTimestamp + 3 * i * STEP);
+        }
+        builder.finish(Episode.createEpisode(builder, ROBOT_ID, Episode.createTimestepsVector(builder, offsets)));
+        byte[] episode = builder.sizedByteArray();
+        if (index != null){
+            ByteBuffer buffer = ByteBuffer.wrap(episode).order(ByteOrder.LITTLE_ENDIAN);
+            TimeStep timeStep = new TimeStep();
+            for (int offset : offsets){
+                // Offsets count from the end of the finished buffer
+                int position = episode.length - offset;
+                index.add(timeStep.__assign(position, buffer), position, position, 0);
+            }
+        }
+        return episode;
+    }
+
+    private static int timeStep(FlatBufferBuilder builder, long firstTimestamp){
+        long[] timestamps = {firstTimestamp, firstTimestamp + STEP, firstTimestamp + 2 * STEP};
+        double[] values = {0.1, 0.2, 0.3};
+        int orientation = OrientationData.createOrientationData(builder,
+                OrientationData.createTimestampsVector(builder, timestamps),
+                OrientationData.createTiltangleVector(builder, values),
+                OrientationData.createTiltvelocityVector(builder, values));
+        TimeStep.startTimeStep(builder);
+        TimeStep.addOrientationData(builder, orientation);
+        return TimeStep.endTimeStep(builder);
+    }
+
+    private void write(String name, byte[] content) throws IOException {
+        File file = new File(archive, name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer){
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+}
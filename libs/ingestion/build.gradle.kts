@@ -0,0 +1,69 @@
+// Server side tools that run on a plain JVM rather than on the robots: the ingestion server
+// and the load generator. They speak the same protocol as the robots, so the protocol classes
+// are compiled from abcvlib's sources, with their Logger import pointed at one writing to
+// java.util.logging in place of the one using android.util.Log.
+
+plugins {
+    `java-library`
+}
+
+java {
+    val jvm = JavaVersion.toVersion(libs.versions.jvmTarget.get())
+    sourceCompatibility = jvm
+    targetCompatibility = jvm
+}
+
+// Takes the place of jp.oist.abcvlib.util.Logger in the synced sources
+val jvmLogger = "jp.oist.abcvlib.ingestion.logging.Logger"
+
+// Classes of jp.oist.abcvlib.util using no Android APIs, apart from Logger
+val protocolSources = listOf(
+    "ErrorHandler",
+    "FileStreamReceiver",
+    "FramedSession",
+    "MultiplexedConnection",
+    "PersistentConnectionManager",
+    "ProcessPriorityThreadFactory",
+    "ServerConnection",
+    "SocketConnectionManager",
+    "SocketListener",
+    "SocketMessage",
+)
+
+val syncProtocolSources by tasks.registering(Sync::class) {
+    from(project(":abcvlib").file("src/main/java")) {
+        protocolSources.forEach { include("jp/oist/abcvlib/util/$it.java") }
+        // The import goes on the package line so that line numbers in stack traces still match
+        filter { line ->
+            when {
+                line == "import jp.oist.abcvlib.util.Logger;" -> ""
+                line.startsWith("package ") -> "$line import $jvmLogger;"
+                else -> line
+            }
+        }
+    }
+    into(layout.buildDirectory.dir("generated/sources/protocol/java"))
+}
+
+sourceSets {
+    main {
+        java.srcDir(syncProtocolSources)
+    }
+}
+
+dependencies {
+    implementation(libs.json)
+    testImplementation(libs.junit)
+}
+
+mapOf(
+    "runIngestionServer" to "jp.oist.abcvlib.ingestion.IngestionServer",
+    "runLoadGenerator" to "jp.oist.abcvlib.ingestion.LoadGenerator",
+    "runSocketLoopbackBenchmark" to "jp.oist.abcvlib.ingestion.SocketLoopbackBenchmark",
+).forEach { (name, main) ->
+    tasks.register<JavaExec>(name) {
+        group = "application"
+        classpath = sourceSets.main.get().runtimeClasspath
+        mainClass.set(main)
+    }
+}
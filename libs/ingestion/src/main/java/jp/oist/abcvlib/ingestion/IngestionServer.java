@@ -0,0 +1,578 @@
+package jp.oist.abcvlib.ingestion;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.oist.abcvlib.util.FramedSession;
+import jp.oist.abcvlib.util.SocketMessage;
+
+/**
+ * Server receiving episodes from many robots, speaking the same protocol as the Python server:
+ * every message is a 4 byte length, a JSON header and content-length bytes of flatbuffer
+ * episode, answered with a 2 byte length, a JSON header and either utf-8 text or, when files
+ * are set with {@link #setReplyFiles}, those files as a "files" message. Connections starting
+ * with the preface of {@link FramedSession} are served with that protocol instead. All
+ * connections are handled by one thread selecting on them, so hundreds of robots cost no more
+ * than their buffers. Meant for load tests with {@link LoadGenerator} and as a local stand-in
+ * for the Python server in integration tests, not to replace it:
+ * <pre>
+ * java -cp ... jp.oist.abcvlib.ingestion.IngestionServer [port] [directoryToStoreEpisodes] [replyFiles...]
+ * </pre>
+ * or ./gradlew :ingestion:runIngestionServer --args="...". Logs to java.util.logging.
+ */
+public class IngestionServer implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(IngestionServer.class.getName());
+    private static final int MAX_JSON_LENGTH = 1024 * 1024;
+
+    /**
+     * Receives every episode on the server thread. Slow sinks hold up all connections.
+     */
+    public interface EpisodeSink {
+        /**
+         * @param connectionId of the robot's connection, counting from 1
+         * @param content the episode from position to limit, only valid during this call
+         */
+        void onEpisode(long connectionId, JSONObject header, ByteBuffer content) throws IOException;
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final EpisodeSink sink;
+    private volatile boolean closed = false;
+    private volatile List<File> replyFiles = new ArrayList<>();
+    private int socketBufferSize = SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE;
+
+    private final AtomicLong openConnections = new AtomicLong();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong framedConnections = new AtomicLong();
+    private final AtomicLong episodes = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong failedMessages = new AtomicLong();
+    private final AtomicLong peakHeapUsed = new AtomicLong();
+
+    /**
+     * @param address with port 0 for any free port, see {@link #getAddress()}
+     * @param sink null to only count episodes
+     */
+    public IngestionServer(InetSocketAddress address, EpisodeSink sink) throws IOException {
+        this.sink = sink;
+        serverChannel = ServerSocketChannel.open();
+        selector = Selector.open();
+        try {
+            serverChannel.bind(address, 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::serve, "IngestionServer");
+        thread.start();
+        LOG.info("Listening on " + getAddress());
+    }
+
+    public IngestionServer(int port, EpisodeSink sink) throws IOException {
+        this(new InetSocketAddress(port), sink);
+    }
+
+    /**
+     * @return a sink writing every episode to its own file in directory, e.g. to replay them
+     * with {@link LoadGenerator} later, and its header next to it as episode-*.json, so that
+     * the episodes module's EpisodeArchiveValidator can undo its content-encoding
+     */
+    public static EpisodeSink directorySink(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Unable to create " + directory);
+        }
+        AtomicLong count = new AtomicLong();
+        return (connectionId, header, content) -> {
+            String name = String.format(Locale.US, "episode-%d-%d", connectionId, count.incrementAndGet());
+            try (FileOutputStream out = new FileOutputStream(new File(directory, name + ".bin"))){
+                FileChannel channel = out.getChannel();
+                while (content.hasRemaining()){
+                    channel.write(content);
+                }
+            }
+            if (header != null){
+                try (FileOutputStream out = new FileOutputStream(new File(directory, name + ".json"))){
+                    out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        };
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * @param files sent, e.g. as the new model, in reply to every episode instead of text.
+     *              Empty to reply with text again.
+     */
+    public void setReplyFiles(List<File> files){
+        replyFiles = new ArrayList<>(files);
+    }
+
+    /**
+     * @param size SO_SNDBUF and SO_RCVBUF of connections accepted from now on, 0 for the OS
+     *             default
+     */
+    public void setSocketBufferSize(int size){
+        socketBufferSize = size;
+    }
+
+    public long getOpenConnectionCount(){
+        return openConnections.get();
+    }
+
+    public long getAcceptedConnectionCount(){
+        return acceptedConnections.get();
+    }
+
+    public long getEpisodeCount(){
+        return episodes.get();
+    }
+
+    public long getBytesReceived(){
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return messages whose connection failed or that the sink threw on
+     */
+    public long getFailedCount(){
+        return failedMessages.get();
+    }
+
+    /**
+     * @return largest heap use of this JVM seen after an episode, including garbage not yet
+     * collected
+     */
+    public long getPeakHeapUsed(){
+        return peakHeapUsed.get();
+    }
+
+    /**
+     * @return the counters above, also added to every reply
+     */
+    public JSONObject getStats(){
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("episodes", episodes.get());
+            stats.put("bytes-received", bytesReceived.get());
+            stats.put("open-connections", openConnections.get());
+            stats.put("accepted-connections", acceptedConnections.get());
+            stats.put("framed-connections", framedConnections.get());
+            stats.put("failed", failedMessages.get());
+            stats.put("heap-used", heapUsed());
+            stats.put("peak-heap-used", peakHeapUsed.get());
+        } catch (JSONException e) {
+            LOG.log(Level.WARNING, "Unable to create stats", e);
+        }
+        return stats;
+    }
+
+    private static long heapUsed(){
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void serve(){
+        try {
+            while (!closed){
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    if (key.isAcceptable()){
+                        accept();
+                    } else {
+                        handle(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed){
+                LOG.log(Level.WARNING, "Selector failed", e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()){
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error closing selector", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null){
+            channel.configureBlocking(false);
+            SocketMessage.configureSocket(channel, socketBufferSize, socketBufferSize);
+            long id = acceptedConnections.incrementAndGet();
+            openConnections.incrementAndGet();
+            channel.register(selector, SelectionKey.OP_READ, new Connection(id, channel));
+        }
+    }
+
+    private void handle(SelectionKey key){
+        try {
+            Object attachment = key.attachment();
+            if (attachment instanceof FramedSession){
+                ((FramedSession) attachment).handleEvent(key);
+                return;
+            }
+            Connection connection = (Connection) attachment;
+            if (key.isReadable()){
+                connection.read(key);
+            }
+            if (key.isValid() && key.isWritable()){
+                connection.write(key);
+            }
+        } catch (IOException | RuntimeException e) {
+            Object attachment = key.attachment();
+            boolean midMessage = attachment instanceof FramedSession ? ((FramedSession) attachment).isReceiving() :
+                    attachment instanceof Connection && ((Connection) attachment).isMidMessage();
+            if (midMessage){
+                failedMessages.incrementAndGet();
+                LOG.warning("Connection failed: " + e);
+            }
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key){
+        Object attachment = key.attachment();
+        if (attachment instanceof FramedSession){
+            ((FramedSession) attachment).close();
+        } else if (attachment instanceof Connection){
+            ((Connection) attachment).closeChannel();
+        }
+        if (key.attachment() != null){
+            key.attach(null);
+            openConnections.decrementAndGet();
+        }
+        key.cancel();
+    }
+
+    private void deliver(long connectionId, JSONObject header, ByteBuffer content) throws IOException {
+        int length = content.remaining();
+        if (sink != null){
+            sink.onEpisode(connectionId, header, content);
+        }
+        episodes.incrementAndGet();
+        bytesReceived.addAndGet(length);
+        peakHeapUsed.accumulateAndGet(heapUsed(), Math::max);
+    }
+
+    /**
+     * One robot speaking the legacy protocol, until its first bytes show it speaks the framed one.
+     */
+    private class Connection {
+        private final long id;
+        private final SocketChannel channel;
+        private final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        private ByteBuffer json;
+        private JSONObject header;
+        // Reused for every episode and only grows. On the heap so that the heap use reported
+        // counts it, as it does the buffers of framed sessions.
+        private ByteBuffer content = ByteBuffer.allocate(0);
+        private final ByteBuffer[] reply = new ByteBuffer[1];
+        private List<File> files;
+        private FileChannel file;
+        private int fileIndex;
+        private boolean first = true;
+
+        Connection(long id, SocketChannel channel){
+            this.id = id;
+            this.channel = channel;
+        }
+
+        boolean isMidMessage(){
+            return length.position() > 0 || header != null;
+        }
+
+        void read(SelectionKey key) throws IOException {
+            while (key.isValid() && reply[0] == null){
+                if (header == null && json == null){
+                    if (channel.read(length) < 0){
+                        if (length.position() > 0){
+                            throw new IOException("Closed mid header");
+                        }
+                        // Done, as one-shot clients are after every reply
+                        close(key);
+                        return;
+                    }
+                    if (length.hasRemaining()){
+                        return;
+                    }
+                    length.flip();
+                    if (first && FramedSession.isPreface(length)){
+                        switchToFramed(key);
+                        return;
+                    }
+                    first = false;
+                    int jsonLength = length.getInt();
+                    if (jsonLength <= 0 || jsonLength > MAX_JSON_LENGTH){
+                        throw new IOException("Invalid header length " + jsonLength);
+                    }
+                    json = ByteBuffer.allocate(jsonLength);
+                } else if (header == null){
+                    if (channel.read(json) < 0){
+                        throw new IOException("Closed mid header");
+                    }
+                    if (json.hasRemaining()){
+                        return;
+                    }
+                    startContent();
+                } else {
+                    if (channel.read(content) < 0){
+                        throw new IOException("Closed mid episode");
+                    }
+                    if (content.hasRemaining()){
+                        return;
+                    }
+                    content.flip();
+                    try {
+                        deliver(id, header, content);
+                        prepareReply("Received episode of " + content.limit() + " bytes");
+                    } catch (IOException e) {
+                        failedMessages.incrementAndGet();
+                        LOG.warning("Episode from connection " + id + " not stored: " + e);
+                        prepareReply("Error storing episode: " + e.getMessage());
+                    }
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void startContent() throws IOException {
+            long contentLength;
+            try {
+                header = new JSONObject(new String(json.array(), StandardCharsets.UTF_8));
+                contentLength = header.getLong("content-length");
+            } catch (JSONException e) {
+                throw new IOException("Malformed header", e);
+            }
+            if (contentLength < 0 || contentLength > Integer.MAX_VALUE){
+                throw new IOException("Invalid content-length " + contentLength);
+            }
+            if (content.capacity() < contentLength){
+                content = ByteBuffer.allocate((int) contentLength);
+            }
+            content.clear().limit((int) contentLength);
+        }
+
+        private void switchToFramed(SelectionKey key) throws IOException {
+            framedConnections.incrementAndGet();
+            FramedSession session = new FramedSession(channel, false, new FramedHandler(id), selector::wakeup);
+            key.attach(session);
+            session.handleInitialBytes(length);
+            session.process(key);
+        }
+
+        private void prepareReply(String text) throws IOException {
+            files = replyFiles;
+            JSONObject replyHeader = getStats();
+            byte[] body = null;
+            try {
+                if (files.isEmpty()){
+                    body = text.getBytes(StandardCharsets.UTF_8);
+                    replyHeader.put("content-type", "text");
+                    replyHeader.put("content-encoding", "utf-8");
+                    replyHeader.put("content-length", body.length);
+                } else {
+                    JSONArray names = new JSONArray();
+                    JSONArray lengths = new JSONArray();
+                    long total = 0;
+                    for (File f : files){
+                        names.put(f.getName());
+                        lengths.put(f.length());
+                        total += f.length();
+                    }
+                    replyHeader.put("content-type", "files");
+                    replyHeader.put("content-encoding", "binary");
+                    replyHeader.put("file-names", names);
+                    replyHeader.put("file-lengths", lengths);
+                    replyHeader.put("content-length", total);
+                }
+            } catch (JSONException e) {
+                throw new IOException("Unable to create reply header", e);
+            }
+            byte[] headerBytes = replyHeader.toString().getBytes(StandardCharsets.UTF_8);
+            if (headerBytes.length > Short.MAX_VALUE){
+                throw new IOException("Reply header of " + headerBytes.length + " bytes too long");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Short.BYTES + headerBytes.length + (body != null ? body.length : 0));
+            buffer.putShort((short) headerBytes.length).put(headerBytes);
+            if (body != null){
+                buffer.put(body);
+            }
+            buffer.flip();
+            reply[0] = buffer;
+            fileIndex = 0;
+        }
+
+        void write(SelectionKey key) throws IOException {
+            if (reply[0].hasRemaining()){
+                channel.write(reply);
+                if (reply[0].hasRemaining()){
+                    return;
+                }
+            }
+            // Files go from the page cache to the socket without passing through the heap
+            while (fileIndex < files.size()){
+                if (file == null){
+                    file = new RandomAccessFile(files.get(fileIndex), "r").getChannel();
+                }
+                long position = file.position();
+                long sent = file.transferTo(position, file.size() - position, channel);
+                file.position(position + sent);
+                if (file.position() < file.size()){
+                    return;
+                }
+                file.close();
+                file = null;
+                fileIndex++;
+            }
+            reply[0] = null;
+            header = null;
+            json = null;
+            length.clear();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void closeChannel(){
+            try {
+                if (file != null){
+                    file.close();
+                }
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error closing connection " + id, e);
+            }
+        }
+    }
+
+    /**
+     * Serves a robot speaking the framed protocol: episodes are acknowledged with the stats,
+     * followed by the reply files if any, and a CONTROL message with command "stats" is
+     * answered with a CONTROL message holding them.
+     */
+    private class FramedHandler implements FramedSession.Handler {
+        private final long id;
+
+        FramedHandler(long id){
+            this.id = id;
+        }
+
+        @Override
+        public JSONObject onMessage(FramedSession session, byte type, JSONObject header, ByteBuffer content) throws IOException {
+            if (type == FramedSession.EPISODE_CHUNK){
+                try {
+                    deliver(id, header, content);
+                } catch (IOException e) {
+                    failedMessages.incrementAndGet();
+                    throw e;
+                }
+                for (File file : replyFiles){
+                    sendFile(session, file);
+                }
+            } else if (type == FramedSession.CONTROL && "stats".equals(header.optString("command"))){
+                JSONObject stats = getStats();
+                try {
+                    stats.put("content-type", "stats");
+                } catch (JSONException e) {
+                    throw new IOException("Unable to create stats", e);
+                }
+                session.send(FramedSession.CONTROL, stats, ByteBuffer.allocate(0));
+            }
+            return getStats();
+        }
+
+        private void sendFile(FramedSession session, File file) throws IOException {
+            JSONObject fileHeader = new JSONObject();
+            ByteBuffer mapped;
+            try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()){
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                fileHeader.put("content-type", "files");
+                fileHeader.put("content-encoding", "binary");
+                fileHeader.put("file-names", new JSONArray().put(file.getName()));
+                fileHeader.put("file-lengths", new JSONArray().put(channel.size()));
+            } catch (JSONException e) {
+                throw new IOException("Unable to create file header", e);
+            }
+            session.send(FramedSession.MODEL_FILE, fileHeader, mapped);
+        }
+    }
+
+    /**
+     * Stops accepting and closes all connections.
+     */
+    @Override
+    public void close(){
+        closed = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing server socket", e);
+        }
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        EpisodeSink sink = args.length > 1 && !args[1].isEmpty() ? directorySink(new File(args[1])) : null;
+        IngestionServer server = new IngestionServer(port, sink);
+        List<File> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++){
+            files.add(new File(args[i]));
+        }
+        server.setReplyFiles(files);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        long lastEpisodes = 0;
+        while (!server.closed){
+            Thread.sleep(5000);
+            long episodes = server.getEpisodeCount();
+            if (episodes != lastEpisodes){
+                LOG.info(server.getStats().toString());
+                lastEpisodes = episodes;
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package jp.oist.abcvlib.ingestion;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.oist.abcvlib.util.MultiplexedConnection;
+import jp.oist.abcvlib.util.PersistentConnectionManager;
+import jp.oist.abcvlib.util.ServerConnection;
+import jp.oist.abcvlib.util.SocketConnectionManager;
+import jp.oist.abcvlib.util.SocketListener;
+
+/**
+ * Replays episodes from many simulated robots against a server, e.g. {@link IngestionServer} or
+ * the Python server, to see how the upload path scales without a fleet. Every robot is a
+ * thread sending through the same classes the robots use, one after the other or with a pause
+ * in between, and waiting for each reply before sending the next episode:
+ * <pre>
+ * java -cp ... jp.oist.abcvlib.ingestion.LoadGenerator host|local port [robots] [episodesPerRobot]
+ *         [episodeFileOrDirectory|megabytesPerEpisode] [one-shot|persistent|multiplexed] [pauseMillis]
+ * </pre>
+ * or ./gradlew :ingestion:runLoadGenerator --args="...".
+ * With host "local" an IngestionServer is started in the same JVM. Reports throughput, the
+ * latency of an episode from sending it to its reply and the heap use of the server, as
+ * included by IngestionServer in its replies.
+ */
+public class LoadGenerator {
+    private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * How every simulated robot talks to the server.
+     */
+    public enum Protocol {
+        /** A new connection per episode, see {@link SocketConnectionManager} */
+        ONE_SHOT,
+        /** See {@link PersistentConnectionManager} */
+        PERSISTENT,
+        /** See {@link MultiplexedConnection} */
+        MULTIPLEXED
+    }
+
+    /**
+     * Result of one run.
+     */
+    public static class Report {
+        private final int robots;
+        private final long[] latencies;
+        private final int failed;
+        private final long bytes;
+        private final long nanos;
+        private final long serverPeakHeapUsed;
+
+        Report(int robots, long[] latencies, int failed, long bytes, long nanos, long serverPeakHeapUsed){
+            this.robots = robots;
+            this.latencies = latencies;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.serverPeakHeapUsed = serverPeakHeapUsed;
+            Arrays.sort(latencies);
+        }
+
+        /**
+         * @return episodes the server replied to
+         */
+        public int getSentCount(){
+            return latencies.length;
+        }
+
+        public int getFailedCount(){
+            return failed;
+        }
+
+        /**
+         * @return megabytes of episodes per second, not counting headers or replies
+         */
+        public double getMegabytesPerSecond(){
+            return bytes / 1e6 / (nanos / 1e9);
+        }
+
+        public double getEpisodesPerSecond(){
+            return latencies.length / (nanos / 1e9);
+        }
+
+        /**
+         * @param percentile e.g. 99
+         * @return milliseconds from sending an episode to its reply, 0 if none was sent
+         */
+        public double getLatencyMillis(double percentile){
+            if (latencies.length == 0){
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+        }
+
+        /**
+         * @return bytes, or -1 if the server did not report it
+         */
+        public long getServerPeakHeapUsed(){
+            return serverPeakHeapUsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d robots: %d episodes in %.1f s, %.1f MB/s, %.1f episodes/s, " +
+                            "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, server heap %s",
+                    robots, latencies.length, nanos / 1e9, getMegabytesPerSecond(), getEpisodesPerSecond(),
+                    getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(100),
+                    serverPeakHeapUsed >= 0 ? serverPeakHeapUsed / (1024 * 1024) + " MB" : "unknown") +
+                    (failed > 0 ? ", " + failed + " failed" : "");
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final List<ByteBuffer> episodes;
+    private int robots = 100;
+    private int episodesPerRobot = 10;
+    private Protocol protocol = Protocol.PERSISTENT;
+    private long pauseMillis = 0;
+    private long timeoutMillis = 30000;
+
+    private final AtomicLong serverPeakHeapUsed = new AtomicLong(-1);
+    private volatile CountDownLatch statsReceived = new CountDownLatch(1);
+
+    /**
+     * @param episodes replayed in turn by every robot, each starting at a different one. Not
+     *                 modified, so the same buffers can be shared by many generators.
+     */
+    public LoadGenerator(InetSocketAddress address, List<ByteBuffer> episodes){
+        if (episodes.isEmpty()){
+            throw new IllegalArgumentException("No episodes to send");
+        }
+        this.address = address;
+        this.episodes = new ArrayList<>(episodes);
+    }
+
+    /**
+     * Memory-maps an episode file, or every .bin file in a directory in order of their names,
+     * e.g. episodes stored by {@link IngestionServer#directorySink}.
+     */
+    public static List<ByteBuffer> loadEpisodes(File fileOrDirectory) throws IOException {
+        File[] files = fileOrDirectory.isDirectory() ?
+                fileOrDirectory.listFiles(file -> file.isFile() && file.getName().endsWith(".bin")) :
+                new File[]{fileOrDirectory};
+        if (files == null || files.length == 0){
+            throw new IOException("No episodes in " + fileOrDirectory);
+        }
+        Arrays.sort(files);
+        List<ByteBuffer> episodes = new ArrayList<>();
+        for (File file : files){
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = randomAccessFile.getChannel()){
+                episodes.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+        return episodes;
+    }
+
+    /**
+     * @return one episode of the given size, for when no recorded episodes are at hand
+     */
+    public static List<ByteBuffer> syntheticEpisodes(int bytes){
+        ByteBuffer episode = ByteBuffer.allocateDirect(bytes);
+        for (int i = 0; i < bytes; i += 4096){
+            episode.put(i, (byte) i);
+        }
+        List<ByteBuffer> episodes = new ArrayList<>();
+        episodes.add(episode);
+        return episodes;
+    }
+
+    public void setRobots(int robots){
+        this.robots = robots;
+    }
+
+    public void setEpisodesPerRobot(int episodesPerRobot){
+        this.episodesPerRobot = episodesPerRobot;
+    }
+
+    public void setProtocol(Protocol protocol){
+        this.protocol = protocol;
+    }
+
+    /**
+     * @param pauseMillis time every robot waits between a reply and its next episode, e.g. to
+     *                    simulate the length of an episode. 0 (default) to send back to back.
+     */
+    public void setPause(long pauseMillis){
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * @param timeoutMillis time without progress after which an episode counts as failed
+     */
+    public void setTimeout(long timeoutMillis){
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs all robots until each has sent its episodes.
+     */
+    public Report run() throws InterruptedException {
+        serverPeakHeapUsed.set(-1);
+        statsReceived = new CountDownLatch(1);
+        long[][] latencies = new long[robots][];
+        int[] failed = new int[robots];
+        long[] bytes = new long[robots];
+        // Connections are opened before the start so that only the episodes are timed
+        CyclicBarrier start = new CyclicBarrier(robots + 1);
+        Thread[] threads = new Thread[robots];
+        for (int i = 0; i < robots; i++){
+            int robot = i;
+            threads[i] = new Thread(() -> runRobot(robot, start, latencies, failed, bytes), "LoadGenerator-" + i);
+            threads[i].start();
+        }
+        long startNanos;
+        try {
+            start.await();
+            startNanos = System.nanoTime();
+        } catch (Exception e) {
+            for (Thread thread : threads){
+                thread.interrupt();
+            }
+            throw new InterruptedException("Robots did not start: " + e);
+        }
+        for (Thread thread : threads){
+            thread.join();
+        }
+        long nanos = System.nanoTime() - startNanos;
+        int sent = 0;
+        int failedTotal = 0;
+        long bytesTotal = 0;
+        for (int i = 0; i < robots; i++){
+            sent += latencies[i].length;
+            failedTotal += failed[i];
+            bytesTotal += bytes[i];
+        }
+        long[] all = new long[sent];
+        int position = 0;
+        for (long[] robotLatencies : latencies){
+            System.arraycopy(robotLatencies, 0, all, position, robotLatencies.length);
+            position += robotLatencies.length;
+        }
+        return new Report(robots, all, failedTotal, bytesTotal, nanos, serverPeakHeapUsed.get());
+    }
+
+    private void runRobot(int robot, CyclicBarrier start, long[][] latencies, int[] failed, long[] bytes){
+        SocketListener listener = new StatsListener();
+        long[] times = new long[episodesPerRobot];
+        int sent = 0;
+        ServerConnection connection = null;
+        try {
+            connection = openConnection(listener);
+            start.await();
+            JSONObject headerFields = new JSONObject();
+            headerFields.put("robot-id", robot);
+            for (int i = 0; i < episodesPerRobot; i++){
+                ByteBuffer episode = episodes.get((robot + i) % episodes.size()).duplicate();
+                int length = episode.remaining();
+                long begin = System.nanoTime();
+                boolean ok = connection != null ? connection.sendAndWait(episode, headerFields) :
+                        SocketConnectionManager.send(listener, address, episode, headerFields, timeoutMillis);
+                if (ok){
+                    times[sent++] = System.nanoTime() - begin;
+                    bytes[robot] += length;
+                } else {
+                    failed[robot]++;
+                }
+                if (pauseMillis > 0){
+                    Thread.sleep(pauseMillis);
+                }
+            }
+            if (robot == 0 && connection instanceof MultiplexedConnection){
+                requestStats((MultiplexedConnection) connection);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Robot " + robot + " stopped", e);
+            failed[robot] += episodesPerRobot - sent - failed[robot];
+        } finally {
+            if (connection != null){
+                connection.close();
+            }
+            latencies[robot] = Arrays.copyOf(times, sent);
+        }
+    }
+
+    private ServerConnection openConnection(SocketListener listener) throws IOException {
+        switch (protocol){
+            case PERSISTENT:
+                PersistentConnectionManager persistent = new PersistentConnectionManager(listener, address);
+                persistent.setTimeout(timeoutMillis);
+                return persistent;
+            case MULTIPLEXED:
+                MultiplexedConnection multiplexed = new MultiplexedConnection(listener, address);
+                multiplexed.setTimeout(timeoutMillis);
+                return multiplexed;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Acknowledgements of the framed protocol do not reach the SocketListener, so the stats
+     * are asked for once at the end.
+     */
+    private void requestStats(MultiplexedConnection connection) throws JSONException, InterruptedException {
+        JSONObject request = new JSONObject();
+        request.put("command", "stats");
+        connection.sendControl(request);
+        if (!statsReceived.await(2, TimeUnit.SECONDS)){
+            LOG.warning("Server did not answer the stats request");
+        }
+    }
+
+    /**
+     * Takes the heap use of the server from the header of its replies.
+     */
+    private class StatsListener implements SocketListener {
+        @Override
+        public void onServerReadSuccess(JSONObject jsonHeader, ByteBuffer msgFromServer) {
+            long peak = jsonHeader.optLong("peak-heap-used", -1);
+            if (peak >= 0){
+                serverPeakHeapUsed.accumulateAndGet(peak, Math::max);
+            }
+            if ("stats".equals(jsonHeader.optString("content-type"))){
+                statsReceived.countDown();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2){
+            System.err.println("Usage: LoadGenerator host|local port [robots] [episodesPerRobot] " +
+                    "[episodeFileOrDirectory|megabytesPerEpisode] [one-shot|persistent|multiplexed] [pauseMillis]");
+            return;
+        }
+        int port = Integer.parseInt(args[1]);
+        int robots = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int episodesPerRobot = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String source = args.length > 4 ? args[4] : "1";
+        List<ByteBuffer> episodes = source.matches("\\d+") ?
+                syntheticEpisodes(Integer.parseInt(source) * 1024 * 1024) : loadEpisodes(new File(source));
+        Protocol protocol = args.length > 5 ?
+                Protocol.valueOf(args[5].toUpperCase(Locale.US).replace('-', '_')) : Protocol.PERSISTENT;
+        long pauseMillis = args.length > 6 ? Long.parseLong(args[6]) : 0;
+
+        IngestionServer server = args[0].equals("local") ? new IngestionServer(port, null) : null;
+        try {
+            InetSocketAddress address = server != null ?
+                    new InetSocketAddress("127.0.0.1", server.getAddress().getPort()) :
+                    new InetSocketAddress(args[0], port);
+            LoadGenerator generator = new LoadGenerator(address, episodes);
+            generator.setRobots(robots);
+            generator.setEpisodesPerRobot(episodesPerRobot);
+            generator.setProtocol(protocol);
+            generator.setPause(pauseMillis);
+            LOG.info(robots + " robots sending " + episodesPerRobot + " of " + episodes.size() +
+                    " episodes to " + address + " " + protocol);
+            LOG.info(generator.run().toString());
+        } finally {
+            if (server != null){
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package jp.oist.abcvlib.ingestion;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.oist.abcvlib.util.PersistentConnectionManager;
+import jp.oist.abcvlib.util.SocketConnectionManager;
+import jp.oist.abcvlib.util.SocketListener;
+import jp.oist.abcvlib.util.SocketMessage;
+
+/**
+ * Measures how fast episodes go through {@link SocketConnectionManager} and
+ * {@link PersistentConnectionManager} to a server on the loopback interface, e.g. to compare
+ * socket buffer sizes. The server thread reads the header and content of every message as the
+ * Python server does and answers with a reply of the given size, e.g. to stand in for model
+ * files:
+ * <pre>
+ * ./gradlew :ingestion:runSocketLoopbackBenchmark --args="[megabytesPerMessage] [messages] [megabytesPerReply]"
+ * </pre>
+ * Throughput on loopback is bounded by copying rather than by the network, so it shows the
+ * overhead of the client code itself, not what to expect over Wi-Fi.
+ */
+public class SocketLoopbackBenchmark {
+    private static final Logger LOG = Logger.getLogger(SocketLoopbackBenchmark.class.getName());
+
+    /**
+     * Result of one run.
+     */
+    public static class Result {
+        private final String name;
+        private final long bytes;
+        private final long nanos;
+        private final int failed;
+
+        Result(String name, long bytes, long nanos, int failed){
+            this.name = name;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.failed = failed;
+        }
+
+        public double getMegabytesPerSecond(){
+            return bytes / 1e6 / (nanos / 1e9);
+        }
+
+        /**
+         * @return messages the server did not reply to
+         */
+        public int getFailedCount(){
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-40s %8.1f MB/s", name, getMegabytesPerSecond()) +
+                    (failed > 0 ? ", " + failed + " failed" : "");
+        }
+    }
+
+    private static final SocketListener IGNORE_REPLIES = (header, content) -> { };
+
+    /**
+     * Sends every message on a new connection like SocketConnectionManager.send().
+     * @param bufferSize SO_SNDBUF and SO_RCVBUF, 0 for the OS default
+     * @return throughput counting the bytes sent and received
+     */
+    public static Result runOneShot(int messageBytes, int replyBytes, int messages, int bufferSize) throws IOException {
+        ByteBuffer episode = episode(messageBytes);
+        try (Server server = new Server(bufferSize, replyBytes)){
+            int failed = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++){
+                SocketConnectionManager connection = new SocketConnectionManager(IGNORE_REPLIES,
+                        server.getAddress(), episode.duplicate(), new CyclicBarrier(1));
+                connection.setTimeout(10000);
+                connection.setSocketBufferSizes(bufferSize, bufferSize);
+                connection.run();
+                if (!connection.isSent()){
+                    failed++;
+                }
+            }
+            return new Result("one connection per message, buffers " + describe(bufferSize),
+                    (long) (messageBytes + replyBytes) * messages, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Sends every message over one PersistentConnectionManager.
+     * @param bufferSize SO_SNDBUF and SO_RCVBUF, 0 for the OS default
+     * @return throughput counting the bytes sent and received
+     */
+    public static Result runPersistent(int messageBytes, int replyBytes, int messages, int bufferSize) throws IOException {
+        ByteBuffer episode = episode(messageBytes);
+        try (Server server = new Server(bufferSize, replyBytes);
+             PersistentConnectionManager connection = new PersistentConnectionManager(IGNORE_REPLIES, server.getAddress())){
+            connection.setTimeout(10000);
+            connection.setSocketBufferSizes(bufferSize, bufferSize);
+            int failed = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++){
+                if (!connection.sendAndWait(episode, null)){
+                    failed++;
+                }
+            }
+            return new Result("one kept open connection, buffers " + describe(bufferSize),
+                    (long) (messageBytes + replyBytes) * messages, System.nanoTime() - start, failed);
+        }
+    }
+
+    private static String describe(int bufferSize){
+        return bufferSize > 0 ? bufferSize / 1024 + " KB" : "OS default";
+    }
+
+    private static ByteBuffer episode(int bytes){
+        ByteBuffer episode = ByteBuffer.allocateDirect(bytes);
+        for (int i = 0; i < bytes; i += 4096){
+            episode.put(i, (byte) i);
+        }
+        return episode;
+    }
+
+    /**
+     * Reads messages and replies on one thread, one connection at a time.
+     */
+    private static class Server implements AutoCloseable {
+        private final ServerSocketChannel serverChannel;
+        private final Thread thread;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final int bufferSize;
+        private final ByteBuffer reply;
+
+        Server(int bufferSize, int replyBytes) throws IOException {
+            this.bufferSize = bufferSize;
+            byte[] replyHeader = ("{\"content-length\":" + replyBytes + ",\"content-type\":\"text\"}")
+                    .getBytes(StandardCharsets.UTF_8);
+            reply = ByteBuffer.allocateDirect(Short.BYTES + replyHeader.length + replyBytes);
+            reply.putShort((short) replyHeader.length).put(replyHeader);
+            serverChannel = ServerSocketChannel.open();
+            if (bufferSize > 0){
+                // Accepted sockets inherit it, set before listening for the window to apply
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+            }
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            thread = new Thread(this::serve, "SocketLoopbackBenchmark");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+
+        private void serve(){
+            ByteBuffer intHeader = ByteBuffer.allocate(Integer.BYTES);
+            ByteBuffer content = ByteBuffer.allocateDirect(1024 * 1024);
+            while (!closed.get()){
+                try (SocketChannel channel = serverChannel.accept()){
+                    if (bufferSize > 0){
+                        channel.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+                    }
+                    while (true){
+                        intHeader.clear();
+                        if (!readFully(channel, intHeader)){
+                            break;
+                        }
+                        ByteBuffer json = ByteBuffer.allocate(intHeader.getInt(0));
+                        if (!readFully(channel, json)){
+                            break;
+                        }
+                        long remaining = new JSONObject(new String(json.array(), StandardCharsets.UTF_8))
+                                .getLong("content-length");
+                        while (remaining > 0){
+                            content.clear();
+                            content.limit((int) Math.min(content.capacity(), remaining));
+                            int read = channel.read(content);
+                            if (read < 0){
+                                throw new IOException("Client closed the connection mid message");
+                            }
+                            remaining -= read;
+                        }
+                        reply.rewind();
+                        while (reply.hasRemaining()){
+                            channel.write(reply);
+                        }
+                    }
+                } catch (IOException | JSONException e) {
+                    if (!closed.get()){
+                        LOG.log(Level.WARNING, "Server connection failed", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if the client closed the connection before buffer was filled
+         */
+        private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()){
+                if (channel.read(buffer) < 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.set(true);
+            serverChannel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int replyMegabytes = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int messageBytes = megabytes * 1024 * 1024;
+        // A 2 byte reply unless asked for more, as the server sends after storing an episode
+        int replyBytes = replyMegabytes > 0 ? replyMegabytes * 1024 * 1024 : 2;
+        // Once without timing so the JIT has compiled the paths measured
+        runPersistent(messageBytes, replyBytes, 2, 0);
+        LOG.info(messages + " messages of " + megabytes + " MB with replies of " +
+                replyBytes + " bytes over loopback");
+        LOG.info(runOneShot(messageBytes, replyBytes, messages, 0).toString());
+        LOG.info(runOneShot(messageBytes, replyBytes, messages, SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE).toString());
+        LOG.info(runPersistent(messageBytes, replyBytes, messages, 0).toString());
+        LOG.info(runPersistent(messageBytes, replyBytes, messages, SocketMessage.DEFAULT_SOCKET_BUFFER_SIZE).toString());
+    }
+}
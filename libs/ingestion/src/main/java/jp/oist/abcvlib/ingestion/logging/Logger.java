@@ -0,0 +1,57 @@
+package jp.oist.abcvlib.ingestion.logging;
+
+import java.util.logging.Level;
+
+/**
+ * Stand-in for jp.oist.abcvlib.util.Logger for the protocol classes compiled into this module.
+ * The sync in build.gradle.kts points their Logger import here, so no second
+ * jp.oist.abcvlib.util.Logger exists to clash with the library's. Logs to java.util.logging
+ * with the tag as the logger name instead of android.util.Log. Verbose and debug messages map
+ * to FINER and FINE, so they are off unless enabled in the logging configuration.
+ */
+public class Logger {
+
+    public static void v(String tag, String msg) {
+        log(Level.FINER, tag, msg, null);
+    }
+
+    public static void v(String tag, String msg, Throwable tr) {
+        log(Level.FINER, tag, msg, tr);
+    }
+
+    public static void d(String tag, String msg) {
+        log(Level.FINE, tag, msg, null);
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+        log(Level.FINE, tag, msg, tr);
+    }
+
+    public static void i(String tag, String msg) {
+        log(Level.INFO, tag, msg, null);
+    }
+
+    public static void i(String tag, String msg, Throwable tr) {
+        log(Level.INFO, tag, msg, tr);
+    }
+
+    public static void w(String tag, String msg) {
+        log(Level.WARNING, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        log(Level.WARNING, tag, msg, tr);
+    }
+
+    public static void e(String tag, String msg) {
+        log(Level.SEVERE, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        log(Level.SEVERE, tag, msg, tr);
+    }
+
+    private static void log(Level level, String tag, String msg, Throwable tr) {
+        java.util.logging.Logger.getLogger(tag).log(level, msg, tr);
+    }
+}
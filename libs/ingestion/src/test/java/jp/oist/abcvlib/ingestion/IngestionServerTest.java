@@ -0,0 +1,75 @@
+package jp.oist.abcvlib.ingestion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class IngestionServerTest {
+    private static final int ROBOTS = 4;
+    private static final int EPISODES_PER_ROBOT = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void oneShot() throws Exception {
+        assertAllEpisodesReceived(LoadGenerator.Protocol.ONE_SHOT);
+    }
+
+    @Test
+    public void persistent() throws Exception {
+        assertAllEpisodesReceived(LoadGenerator.Protocol.PERSISTENT);
+    }
+
+    @Test
+    public void multiplexed() throws Exception {
+        assertAllEpisodesReceived(LoadGenerator.Protocol.MULTIPLEXED);
+    }
+
+    @Test
+    public void storedEpisodesCanBeReplayed() throws Exception {
+        File directory = folder.newFolder("episodes");
+        List<ByteBuffer> episodes = LoadGenerator.syntheticEpisodes(100 * 1024);
+        try (IngestionServer server = new IngestionServer(new InetSocketAddress("127.0.0.1", 0),
+                IngestionServer.directorySink(directory))){
+            LoadGenerator generator = new LoadGenerator(server.getAddress(), episodes);
+            generator.setRobots(1);
+            generator.setEpisodesPerRobot(2);
+            assertEquals(2, generator.run().getSentCount());
+        }
+        List<ByteBuffer> stored = LoadGenerator.loadEpisodes(directory);
+        assertEquals(2, stored.size());
+        assertEquals(2, directory.list((parent, name) -> name.endsWith(".json")).length);
+        for (ByteBuffer episode : stored){
+            assertEquals(episodes.get(0), episode);
+        }
+    }
+
+    private static void assertAllEpisodesReceived(LoadGenerator.Protocol protocol) throws Exception {
+        try (IngestionServer server = new IngestionServer(new InetSocketAddress("127.0.0.1", 0), null)){
+            LoadGenerator generator = new LoadGenerator(server.getAddress(),
+                    LoadGenerator.syntheticEpisodes(256 * 1024));
+            generator.setRobots(ROBOTS);
+            generator.setEpisodesPerRobot(EPISODES_PER_ROBOT);
+            generator.setProtocol(protocol);
+            generator.setTimeout(10000);
+            LoadGenerator.Report report = generator.run();
+
+            int episodes = ROBOTS * EPISODES_PER_ROBOT;
+            assertEquals(report.toString(), episodes, report.getSentCount());
+            assertEquals(0, report.getFailedCount());
+            assertEquals(episodes, server.getEpisodeCount());
+            assertEquals(episodes * 256L * 1024, server.getBytesReceived());
+            assertEquals(0, server.getFailedCount());
+            assertTrue(report.getServerPeakHeapUsed() > 0);
+        }
+    }
+}
@@ -42,6 +42,14 @@ val androidLibs = listOf(
 
 gradle.extra["androidLibs"] = androidLibs
 
+// Plain JVM modules, e.g. tools run on the server
+val jvmLibs = listOf(
+        "episodes",
+        "ingestion"
+)
+
+gradle.extra["jvmLibs"] = jvmLibs
+
 @Suppress("UNCHECKED_CAST")
 val apps = jsonContent["apps"] as List<String>
 
@@ -52,6 +60,11 @@ androidLibs.forEach { lib ->
     project(":$lib").projectDir = file("libs/$lib")
 }
 
+jvmLibs.forEach { lib ->
+    include(lib)
+    project(":$lib").projectDir = file("libs/$lib")
+}
+
 apps.forEach { app ->
     include(app)
     project(":$app").projectDir = file("apps/$app")